@@ -0,0 +1,141 @@
+/*******************************************************************************
+ *  
+ * Copyright (c) 2009, 2019 Erik Berglund.
+ *    
+ *       This file is part of Conserve.
+ *   
+ *       Conserve is free software: you can redistribute it and/or modify
+ *       it under the terms of the GNU Affero General Public License as published by
+ *       the Free Software Foundation, either version 3 of the License, or
+ *       (at your option) any later version.
+ *   
+ *       Conserve is distributed in the hope that it will be useful,
+ *       but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *       MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *       GNU Affero General Public License for more details.
+ *   
+ *       You should have received a copy of the GNU Affero General Public License
+ *       along with Conserve.  If not, see <https://www.gnu.org/licenses/agpl.html>.
+ *       
+ *******************************************************************************/
+package com.gammascout;
+
+import java.awt.BorderLayout;
+import java.awt.Color;
+import java.awt.Dimension;
+import java.awt.event.ActionEvent;
+import java.awt.event.ActionListener;
+
+import javax.swing.BorderFactory;
+import javax.swing.JButton;
+import javax.swing.JLabel;
+import javax.swing.JPanel;
+import javax.swing.SwingUtilities;
+
+import com.gammascout.alarm.AlarmEngine;
+import com.gammascout.alarm.Alert;
+import com.gammascout.alarm.AlertSink;
+
+/**
+ * A red banner that shows the latest alert and the number of alerts since it
+ * was last dismissed, and the failure of another sink to deliver an alert,
+ * e.g. to the alarm log. It is hidden, and takes no space, while there is
+ * nothing to show.
+ * 
+ * @author Erik Berglund
+ * 
+ */
+public class AlertBanner extends JPanel implements AlertSink, AlarmEngine.FailureListener
+{
+	private static final long serialVersionUID = -4518735102946236815L;
+
+	private final JLabel messageLabel = new JLabel();
+	private final JButton btnDismiss = new JButton("Dismiss");
+	private int alerts;
+
+	/**
+	 * Create a hidden banner.
+	 */
+	public AlertBanner()
+	{
+		super(new BorderLayout(6, 0));
+		setBackground(new Color(0xc0, 0x20, 0x20));
+		setBorder(BorderFactory.createEmptyBorder(3, 6, 3, 3));
+		messageLabel.setForeground(Color.WHITE);
+		add(messageLabel, BorderLayout.CENTER);
+		add(btnDismiss, BorderLayout.EAST);
+		btnDismiss.addActionListener(new ActionListener()
+		{
+			@Override
+			public void actionPerformed(ActionEvent e)
+			{
+				alerts = 0;
+				setVisible(false);
+				revalidate();
+			}
+		});
+		setVisible(false);
+	}
+
+	/**
+	 * Show the alert. May be called on any thread.
+	 * 
+	 * @see com.gammascout.alarm.AlertSink#alert(com.gammascout.alarm.Alert)
+	 */
+	@Override
+	public void alert(final Alert alert)
+	{
+		SwingUtilities.invokeLater(new Runnable()
+		{
+			@Override
+			public void run()
+			{
+				alerts++;
+				String text = "Alert: " + alert.getMessage();
+				if (alerts > 1)
+				{
+					text += " (" + alerts + " alerts)";
+				}
+				show(text);
+			}
+		});
+	}
+
+	/**
+	 * Show that an alert was not delivered. May be called on any thread.
+	 * 
+	 * @see com.gammascout.alarm.AlarmEngine.FailureListener#sinkFailed(com.gammascout.alarm.AlertSink,
+	 *      com.gammascout.alarm.Alert, java.lang.Exception)
+	 */
+	@Override
+	public void sinkFailed(AlertSink sink, final Alert alert, final Exception e)
+	{
+		SwingUtilities.invokeLater(new Runnable()
+		{
+			@Override
+			public void run()
+			{
+				show("Alert not delivered: " + alert.getMessage() + " (" + e.getMessage() + ")");
+			}
+		});
+	}
+
+	private void show(String text)
+	{
+		messageLabel.setText(text);
+		setVisible(true);
+		revalidate();
+	}
+
+	/**
+	 * No size while hidden, since a spring layout places hidden components
+	 * too.
+	 * 
+	 * @see javax.swing.JComponent#getPreferredSize()
+	 */
+	@Override
+	public Dimension getPreferredSize()
+	{
+		return isVisible() ? super.getPreferredSize() : new Dimension(0, 0);
+	}
+}
@@ -0,0 +1,815 @@
+/*******************************************************************************
+ *  
+ * Copyright (c) 2009, 2019 Erik Berglund.
+ *    
+ *       This file is part of Conserve.
+ *   
+ *       Conserve is free software: you can redistribute it and/or modify
+ *       it under the terms of the GNU Affero General Public License as published by
+ *       the Free Software Foundation, either version 3 of the License, or
+ *       (at your option) any later version.
+ *   
+ *       Conserve is distributed in the hope that it will be useful,
+ *       but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *       MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *       GNU Affero General Public License for more details.
+ *   
+ *       You should have received a copy of the GNU Affero General Public License
+ *       along with Conserve.  If not, see <https://www.gnu.org/licenses/agpl.html>.
+ *       
+ *******************************************************************************/
+package com.gammascout;
+
+import java.io.File;
+import java.io.IOException;
+import java.lang.management.ManagementFactory;
+import java.text.NumberFormat;
+import java.util.ArrayList;
+import java.util.Date;
+import java.util.List;
+import java.util.Locale;
+
+import org.jfree.chart.JFreeChart;
+
+import com.gammascout.alarm.AlarmEngine;
+import com.gammascout.alarm.AlarmRule;
+import com.gammascout.alarm.Alert;
+import com.gammascout.alarm.AlertSink;
+import com.gammascout.alarm.CommandSink;
+import com.gammascout.alarm.LogFileSink;
+import com.gammascout.chart.Charts;
+import com.gammascout.chart.DownsampledXYDataset;
+import com.gammascout.fileio.BatchExport;
+import com.gammascout.fileio.BinaryTool;
+import com.gammascout.fileio.ExportService;
+import com.gammascout.fileio.ImageTool;
+import com.gammascout.fileio.MergeTool;
+import com.gammascout.fileio.ReadingInput;
+import com.gammascout.usb.DailySketches;
+import com.gammascout.usb.GammaScoutConnectorBase;
+import com.gammascout.usb.GammaScoutConnectorV1;
+import com.gammascout.usb.GammaScoutConnectorV2;
+import com.gammascout.usb.GammaScoutListener;
+import com.gammascout.usb.ProtocolVersionDetector;
+import com.gammascout.usb.ProtocolVersionDetector.ProtocolVersion;
+import com.gammascout.usb.QuantileSketch;
+import com.gammascout.usb.RangeStatistics;
+import com.gammascout.usb.Reading;
+import com.gammascout.usb.ReadingFilter;
+import com.gammascout.usb.ReadingStore;
+import com.gammascout.usb.RunningStatistics;
+import com.gammascout.usb.Smoothing;
+import com.gammascout.usb.Tools;
+
+import jssc.SerialPortList;
+
+/**
+ * Headless entry point for downloading and exporting logs without a GUI, e.g.
+ * from cron. Runs with java.awt.headless set and never creates any windows.
+ * <p>
+ * Nothing reachable from here may refer to MainWindow or to window classes
+ * such as JFrame, or the JVM will load them while verifying the referring
+ * class. This is why the dialogs in the file tools take a Component parent.
+ * 
+ * @author Erik Berglund
+ * 
+ */
+public class CommandLine
+{
+	private static final String USAGE = "Usage: java -cp OpenGammaTool-jar-with-dependencies.jar com.gammascout.CommandLine [options] -o FILE...\n"
+			+ "Download the log from a Gamma Scout, or read it from files, and write it to one or more files,\n"
+			+ "print its statistics or check it for alarms.\n\n"
+			+ "  -p, --port NAME      serial port of the Gamma Scout (default: the only serial port)\n"
+			+ "  -i, --input FILE     read a CSV or OGT file instead of downloading; repeat to merge files\n"
+			+ "  -o, --output FILE    write a CSV, OGT, PNG, JPG, SVG, PDF or EPS file, chosen by the extension;\n"
+			+ "                       repeat to write several files at once\n"
+			+ "  -W, --width PIXELS   width of images (default 1000)\n"
+			+ "  -H, --height PIXELS  height of images (default 600)\n"
+			+ "  -d, --dpi DPI        resolution of PNG and JPG images, larger values give larger text (default 72)\n"
+			+ "  -c, --counts         chart counts per minute instead of micro Sieverts per hour\n"
+			+ "  -l, --log            use a logarithmic scale in charts\n"
+			+ "  -s, --saturated      include saturated readings in charts\n"
+			+ "  --smooth SPEC        draw a moving average over the readings in charts; repeat for several.\n"
+			+ "                       SPEC is sma(N) or ema(N) over N readings, sma(Ns) or ema(Ns) over N\n"
+			+ "                       seconds, or with a w in front, e.g. wsma(3600s), weighted by counts\n"
+			+ "  --from TIME          only readings that ended at or after TIME, as yyyy-MM-dd or\n"
+			+ "                       yyyy-MM-dd HH:mm:ss in UTC\n"
+			+ "  --to TIME            only readings that ended at or before TIME\n"
+			+ "  --interval SECONDS   only readings with this measuring interval\n"
+			+ "  -g, --no-gaps        leave out the first reading after each gap in the log\n"
+			+ "  -R, --resample SECS  write CSV files as count-weighted rates on a regular grid of buckets of SECS\n"
+			+ "                       seconds, splitting readings across bucket edges; buckets without readings\n"
+			+ "                       are marked as gaps\n"
+			+ "  -S, --statistics     print the statistics of the selected readings: rates, extremes, dose\n"
+			+ "                       and the peak hour and day\n"
+			+ "  -P, --percentiles    print the 50th, 95th and 99th percentiles of the dose rate of the selected\n"
+			+ "                       days, within 1%; for OGT inputs from the OGQ files next to them, which\n"
+			+ "                       are made when missing, without reading the readings\n"
+			+ "  -A, --alarm RULE     print an alert to standard error when the readings make the rule reach\n"
+			+ "                       its threshold, and exit with status 3; repeat for several rules.\n"
+			+ "                       Rules are e.g. cpm>=2360, average(10)>=236 (the last 10\n"
+			+ "                       readings), average(600s)>=236, rise(6)>=50 (c/m per minute over the last\n"
+			+ "                       6 readings) or saturated(3) (3 saturated readings in a row)\n"
+			+ "  --alarm-log FILE     also append the alerts to FILE\n"
+			+ "  --alarm-command CMD  also run CMD for each alert, with the alert in OGT_ALERT_RULE,\n"
+			+ "                       OGT_ALERT_TIME, OGT_ALERT_VALUE and OGT_ALERT_MESSAGE\n"
+			+ "  -t, --timing         print timing information to standard error\n"
+			+ "  -h, --help           print this message\n";
+
+	private String portName;
+	private List<File> inputs = new ArrayList<>();
+	private List<File> outputs = new ArrayList<>();
+	private int width = 1000;
+	private int height = 600;
+	private int dpi = (int) ImageTool.SCREEN_DPI;
+	private boolean countsPerMinute;
+	private boolean linear = true;
+	private boolean ignoreSaturated = true;
+	private ReadingFilter filter = ReadingFilter.ALL;
+	private List<Smoothing> smoothings = new ArrayList<>();
+	private long resamplePeriod;
+	private boolean timing;
+	private boolean statistics;
+	private boolean percentiles;
+	private List<AlarmRule> alarmRules = new ArrayList<>();
+	private File alarmLog;
+	private String alarmCommand;
+	private AlarmEngine alarms;
+	private volatile boolean alerted;
+	private long startNanos;
+
+	/**
+	 * Run the command line tool.
+	 * 
+	 * @param args
+	 */
+	public static void main(String[] args)
+	{
+		long uptime = ManagementFactory.getRuntimeMXBean().getUptime();
+		System.setProperty("java.awt.headless", "true");
+		CommandLine cl = new CommandLine();
+		cl.startNanos = System.nanoTime();
+		int result;
+		try
+		{
+			if (!cl.parseArguments(args))
+			{
+				System.exit(2);
+			}
+			if (cl.timing)
+			{
+				System.err.println("JVM startup: " + uptime + " ms");
+			}
+			result = cl.run();
+		}
+		catch (Exception e)
+		{
+			System.err.println("Error: " + e.getMessage());
+			e.printStackTrace();
+			result = 1;
+		}
+		if (cl.timing)
+		{
+			// include the time it took the JVM to reach main()
+			System.err.println("total: " + (uptime + (System.nanoTime() - cl.startNanos) / 1000000) + " ms");
+		}
+		System.exit(result);
+	}
+
+	/**
+	 * Parse the command line arguments.
+	 * 
+	 * @return false if the arguments are invalid or only help was requested.
+	 */
+	private boolean parseArguments(String[] args)
+	{
+		for (int x = 0; x < args.length; x++)
+		{
+			String arg = args[x];
+			boolean hasValue = x + 1 < args.length;
+			switch (arg)
+			{
+				case "-p":
+				case "--port":
+					if (!hasValue)
+					{
+						return usage("Missing port name.");
+					}
+					portName = args[++x];
+					break;
+				case "-i":
+				case "--input":
+					if (!hasValue)
+					{
+						return usage("Missing input file.");
+					}
+					inputs.add(new File(args[++x]));
+					break;
+				case "-o":
+				case "--output":
+					if (!hasValue)
+					{
+						return usage("Missing output file.");
+					}
+					outputs.add(new File(args[++x]));
+					break;
+				case "-W":
+				case "--width":
+				case "-H":
+				case "--height":
+					if (!hasValue)
+					{
+						return usage("Missing size.");
+					}
+					try
+					{
+						int size = Integer.parseInt(args[++x]);
+						if (size <= 0)
+						{
+							return usage("Invalid size: " + size);
+						}
+						if (arg.equals("-W") || arg.equals("--width"))
+						{
+							width = size;
+						}
+						else
+						{
+							height = size;
+						}
+					}
+					catch (NumberFormatException e)
+					{
+						return usage("Invalid size: " + args[x]);
+					}
+					break;
+				case "-d":
+				case "--dpi":
+					if (!hasValue)
+					{
+						return usage("Missing resolution.");
+					}
+					try
+					{
+						dpi = Integer.parseInt(args[++x]);
+						if (dpi <= 0)
+						{
+							return usage("Invalid resolution: " + dpi);
+						}
+					}
+					catch (NumberFormatException e)
+					{
+						return usage("Invalid resolution: " + args[x]);
+					}
+					break;
+				case "-c":
+				case "--counts":
+					countsPerMinute = true;
+					break;
+				case "-l":
+				case "--log":
+					linear = false;
+					break;
+				case "-s":
+				case "--saturated":
+					ignoreSaturated = false;
+					break;
+				case "--from":
+				case "--to":
+					if (!hasValue)
+					{
+						return usage("Missing time.");
+					}
+					Long time = Tools.parseTime(args[++x]);
+					if (time == null)
+					{
+						return usage("Invalid time: " + args[x]);
+					}
+					if (arg.equals("--from"))
+					{
+						filter = filter.withTimeRange(time, filter.getTo());
+					}
+					else
+					{
+						filter = filter.withTimeRange(filter.getFrom(), time);
+					}
+					break;
+				case "--interval":
+					if (!hasValue)
+					{
+						return usage("Missing interval.");
+					}
+					try
+					{
+						int seconds = Integer.parseInt(args[++x]);
+						if (seconds <= 0)
+						{
+							return usage("Invalid interval: " + seconds);
+						}
+						filter = filter.withInterval(seconds);
+					}
+					catch (NumberFormatException e)
+					{
+						return usage("Invalid interval: " + args[x]);
+					}
+					break;
+				case "-R":
+				case "--resample":
+					if (!hasValue)
+					{
+						return usage("Missing resampling period.");
+					}
+					try
+					{
+						long seconds = Long.parseLong(args[++x]);
+						if (seconds <= 0)
+						{
+							return usage("Invalid resampling period: " + seconds);
+						}
+						resamplePeriod = seconds * 1000;
+					}
+					catch (NumberFormatException e)
+					{
+						return usage("Invalid resampling period: " + args[x]);
+					}
+					break;
+				case "--smooth":
+					if (!hasValue)
+					{
+						return usage("Missing smoothing.");
+					}
+					try
+					{
+						smoothings.add(Smoothing.parse(args[++x]));
+					}
+					catch (IllegalArgumentException e)
+					{
+						return usage(e.getMessage());
+					}
+					break;
+				case "-g":
+				case "--no-gaps":
+					filter = filter.withAfterGaps(false);
+					break;
+				case "-S":
+				case "--statistics":
+					statistics = true;
+					break;
+				case "-P":
+				case "--percentiles":
+					percentiles = true;
+					break;
+				case "-A":
+				case "--alarm":
+					if (!hasValue)
+					{
+						return usage("Missing alarm rule.");
+					}
+					try
+					{
+						alarmRules.add(AlarmRule.parse(args[++x]));
+					}
+					catch (IllegalArgumentException e)
+					{
+						return usage(e.getMessage());
+					}
+					break;
+				case "--alarm-log":
+					if (!hasValue)
+					{
+						return usage("Missing alarm log file.");
+					}
+					alarmLog = new File(args[++x]);
+					break;
+				case "--alarm-command":
+					if (!hasValue)
+					{
+						return usage("Missing alarm command.");
+					}
+					alarmCommand = args[++x];
+					break;
+				case "-t":
+				case "--timing":
+					timing = true;
+					break;
+				case "-h":
+				case "--help":
+					System.out.print(USAGE);
+					return false;
+				default:
+					return usage("Unknown option: " + arg);
+			}
+		}
+		if (outputs.isEmpty() && !statistics && !percentiles && alarmRules.isEmpty())
+		{
+			return usage("No output file given.");
+		}
+		if (alarmRules.isEmpty() && (alarmLog != null || alarmCommand != null))
+		{
+			return usage("No alarm rule given.");
+		}
+		for (File f : outputs)
+		{
+			if (BatchExport.getExtension(f) == null)
+			{
+				return usage("Unsupported output file type: " + f.getName());
+			}
+		}
+		return true;
+	}
+
+	private boolean usage(String message)
+	{
+		System.err.println(message);
+		System.err.print(USAGE);
+		return false;
+	}
+
+	/**
+	 * Read the log and write all outputs.
+	 * 
+	 * @return the exit code.
+	 */
+	private int run() throws Exception
+	{
+		BinaryTool.Header header = null;
+		List<Reading> readings;
+		long start = System.nanoTime();
+		if (!alarmRules.isEmpty())
+		{
+			createAlarms();
+		}
+		if (percentiles && outputs.isEmpty() && !statistics && alarms == null && canUseSketchFiles())
+		{
+			DailySketches sketches = new DailySketches();
+			List<IOException> problems = new ArrayList<>();
+			for (File f : inputs)
+			{
+				sketches.merge(BinaryTool.readSketches(f, problems));
+			}
+			for (IOException e : problems)
+			{
+				System.err.println("Warning: " + e.getMessage());
+			}
+			printPercentiles(sketches);
+			time("percentiles of " + inputs.size() + " files", start);
+			return 0;
+		}
+		if (inputs.isEmpty())
+		{
+			GammaScoutConnectorBase gsc = connect();
+			if (gsc == null)
+			{
+				return 1;
+			}
+			time("connect", start);
+			start = System.nanoTime();
+			try
+			{
+				header = new BinaryTool.Header(gsc.getSerialNumberValue(), gsc.getProtocolVersion());
+				if (alarms != null)
+				{
+					gsc.addListener(alarms);
+				}
+				readings = gsc.getLog();
+			}
+			finally
+			{
+				gsc.close();
+			}
+			time("download of " + readings.size() + " readings", start);
+		}
+		else
+		{
+			readings = readInputs();
+			if (inputs.size() == 1 && "ogt".equals(BatchExport.getExtension(inputs.get(0))))
+			{
+				header = BinaryTool.readOGTHeader(inputs.get(0));
+			}
+			time("reading " + readings.size() + " readings", start);
+		}
+
+		// the data files and the chart share one store, filtered by views
+		start = System.nanoTime();
+		ReadingStore store = new ReadingStore();
+		store.addAll(readings);
+		List<Reading> selected = store.filter(filter.withSaturated(true));
+		time("selecting " + selected.size() + " readings", start);
+		List<ReadingStore.ClockReset> resets = store.getClockResets();
+		if (!resets.isEmpty())
+		{
+			// the readings are written in time order, not in the order of the log
+			System.err.println("The log goes back in time " + resets.size() + " times, e.g. after a clock reset:");
+			for (ReadingStore.ClockReset reset : resets)
+			{
+				System.err.println("  " + Tools.DATE_FORMAT.format(new Date(reset.getBefore())) + " -> "
+						+ Tools.DATE_FORMAT.format(new Date(reset.getAfter())));
+			}
+		}
+
+		// all files are written at once, sharing one chart
+		start = System.nanoTime();
+		JFreeChart chart = null;
+		for (File f : outputs)
+		{
+			if (chart == null && BatchExport.isImage(f))
+			{
+				chart = createChart(store);
+			}
+		}
+		BatchExport batch = new BatchExport(chart, width, height, dpi / ImageTool.SCREEN_DPI, selected, header);
+		batch.setResamplePeriod(resamplePeriod);
+		for (File f : outputs)
+		{
+			batch.add(f);
+		}
+		int result = 0;
+		for (BatchExport.Result r : batch.run(new ExportService(), null))
+		{
+			if (r.getError() != null)
+			{
+				System.err.println("Error writing " + r);
+				r.getError().printStackTrace();
+				result = 1;
+			}
+			else if (timing)
+			{
+				System.err.println("writing " + r);
+			}
+		}
+		if (!outputs.isEmpty())
+		{
+			time("writing " + outputs.size() + " files", start);
+		}
+		if (statistics)
+		{
+			start = System.nanoTime();
+			printStatistics(filter.getInterval() == 0 && filter.isIncludeAfterGaps() ? store : selectedStore(selected));
+			time("statistics", start);
+		}
+		if (percentiles)
+		{
+			start = System.nanoTime();
+			DailySketches sketches = store.getSketches();
+			if (filter.getInterval() != 0 || !filter.isIncludeAfterGaps())
+			{
+				sketches = new DailySketches();
+				for (Reading r : selected)
+				{
+					sketches.add(r);
+				}
+			}
+			printPercentiles(sketches);
+			time("percentiles", start);
+		}
+		if (alerted && result == 0)
+		{
+			result = 3;
+		}
+		return result;
+	}
+
+	/**
+	 * Create the alarm engine, which prints alerts to standard error and
+	 * sends them to the alarm log and command, if given. Alerts that the log
+	 * or command fail to take are reported on standard error too.
+	 */
+	private void createAlarms()
+	{
+		alarms = new AlarmEngine(alarmRules);
+		alarms.addSink(new AlertSink()
+		{
+			@Override
+			public void alert(Alert alert)
+			{
+				alerted = true;
+				System.err.println("ALERT " + alert.getMessage());
+			}
+		});
+		alarms.addFailureListener(new AlarmEngine.FailureListener()
+		{
+			@Override
+			public void sinkFailed(AlertSink sink, Alert alert, Exception e)
+			{
+				System.err.println("Could not deliver alert " + alert.getMessage() + ": " + e.getMessage());
+			}
+		});
+		if (alarmLog != null)
+		{
+			alarms.addSink(new LogFileSink(alarmLog));
+		}
+		if (alarmCommand != null)
+		{
+			alarms.addSink(new CommandSink(alarmCommand));
+		}
+	}
+
+	/**
+	 * Copy the selected readings to a store of their own, when they are not
+	 * simply a time range of the store.
+	 */
+	private static ReadingStore selectedStore(List<Reading> selected)
+	{
+		ReadingStore store = new ReadingStore();
+		store.addAll(selected);
+		return store;
+	}
+
+	/**
+	 * Print the statistics of the readings of the store in the time range of
+	 * the filter.
+	 */
+	private void printStatistics(ReadingStore store)
+	{
+		RangeStatistics ranges = store.getRangeStatistics();
+		RunningStatistics s = ranges.getByTime(filter.getFrom(), filter.getTo());
+		NumberFormat format = NumberFormat.getInstance(Locale.ROOT);
+		format.setMaximumFractionDigits(4);
+		format.setGroupingUsed(false);
+		System.out.println("readings: " + s.getCount());
+		System.out.println("saturated readings: " + s.getSaturatedCount());
+		System.out.println("mean: " + format.format(s.getMeanCountsPerMinute()) + " c/m, "
+				+ format.format(s.getMeanMicroSievertsPerHour()) + " uSv/h");
+		System.out.println("standard deviation: " + format.format(s.getStandardDeviationCountsPerMinute()) + " c/m, "
+				+ format.format(s.getStandardDeviationMicroSievertsPerHour()) + " uSv/h");
+		System.out.println("min: " + format.format(s.getMinCountsPerMinute()) + " c/m, "
+				+ format.format(s.getMinMicroSievertsPerHour()) + " uSv/h");
+		System.out.println("max: " + format.format(s.getMaxCountsPerMinute()) + " c/m, "
+				+ format.format(s.getMaxMicroSievertsPerHour()) + " uSv/h");
+		System.out.println("average: " + format.format(s.getAverageCountsPerMinute()) + " c/m, "
+				+ format.format(s.getAverageMicroSievertsPerHour()) + " uSv/h");
+		System.out.println("dose: " + format.format(s.getDose()) + " uSv");
+		String[] names = { "peak hour", "peak day" };
+		long[] windows = { 3600000L, 86400000L };
+		for (int x = 0; x < windows.length; x++)
+		{
+			double peak = ranges.getPeakAverageCountsPerMinute(filter.getFrom(), filter.getTo(), windows[x]);
+			System.out.println(names[x] + ": " + format.format(peak) + " c/m, "
+					+ format.format(Reading.toMicroSievertsPerHour(peak)) + " uSv/h");
+		}
+	}
+
+	/**
+	 * Check whether the percentiles can be merged from the sketches of the
+	 * input files: all inputs are OGT files, and no two of them may hold the
+	 * same readings, which only merging the readings removes. Logs of
+	 * different devices, or of different times, never do.
+	 */
+	private boolean canUseSketchFiles() throws IOException
+	{
+		if (inputs.isEmpty() || filter.getInterval() != 0 || !filter.isIncludeAfterGaps())
+		{
+			return false;
+		}
+		List<BinaryTool.Header> headers = new ArrayList<>();
+		for (File f : inputs)
+		{
+			if (!"ogt".equals(BatchExport.getExtension(f)))
+			{
+				return false;
+			}
+			BinaryTool.Header h = BinaryTool.readOGTHeader(f);
+			for (BinaryTool.Header other : headers)
+			{
+				boolean sameDevice = h.getSerialNumber() == null || h.getSerialNumber().equals(other.getSerialNumber());
+				if (sameDevice && h.getFromTime() <= other.getToTime() && other.getFromTime() <= h.getToTime())
+				{
+					return false;
+				}
+			}
+			headers.add(h);
+		}
+		return true;
+	}
+
+	/**
+	 * Print the percentiles of the dose rates of the days in the time range of
+	 * the filter.
+	 */
+	private void printPercentiles(DailySketches sketches)
+	{
+		QuantileSketch sketch = sketches.get(filter.getFrom(), filter.getTo());
+		NumberFormat format = NumberFormat.getInstance(Locale.ROOT);
+		format.setMaximumFractionDigits(4);
+		format.setGroupingUsed(false);
+		System.out.println("readings: " + sketch.getCount());
+		int[] percents = { 50, 95, 99 };
+		for (int percent : percents)
+		{
+			System.out.println("p" + percent + ": " + format.format(sketch.getQuantile(percent / 100.0)) + " uSv/h");
+		}
+	}
+
+	/**
+	 * Find the port, detect the protocol version and connect.
+	 * 
+	 * @return the connector, or null if no device could be found.
+	 */
+	private GammaScoutConnectorBase connect() throws Exception
+	{
+		if (portName == null)
+		{
+			String[] portNames = SerialPortList.getPortNames();
+			if (portNames.length == 0)
+			{
+				System.err.println("Could not find serial port for connecting to Gamma Scout.");
+				return null;
+			}
+			else if (portNames.length > 1)
+			{
+				System.err.println("Several serial ports found, select one with --port:");
+				for (String name : portNames)
+				{
+					System.err.println("  " + name);
+				}
+				return null;
+			}
+			portName = portNames[0];
+		}
+		ProtocolVersion version = new ProtocolVersionDetector(portName).getVersion();
+		if (version == null)
+		{
+			System.err.println("Protocol version detection failed on " + portName + ".");
+			return null;
+		}
+		switch (version)
+		{
+			case VERSION1:
+				return new GammaScoutConnectorV1(portName);
+			case VERSION2:
+				return new GammaScoutConnectorV2(portName);
+			default:
+				System.err.println("Couldn't determine protocol version.");
+				return null;
+		}
+	}
+
+	/**
+	 * Read and merge all input files.
+	 */
+	private List<Reading> readInputs() throws IOException
+	{
+		final List<Reading> result = new ArrayList<>();
+		List<ReadingInput> opened = new ArrayList<>();
+		try
+		{
+			for (File f : inputs)
+			{
+				opened.add(MergeTool.openSorted(f));
+			}
+			MergeTool.Result merge = MergeTool.merge(opened, new GammaScoutListener()
+			{
+				@Override
+				public void receiveReading(Reading r)
+				{
+					result.add(r);
+					if (alarms != null)
+					{
+						alarms.receiveReading(r);
+					}
+				}
+			});
+			if (merge.getConflicts() > 0)
+			{
+				System.err.println(merge.getConflicts() + " conflicting readings were dropped:");
+				for (String conflict : merge.getConflictDescriptions())
+				{
+					System.err.println("  " + conflict);
+				}
+			}
+		}
+		finally
+		{
+			for (ReadingInput input : opened)
+			{
+				input.close();
+			}
+		}
+		return result;
+	}
+
+	/**
+	 * Create the chart the way the main window does, from a downsampled
+	 * dataset, so that each image only draws the points its width can show.
+	 */
+	private JFreeChart createChart(ReadingStore store)
+	{
+		DownsampledXYDataset dataset = new DownsampledXYDataset(store);
+		dataset.setFilter(filter.withSaturated(!ignoreSaturated));
+		dataset.setUnit(countsPerMinute, !ignoreSaturated);
+		JFreeChart chart = Charts.createChart(dataset);
+		Charts.configureRangeAxis(chart.getXYPlot(), countsPerMinute, linear);
+		Charts.setOverlays(chart, smoothings);
+		return chart;
+	}
+
+	/**
+	 * Print the time since start if timing is enabled.
+	 */
+	private void time(String what, long start)
+	{
+		if (timing)
+		{
+			System.err.println(what + ": " + (System.nanoTime() - start) / 1000000 + " ms");
+		}
+	}
+}
@@ -0,0 +1,196 @@
+/*******************************************************************************
+ *  
+ * Copyright (c) 2009, 2019 Erik Berglund.
+ *    
+ *       This file is part of Conserve.
+ *   
+ *       Conserve is free software: you can redistribute it and/or modify
+ *       it under the terms of the GNU Affero General Public License as published by
+ *       the Free Software Foundation, either version 3 of the License, or
+ *       (at your option) any later version.
+ *   
+ *       Conserve is distributed in the hope that it will be useful,
+ *       but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *       MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *       GNU Affero General Public License for more details.
+ *   
+ *       You should have received a copy of the GNU Affero General Public License
+ *       along with Conserve.  If not, see <https://www.gnu.org/licenses/agpl.html>.
+ *       
+ *******************************************************************************/
+package com.gammascout;
+
+import java.awt.Color;
+import java.awt.FlowLayout;
+import java.awt.event.ActionEvent;
+import java.awt.event.ActionListener;
+import java.text.NumberFormat;
+import java.util.ArrayList;
+import java.util.List;
+
+import javax.swing.JButton;
+import javax.swing.JLabel;
+import javax.swing.JPanel;
+import javax.swing.JProgressBar;
+import javax.swing.SwingUtilities;
+import javax.swing.Timer;
+
+import com.gammascout.fileio.ExportService;
+import com.gammascout.fileio.ExportService.Job;
+
+/**
+ * Shows the progress of background exports and imports, and lets the user
+ * cancel them. All updates happen on the event dispatch thread.
+ * 
+ * @author Erik Berglund
+ * 
+ */
+public class ExportStatusBar extends JPanel implements ExportService.Listener, ActionListener
+{
+	private static final long serialVersionUID = -2837745122071496733L;
+	/**
+	 * How often the number of bytes written is polled while jobs are running.
+	 */
+	private static final int POLL_INTERVAL_MILLIS = 250;
+
+	private final JLabel statusLabel = new JLabel();
+	private final JProgressBar progressBar = new JProgressBar(0, 1000);
+	private final JButton btnCancel = new JButton("Cancel");
+	private final Timer pollTimer = new Timer(POLL_INTERVAL_MILLIS, this);
+	private final List<Job> activeJobs = new ArrayList<>();
+	private final NumberFormat numberFormat = NumberFormat.getIntegerInstance();
+
+	/**
+	 * Create an idle status bar.
+	 */
+	public ExportStatusBar()
+	{
+		setLayout(new FlowLayout(FlowLayout.RIGHT, 6, 0));
+		statusLabel.setForeground(Color.BLACK);
+		add(statusLabel);
+		progressBar.setStringPainted(true);
+		add(progressBar);
+		btnCancel.setToolTipText("Cancel the running export");
+		btnCancel.setActionCommand("cancel");
+		btnCancel.addActionListener(this);
+		add(btnCancel);
+		pollTimer.setActionCommand("poll");
+		refresh();
+	}
+
+	/**
+	 * Called on a worker thread, hands the change over to the event dispatch
+	 * thread.
+	 * 
+	 * @see com.gammascout.fileio.ExportService.Listener#jobChanged(com.gammascout.fileio.ExportService.Job)
+	 */
+	@Override
+	public void jobChanged(final Job job)
+	{
+		SwingUtilities.invokeLater(new Runnable()
+		{
+			@Override
+			public void run()
+			{
+				update(job);
+			}
+		});
+	}
+
+	/**
+	 * @see java.awt.event.ActionListener#actionPerformed(java.awt.event.ActionEvent)
+	 */
+	@Override
+	public void actionPerformed(ActionEvent arg)
+	{
+		switch (arg.getActionCommand())
+		{
+			case "cancel":
+				if (!activeJobs.isEmpty())
+				{
+					activeJobs.get(0).cancel();
+				}
+				break;
+			case "poll":
+				refresh();
+				break;
+		}
+	}
+
+	private void update(Job job)
+	{
+		if (job.isFinished())
+		{
+			activeJobs.remove(job);
+			if (job.isCancelled())
+			{
+				statusLabel.setText(job.getDescription() + ": cancelled");
+				statusLabel.setToolTipText(null);
+			}
+			else if (job.getError() != null)
+			{
+				statusLabel.setText(job.getDescription() + ": failed");
+				statusLabel.setToolTipText(String.valueOf(job.getError().getMessage()));
+			}
+			else
+			{
+				statusLabel.setText(job.getDescription() + ": done");
+				statusLabel.setToolTipText(null);
+			}
+		}
+		else if (!activeJobs.contains(job))
+		{
+			activeJobs.add(job);
+		}
+		refresh();
+	}
+
+	/**
+	 * Show the progress of the oldest running job.
+	 */
+	private void refresh()
+	{
+		if (activeJobs.isEmpty())
+		{
+			pollTimer.stop();
+			progressBar.setVisible(false);
+			btnCancel.setVisible(false);
+			return;
+		}
+		Job job = activeJobs.get(0);
+		String text = job.getDescription();
+		if (activeJobs.size() > 1)
+		{
+			text += " and " + (activeJobs.size() - 1) + " more";
+		}
+		statusLabel.setText(text);
+		statusLabel.setToolTipText(null);
+		long total = job.getTotal();
+		if (total > 0)
+		{
+			progressBar.setIndeterminate(false);
+			progressBar.setValue((int) (job.getDone() * 1000 / total));
+			progressBar.setString(numberFormat.format(job.getDone()) + " of " + numberFormat.format(total));
+		}
+		else
+		{
+			progressBar.setIndeterminate(true);
+			long bytes = job.getBytesWritten();
+			if (bytes > 0)
+			{
+				progressBar.setString(numberFormat.format(bytes / 1024) + " kB");
+			}
+			else if (job.getDone() > 0)
+			{
+				progressBar.setString(numberFormat.format(job.getDone()));
+			}
+			else
+			{
+				progressBar.setString("");
+			}
+		}
+		progressBar.setVisible(true);
+		btnCancel.setVisible(true);
+		pollTimer.start();
+	}
+}
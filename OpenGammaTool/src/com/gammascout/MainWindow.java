@@ -23,16 +23,21 @@ package com.gammascout;
 import java.awt.Color;
 import java.awt.event.ActionEvent;
 import java.awt.event.ActionListener;
+import java.awt.event.ComponentAdapter;
+import java.awt.event.ComponentEvent;
 import java.awt.image.BufferedImage;
+import java.io.File;
 import java.io.IOException;
 import java.net.URL;
 import java.text.DateFormat;
 import java.text.NumberFormat;
-import java.text.ParseException;
-import java.text.SimpleDateFormat;
 import java.util.ArrayList;
+import java.util.Collections;
 import java.util.Date;
+import java.util.LinkedHashMap;
 import java.util.List;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicReference;
 
 import javax.imageio.ImageIO;
 import javax.swing.ButtonGroup;
@@ -47,28 +52,48 @@ import javax.swing.JMenuItem;
 import javax.swing.JOptionPane;
 import javax.swing.JRadioButtonMenuItem;
 import javax.swing.SpringLayout;
+import javax.swing.SwingUtilities;
+import javax.swing.Timer;
 import javax.swing.ToolTipManager;
+import javax.swing.event.MenuEvent;
+import javax.swing.event.MenuListener;
 
-import org.jfree.chart.ChartFactory;
 import org.jfree.chart.ChartPanel;
 import org.jfree.chart.JFreeChart;
-import org.jfree.chart.axis.DateAxis;
-import org.jfree.chart.axis.LogAxis;
-import org.jfree.chart.axis.NumberAxis;
-import org.jfree.chart.labels.StandardXYToolTipGenerator;
-import org.jfree.chart.plot.XYPlot;
-import org.jfree.chart.renderer.xy.XYItemRenderer;
-import org.jfree.data.xy.DefaultXYDataset;
+import org.jfree.chart.axis.ValueAxis;
+import org.jfree.data.Range;
+import org.jfree.data.general.DatasetChangeEvent;
+import org.jfree.data.general.DatasetChangeListener;
 
+import com.gammascout.alarm.AlarmEngine;
+import com.gammascout.alarm.AlarmRule;
+import com.gammascout.alarm.CommandSink;
+import com.gammascout.alarm.LogFileSink;
+import com.gammascout.chart.Charts;
+import com.gammascout.chart.DownsampledXYDataset;
+import com.gammascout.chart.FastChartPanel;
+import com.gammascout.chart.RangeConfigurations;
+import com.gammascout.fileio.BatchExport;
+import com.gammascout.fileio.BinaryTool;
+import com.gammascout.fileio.ExportService;
 import com.gammascout.fileio.ImageTool;
+import com.gammascout.fileio.Journal;
+import com.gammascout.fileio.MergeTool;
+import com.gammascout.fileio.Progress;
 import com.gammascout.fileio.TextTool;
+import com.gammascout.fileio.WorkerPool;
 import com.gammascout.usb.GammaScoutConnectorBase;
 import com.gammascout.usb.GammaScoutConnectorV1;
 import com.gammascout.usb.GammaScoutConnectorV2;
 import com.gammascout.usb.GammaScoutListener;
 import com.gammascout.usb.ProtocolVersionDetector;
 import com.gammascout.usb.ProtocolVersionDetector.ProtocolVersion;
+import com.gammascout.usb.RangeStatistics;
 import com.gammascout.usb.Reading;
+import com.gammascout.usb.ReadingFilter;
+import com.gammascout.usb.ReadingStore;
+import com.gammascout.usb.RunningStatistics;
+import com.gammascout.usb.Smoothing;
 import com.gammascout.usb.Tools;
 
 import jssc.SerialPortException;
@@ -80,20 +105,35 @@ import jssc.SerialPortList;
  * @author Erik Berglund
  * 
  */
-public class MainWindow implements ActionListener, GammaScoutListener, Runnable
+public class MainWindow implements ActionListener, GammaScoutListener, Runnable, RefreshCoordinator.Target
 {
 
-	public static final DateFormat DATE_FORMAT = new SimpleDateFormat("yyyy-MM-dd HH:mm:ss");
-	static
-	{
-		DATE_FORMAT.setTimeZone(Tools.UTC_TIMEZONE);
-	}
+	public static final DateFormat DATE_FORMAT = Tools.DATE_FORMAT;
+	/**
+	 * The maximum number of chart and info refreshes per second, set with
+	 * -Dopengammatool.refreshrate=N.
+	 */
+	private static final int MAX_REFRESH_RATE = Integer.getInteger("opengammatool.refreshrate", 25);
+	private static final double DAY_MILLIS = 24 * 60 * 60 * 1000.0;
+	/**
+	 * The moving averages offered in the smoothing menu.
+	 */
+	private static final String[] SMOOTHING_PRESETS = { "sma(10)", "ema(10)", "sma(3600s)", "ema(3600s)", "wsma(3600s)",
+			"wema(86400s)" };
 	private JFrame frmOpenGammaTool;
 	private JRadioButtonMenuItem rdbtnmntmCountsPerMinute;
 	private JRadioButtonMenuItem rdbtnmntmMicroSievertsPer;
 	private JCheckBoxMenuItem chckbxmntmHideOverflowReadings;
-	private List<Reading> readings = new ArrayList<>();
-	private GammaScoutConnectorBase gsc;
+	private JCheckBoxMenuItem chckbxmntmHideReadingsAfterGaps;
+	private JMenu mnInterval;
+	private JMenu mnSmoothing;
+	private final Map<JCheckBoxMenuItem, Smoothing> smoothingItems = new LinkedHashMap<>();
+	/**
+	 * The measuring interval shown, in seconds, or 0 for all.
+	 */
+	private int interval;
+	private final ReadingStore readings = new ReadingStore();
+	private volatile GammaScoutConnectorBase gsc;
 	private JLabel infoLabel;
 
 	private boolean clearLog;
@@ -102,12 +142,23 @@ public class MainWindow implements ActionListener, GammaScoutListener, Runnable
 	private JButton btnLoadData;
 	private JButton btnSetTime;
 	private JButton btnClearLog;
-	private DefaultXYDataset dataset;
+	private DownsampledXYDataset dataset;
+	private final RangeConfigurations rangeConfigurations = new RangeConfigurations(DATE_FORMAT);
 	private JFreeChart chart;
 	private ChartPanel chartPanel;
-	private boolean updateGraph;
+	private final RefreshCoordinator refresher = new RefreshCoordinator(this, MAX_REFRESH_RATE);
 	private JRadioButtonMenuItem rdbtnmntmLinear;
 	private JRadioButtonMenuItem rdbtnmntmLogarithmic;
+	private Journal journal;
+	private final ExportService exportService = new ExportService();
+	private ExportStatusBar exportStatusBar;
+	private StatisticsPanel statisticsPanel;
+	/**
+	 * The statistics to compute next, or null if none are being computed.
+	 */
+	private final AtomicReference<StatisticsQuery> statisticsQuery = new AtomicReference<>();
+	private AlertBanner alertBanner;
+	private AlarmEngine alarmEngine;
 
 	/**
 	 * Launch the application.
@@ -118,6 +169,15 @@ public class MainWindow implements ActionListener, GammaScoutListener, Runnable
 	{
 		final MainWindow window = new MainWindow();
 		window.frmOpenGammaTool.setVisible(true);
+		Runtime.getRuntime().addShutdownHook(new Thread()
+		{
+			@Override
+			public void run()
+			{
+				// write any readings still queued for the journal
+				window.journal.close();
+			}
+		});
 		Thread t = new Thread(window);
 		t.setDaemon(true);
 		t.start();
@@ -130,6 +190,62 @@ public class MainWindow implements ActionListener, GammaScoutListener, Runnable
 	{
 		initialize();
 		updateLabels();
+		openJournal();
+		openAlarms();
+	}
+
+	/**
+	 * Open the journal of downloaded readings and restore the readings from
+	 * the latest download.
+	 */
+	private void openJournal()
+	{
+		journal = new Journal(Journal.getDefaultDirectory());
+		try
+		{
+			synchronized (readings)
+			{
+				journal.open(readings);
+			}
+			refresher.markDirty(RefreshCoordinator.DATA);
+		}
+		catch (IOException e)
+		{
+			e.printStackTrace();
+			JOptionPane.showMessageDialog(frmOpenGammaTool, "Could not open the journal in " + Journal.getDefaultDirectory()
+					+ ".\nDownloaded readings will not be saved automatically.", "Warning - journal", JOptionPane.WARNING_MESSAGE);
+		}
+	}
+
+	/**
+	 * Set up the alarm rules, from the {@value AlarmEngine#RULES_PROPERTY}
+	 * system property or the default rules, and send their alerts to the
+	 * banner, to a log file in the data directory and to the command of the
+	 * {@value CommandSink#COMMAND_PROPERTY} system property, if it is set.
+	 */
+	private void openAlarms()
+	{
+		List<AlarmRule> rules;
+		try
+		{
+			rules = AlarmEngine.getDefaultRules();
+		}
+		catch (IllegalArgumentException e)
+		{
+			e.printStackTrace();
+			JOptionPane.showMessageDialog(frmOpenGammaTool, e.getMessage() + "\nThe default alarm rules are used instead.",
+					"Warning - alarms", JOptionPane.WARNING_MESSAGE);
+			rules = AlarmEngine.parseRules(AlarmEngine.DEFAULT_RULES);
+		}
+		alarmEngine = new AlarmEngine(rules);
+		alarmEngine.addSink(alertBanner);
+		alarmEngine.addFailureListener(alertBanner);
+		alarmEngine.addSink(new LogFileSink(new File(Journal.getDefaultDirectory(), "alarms.log")));
+		String command = System.getProperty(CommandSink.COMMAND_PROPERTY);
+		if (command != null && !command.trim().isEmpty())
+		{
+			alarmEngine.addSink(new CommandSink(command));
+		}
 	}
 
 	/**
@@ -193,6 +309,18 @@ public class MainWindow implements ActionListener, GammaScoutListener, Runnable
 		mntmJpg.addActionListener(this);
 		mnSaveGraphAs.add(mntmJpg);
 
+		mnSaveGraphAs.addSeparator();
+
+		JMenuItem mntmPngHighResolution = new JMenuItem("High resolution PNG...");
+		mntmPngHighResolution.setActionCommand("savepnghighres");
+		mntmPngHighResolution.addActionListener(this);
+		mnSaveGraphAs.add(mntmPngHighResolution);
+
+		JMenuItem mntmJpgHighResolution = new JMenuItem("High resolution JPG...");
+		mntmJpgHighResolution.setActionCommand("savejpghighres");
+		mntmJpgHighResolution.addActionListener(this);
+		mnSaveGraphAs.add(mntmJpgHighResolution);
+
 		JMenu mnSaveDataAs = new JMenu("Save data as");
 		mnFile.add(mnSaveDataAs);
 
@@ -201,11 +329,36 @@ public class MainWindow implements ActionListener, GammaScoutListener, Runnable
 		mntmCsv.addActionListener(this);
 		mnSaveDataAs.add(mntmCsv);
 
+		JMenuItem mntmResampledCsv = new JMenuItem("Resampled CSV...");
+		mntmResampledCsv.setActionCommand("saveresampledcsv");
+		mntmResampledCsv.addActionListener(this);
+		mnSaveDataAs.add(mntmResampledCsv);
+
+		JMenuItem mntmOgt = new JMenuItem("OGT (binary)");
+		mntmOgt.setActionCommand("saveogt");
+		mntmOgt.addActionListener(this);
+		mnSaveDataAs.add(mntmOgt);
+
+		JMenuItem mntmBatchExport = new JMenuItem("Export several formats...");
+		mntmBatchExport.setActionCommand("batchexport");
+		mntmBatchExport.addActionListener(this);
+		mnFile.add(mntmBatchExport);
+
 		JMenuItem mntmLoadData = new JMenuItem("Load CSV");
 		mntmLoadData.setActionCommand("loadcsv");
 		mntmLoadData.addActionListener(this);
 		mnFile.add(mntmLoadData);
 
+		JMenuItem mntmLoadOgt = new JMenuItem("Load OGT");
+		mntmLoadOgt.setActionCommand("loadogt");
+		mntmLoadOgt.addActionListener(this);
+		mnFile.add(mntmLoadOgt);
+
+		JMenuItem mntmMerge = new JMenuItem("Merge logs...");
+		mntmMerge.setActionCommand("mergelogs");
+		mntmMerge.addActionListener(this);
+		mnFile.add(mntmMerge);
+
 		JMenuItem mntmExit = new JMenuItem("Exit");
 		mntmExit.setActionCommand("exit");
 		mntmExit.addActionListener(this);
@@ -238,6 +391,51 @@ public class MainWindow implements ActionListener, GammaScoutListener, Runnable
 		chckbxmntmHideOverflowReadings.addActionListener(this);
 		mnNewMenu.add(chckbxmntmHideOverflowReadings);
 
+		chckbxmntmHideReadingsAfterGaps = new JCheckBoxMenuItem("Hide readings after gaps");
+		chckbxmntmHideReadingsAfterGaps.setSelected(false);
+		chckbxmntmHideReadingsAfterGaps.setActionCommand("refresh");
+		chckbxmntmHideReadingsAfterGaps.addActionListener(this);
+		mnNewMenu.add(chckbxmntmHideReadingsAfterGaps);
+
+		// the intervals of the readings are only known when the menu opens
+		mnInterval = new JMenu("Interval");
+		mnInterval.addMenuListener(new MenuListener()
+		{
+			@Override
+			public void menuSelected(MenuEvent e)
+			{
+				buildIntervalMenu();
+			}
+
+			@Override
+			public void menuDeselected(MenuEvent e)
+			{
+			}
+
+			@Override
+			public void menuCanceled(MenuEvent e)
+			{
+			}
+		});
+		mnNewMenu.add(mnInterval);
+
+		mnSmoothing = new JMenu("Smoothing");
+		for (String preset : SMOOTHING_PRESETS)
+		{
+			addSmoothingItem(Smoothing.parse(preset), false);
+		}
+		mnSmoothing.addSeparator();
+		JMenuItem mntmOtherSmoothing = new JMenuItem("Other...");
+		mntmOtherSmoothing.setActionCommand("othersmoothing");
+		mntmOtherSmoothing.addActionListener(this);
+		mnSmoothing.add(mntmOtherSmoothing);
+		mnNewMenu.add(mnSmoothing);
+
+		JMenuItem mntmGoToDate = new JMenuItem("Go to date...");
+		mntmGoToDate.setActionCommand("gotodate");
+		mntmGoToDate.addActionListener(this);
+		mnNewMenu.add(mntmGoToDate);
+
 		// create menu that lets the user choose log/lin scale
 		JMenu mnScale = new JMenu("Scale");
 		menuBar.add(mnScale);
@@ -270,14 +468,19 @@ public class MainWindow implements ActionListener, GammaScoutListener, Runnable
 		SpringLayout springLayout = new SpringLayout();
 		frmOpenGammaTool.getContentPane().setLayout(springLayout);
 
-		dataset = new DefaultXYDataset();
-		// create the chart
-		chart = ChartFactory.createTimeSeriesChart("Gamma Scout measured data", "time", "value", dataset, false, true, false);
-		chart.getXYPlot().setRangePannable(true);
-		chart.getXYPlot().setDomainPannable(true);
-		DateAxis dateAxis = (DateAxis) chart.getXYPlot().getDomainAxis();
-		dateAxis.setTimeZone(Tools.UTC_TIMEZONE);
-		chartPanel = new ChartPanel(chart);
+		dataset = new DownsampledXYDataset(readings);
+		// create the chart, and only show the points that can be seen
+		chart = Charts.createChart(dataset);
+		chart.getXYPlot().getDomainAxis().addChangeListener(dataset);
+		chartPanel = new FastChartPanel(chart);
+		chartPanel.addComponentListener(new ComponentAdapter()
+		{
+			@Override
+			public void componentResized(ComponentEvent e)
+			{
+				dataset.setColumns(chartPanel.getWidth());
+			}
+		});
 		chartPanel.setInitialDelay(0);
 		chartPanel.setDisplayToolTips(true);
 		springLayout.putConstraint(SpringLayout.NORTH, chartPanel, 6, SpringLayout.NORTH, frmOpenGammaTool.getContentPane());
@@ -294,7 +497,6 @@ public class MainWindow implements ActionListener, GammaScoutListener, Runnable
 		btnLoadData = new JButton("Load data");
 		btnLoadData.setToolTipText("Read all data from connected device");
 		springLayout.putConstraint(SpringLayout.WEST, chartPanel, 0, SpringLayout.WEST, btnLoadData);
-		springLayout.putConstraint(SpringLayout.SOUTH, chartPanel, -6, SpringLayout.NORTH, btnLoadData);
 		btnLoadData.setEnabled(false);
 		springLayout.putConstraint(SpringLayout.NORTH, btnLoadData, -31, SpringLayout.SOUTH, frmOpenGammaTool.getContentPane());
 		springLayout.putConstraint(SpringLayout.SOUTH, btnLoadData, -6, SpringLayout.SOUTH, frmOpenGammaTool.getContentPane());
@@ -329,10 +531,41 @@ public class MainWindow implements ActionListener, GammaScoutListener, Runnable
 		springLayout.putConstraint(SpringLayout.WEST, btnClearLog, 217, SpringLayout.WEST, frmOpenGammaTool.getContentPane());
 		frmOpenGammaTool.getContentPane().add(btnClearLog);
 
+		statisticsPanel = new StatisticsPanel();
+		springLayout.putConstraint(SpringLayout.SOUTH, chartPanel, -6, SpringLayout.NORTH, statisticsPanel);
+		springLayout.putConstraint(SpringLayout.WEST, statisticsPanel, 6, SpringLayout.WEST, frmOpenGammaTool.getContentPane());
+		springLayout.putConstraint(SpringLayout.EAST, statisticsPanel, -6, SpringLayout.EAST, frmOpenGammaTool.getContentPane());
+		springLayout.putConstraint(SpringLayout.SOUTH, statisticsPanel, -6, SpringLayout.NORTH, btnLoadData);
+		frmOpenGammaTool.getContentPane().add(statisticsPanel);
+
+		alertBanner = new AlertBanner();
+		springLayout.putConstraint(SpringLayout.NORTH, alertBanner, 6, SpringLayout.NORTH, frmOpenGammaTool.getContentPane());
+		springLayout.putConstraint(SpringLayout.WEST, alertBanner, 6, SpringLayout.WEST, frmOpenGammaTool.getContentPane());
+		springLayout.putConstraint(SpringLayout.EAST, alertBanner, -6, SpringLayout.EAST, frmOpenGammaTool.getContentPane());
+		springLayout.putConstraint(SpringLayout.NORTH, chartPanel, 0, SpringLayout.SOUTH, alertBanner);
+		frmOpenGammaTool.getContentPane().add(alertBanner);
+		// the dataset changes with the data, the visible range and the unit
+		dataset.addChangeListener(new DatasetChangeListener()
+		{
+			@Override
+			public void datasetChanged(DatasetChangeEvent event)
+			{
+				updateStatistics();
+			}
+		});
+		updateStatistics();
+
+		exportStatusBar = new ExportStatusBar();
+		springLayout.putConstraint(SpringLayout.EAST, chartPanel, 0, SpringLayout.EAST, exportStatusBar);
+		springLayout.putConstraint(SpringLayout.NORTH, exportStatusBar, -31, SpringLayout.SOUTH, frmOpenGammaTool.getContentPane());
+		springLayout.putConstraint(SpringLayout.SOUTH, exportStatusBar, -6, SpringLayout.SOUTH, frmOpenGammaTool.getContentPane());
+		springLayout.putConstraint(SpringLayout.EAST, exportStatusBar, -6, SpringLayout.EAST, frmOpenGammaTool.getContentPane());
+		frmOpenGammaTool.getContentPane().add(exportStatusBar);
+		exportService.addListener(exportStatusBar);
+
 		infoLabel = new JLabel("Connecting...");
-		springLayout.putConstraint(SpringLayout.EAST, chartPanel, 0, SpringLayout.EAST, infoLabel);
 		springLayout.putConstraint(SpringLayout.WEST, infoLabel, 6, SpringLayout.EAST, btnClearLog);
-		springLayout.putConstraint(SpringLayout.EAST, infoLabel, -6, SpringLayout.EAST, frmOpenGammaTool.getContentPane());
+		springLayout.putConstraint(SpringLayout.EAST, infoLabel, -6, SpringLayout.WEST, exportStatusBar);
 		infoLabel.setForeground(Color.BLACK);
 		springLayout.putConstraint(SpringLayout.NORTH, infoLabel, -26, SpringLayout.SOUTH, frmOpenGammaTool.getContentPane());
 		springLayout.putConstraint(SpringLayout.SOUTH, infoLabel, -11, SpringLayout.SOUTH, frmOpenGammaTool.getContentPane());
@@ -360,19 +593,37 @@ public class MainWindow implements ActionListener, GammaScoutListener, Runnable
 					frmOpenGammaTool.dispose();
 					break;
 				case "savepng":
-					ImageTool.savePng(frmOpenGammaTool, chart, chartPanel.getWidth(), chartPanel.getHeight());
+					saveImage(ImageTool.Format.PNG);
 					break;
 				case "savejpg":
-					ImageTool.saveJpg(frmOpenGammaTool, chart, chartPanel.getWidth(), chartPanel.getHeight());
+					saveImage(ImageTool.Format.JPG);
 					break;
 				case "savepdf":
-					ImageTool.savePdf(frmOpenGammaTool, chart, chartPanel.getWidth(), chartPanel.getHeight());
+					saveImage(ImageTool.Format.PDF);
 					break;
 				case "saveeps":
-					ImageTool.saveEps(frmOpenGammaTool, chart, chartPanel.getWidth(), chartPanel.getHeight());
+					saveImage(ImageTool.Format.EPS);
 					break;
 				case "savesvg":
-					ImageTool.saveSvg(frmOpenGammaTool, chart, chartPanel.getWidth(), chartPanel.getHeight());
+					saveImage(ImageTool.Format.SVG);
+					break;
+				case "savepnghighres":
+					saveHighResolutionImage(ImageTool.Format.PNG);
+					break;
+				case "savejpghighres":
+					saveHighResolutionImage(ImageTool.Format.JPG);
+					break;
+				case "batchexport":
+					batchExport();
+					break;
+				case "gotodate":
+					goToDate();
+					break;
+				case "smoothing":
+					updateSmoothing();
+					break;
+				case "othersmoothing":
+					otherSmoothing();
 					break;
 				case "linear":
 				case "logarithmic":
@@ -381,10 +632,13 @@ public class MainWindow implements ActionListener, GammaScoutListener, Runnable
 					updateLabels();
 					// fall through
 				case "refresh":
-					updateGraph();
+					updateView();
 					break;
 				case "savecsv":
-					TextTool.saveCSV(frmOpenGammaTool, readings);
+					saveCSV();
+					break;
+				case "saveresampledcsv":
+					saveResampledCSV();
 					break;
 				case "loaddata":
 					loadData = true;
@@ -393,8 +647,16 @@ public class MainWindow implements ActionListener, GammaScoutListener, Runnable
 					setTime = true;
 					break;
 				case "loadcsv":
-					TextTool.loadCSV(frmOpenGammaTool, readings);
-					updateGraph = true;
+					loadCSV();
+					break;
+				case "saveogt":
+					saveOGT();
+					break;
+				case "loadogt":
+					loadOGT();
+					break;
+				case "mergelogs":
+					mergeLogs();
 					break;
 				case "clearlog":
 					clearLog = true;
@@ -404,112 +666,574 @@ public class MainWindow implements ActionListener, GammaScoutListener, Runnable
 					break;
 			}
 		}
-		catch (IOException e)
+		catch (CloneNotSupportedException | IOException e)
 		{
 			e.printStackTrace();
 		}
-		catch (ParseException e)
+	}
+
+	/**
+	 * Ask for a file name and save the chart in the background. The chart is
+	 * copied with the data currently shown, so the export is not affected by
+	 * readings arriving while it runs.
+	 * 
+	 * @param format
+	 * @throws CloneNotSupportedException
+	 */
+	private void saveImage(final ImageTool.Format format) throws CloneNotSupportedException
+	{
+		File f = ImageTool.chooseSaveFile(frmOpenGammaTool, format);
+		if (f != null)
 		{
-			e.printStackTrace();
+			final JFreeChart copy = copyChart();
+			final int width = chartPanel.getWidth();
+			final int height = chartPanel.getHeight();
+			exportService.export("Saving " + f.getName(), f, new ExportService.Task()
+			{
+				@Override
+				public void run(File target, Progress progress) throws Exception
+				{
+					ImageTool.write(target, format, copy, width, height);
+				}
+			});
 		}
 	}
 
 	/**
-	 * Repaint the graph from existing values.
+	 * Ask for a size and a file name and save the chart as a large image in
+	 * the background, drawing as much detail as the image can show.
 	 * 
+	 * @param format
+	 *            PNG or JPG.
+	 * @throws CloneNotSupportedException
 	 */
-	private void updateGraph()
+	private void saveHighResolutionImage(final ImageTool.Format format) throws CloneNotSupportedException
 	{
-		// get the selected state
-		boolean ignoreSaturated = this.chckbxmntmHideOverflowReadings.isSelected();
-		boolean countsPerMinute = this.rdbtnmntmCountsPerMinute.isSelected();
-		double[][] matrix = null;
-		synchronized (readings)
+		final ImageTool.Resolution resolution = ImageTool.chooseResolution(frmOpenGammaTool, chartPanel.getWidth(), chartPanel.getHeight());
+		if (resolution == null)
+		{
+			return;
+		}
+		File f = ImageTool.chooseSaveFile(frmOpenGammaTool, format);
+		if (f != null)
 		{
-			int count = readings.size();
-			if (count > 0 && ignoreSaturated)
+			final JFreeChart copy = copyChart();
+			exportService.export("Saving " + f.getName(), f, new ExportService.Task()
 			{
-				// count the number of un-saturated samples
-				count = 0;
-				for (Reading r : readings)
+				@Override
+				public void run(File target, Progress progress) throws Exception
 				{
-					if (!r.isSaturated())
+					ImageTool.writeTiled(target, format, copy, resolution.getWidth(), resolution.getHeight(), resolution.getScale(),
+							progress);
+				}
+			});
+		}
+	}
+
+	/**
+	 * Ask for file types and a base name and write the chart and readings to
+	 * all the files at once in the background, then show how long each file
+	 * took, or which files could not be written.
+	 * 
+	 * @throws CloneNotSupportedException
+	 * @throws IOException
+	 */
+	private void batchExport() throws CloneNotSupportedException, IOException
+	{
+		final List<File> files = BatchExport.chooseFiles(frmOpenGammaTool);
+		if (files == null)
+		{
+			return;
+		}
+		ReadingStore snapshot = readings.copy();
+		final BatchExport batch = new BatchExport(copyChart(snapshot), chartPanel.getWidth(), chartPanel.getHeight(), 1, snapshot,
+				createHeader());
+		for (File f : files)
+		{
+			batch.add(f);
+		}
+		exportService.submit("Exporting " + files.size() + " files", new ExportService.Task()
+		{
+			@Override
+			public void run(File target, Progress progress) throws Exception
+			{
+				List<BatchExport.Result> results = batch.run(exportService, progress);
+				StringBuilder written = new StringBuilder();
+				StringBuilder failed = new StringBuilder();
+				for (BatchExport.Result r : results)
+				{
+					(r.getError() == null ? written : failed).append(r).append('\n');
+				}
+				final String title;
+				final String report;
+				final int type;
+				if (failed.length() == 0)
+				{
+					title = "Export finished";
+					report = written.toString();
+					type = JOptionPane.INFORMATION_MESSAGE;
+				}
+				else
+				{
+					// failures first, so they are not missed
+					title = written.length() == 0 ? "Export failed" : "Export finished with errors";
+					report = "Could not write:\n" + failed + (written.length() == 0 ? "" : "\nWritten:\n" + written);
+					type = written.length() == 0 ? JOptionPane.ERROR_MESSAGE : JOptionPane.WARNING_MESSAGE;
+				}
+				SwingUtilities.invokeLater(new Runnable()
+				{
+					@Override
+					public void run()
 					{
-						count++;
+						JOptionPane.showMessageDialog(frmOpenGammaTool, report, title, type);
 					}
+				});
+			}
+		});
+	}
+
+	/**
+	 * Copy the chart with a snapshot of the data currently shown, for
+	 * exports.
+	 * 
+	 * @return
+	 * @throws CloneNotSupportedException
+	 */
+	private JFreeChart copyChart() throws CloneNotSupportedException
+	{
+		return copyChart(readings.copy());
+	}
+
+	/**
+	 * Copy the chart showing a snapshot of the readings, for exports.
+	 * 
+	 * @param snapshot
+	 *            a copy of the readings that is not changed.
+	 * @return
+	 * @throws CloneNotSupportedException
+	 */
+	private JFreeChart copyChart(ReadingStore snapshot) throws CloneNotSupportedException
+	{
+		JFreeChart copy = Charts.copy(chart);
+		copy.getXYPlot().setDataset(dataset.copy(snapshot));
+		return copy;
+	}
+
+	/**
+	 * Ask for a file name and save a copy of the readings as CSV in the
+	 * background.
+	 */
+	private void saveCSV()
+	{
+		File f = TextTool.chooseSaveFile(frmOpenGammaTool);
+		if (f != null)
+		{
+			final List<Reading> copy = copyReadings();
+			exportService.export("Saving " + f.getName(), f, new ExportService.Task()
+			{
+				@Override
+				public void run(File target, Progress progress) throws Exception
+				{
+					TextTool.writeCSV(target, copy, progress);
 				}
+			});
+		}
+	}
+
+	/**
+	 * Ask for a period and a file name and save a copy of the readings
+	 * resampled onto a regular grid as CSV in the background.
+	 */
+	private void saveResampledCSV()
+	{
+		String text = (String) JOptionPane.showInputDialog(frmOpenGammaTool,
+				"Length of the buckets in seconds, e.g. 3600 for hourly rates:", "Save resampled CSV",
+				JOptionPane.PLAIN_MESSAGE, null, null, "3600");
+		if (text == null)
+		{
+			return;
+		}
+		final long seconds;
+		try
+		{
+			seconds = Long.parseLong(text.trim());
+			if (seconds <= 0)
+			{
+				throw new NumberFormatException();
 			}
-			// create data matrix
-			matrix = new double[2][count];
-			int index = 0;
-			for (Reading r : readings)
+		}
+		catch (NumberFormatException e)
+		{
+			JOptionPane.showMessageDialog(frmOpenGammaTool, "Not a number of seconds: " + text, "Save resampled CSV",
+					JOptionPane.ERROR_MESSAGE);
+			return;
+		}
+		File f = TextTool.chooseSaveFile(frmOpenGammaTool);
+		if (f != null)
+		{
+			final List<Reading> copy = copyReadings();
+			exportService.export("Saving " + f.getName(), f, new ExportService.Task()
 			{
-				if (!ignoreSaturated || !r.isSaturated())
+				@Override
+				public void run(File target, Progress progress) throws Exception
 				{
-					matrix[0][index] = r.getTime();
-					if (countsPerMinute)
-					{
-						matrix[1][index] = r.getCountsPerMinute();
-					}
-					else
+					TextTool.writeResampledCSV(target, copy, seconds * 1000, progress);
+				}
+			});
+		}
+	}
+
+	/**
+	 * Ask for a file name and save a copy of the readings as OGT in the
+	 * background.
+	 */
+	private void saveOGT()
+	{
+		File f = BinaryTool.chooseSaveFile(frmOpenGammaTool);
+		if (f != null)
+		{
+			final List<Reading> copy = copyReadings();
+			final BinaryTool.Header header = createHeader();
+			exportService.export("Saving " + f.getName(), f, new ExportService.Task()
+			{
+				@Override
+				public void run(File target, Progress progress) throws Exception
+				{
+					BinaryTool.writeOGT(target, copy, header, progress);
+				}
+			});
+		}
+	}
+
+	/**
+	 * Ask for a CSV file and replace the readings with its contents when it
+	 * has been read in the background.
+	 */
+	private void loadCSV()
+	{
+		final File f = TextTool.chooseOpenFile(frmOpenGammaTool);
+		if (f != null)
+		{
+			exportService.submit("Loading " + f.getName(), new ExportService.Task()
+			{
+				@Override
+				public void run(File target, Progress progress) throws Exception
+				{
+					List<Reading> loaded = new ArrayList<>();
+					TextTool.readCSV(f, loaded, progress);
+					replaceReadings(loaded);
+				}
+			});
+		}
+	}
+
+	/**
+	 * Ask for an OGT file and replace the readings with its contents when it
+	 * has been read in the background.
+	 */
+	private void loadOGT()
+	{
+		final File f = BinaryTool.chooseOpenFile(frmOpenGammaTool);
+		if (f != null)
+		{
+			exportService.submit("Loading " + f.getName(), new ExportService.Task()
+			{
+				@Override
+				public void run(File target, Progress progress) throws Exception
+				{
+					List<Reading> loaded = new ArrayList<>();
+					BinaryTool.readOGT(f, loaded, progress);
+					replaceReadings(loaded);
+				}
+			});
+		}
+	}
+
+	/**
+	 * Ask for files and merge them with the readings in the background.
+	 */
+	private void mergeLogs()
+	{
+		final File[] files = MergeTool.chooseOpenFiles(frmOpenGammaTool);
+		if (files.length > 0)
+		{
+			exportService.submit("Merging " + files.length + " logs", new ExportService.Task()
+			{
+				@Override
+				public void run(File target, Progress progress) throws Exception
+				{
+					final MergeTool.Result result = MergeTool.mergeFiles(files, readings, progress);
+					refresher.markDirty(RefreshCoordinator.DATA);
+					SwingUtilities.invokeLater(new Runnable()
 					{
-						matrix[1][index] = r.getMicroSievertsPerHour();
-					}
-					index++;
+						@Override
+						public void run()
+						{
+							MergeTool.showResult(frmOpenGammaTool, result);
+						}
+					});
 				}
-			}
-			dataset.addSeries("values", matrix);
+			});
 		}
+	}
 
+	/**
+	 * Get a copy of the readings that is safe to use on other threads.
+	 * 
+	 * @return
+	 */
+	private List<Reading> copyReadings()
+	{
+		return readings.copy();
 	}
 
 	/**
-	 * Set the axis labels and tooltip format appropriately.
+	 * Replace all readings, e.g. with the contents of a file.
+	 * 
+	 * @param replacement
 	 */
-	private void updateLabels()
+	private void replaceReadings(List<Reading> replacement)
 	{
-		boolean isLinear = this.rdbtnmntmLinear.isSelected();
-		XYPlot p = chart.getXYPlot();
-		if (isLinear)
+		synchronized (readings)
 		{
-			p.setRangeAxis(new NumberAxis());
+			readings.clear();
+			readings.addAll(replacement);
 		}
-		else
+		refresher.markDirty(RefreshCoordinator.DATA);
+	}
+
+	/**
+	 * Create a binary file header describing the connected device, if any.
+	 * 
+	 * @return
+	 */
+	private BinaryTool.Header createHeader()
+	{
+		if (gsc == null)
+		{
+			return new BinaryTool.Header();
+		}
+		return new BinaryTool.Header(gsc.getSerialNumberValue(), gsc.getProtocolVersion());
+	}
+
+	/**
+	 * Recompute the points of the chart after the readings have changed.
+	 */
+	private void updateGraph()
+	{
+		dataset.dataChanged();
+	}
+
+	/**
+	 * Show the readings in the selected unit, filtered as selected. A change
+	 * of unit only changes how the points are read, and a change of filter
+	 * only combines the bitmaps of the store.
+	 */
+	private void updateView()
+	{
+		boolean ignoreSaturated = this.chckbxmntmHideOverflowReadings.isSelected();
+		boolean ignoreAfterGaps = this.chckbxmntmHideReadingsAfterGaps.isSelected();
+		boolean countsPerMinute = this.rdbtnmntmCountsPerMinute.isSelected();
+		dataset.setFilter(ReadingFilter.ALL.withSaturated(!ignoreSaturated).withAfterGaps(!ignoreAfterGaps)
+				.withInterval(interval));
+		dataset.setUnit(countsPerMinute, !ignoreSaturated);
+	}
+
+	/**
+	 * Show the statistics of all readings and of the readings the chart
+	 * shows: those in the visible time range that pass the chart's filter.
+	 * The sums they come from are built on a worker thread after loads and
+	 * downloads, so the statistics are computed there and then shown;
+	 * requests made meanwhile are merged into one.
+	 */
+	private void updateStatistics()
+	{
+		Range visible = chart.getXYPlot().getDomainAxis().getRange();
+		StatisticsQuery query = new StatisticsQuery((long) Math.ceil(visible.getLowerBound()), (long) Math.floor(visible
+				.getUpperBound()), dataset.getFilter(), rdbtnmntmCountsPerMinute.isSelected());
+		if (statisticsQuery.getAndSet(query) == null)
 		{
-			p.setRangeAxis(new LogAxis());
+			WorkerPool.get().submit(new Runnable()
+			{
+				@Override
+				public void run()
+				{
+					computeStatistics();
+				}
+			});
 		}
-		if (this.rdbtnmntmCountsPerMinute.isSelected())
+	}
+
+	/**
+	 * Compute the statistics of the latest query on a worker thread and show
+	 * them on the Event Dispatch Thread.
+	 */
+	private void computeStatistics()
+	{
+		StatisticsQuery query;
+		do
 		{
-			// set up for counts per minute
-			if (isLinear)
+			query = statisticsQuery.get();
+			try
 			{
-				p.getRangeAxis().setLabel("counts per minute");
+				RangeStatistics ranges = readings.getRangeStatistics();
+				ranges.prepare();
+				final RunningStatistics all = readings.getStatistics();
+				final RunningStatistics shown = ranges.getByTime(query.from, query.to, query.filter);
+				final boolean countsPerMinute = query.countsPerMinute;
+				SwingUtilities.invokeLater(new Runnable()
+				{
+					@Override
+					public void run()
+					{
+						statisticsPanel.update(all, shown, countsPerMinute);
+					}
+				});
 			}
-			else
+			catch (RuntimeException e)
 			{
-				p.getRangeAxis().setLabel("counts per minute (log)");
+				e.printStackTrace();
 			}
-			XYItemRenderer renderer = p.getRenderer();
-			renderer.setBaseToolTipGenerator(
-					new StandardXYToolTipGenerator("<html><body>{1}:<br>{2} c/m</body></html>", DATE_FORMAT, NumberFormat.getInstance()));
 		}
-		else
+		// a query made while computing is computed next
+		while (!statisticsQuery.compareAndSet(query, null));
+	}
+
+	/**
+	 * What the statistics panel shows the statistics of.
+	 */
+	private static class StatisticsQuery
+	{
+		private final long from;
+		private final long to;
+		private final ReadingFilter filter;
+		private final boolean countsPerMinute;
+
+		StatisticsQuery(long from, long to, ReadingFilter filter, boolean countsPerMinute)
+		{
+			this.from = from;
+			this.to = to;
+			this.filter = filter;
+			this.countsPerMinute = countsPerMinute;
+		}
+	}
+
+	/**
+	 * Offer all readings and each measuring interval of the readings.
+	 */
+	private void buildIntervalMenu()
+	{
+		mnInterval.removeAll();
+		ButtonGroup group = new ButtonGroup();
+		int[] intervals = readings.getIntervals();
+		int[] choices = new int[intervals.length + 1];
+		System.arraycopy(intervals, 0, choices, 1, intervals.length);
+		for (final int seconds : choices)
+		{
+			JRadioButtonMenuItem item = new JRadioButtonMenuItem(seconds == 0 ? "All" : intervalLabel(seconds));
+			item.setSelected(seconds == interval);
+			item.addActionListener(new ActionListener()
+			{
+				@Override
+				public void actionPerformed(ActionEvent e)
+				{
+					interval = seconds;
+					updateView();
+				}
+			});
+			group.add(item);
+			mnInterval.add(item);
+		}
+	}
+
+	/**
+	 * Add a checkbox for a moving average to the smoothing menu, before the
+	 * separator.
+	 */
+	private void addSmoothingItem(Smoothing smoothing, boolean selected)
+	{
+		JCheckBoxMenuItem item = new JCheckBoxMenuItem(smoothing.getLabel());
+		item.setSelected(selected);
+		item.setActionCommand("smoothing");
+		item.addActionListener(this);
+		mnSmoothing.insert(item, smoothingItems.size());
+		smoothingItems.put(item, smoothing);
+	}
+
+	/**
+	 * Draw the checked moving averages over the readings.
+	 */
+	private void updateSmoothing()
+	{
+		List<Smoothing> smoothings = new ArrayList<>();
+		for (Map.Entry<JCheckBoxMenuItem, Smoothing> e : smoothingItems.entrySet())
 		{
-			// set up for microsieverts per hour
-			if (isLinear)
+			if (e.getKey().isSelected())
 			{
-				p.getRangeAxis().setLabel("micro Sieverts per hour");
+				smoothings.add(e.getValue());
 			}
-			else
+		}
+		Charts.setOverlays(chart, smoothings);
+	}
+
+	/**
+	 * Ask for a moving average that is not in the menu, and draw it.
+	 */
+	private void otherSmoothing()
+	{
+		String text = (String) JOptionPane.showInputDialog(frmOpenGammaTool,
+				"Moving average, e.g. sma(30) over 30 readings or ema(600s) over 600 seconds,\n"
+						+ "with a w in front, e.g. wsma(30), to weight readings by their counts:", "Smoothing",
+				JOptionPane.PLAIN_MESSAGE, null, null, "ema(600s)");
+		if (text == null)
+		{
+			return;
+		}
+		Smoothing smoothing;
+		try
+		{
+			smoothing = Smoothing.parse(text);
+		}
+		catch (IllegalArgumentException e)
+		{
+			JOptionPane.showMessageDialog(frmOpenGammaTool, e.getMessage(), "Smoothing", JOptionPane.ERROR_MESSAGE);
+			return;
+		}
+		for (Map.Entry<JCheckBoxMenuItem, Smoothing> e : smoothingItems.entrySet())
+		{
+			if (e.getValue().equals(smoothing))
 			{
-				p.getRangeAxis().setLabel("micro Sieverts per hour (log)");
+				e.getKey().setSelected(true);
+				updateSmoothing();
+				return;
 			}
-			XYItemRenderer renderer = p.getRenderer();
-			renderer.setBaseToolTipGenerator(
-					new StandardXYToolTipGenerator("<html><body>{1}:<br>{2} &micro;Sv/h</body></html>", DATE_FORMAT, NumberFormat.getInstance()));
 		}
-		p.getRangeAxis().setAutoRange(true);
-		p.getRangeAxis().setMinorTickMarksVisible(true);
+		addSmoothingItem(smoothing, true);
+		updateSmoothing();
+	}
+
+	private static String intervalLabel(int seconds)
+	{
+		if (seconds % 3600 == 0)
+		{
+			return seconds / 3600 + " h";
+		}
+		if (seconds % 60 == 0)
+		{
+			return seconds / 60 + " min";
+		}
+		return seconds + " s";
+	}
+
+	/**
+	 * Switch to the prebuilt range axis and tooltip format for the selected
+	 * unit and scale.
+	 */
+	private void updateLabels()
+	{
+		boolean isLinear = this.rdbtnmntmLinear.isSelected();
+		boolean countsPerMinute = this.rdbtnmntmCountsPerMinute.isSelected();
+		rangeConfigurations.apply(chart.getXYPlot(), countsPerMinute, isLinear);
 		chartPanel.setDisplayToolTips(true);
 	}
 
@@ -519,22 +1243,101 @@ public class MainWindow implements ActionListener, GammaScoutListener, Runnable
 	private void refreshData()
 	{
 		setGuiEnabled(false);
-		readings.clear();
+		replaceReadings(Collections.<Reading> emptyList());
 		if (gsc != null && gsc.isConnected())
 		{
+			// keep the previous download in its own journal segment
+			journal.startSegment();
+			alarmEngine.reset();
 			try
 			{
 				gsc.getLog();
+				reportClockResets();
 			}
 			catch (Exception e)
 			{
 				e.printStackTrace();
 			}
 		}
+		refresher.markDirty(RefreshCoordinator.DEVICE_INFO);
 		setGuiEnabled(true);
 
 	}
 
+	/**
+	 * Tell the user if the downloaded log went back in time, since the
+	 * readings are shown in time order rather than in the order of the log.
+	 */
+	private void reportClockResets()
+	{
+		List<ReadingStore.ClockReset> resets = readings.getClockResets();
+		if (resets.isEmpty())
+		{
+			return;
+		}
+		final StringBuilder message = new StringBuilder("The log goes back in time " + resets.size()
+				+ " times, e.g. because the clock of the device was reset:\n");
+		for (ReadingStore.ClockReset reset : resets.subList(0, Math.min(10, resets.size())))
+		{
+			message.append(DATE_FORMAT.format(new Date(reset.getBefore()))).append(" -> ")
+					.append(DATE_FORMAT.format(new Date(reset.getAfter()))).append('\n');
+		}
+		if (resets.size() > 10)
+		{
+			message.append("...\n");
+		}
+		message.append("The readings are shown in time order.");
+		SwingUtilities.invokeLater(new Runnable()
+		{
+			@Override
+			public void run()
+			{
+				JOptionPane.showMessageDialog(frmOpenGammaTool, message.toString(), "Warning - clock reset",
+						JOptionPane.WARNING_MESSAGE);
+			}
+		});
+	}
+
+	/**
+	 * Ask for a time and centre the chart on the reading closest to it. The
+	 * zoom is kept, unless the chart shows all readings, when it zooms in to
+	 * a day.
+	 */
+	private void goToDate()
+	{
+		ValueAxis axis = chart.getXYPlot().getDomainAxis();
+		String text = (String) JOptionPane.showInputDialog(frmOpenGammaTool, "Date and time, as yyyy-MM-dd HH:mm:ss in UTC:",
+				"Go to date", JOptionPane.PLAIN_MESSAGE, null, null,
+				DATE_FORMAT.format(new Date((long) axis.getRange().getCentralValue())));
+		if (text == null)
+		{
+			return;
+		}
+		Long time = Tools.parseTime(text.trim());
+		if (time == null)
+		{
+			JOptionPane.showMessageDialog(frmOpenGammaTool, "Not a date: " + text, "Go to date", JOptionPane.ERROR_MESSAGE);
+			return;
+		}
+		long target;
+		synchronized (readings)
+		{
+			int index = readings.findNearestIndex(time);
+			if (index < 0)
+			{
+				return;
+			}
+			target = readings.getTime(index);
+		}
+		double width = axis.getRange().getLength();
+		Range bounds = dataset.getDomainBounds(false);
+		if (bounds == null || width >= bounds.getLength())
+		{
+			width = DAY_MILLIS;
+		}
+		axis.setRange(target - width / 2, target + width / 2);
+	}
+
 	private void clearLog()
 	{
 		setGuiEnabled(false);
@@ -546,14 +1349,14 @@ public class MainWindow implements ActionListener, GammaScoutListener, Runnable
 			try
 			{
 				gsc.clearLog();
-				readings.clear();
-				updateGraph = true;
+				replaceReadings(Collections.<Reading> emptyList());
 			}
 			catch (SerialPortException e)
 			{
 				e.printStackTrace();
 			}
 		}
+		refresher.markDirty(RefreshCoordinator.DEVICE_INFO);
 		setGuiEnabled(true);
 	}
 
@@ -569,6 +1372,7 @@ public class MainWindow implements ActionListener, GammaScoutListener, Runnable
 		{
 			e.printStackTrace();
 		}
+		refresher.markDirty(RefreshCoordinator.DEVICE_INFO);
 		setGuiEnabled(true);
 
 	}
@@ -647,55 +1451,17 @@ public class MainWindow implements ActionListener, GammaScoutListener, Runnable
 				}
 				if(gsc!=null)
 				{
+					// the alarms first, so nothing delays them
+					gsc.addListener(alarmEngine);
 					gsc.addListener(this);
+					gsc.addListener(journal);
 				}
 			}
-			Thread t = new Thread(new Runnable()
-			{
-				/**
-				 * A thread that updates GUI elements like the info bar and the
-				 * chart
-				 * 
-				 * @see java.lang.Runnable#run()
-				 */
-				@Override
-				public void run()
-				{
-					NumberFormat memoryPercentFormat = NumberFormat.getPercentInstance();
-					memoryPercentFormat.setMaximumFractionDigits(1);
-					while (true)
-					{
-						// sleep for a short while
-						Tools.sleep(200);
-						// repaint the info string
-						if (gsc != null)
-						{
-							String infoString = "Firmware vers.: " + gsc.getVersion();
-							infoString += ", serial: " + gsc.getSerialNumber();
-							if(gsc.getBytesUsed() != null)
-							{
-								infoString += ", " + memoryPercentFormat.format(gsc.getMemoryUsed()) + " memory used";
-							}
-							if(gsc instanceof GammaScoutConnectorV2)
-							{
-								infoString += ", device time: " + gsc.getDeviceDateTime();
-							}
-							infoLabel.setText(infoString);
-						}
-						else
-						{
-							infoLabel.setText("Not connected.");
-						}
-						if (updateGraph)
-						{
-							updateGraph();
-							updateGraph = false;
-						}
-					}
-				}
-			});
-			t.setDaemon(true);
-			t.start();
+			refresher.markDirty(RefreshCoordinator.DEVICE_INFO);
+			if (gsc instanceof GammaScoutConnectorV2)
+			{
+				startDeviceClock();
+			}
 			// we've connected, allow user interaction
 			setGuiEnabled(true);
 			// loop forever while waiting for the user to push buttons
@@ -729,6 +1495,72 @@ public class MainWindow implements ActionListener, GammaScoutListener, Runnable
 		}
 	}
 
+	/**
+	 * Mark the device info as dirty once a second, so the device time shown
+	 * keeps ticking.
+	 */
+	private void startDeviceClock()
+	{
+		SwingUtilities.invokeLater(new Runnable()
+		{
+			@Override
+			public void run()
+			{
+				new Timer(1000, new ActionListener()
+				{
+					@Override
+					public void actionPerformed(ActionEvent e)
+					{
+						refresher.markDirty(RefreshCoordinator.DEVICE_INFO);
+					}
+				}).start();
+			}
+		});
+	}
+
+	/**
+	 * @see com.gammascout.RefreshCoordinator.Target#refresh(int)
+	 */
+	@Override
+	public void refresh(int flags)
+	{
+		if ((flags & RefreshCoordinator.DEVICE_INFO) != 0)
+		{
+			updateInfo();
+		}
+		if ((flags & RefreshCoordinator.DATA) != 0)
+		{
+			updateGraph();
+		}
+	}
+
+	/**
+	 * Show the device information in the info bar.
+	 */
+	private void updateInfo()
+	{
+		if (gsc != null)
+		{
+			NumberFormat memoryPercentFormat = NumberFormat.getPercentInstance();
+			memoryPercentFormat.setMaximumFractionDigits(1);
+			String infoString = "Firmware vers.: " + gsc.getVersion();
+			infoString += ", serial: " + gsc.getSerialNumber();
+			if(gsc.getBytesUsed() != null)
+			{
+				infoString += ", " + memoryPercentFormat.format(gsc.getMemoryUsed()) + " memory used";
+			}
+			if(gsc instanceof GammaScoutConnectorV2)
+			{
+				infoString += ", device time: " + gsc.getDeviceDateTime();
+			}
+			infoLabel.setText(infoString);
+		}
+		else
+		{
+			infoLabel.setText("Not connected.");
+		}
+	}
+
 	/**
 	 * @see com.gammascout.usb.GammaScoutListener#receiveReading(com.gammascout.usb.Reading)
 	 */
@@ -739,6 +1571,6 @@ public class MainWindow implements ActionListener, GammaScoutListener, Runnable
 		{
 			readings.add(r);
 		}
-		updateGraph = true;
+		refresher.markDirty(RefreshCoordinator.DATA);
 	}
 }
@@ -0,0 +1,151 @@
+/*******************************************************************************
+ *  
+ * Copyright (c) 2009, 2019 Erik Berglund.
+ *    
+ *       This file is part of Conserve.
+ *   
+ *       Conserve is free software: you can redistribute it and/or modify
+ *       it under the terms of the GNU Affero General Public License as published by
+ *       the Free Software Foundation, either version 3 of the License, or
+ *       (at your option) any later version.
+ *   
+ *       Conserve is distributed in the hope that it will be useful,
+ *       but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *       MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *       GNU Affero General Public License for more details.
+ *   
+ *       You should have received a copy of the GNU Affero General Public License
+ *       along with Conserve.  If not, see <https://www.gnu.org/licenses/agpl.html>.
+ *       
+ *******************************************************************************/
+package com.gammascout;
+
+import java.awt.event.ActionEvent;
+import java.awt.event.ActionListener;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import javax.swing.SwingUtilities;
+import javax.swing.Timer;
+
+/**
+ * Coalesces refreshes of the user interface onto the Event Dispatch Thread.
+ * <p>
+ * Any thread may mark parts of the window as dirty. The first mark after a
+ * refresh schedules one refresh on the EDT, no sooner than the minimum
+ * interval after the previous one; further marks before it runs are merged
+ * into it. Nothing runs while nothing is marked.
+ * 
+ * @author Erik Berglund
+ * 
+ */
+public class RefreshCoordinator implements ActionListener
+{
+	/**
+	 * The readings have changed and the chart must be updated.
+	 */
+	public static final int DATA = 1;
+	/**
+	 * The device information, e.g. memory used or device time, has changed.
+	 */
+	public static final int DEVICE_INFO = 2;
+
+	/**
+	 * Implemented by the window that is refreshed.
+	 */
+	public interface Target
+	{
+		/**
+		 * Refresh the marked parts. Always called on the Event Dispatch
+		 * Thread.
+		 * 
+		 * @param flags
+		 *            the bitwise or of the flags marked since the last
+		 *            refresh.
+		 */
+		public void refresh(int flags);
+	}
+
+	private final Target target;
+	private final AtomicInteger dirty = new AtomicInteger();
+	private final Timer timer;
+	private volatile int minimumInterval;
+	private long lastRefresh;
+
+	/**
+	 * Create a coordinator that refreshes the target at most maxRate times
+	 * per second.
+	 * 
+	 * @param target
+	 * @param maxRate
+	 */
+	public RefreshCoordinator(Target target, int maxRate)
+	{
+		this.target = target;
+		timer = new Timer(0, this);
+		timer.setRepeats(false);
+		setMaxRate(maxRate);
+	}
+
+	/**
+	 * Set the maximum number of refreshes per second.
+	 * 
+	 * @param maxRate
+	 */
+	public void setMaxRate(int maxRate)
+	{
+		minimumInterval = 1000 / Math.max(1, maxRate);
+	}
+
+	/**
+	 * Mark parts of the window as dirty. May be called from any thread.
+	 * 
+	 * @param flags
+	 *            {@link #DATA}, {@link #DEVICE_INFO} or both.
+	 */
+	public void markDirty(int flags)
+	{
+		int previous;
+		do
+		{
+			previous = dirty.get();
+		}
+		while (!dirty.compareAndSet(previous, previous | flags));
+		if (previous == 0)
+		{
+			// the first mark since the last refresh schedules the next one
+			SwingUtilities.invokeLater(new Runnable()
+			{
+				@Override
+				public void run()
+				{
+					schedule();
+				}
+			});
+		}
+	}
+
+	/**
+	 * Start the timer so the refresh happens no sooner than the minimum
+	 * interval after the previous one.
+	 */
+	private void schedule()
+	{
+		long sinceLast = System.currentTimeMillis() - lastRefresh;
+		timer.setInitialDelay((int) Math.max(0, minimumInterval - sinceLast));
+		timer.restart();
+	}
+
+	/**
+	 * @see java.awt.event.ActionListener#actionPerformed(java.awt.event.ActionEvent)
+	 */
+	@Override
+	public void actionPerformed(ActionEvent e)
+	{
+		lastRefresh = System.currentTimeMillis();
+		int flags = dirty.getAndSet(0);
+		if (flags != 0)
+		{
+			target.refresh(flags);
+		}
+	}
+}
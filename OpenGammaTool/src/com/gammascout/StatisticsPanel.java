@@ -0,0 +1,117 @@
+/*******************************************************************************
+ *  
+ * Copyright (c) 2009, 2019 Erik Berglund.
+ *    
+ *       This file is part of Conserve.
+ *   
+ *       Conserve is free software: you can redistribute it and/or modify
+ *       it under the terms of the GNU Affero General Public License as published by
+ *       the Free Software Foundation, either version 3 of the License, or
+ *       (at your option) any later version.
+ *   
+ *       Conserve is distributed in the hope that it will be useful,
+ *       but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *       MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *       GNU Affero General Public License for more details.
+ *   
+ *       You should have received a copy of the GNU Affero General Public License
+ *       along with Conserve.  If not, see <https://www.gnu.org/licenses/agpl.html>.
+ *       
+ *******************************************************************************/
+package com.gammascout;
+
+import java.awt.Color;
+import java.awt.GridLayout;
+import java.text.NumberFormat;
+
+import javax.swing.JLabel;
+import javax.swing.JPanel;
+
+import com.gammascout.usb.Reading;
+import com.gammascout.usb.RunningStatistics;
+
+/**
+ * Shows the statistics of all readings and of the readings in the visible
+ * part of the chart, one line each.
+ * <p>
+ * Only shows what it is given: the statistics of all readings are kept up to
+ * date by the reading store as readings arrive, and those of the visible
+ * readings come from its {@link com.gammascout.usb.RangeStatistics}, so
+ * updating the panel never reads the readings.
+ * 
+ * @author Erik Berglund
+ * 
+ */
+public class StatisticsPanel extends JPanel
+{
+	private static final long serialVersionUID = 6180318574250398531L;
+
+	private final JLabel allLabel = new JLabel();
+	private final JLabel visibleLabel = new JLabel();
+	private final NumberFormat countFormat = NumberFormat.getIntegerInstance();
+	private final NumberFormat valueFormat = NumberFormat.getInstance();
+
+	/**
+	 * Create a panel that shows no statistics.
+	 */
+	public StatisticsPanel()
+	{
+		setLayout(new GridLayout(2, 1));
+		allLabel.setForeground(Color.BLACK);
+		visibleLabel.setForeground(Color.BLACK);
+		add(allLabel);
+		add(visibleLabel);
+		valueFormat.setMaximumFractionDigits(3);
+	}
+
+	/**
+	 * Show the statistics. Call on the event dispatch thread.
+	 * 
+	 * @param all
+	 *            the statistics of all readings.
+	 * @param visible
+	 *            the statistics of the visible readings.
+	 * @param countsPerMinute
+	 *            true to show rates in counts per minute, false for micro
+	 *            Sieverts per hour.
+	 */
+	public void update(RunningStatistics all, RunningStatistics visible, boolean countsPerMinute)
+	{
+		allLabel.setText(describe("All", all, countsPerMinute));
+		visibleLabel.setText(describe("Visible", visible, countsPerMinute));
+	}
+
+	private String describe(String name, RunningStatistics s, boolean countsPerMinute)
+	{
+		StringBuilder text = new StringBuilder(name).append(": ");
+		text.append(countFormat.format(s.getCount())).append(" readings");
+		if (s.getSaturatedCount() > 0)
+		{
+			text.append(" and ").append(countFormat.format(s.getSaturatedCount())).append(" saturated");
+		}
+		if (s.getCount() > 0)
+		{
+			String unit = countsPerMinute ? " c/m" : " \u00b5Sv/h";
+			text.append(", mean ").append(format(s.getMeanCountsPerMinute(), countsPerMinute));
+			if (s.getCount() > 1)
+			{
+				text.append(" \u00b1 ").append(format(s.getStandardDeviationCountsPerMinute(), countsPerMinute));
+			}
+			text.append(unit);
+			text.append(", min ").append(format(s.getMinCountsPerMinute(), countsPerMinute));
+			text.append(", max ").append(format(s.getMaxCountsPerMinute(), countsPerMinute)).append(unit);
+			text.append(", average ").append(format(s.getAverageCountsPerMinute(), countsPerMinute)).append(unit);
+		}
+		text.append(", dose ").append(valueFormat.format(s.getDose())).append(" \u00b5Sv");
+		return text.toString();
+	}
+
+	private String format(double cpm, boolean countsPerMinute)
+	{
+		if (Double.isNaN(cpm))
+		{
+			return "-";
+		}
+		return valueFormat.format(countsPerMinute ? cpm : Reading.toMicroSievertsPerHour(cpm));
+	}
+}
@@ -0,0 +1,209 @@
+/*******************************************************************************
+ *  
+ * Copyright (c) 2009, 2019 Erik Berglund.
+ *    
+ *       This file is part of Conserve.
+ *   
+ *       Conserve is free software: you can redistribute it and/or modify
+ *       it under the terms of the GNU Affero General Public License as published by
+ *       the Free Software Foundation, either version 3 of the License, or
+ *       (at your option) any later version.
+ *   
+ *       Conserve is distributed in the hope that it will be useful,
+ *       but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *       MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *       GNU Affero General Public License for more details.
+ *   
+ *       You should have received a copy of the GNU Affero General Public License
+ *       along with Conserve.  If not, see <https://www.gnu.org/licenses/agpl.html>.
+ *       
+ *******************************************************************************/
+package com.gammascout.alarm;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CopyOnWriteArrayList;
+
+import com.gammascout.usb.GammaScoutListener;
+import com.gammascout.usb.Reading;
+
+/**
+ * Evaluates alarm rules on the readings of a connector as they are decoded,
+ * and sends the alerts they raise to sinks, e.g. a banner in the window, a log
+ * file or a command.
+ * <p>
+ * The rules are evaluated on the thread that decodes the log, before the next
+ * reading is decoded, so an alert reaches the sinks while the rest of a long
+ * download is still being read. Each rule costs O(1) per reading.
+ * <p>
+ * The windows of the rules hold consecutive readings of the log. They are
+ * emptied when the log goes back in time, e.g. after a clock reset, and by
+ * {@link #reset()}.
+ * <p>
+ * A sink that fails does not keep the alert from the other sinks; the
+ * failure is passed to the failure listeners, e.g. to be shown to the user.
+ * 
+ * @author Erik Berglund
+ * 
+ */
+public class AlarmEngine implements GammaScoutListener
+{
+	/**
+	 * The system property that overrides the default rules, separated by
+	 * semicolons.
+	 */
+	public static final String RULES_PROPERTY = "opengammatool.alarms";
+	/**
+	 * The rules used when no rules are given: a dose rate of 10 micro
+	 * Sieverts per hour in a single reading, an average of 1 micro Sievert
+	 * per hour over 10 readings, or a saturated reading.
+	 */
+	public static final String DEFAULT_RULES = "cpm>=2360; average(10)>=236; saturated(1)";
+
+	/**
+	 * Implement this interface to be told when a sink fails to deliver an
+	 * alert.
+	 */
+	public interface FailureListener
+	{
+		/**
+		 * A sink threw an exception. Called on the thread that decodes the
+		 * readings, like the sinks.
+		 * 
+		 * @param sink
+		 * @param alert
+		 *            the alert that was not delivered.
+		 * @param e
+		 */
+		public void sinkFailed(AlertSink sink, Alert alert, Exception e);
+	}
+
+	private final List<AlarmRule> rules;
+	private final List<AlertSink> sinks = new CopyOnWriteArrayList<>();
+	private final List<FailureListener> failureListeners = new CopyOnWriteArrayList<>();
+	private long lastTime = Long.MIN_VALUE;
+
+	/**
+	 * Create an engine that evaluates the given rules.
+	 * 
+	 * @param rules
+	 */
+	public AlarmEngine(List<AlarmRule> rules)
+	{
+		this.rules = new ArrayList<>(rules);
+	}
+
+	/**
+	 * Parse rules separated by semicolons.
+	 * 
+	 * @param text
+	 * @return
+	 * @throws IllegalArgumentException
+	 *             if a rule cannot be parsed.
+	 */
+	public static List<AlarmRule> parseRules(String text)
+	{
+		List<AlarmRule> result = new ArrayList<>();
+		for (String rule : text.split(";"))
+		{
+			if (!rule.trim().isEmpty())
+			{
+				result.add(AlarmRule.parse(rule));
+			}
+		}
+		return result;
+	}
+
+	/**
+	 * Get the rules from the {@value #RULES_PROPERTY} system property, or the
+	 * {@link #DEFAULT_RULES}.
+	 * 
+	 * @return
+	 * @throws IllegalArgumentException
+	 *             if a rule cannot be parsed.
+	 */
+	public static List<AlarmRule> getDefaultRules()
+	{
+		return parseRules(System.getProperty(RULES_PROPERTY, DEFAULT_RULES));
+	}
+
+	/**
+	 * Get the rules.
+	 * 
+	 * @return
+	 */
+	public List<AlarmRule> getRules()
+	{
+		return new ArrayList<>(rules);
+	}
+
+	public void addSink(AlertSink sink)
+	{
+		sinks.add(sink);
+	}
+
+	public void removeSink(AlertSink sink)
+	{
+		sinks.remove(sink);
+	}
+
+	public void addFailureListener(FailureListener l)
+	{
+		failureListeners.add(l);
+	}
+
+	public void removeFailureListener(FailureListener l)
+	{
+		failureListeners.remove(l);
+	}
+
+	/**
+	 * Forget all readings, e.g. before another log is downloaded.
+	 */
+	public synchronized void reset()
+	{
+		for (AlarmRule rule : rules)
+		{
+			rule.reset();
+		}
+		lastTime = Long.MIN_VALUE;
+	}
+
+	/**
+	 * Evaluate the rules on the reading and send any alerts to the sinks.
+	 * 
+	 * @see com.gammascout.usb.GammaScoutListener#receiveReading(com.gammascout.usb.Reading)
+	 */
+	@Override
+	public synchronized void receiveReading(Reading r)
+	{
+		if (r.getTime() < lastTime)
+		{
+			reset();
+		}
+		lastTime = r.getTime();
+		for (AlarmRule rule : rules)
+		{
+			Alert alert = rule.check(r);
+			if (alert != null)
+			{
+				for (AlertSink sink : sinks)
+				{
+					try
+					{
+						sink.alert(alert);
+					}
+					catch (IOException | RuntimeException e)
+					{
+						// one failing sink must not keep the alert from the others
+						for (FailureListener l : failureListeners)
+						{
+							l.sinkFailed(sink, alert, e);
+						}
+					}
+				}
+			}
+		}
+	}
+}
@@ -0,0 +1,446 @@
+/*******************************************************************************
+ *  
+ * Copyright (c) 2009, 2019 Erik Berglund.
+ *    
+ *       This file is part of Conserve.
+ *   
+ *       Conserve is free software: you can redistribute it and/or modify
+ *       it under the terms of the GNU Affero General Public License as published by
+ *       the Free Software Foundation, either version 3 of the License, or
+ *       (at your option) any later version.
+ *   
+ *       Conserve is distributed in the hope that it will be useful,
+ *       but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *       MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *       GNU Affero General Public License for more details.
+ *   
+ *       You should have received a copy of the GNU Affero General Public License
+ *       along with Conserve.  If not, see <https://www.gnu.org/licenses/agpl.html>.
+ *       
+ *******************************************************************************/
+package com.gammascout.alarm;
+
+import java.text.NumberFormat;
+import java.util.Locale;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+import com.gammascout.usb.Reading;
+
+/**
+ * A rule that is evaluated on each reading as it arrives, and raises an
+ * {@link Alert} when its value reaches its threshold. A rule that has raised
+ * an alert raises no more until its value has fallen below the threshold, so
+ * a long period of high readings gives one alert rather than one per reading.
+ * <p>
+ * Rules keep their windows in ring buffers and cost O(1) per reading. They
+ * are written as, e.g.:
+ * <ul>
+ * <li><code>cpm&gt;=2360</code>: a reading of 2360 counts per minute or more.</li>
+ * <li><code>average(10)&gt;=236</code>: the average of the last 10 readings,
+ * their counts divided by their measuring time.</li>
+ * <li><code>average(600s)&gt;=236</code>: the average of the readings of the
+ * last 600 seconds.</li>
+ * <li><code>rise(6)&gt;=50</code>: counts per minute that the rate rose by
+ * per minute, from 6 readings ago to the last reading.</li>
+ * <li><code>saturated(3)</code>: 3 saturated readings in a row.</li>
+ * </ul>
+ * Saturated readings only give a lower bound of the rate. The cpm and average
+ * rules use that lower bound, and saturation rules catch the saturation
+ * itself.
+ * <p>
+ * Not thread safe; the {@link AlarmEngine} evaluates its rules one reading at
+ * a time.
+ * 
+ * @author Erik Berglund
+ * 
+ */
+public abstract class AlarmRule
+{
+	private static final Pattern SYNTAX = Pattern.compile("\\s*(\\w+)\\s*(?:\\(\\s*(\\d+)\\s*(s?)\\s*\\))?\\s*(?:>=\\s*([0-9.]+))?\\s*");
+
+	private final String description;
+	private final double threshold;
+	private boolean raised;
+
+	/**
+	 * @param description
+	 *            the rule as it is written.
+	 * @param threshold
+	 *            the value at which the rule raises an alert.
+	 */
+	protected AlarmRule(String description, double threshold)
+	{
+		this.description = description;
+		this.threshold = threshold;
+	}
+
+	/**
+	 * Parse a rule.
+	 * 
+	 * @param text
+	 *            e.g. "average(10)&gt;=236".
+	 * @return
+	 * @throws IllegalArgumentException
+	 *             if the rule cannot be parsed.
+	 */
+	public static AlarmRule parse(String text)
+	{
+		Matcher m = SYNTAX.matcher(text);
+		if (!m.matches())
+		{
+			throw new IllegalArgumentException("Invalid alarm rule: " + text);
+		}
+		String name = m.group(1);
+		int window = m.group(2) == null ? 0 : Integer.parseInt(m.group(2));
+		boolean seconds = "s".equals(m.group(3));
+		String description = text.trim();
+		if (name.equals("saturated") && m.group(4) == null && window > 0 && !seconds)
+		{
+			return new SaturationRun(description, window);
+		}
+		if (m.group(4) == null)
+		{
+			throw new IllegalArgumentException("Missing threshold in alarm rule: " + text);
+		}
+		double threshold;
+		try
+		{
+			threshold = Double.parseDouble(m.group(4));
+		}
+		catch (NumberFormatException e)
+		{
+			throw new IllegalArgumentException("Invalid threshold in alarm rule: " + text);
+		}
+		if (name.equals("cpm") && m.group(2) == null)
+		{
+			return new Threshold(description, threshold);
+		}
+		if (name.equals("average") && window > 0)
+		{
+			return seconds ? new TimeAverage(description, threshold, window) : new MovingAverage(description, threshold, window);
+		}
+		if (name.equals("rise") && window > 0 && !seconds)
+		{
+			return new Rise(description, threshold, window);
+		}
+		throw new IllegalArgumentException("Unknown alarm rule: " + text);
+	}
+
+	/**
+	 * Add a reading to the rule.
+	 * 
+	 * @param r
+	 * @return an alert if the value of the rule reached the threshold at
+	 *         this reading, otherwise null.
+	 */
+	public Alert check(Reading r)
+	{
+		double value = update(r);
+		if (value >= threshold)
+		{
+			if (!raised)
+			{
+				raised = true;
+				return new Alert(this, r, value);
+			}
+		}
+		else
+		{
+			raised = false;
+		}
+		return null;
+	}
+
+	/**
+	 * Forget all readings, e.g. before another log is downloaded.
+	 */
+	public void reset()
+	{
+		raised = false;
+		clear();
+	}
+
+	/**
+	 * Get the value at which the rule raises an alert.
+	 * 
+	 * @return
+	 */
+	public double getThreshold()
+	{
+		return threshold;
+	}
+
+	/**
+	 * Format a value of the rule with its unit.
+	 * 
+	 * @param value
+	 * @return
+	 */
+	public String formatValue(double value)
+	{
+		NumberFormat format = NumberFormat.getInstance(Locale.ROOT);
+		format.setMaximumFractionDigits(1);
+		format.setGroupingUsed(false);
+		return format.format(value) + " c/m";
+	}
+
+	/**
+	 * Get the rule as it is written.
+	 */
+	@Override
+	public String toString()
+	{
+		return description;
+	}
+
+	/**
+	 * Add a reading to the window of the rule.
+	 * 
+	 * @param r
+	 * @return the value of the rule with the reading, or NaN if there are not
+	 *         enough readings yet.
+	 */
+	protected abstract double update(Reading r);
+
+	/**
+	 * Empty the window of the rule.
+	 */
+	protected abstract void clear();
+
+	/**
+	 * The counts per minute of each reading.
+	 */
+	private static class Threshold extends AlarmRule
+	{
+		Threshold(String description, double threshold)
+		{
+			super(description, threshold);
+		}
+
+		@Override
+		protected double update(Reading r)
+		{
+			return r.getInterval() > 0 ? r.getCountsPerMinute() : Double.NaN;
+		}
+
+		@Override
+		protected void clear()
+		{
+		}
+	}
+
+	/**
+	 * The counts of the last readings divided by their measuring time, in a
+	 * ring buffer of the readings.
+	 */
+	private static class MovingAverage extends AlarmRule
+	{
+		private final long[] counts;
+		private final long[] seconds;
+		private int next;
+		private int size;
+		private long countSum;
+		private long secondSum;
+
+		MovingAverage(String description, double threshold, int readings)
+		{
+			super(description, threshold);
+			counts = new long[readings];
+			seconds = new long[readings];
+		}
+
+		@Override
+		protected double update(Reading r)
+		{
+			if (size == counts.length)
+			{
+				countSum -= counts[next];
+				secondSum -= seconds[next];
+			}
+			else
+			{
+				size++;
+			}
+			counts[next] = r.getCount();
+			seconds[next] = r.getInterval();
+			countSum += counts[next];
+			secondSum += seconds[next];
+			next = (next + 1) % counts.length;
+			return size < counts.length || secondSum <= 0 ? Double.NaN : countSum * 60.0 / secondSum;
+		}
+
+		@Override
+		protected void clear()
+		{
+			next = 0;
+			size = 0;
+			countSum = 0;
+			secondSum = 0;
+		}
+	}
+
+	/**
+	 * The counts of the readings that ended within a time window divided by
+	 * their measuring time, once the readings cover the whole window. The
+	 * ring buffer grows to hold the window, so that each reading is added and
+	 * removed once.
+	 */
+	private static class TimeAverage extends AlarmRule
+	{
+		private final long windowMillis;
+		private long[] times = new long[16];
+		private long[] counts = new long[16];
+		private long[] seconds = new long[16];
+		private int first;
+		private int size;
+		private long countSum;
+		private long secondSum;
+
+		TimeAverage(String description, double threshold, int windowSeconds)
+		{
+			super(description, threshold);
+			windowMillis = windowSeconds * 1000L;
+		}
+
+		@Override
+		protected double update(Reading r)
+		{
+			// readings that ended at or before the start of the window
+			while (size > 0 && times[first] <= r.getTime() - windowMillis)
+			{
+				countSum -= counts[first];
+				secondSum -= seconds[first];
+				first = (first + 1) % times.length;
+				size--;
+			}
+			if (size == times.length)
+			{
+				grow();
+			}
+			int last = (first + size) % times.length;
+			times[last] = r.getTime();
+			counts[last] = r.getCount();
+			seconds[last] = r.getInterval();
+			countSum += r.getCount();
+			secondSum += r.getInterval();
+			size++;
+			// like a moving average, no value until the window is full
+			long covered = r.getTime() - (times[first] - seconds[first] * 1000);
+			return covered < windowMillis || secondSum <= 0 ? Double.NaN : countSum * 60.0 / secondSum;
+		}
+
+		private void grow()
+		{
+			long[][] columns = { times, counts, seconds };
+			for (int x = 0; x < columns.length; x++)
+			{
+				long[] grown = new long[columns[x].length * 2];
+				int head = columns[x].length - first;
+				System.arraycopy(columns[x], first, grown, 0, head);
+				System.arraycopy(columns[x], 0, grown, head, first);
+				columns[x] = grown;
+			}
+			times = columns[0];
+			counts = columns[1];
+			seconds = columns[2];
+			first = 0;
+		}
+
+		@Override
+		protected void clear()
+		{
+			first = 0;
+			size = 0;
+			countSum = 0;
+			secondSum = 0;
+		}
+	}
+
+	/**
+	 * The change of the counts per minute from a number of readings ago to
+	 * the last reading, per minute between them.
+	 */
+	private static class Rise extends AlarmRule
+	{
+		private final double[] cpm;
+		private final long[] times;
+		private int next;
+		private int size;
+
+		Rise(String description, double threshold, int readings)
+		{
+			super(description, threshold);
+			// the last reading and the readings before it
+			cpm = new double[readings + 1];
+			times = new long[readings + 1];
+		}
+
+		@Override
+		protected double update(Reading r)
+		{
+			if (r.isSaturated() || r.getInterval() <= 0)
+			{
+				// the rate of a saturated reading is unknown
+				clear();
+				return Double.NaN;
+			}
+			cpm[next] = r.getCountsPerMinute();
+			times[next] = r.getTime();
+			size = Math.min(size + 1, cpm.length);
+			next = (next + 1) % cpm.length;
+			if (size < cpm.length)
+			{
+				return Double.NaN;
+			}
+			// next is now the oldest reading
+			double minutes = (r.getTime() - times[next]) / 60000.0;
+			return minutes <= 0 ? Double.NaN : (r.getCountsPerMinute() - cpm[next]) / minutes;
+		}
+
+		@Override
+		public String formatValue(double value)
+		{
+			return super.formatValue(value) + " per minute";
+		}
+
+		@Override
+		protected void clear()
+		{
+			next = 0;
+			size = 0;
+		}
+	}
+
+	/**
+	 * The number of saturated readings in a row.
+	 */
+	private static class SaturationRun extends AlarmRule
+	{
+		private int run;
+
+		SaturationRun(String description, int readings)
+		{
+			super(description, readings);
+		}
+
+		@Override
+		protected double update(Reading r)
+		{
+			run = r.isSaturated() ? run + 1 : 0;
+			return run;
+		}
+
+		@Override
+		public String formatValue(double value)
+		{
+			return (long) value + " saturated in a row";
+		}
+
+		@Override
+		protected void clear()
+		{
+			run = 0;
+		}
+	}
+}
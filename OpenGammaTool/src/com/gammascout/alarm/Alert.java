@@ -0,0 +1,115 @@
+/*******************************************************************************
+ *  
+ * Copyright (c) 2009, 2019 Erik Berglund.
+ *    
+ *       This file is part of Conserve.
+ *   
+ *       Conserve is free software: you can redistribute it and/or modify
+ *       it under the terms of the GNU Affero General Public License as published by
+ *       the Free Software Foundation, either version 3 of the License, or
+ *       (at your option) any later version.
+ *   
+ *       Conserve is distributed in the hope that it will be useful,
+ *       but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *       MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *       GNU Affero General Public License for more details.
+ *   
+ *       You should have received a copy of the GNU Affero General Public License
+ *       along with Conserve.  If not, see <https://www.gnu.org/licenses/agpl.html>.
+ *       
+ *******************************************************************************/
+package com.gammascout.alarm;
+
+import java.util.Date;
+
+import com.gammascout.usb.Reading;
+import com.gammascout.usb.Tools;
+
+/**
+ * An alarm rule that reached its threshold at a reading.
+ * 
+ * @author Erik Berglund
+ * 
+ */
+public class Alert
+{
+	private final AlarmRule rule;
+	private final Reading reading;
+	private final double value;
+	private final long raisedAt;
+
+	/**
+	 * @param rule
+	 *            the rule that reached its threshold.
+	 * @param reading
+	 *            the reading that made it reach the threshold.
+	 * @param value
+	 *            the value of the rule at the reading.
+	 */
+	public Alert(AlarmRule rule, Reading reading, double value)
+	{
+		this.rule = rule;
+		this.reading = reading;
+		this.value = value;
+		raisedAt = System.currentTimeMillis();
+	}
+
+	/**
+	 * Get the rule that reached its threshold.
+	 * 
+	 * @return
+	 */
+	public AlarmRule getRule()
+	{
+		return rule;
+	}
+
+	/**
+	 * Get the reading that made the rule reach its threshold.
+	 * 
+	 * @return
+	 */
+	public Reading getReading()
+	{
+		return reading;
+	}
+
+	/**
+	 * Get the value of the rule at the reading, in the unit of the rule.
+	 * 
+	 * @return
+	 */
+	public double getValue()
+	{
+		return value;
+	}
+
+	/**
+	 * Get the time the alert was raised, in milliseconds since the epoch.
+	 * 
+	 * @return
+	 */
+	public long getRaisedAt()
+	{
+		return raisedAt;
+	}
+
+	/**
+	 * Describe the alert on one line: the time of the reading, the rule and
+	 * the value.
+	 * 
+	 * @return
+	 */
+	public String getMessage()
+	{
+		// called on the decoding thread, so not with the shared format
+		String time = Tools.createDateFormat().format(new Date(reading.getTime()));
+		return time + " " + rule + ": " + rule.formatValue(value);
+	}
+
+	@Override
+	public String toString()
+	{
+		return getMessage();
+	}
+}
@@ -0,0 +1,44 @@
+/*******************************************************************************
+ *  
+ * Copyright (c) 2009, 2019 Erik Berglund.
+ *    
+ *       This file is part of Conserve.
+ *   
+ *       Conserve is free software: you can redistribute it and/or modify
+ *       it under the terms of the GNU Affero General Public License as published by
+ *       the Free Software Foundation, either version 3 of the License, or
+ *       (at your option) any later version.
+ *   
+ *       Conserve is distributed in the hope that it will be useful,
+ *       but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *       MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *       GNU Affero General Public License for more details.
+ *   
+ *       You should have received a copy of the GNU Affero General Public License
+ *       along with Conserve.  If not, see <https://www.gnu.org/licenses/agpl.html>.
+ *       
+ *******************************************************************************/
+package com.gammascout.alarm;
+
+import java.io.IOException;
+
+/**
+ * Implement this interface to receive the alerts of an {@link AlarmEngine}.
+ * 
+ * @author Erik Berglund
+ * 
+ */
+public interface AlertSink
+{
+	/**
+	 * An alarm rule reached its threshold. Called on the thread that decodes
+	 * the readings, so it must return quickly and leave slow work, such as
+	 * updating a window, to another thread.
+	 * 
+	 * @param alert
+	 * @throws IOException
+	 *             if the alert could not be delivered, which the engine
+	 *             reports to its failure listeners.
+	 */
+	public void alert(Alert alert) throws IOException;
+}
@@ -0,0 +1,82 @@
+/*******************************************************************************
+ *  
+ * Copyright (c) 2009, 2019 Erik Berglund.
+ *    
+ *       This file is part of Conserve.
+ *   
+ *       Conserve is free software: you can redistribute it and/or modify
+ *       it under the terms of the GNU Affero General Public License as published by
+ *       the Free Software Foundation, either version 3 of the License, or
+ *       (at your option) any later version.
+ *   
+ *       Conserve is distributed in the hope that it will be useful,
+ *       but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *       MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *       GNU Affero General Public License for more details.
+ *   
+ *       You should have received a copy of the GNU Affero General Public License
+ *       along with Conserve.  If not, see <https://www.gnu.org/licenses/agpl.html>.
+ *       
+ *******************************************************************************/
+package com.gammascout.alarm;
+
+import java.io.IOException;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Runs a local command for each alert, e.g. a script that sends a message.
+ * The command is split at white space and gets the alert in its environment:
+ * <ul>
+ * <li>OGT_ALERT_RULE: the rule, e.g. "average(10)&gt;=236".</li>
+ * <li>OGT_ALERT_TIME: the time of the reading in milliseconds since the
+ * epoch.</li>
+ * <li>OGT_ALERT_VALUE: the value of the rule.</li>
+ * <li>OGT_ALERT_MESSAGE: the message of the alert.</li>
+ * </ul>
+ * The command is started without waiting for it to finish, and its output
+ * goes to the output of this program.
+ * 
+ * @author Erik Berglund
+ * 
+ */
+public class CommandSink implements AlertSink
+{
+	/**
+	 * The system property that sets the command run for each alert in the
+	 * window.
+	 */
+	public static final String COMMAND_PROPERTY = "opengammatool.alarmcommand";
+
+	private final List<String> command;
+
+	/**
+	 * @param command
+	 *            the command and its arguments, separated by white space.
+	 */
+	public CommandSink(String command)
+	{
+		this.command = Arrays.asList(command.trim().split("\\s+"));
+	}
+
+	@Override
+	public void alert(Alert alert) throws IOException
+	{
+		ProcessBuilder builder = new ProcessBuilder(command);
+		Map<String, String> environment = builder.environment();
+		environment.put("OGT_ALERT_RULE", alert.getRule().toString());
+		environment.put("OGT_ALERT_TIME", Long.toString(alert.getReading().getTime()));
+		environment.put("OGT_ALERT_VALUE", Double.toString(alert.getValue()));
+		environment.put("OGT_ALERT_MESSAGE", alert.getMessage());
+		builder.inheritIO();
+		try
+		{
+			builder.start();
+		}
+		catch (IOException e)
+		{
+			throw new IOException("Could not run alarm command " + command + ": " + e.getMessage(), e);
+		}
+	}
+}
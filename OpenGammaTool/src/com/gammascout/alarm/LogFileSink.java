@@ -0,0 +1,83 @@
+/*******************************************************************************
+ *  
+ * Copyright (c) 2009, 2019 Erik Berglund.
+ *    
+ *       This file is part of Conserve.
+ *   
+ *       Conserve is free software: you can redistribute it and/or modify
+ *       it under the terms of the GNU Affero General Public License as published by
+ *       the Free Software Foundation, either version 3 of the License, or
+ *       (at your option) any later version.
+ *   
+ *       Conserve is distributed in the hope that it will be useful,
+ *       but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *       MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *       GNU Affero General Public License for more details.
+ *   
+ *       You should have received a copy of the GNU Affero General Public License
+ *       along with Conserve.  If not, see <https://www.gnu.org/licenses/agpl.html>.
+ *       
+ *******************************************************************************/
+package com.gammascout.alarm;
+
+import java.io.File;
+import java.io.FileWriter;
+import java.io.IOException;
+import java.io.Writer;
+import java.util.Date;
+
+import com.gammascout.usb.Tools;
+
+/**
+ * Appends each alert to a text file, one line per alert: the time it was
+ * raised and its message. The file is opened for each alert, so it can be
+ * moved or deleted between alerts.
+ * 
+ * @author Erik Berglund
+ * 
+ */
+public class LogFileSink implements AlertSink
+{
+	private final File file;
+
+	/**
+	 * Create a sink that appends to the file. The directory is created if it
+	 * does not exist.
+	 * 
+	 * @param file
+	 */
+	public LogFileSink(File file)
+	{
+		this.file = file;
+	}
+
+	/**
+	 * Get the file the alerts are appended to.
+	 * 
+	 * @return
+	 */
+	public File getFile()
+	{
+		return file;
+	}
+
+	@Override
+	public synchronized void alert(Alert alert) throws IOException
+	{
+		String raised = Tools.createDateFormat().format(new Date(alert.getRaisedAt()));
+		File directory = file.getAbsoluteFile().getParentFile();
+		if (directory != null)
+		{
+			directory.mkdirs();
+		}
+		Writer out = new FileWriter(file, true);
+		try
+		{
+			out.write(raised + " ALERT " + alert.getMessage() + System.lineSeparator());
+		}
+		finally
+		{
+			out.close();
+		}
+	}
+}
@@ -0,0 +1,192 @@
+/*******************************************************************************
+ *  
+ * Copyright (c) 2009, 2019 Erik Berglund.
+ *    
+ *       This file is part of Conserve.
+ *   
+ *       Conserve is free software: you can redistribute it and/or modify
+ *       it under the terms of the GNU Affero General Public License as published by
+ *       the Free Software Foundation, either version 3 of the License, or
+ *       (at your option) any later version.
+ *   
+ *       Conserve is distributed in the hope that it will be useful,
+ *       but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *       MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *       GNU Affero General Public License for more details.
+ *   
+ *       You should have received a copy of the GNU Affero General Public License
+ *       along with Conserve.  If not, see <https://www.gnu.org/licenses/agpl.html>.
+ *       
+ *******************************************************************************/
+package com.gammascout.chart;
+
+import java.util.List;
+
+import org.jfree.chart.ChartFactory;
+import org.jfree.chart.JFreeChart;
+import org.jfree.chart.axis.DateAxis;
+import org.jfree.chart.axis.LogAxis;
+import org.jfree.chart.axis.NumberAxis;
+import org.jfree.chart.axis.ValueAxis;
+import org.jfree.chart.plot.SeriesRenderingOrder;
+import org.jfree.chart.title.LegendTitle;
+import org.jfree.chart.plot.XYPlot;
+import org.jfree.data.xy.XYDataset;
+
+import com.gammascout.usb.Smoothing;
+import com.gammascout.usb.Tools;
+
+/**
+ * Creates and configures the chart of measured data. Used both by the main
+ * window and by headless exports, so that both draw the same chart.
+ * 
+ * @author Erik Berglund
+ * 
+ */
+public class Charts
+{
+	public static final String TITLE = "Gamma Scout measured data";
+
+	/**
+	 * Create a time series chart of the dataset, with the time axis in UTC,
+	 * drawn by a {@link FastXYRenderer}. The legend is only shown while there
+	 * is more than one series, and the overlays are drawn over the readings.
+	 * 
+	 * @param dataset
+	 * @return
+	 */
+	public static JFreeChart createChart(XYDataset dataset)
+	{
+		JFreeChart chart = ChartFactory.createTimeSeriesChart(TITLE, "time", "value", dataset, true, true, false);
+		chart.getLegend().setVisible(dataset.getSeriesCount() > 1);
+		chart.getXYPlot().setRenderer(new FastXYRenderer());
+		chart.getXYPlot().setSeriesRenderingOrder(SeriesRenderingOrder.FORWARD);
+		chart.getXYPlot().setRangePannable(true);
+		chart.getXYPlot().setDomainPannable(true);
+		DateAxis dateAxis = (DateAxis) chart.getXYPlot().getDomainAxis();
+		dateAxis.setTimeZone(Tools.UTC_TIMEZONE);
+		return chart;
+	}
+
+	/**
+	 * Copy a chart, to be drawn on another thread than the original. The
+	 * clone of a chart shares the items of its legend with the original, and
+	 * drawing lays them out, so the copy gets a legend of its own that shows
+	 * the series of its own plot.
+	 * 
+	 * @param chart
+	 * @return
+	 * @throws CloneNotSupportedException
+	 */
+	public static JFreeChart copy(JFreeChart chart) throws CloneNotSupportedException
+	{
+		JFreeChart copy = (JFreeChart) chart.clone();
+		LegendTitle legend = copy.getLegend();
+		if (legend != null)
+		{
+			LegendTitle own = new LegendTitle(copy.getPlot());
+			own.setPosition(legend.getPosition());
+			own.setHorizontalAlignment(legend.getHorizontalAlignment());
+			own.setVerticalAlignment(legend.getVerticalAlignment());
+			own.setMargin(legend.getMargin());
+			own.setFrame(legend.getFrame());
+			own.setBackgroundPaint(legend.getBackgroundPaint());
+			own.setItemFont(legend.getItemFont());
+			own.setItemPaint(legend.getItemPaint());
+			own.setVisible(legend.isVisible());
+			copy.removeLegend();
+			copy.addLegend(own);
+		}
+		return copy;
+	}
+
+	/**
+	 * Let a downsampled dataset of the chart keep as much detail as an image
+	 * of the given width can show, instead of what the chart panel shows.
+	 * 
+	 * @param chart
+	 * @param width
+	 *            the width of the image in pixels.
+	 */
+	public static void setOutputWidth(JFreeChart chart, int width)
+	{
+		XYDataset dataset = chart.getXYPlot().getDataset();
+		if (dataset instanceof DownsampledXYDataset)
+		{
+			((DownsampledXYDataset) dataset).setColumns(width);
+		}
+	}
+
+	/**
+	 * Draw moving averages over the readings of a downsampled dataset of the
+	 * chart, with a legend if there are any.
+	 * 
+	 * @param chart
+	 * @param smoothings
+	 */
+	public static void setOverlays(JFreeChart chart, List<Smoothing> smoothings)
+	{
+		XYDataset dataset = chart.getXYPlot().getDataset();
+		if (dataset instanceof DownsampledXYDataset)
+		{
+			((DownsampledXYDataset) dataset).setOverlays(smoothings);
+			chart.getLegend().setVisible(dataset.getSeriesCount() > 1);
+			// the renderer picks the paint of a series when it is first
+			// drawn; pick them in series order now, so that copies of the
+			// chart drawn in tiles agree with the legend
+			for (int series = 0; series < dataset.getSeriesCount(); series++)
+			{
+				chart.getXYPlot().getRenderer().getItemPaint(series, 0);
+			}
+		}
+	}
+
+	/**
+	 * Replace the range axis of the plot with a linear or logarithmic axis
+	 * labelled with the given unit.
+	 * 
+	 * @param p
+	 * @param countsPerMinute
+	 *            true for counts per minute, false for micro Sieverts per
+	 *            hour.
+	 * @param linear
+	 *            true for a linear axis, false for a logarithmic axis.
+	 */
+	public static void configureRangeAxis(XYPlot p, boolean countsPerMinute, boolean linear)
+	{
+		p.setRangeAxis(createRangeAxis(countsPerMinute, linear));
+	}
+
+	/**
+	 * Create a linear or logarithmic range axis labelled with the given
+	 * unit.
+	 * 
+	 * @param countsPerMinute
+	 *            true for counts per minute, false for micro Sieverts per
+	 *            hour.
+	 * @param linear
+	 *            true for a linear axis, false for a logarithmic axis.
+	 * @return
+	 */
+	public static ValueAxis createRangeAxis(boolean countsPerMinute, boolean linear)
+	{
+		ValueAxis axis;
+		if (linear)
+		{
+			axis = new NumberAxis();
+		}
+		else
+		{
+			axis = new LogAxis();
+		}
+		String label = countsPerMinute ? "counts per minute" : "micro Sieverts per hour";
+		if (!linear)
+		{
+			label += " (log)";
+		}
+		axis.setLabel(label);
+		axis.setAutoRange(true);
+		axis.setMinorTickMarksVisible(true);
+		return axis;
+	}
+}
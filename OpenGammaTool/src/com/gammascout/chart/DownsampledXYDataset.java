@@ -0,0 +1,712 @@
+/*******************************************************************************
+ *  
+ * Copyright (c) 2009, 2019 Erik Berglund.
+ *    
+ *       This file is part of Conserve.
+ *   
+ *       Conserve is free software: you can redistribute it and/or modify
+ *       it under the terms of the GNU Affero General Public License as published by
+ *       the Free Software Foundation, either version 3 of the License, or
+ *       (at your option) any later version.
+ *   
+ *       Conserve is distributed in the hope that it will be useful,
+ *       but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *       MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *       GNU Affero General Public License for more details.
+ *   
+ *       You should have received a copy of the GNU Affero General Public License
+ *       along with Conserve.  If not, see <https://www.gnu.org/licenses/agpl.html>.
+ *       
+ *******************************************************************************/
+package com.gammascout.chart;
+
+import java.util.ArrayList;
+import java.util.List;
+
+import org.jfree.chart.axis.ValueAxis;
+import org.jfree.chart.event.AxisChangeEvent;
+import org.jfree.chart.event.AxisChangeListener;
+import org.jfree.data.DomainInfo;
+import org.jfree.data.Range;
+import org.jfree.data.xy.AbstractXYDataset;
+import org.jfree.data.xy.XYDomainInfo;
+
+import com.gammascout.usb.AggregatePyramid;
+import com.gammascout.usb.AggregatePyramid.Level;
+import com.gammascout.usb.Reading;
+import com.gammascout.usb.ReadingFilter;
+import com.gammascout.usb.ReadingStore;
+import com.gammascout.usb.ReadingView;
+import com.gammascout.usb.SmoothedSeries;
+import com.gammascout.usb.Smoothing;
+
+/**
+ * A dataset over a reading store that only shows as many points as can be
+ * seen: the readings, and moving averages of them as overlay series.
+ * <p>
+ * The dataset presents only the readings in the visible domain range, and if
+ * there are more of them than twice the number of pixel columns, only the
+ * lowest and highest reading of each column. This keeps the envelope of the
+ * data, so spikes are never lost, while the chart draws and hit-tests at most
+ * a few thousand points however large the log.
+ * <p>
+ * Views so wide that a minute or more is drawn in each pixel column take the
+ * envelope from the coarsest fitting level of the store's aggregate pyramid,
+ * so their cost depends on the number of columns rather than the number of
+ * readings.
+ * <p>
+ * The unit and the {@link ReadingFilter} are properties of the view; the
+ * readings are never copied, the filter only selects them through a
+ * {@link ReadingView}. Views filtered by more than saturation take the
+ * envelope from the readings, since the pyramid cannot tell them apart. The points are kept in counts per
+ * minute and converted as they are read, so changing the unit recomputes
+ * nothing. Call {@link #dataChanged()} after
+ * readings have been added to the store. Register the dataset as a listener
+ * on the domain axis, and it recomputes the visible points when the chart is
+ * zoomed or panned.
+ * <p>
+ * The overlays are {@link SmoothedSeries} of the store, which extend their
+ * running sums as readings arrive. Where the readings are shown one by one,
+ * so are the overlays, at the same readings; in wider views each overlay is
+ * drawn at the last reading of each pixel column, since an average changes
+ * little within a column, which costs a binary search per column. The
+ * overlays average all unsaturated readings and are only limited to the time
+ * range of the filter.
+ * 
+ * @author Erik Berglund
+ * 
+ */
+public class DownsampledXYDataset extends AbstractXYDataset implements AxisChangeListener, DomainInfo, XYDomainInfo
+{
+	private static final long serialVersionUID = 3471022563405361092L;
+	/**
+	 * The number of pixel columns used until the chart tells otherwise.
+	 */
+	public static final int DEFAULT_COLUMNS = 2000;
+	private static final String SERIES_KEY = "readings";
+
+	private ReadingStore store;
+	private volatile boolean countsPerMinute;
+	private ReadingFilter filter = ReadingFilter.ALL.withSaturated(false);
+	private int columns = DEFAULT_COLUMNS;
+	/**
+	 * The visible domain range, or NaN to show all readings.
+	 */
+	private double lower = Double.NaN;
+	private double upper = Double.NaN;
+	private List<SmoothedSeries> overlays = new ArrayList<>();
+	/**
+	 * The points currently presented by the dataset, the readings first and
+	 * then the overlays.
+	 */
+	private volatile Points[] view = { new Points(SERIES_KEY, new double[0], new double[0], 0) };
+
+	/**
+	 * The points of one series.
+	 */
+	private static class Points
+	{
+		private final String key;
+		private final double[] x;
+		private final double[] y;
+		private final int count;
+
+		Points(String key, double[] x, double[] y, int count)
+		{
+			this.key = key;
+			this.x = x;
+			this.y = y;
+			this.count = count;
+		}
+	}
+
+	/**
+	 * Create a dataset showing the un-saturated readings of the store in micro
+	 * Sieverts per hour.
+	 * 
+	 * @param store
+	 */
+	public DownsampledXYDataset(ReadingStore store)
+	{
+		this.store = store;
+		updateView();
+	}
+
+	/**
+	 * Get the store the dataset shows.
+	 * 
+	 * @return
+	 */
+	public ReadingStore getStore()
+	{
+		return store;
+	}
+
+	/**
+	 * Choose what to show. Changing only the unit is immediate, since the
+	 * points do not depend on it.
+	 * 
+	 * @param countsPerMinute
+	 *            true for counts per minute, false for micro Sieverts per
+	 *            hour.
+	 * @param includeSaturated
+	 *            true to show saturated readings.
+	 */
+	public void setUnit(boolean countsPerMinute, boolean includeSaturated)
+	{
+		synchronized (this)
+		{
+			if (countsPerMinute == this.countsPerMinute && includeSaturated == filter.isIncludeSaturated())
+			{
+				return;
+			}
+			this.countsPerMinute = countsPerMinute;
+			if (includeSaturated != filter.isIncludeSaturated())
+			{
+				filter = filter.withSaturated(includeSaturated);
+				updateView();
+			}
+		}
+		fireDatasetChanged();
+	}
+
+	/**
+	 * Choose which readings to show.
+	 * 
+	 * @param filter
+	 */
+	public void setFilter(ReadingFilter filter)
+	{
+		synchronized (this)
+		{
+			if (filter.equals(this.filter))
+			{
+				return;
+			}
+			this.filter = filter;
+			updateView();
+		}
+		fireDatasetChanged();
+	}
+
+	/**
+	 * Get the filter of the readings shown.
+	 * 
+	 * @return
+	 */
+	public synchronized ReadingFilter getFilter()
+	{
+		return filter;
+	}
+
+	/**
+	 * Choose the moving averages drawn over the readings.
+	 * 
+	 * @param smoothings
+	 */
+	public void setOverlays(List<Smoothing> smoothings)
+	{
+		synchronized (this)
+		{
+			if (smoothings.equals(getOverlays()))
+			{
+				return;
+			}
+			for (SmoothedSeries series : overlays)
+			{
+				store.removeSmoothedSeries(series);
+			}
+			overlays.clear();
+			for (Smoothing smoothing : smoothings)
+			{
+				overlays.add(store.addSmoothedSeries(smoothing));
+			}
+			updateView();
+		}
+		fireDatasetChanged();
+	}
+
+	/**
+	 * Get the moving averages drawn over the readings.
+	 * 
+	 * @return
+	 */
+	public synchronized List<Smoothing> getOverlays()
+	{
+		List<Smoothing> result = new ArrayList<>();
+		for (SmoothedSeries series : overlays)
+		{
+			result.add(series.getSmoothing());
+		}
+		return result;
+	}
+
+	/**
+	 * Recompute the visible points after readings have been added to or
+	 * removed from the store, and notify the chart once.
+	 */
+	public void dataChanged()
+	{
+		synchronized (this)
+		{
+			updateView();
+		}
+		fireDatasetChanged();
+	}
+
+	/**
+	 * Set the number of pixel columns the data is drawn in, usually the width
+	 * of the chart.
+	 * 
+	 * @param columns
+	 */
+	public void setColumns(int columns)
+	{
+		synchronized (this)
+		{
+			columns = Math.max(1, columns);
+			if (columns == this.columns)
+			{
+				return;
+			}
+			this.columns = columns;
+			updateView();
+		}
+		fireDatasetChanged();
+	}
+
+	/**
+	 * Get the number of pixel columns.
+	 * 
+	 * @return
+	 */
+	public int getColumns()
+	{
+		return columns;
+	}
+
+	/**
+	 * Show only the readings in the given domain range.
+	 * 
+	 * @param lower
+	 * @param upper
+	 */
+	public void setRange(double lower, double upper)
+	{
+		synchronized (this)
+		{
+			if (lower == this.lower && upper == this.upper)
+			{
+				return;
+			}
+			this.lower = lower;
+			this.upper = upper;
+			updateView();
+		}
+		fireDatasetChanged();
+	}
+
+	/**
+	 * Follow the range of the domain axis.
+	 * 
+	 * @see org.jfree.chart.event.AxisChangeListener#axisChanged(org.jfree.chart.event.AxisChangeEvent)
+	 */
+	@Override
+	public void axisChanged(AxisChangeEvent event)
+	{
+		if (event.getAxis() instanceof ValueAxis)
+		{
+			Range range = ((ValueAxis) event.getAxis()).getRange();
+			setRange(range.getLowerBound(), range.getUpperBound());
+		}
+	}
+
+	/**
+	 * Recompute the visible points. Must hold the lock.
+	 */
+	private void updateView()
+	{
+		synchronized (store)
+		{
+			int first = store.findIndex(filter.getFrom());
+			int last = store.findIndexAfter(filter.getTo()) - 1;
+			Points[] series = new Points[1 + overlays.size()];
+			if (first > last)
+			{
+				series[0] = new Points(SERIES_KEY, new double[0], new double[0], 0);
+				for (int k = 0; k < overlays.size(); k++)
+				{
+					series[k + 1] = new Points(overlays.get(k).getSmoothing().getLabel(), new double[0], new double[0], 0);
+				}
+				view = series;
+				return;
+			}
+			double from = Double.isNaN(lower) ? store.getTime(first) : lower;
+			double to = Double.isNaN(upper) ? store.getTime(last) : upper;
+			// include one reading on each side of the range, so that the line
+			// runs to the edges of the chart
+			int start = Math.max(0, store.findIndex((long) Math.ceil(from)) - 1);
+			int end = Math.max(start, Math.min(store.size(), store.findIndexAfter((long) Math.floor(to)) + 1));
+			// only the shown readings are filtered, so a refresh during a
+			// download costs the size of the view rather than of the store
+			ReadingView selected = null;
+			boolean sliced = end - start <= 2 * columns || to <= from;
+			if (sliced)
+			{
+				selected = store.filter(filter, start, end);
+				series[0] = sliceView(selected, start, end);
+			}
+			else
+			{
+				// the buckets only know which readings are saturated, and a
+				// snapshot of the store has no pyramid
+				Level level = store.getPyramid() == null || !filter.isSaturationOnly() ? null : AggregatePyramid
+						.chooseLevel((to - from) / columns);
+				if (level != null)
+				{
+					series[0] = aggregateView(store.getPyramid(), level, from, to);
+				}
+				else
+				{
+					selected = store.filter(filter, start, end);
+					series[0] = envelopeView(selected, start, end, from, to);
+				}
+			}
+			for (int k = 0; k < overlays.size(); k++)
+			{
+				SmoothedSeries overlay = overlays.get(k);
+				if (sliced)
+				{
+					series[k + 1] = sliceOverlay(overlay, selected, start, end);
+				}
+				else
+				{
+					series[k + 1] = sampledOverlay(overlay, Math.max(start, first), Math.min(end, last + 1), from, to);
+				}
+			}
+			view = series;
+		}
+	}
+
+	/**
+	 * Present the selected readings between start and end.
+	 */
+	private Points sliceView(ReadingView selected, int start, int end)
+	{
+		int count = selected.count(start, end);
+		double[] vx = new double[count];
+		double[] vy = new double[count];
+		int n = 0;
+		for (int i = selected.nextIndex(start); i >= 0 && i < end; i = selected.nextIndex(i + 1))
+		{
+			vx[n] = store.getTime(i);
+			vy[n++] = value(i);
+		}
+		return new Points(SERIES_KEY, vx, vy, n);
+	}
+
+	/**
+	 * Present the lowest and highest selected reading of each column between
+	 * start and end.
+	 */
+	private Points envelopeView(ReadingView selected, int start, int end, double from, double to)
+	{
+		double[] vx = new double[2 * columns + 2];
+		double[] vy = new double[2 * columns + 2];
+		int n = 0;
+		double columnWidth = (to - from) / columns;
+		int i = selected.nextIndex(start);
+		while (i >= 0 && i < end)
+		{
+			int column = column(store.getTime(i), from, columnWidth);
+			int min = i;
+			int max = i;
+			i = selected.nextIndex(i + 1);
+			while (i >= 0 && i < end && column(store.getTime(i), from, columnWidth) == column)
+			{
+				if (value(i) < value(min))
+				{
+					min = i;
+				}
+				if (value(i) > value(max))
+				{
+					max = i;
+				}
+				i = selected.nextIndex(i + 1);
+			}
+			// keep the two points in time order
+			int first = Math.min(min, max);
+			int second = Math.max(min, max);
+			vx[n] = store.getTime(first);
+			vy[n++] = value(first);
+			if (second != first)
+			{
+				vx[n] = store.getTime(second);
+				vy[n++] = value(second);
+			}
+		}
+		return new Points(SERIES_KEY, vx, vy, n);
+	}
+
+	/**
+	 * Present the envelope of the visible range from the buckets of the
+	 * level. Each bucket is drawn at its middle.
+	 */
+	private Points aggregateView(AggregatePyramid pyramid, Level level, double from, double to)
+	{
+		double[] vx = new double[2 * columns + 2];
+		double[] vy = new double[2 * columns + 2];
+		int n = 0;
+		double columnWidth = (to - from) / columns;
+		double halfBucket = level.getMillis() / 2.0;
+		synchronized (pyramid)
+		{
+			// include one bucket on each side of the range
+			int start = Math.max(0, pyramid.findBucket(level, (long) Math.floor(from - halfBucket)) - 1);
+			int end = Math.min(pyramid.getBucketCount(level), pyramid.findBucket(level, (long) Math.floor(to - halfBucket) + 1) + 1);
+			int i = start;
+			while (i < end)
+			{
+				int column = column(pyramid.getBucketStart(level, i) + halfBucket, from, columnWidth);
+				int minBucket = -1;
+				int maxBucket = -1;
+				double min = Double.NaN;
+				double max = Double.NaN;
+				while (i < end && column(pyramid.getBucketStart(level, i) + halfBucket, from, columnWidth) == column)
+				{
+					double low = pyramid.getMinCpm(level, i, filter.isIncludeSaturated());
+					double high = pyramid.getMaxCpm(level, i, filter.isIncludeSaturated());
+					if (!Double.isNaN(low))
+					{
+						if (minBucket < 0 || low < min)
+						{
+							min = low;
+							minBucket = i;
+						}
+						if (maxBucket < 0 || high > max)
+						{
+							max = high;
+							maxBucket = i;
+						}
+					}
+					i++;
+				}
+				if (minBucket < 0)
+				{
+					// only saturated readings in this column
+					continue;
+				}
+				// keep the two points in time order
+				boolean minFirst = minBucket <= maxBucket;
+				vx[n] = pyramid.getBucketStart(level, minFirst ? minBucket : maxBucket) + halfBucket;
+				vy[n++] = minFirst ? min : max;
+				if (min != max)
+				{
+					vx[n] = pyramid.getBucketStart(level, minFirst ? maxBucket : minBucket) + halfBucket;
+					vy[n++] = minFirst ? max : min;
+				}
+			}
+		}
+		return new Points(SERIES_KEY, vx, vy, n);
+	}
+
+	/**
+	 * Present the overlay at the selected readings between start and end.
+	 */
+	private Points sliceOverlay(SmoothedSeries overlay, ReadingView selected, int start, int end)
+	{
+		int count = selected.count(start, end);
+		double[] vx = new double[count];
+		double[] vy = new double[count];
+		int n = 0;
+		for (int i = selected.nextIndex(start); i >= 0 && i < end; i = selected.nextIndex(i + 1))
+		{
+			double cpm = overlay.getCountsPerMinute(i);
+			// saturated readings have no average, the line runs past them
+			if (!Double.isNaN(cpm))
+			{
+				vx[n] = store.getTime(i);
+				vy[n++] = cpm;
+			}
+		}
+		return new Points(overlay.getSmoothing().getLabel(), vx, vy, n);
+	}
+
+	/**
+	 * Present the overlay at the last reading before each column boundary
+	 * between from and to, and at the last reading before end, taking the
+	 * readings between start and end.
+	 */
+	private Points sampledOverlay(SmoothedSeries overlay, int start, int end, double from, double to)
+	{
+		double[] vx = new double[columns + 2];
+		double[] vy = new double[columns + 2];
+		int n = 0;
+		double columnWidth = (to - from) / columns;
+		int previous = -1;
+		for (int k = 0; k <= columns + 1; k++)
+		{
+			int i = k <= columns ? store.findIndexAfter((long) Math.floor(from + k * columnWidth)) - 1 : end - 1;
+			i = Math.max(start, Math.min(end - 1, i));
+			if (i == previous)
+			{
+				continue;
+			}
+			previous = i;
+			double cpm = overlay.getCountsPerMinute(i);
+			if (!Double.isNaN(cpm))
+			{
+				vx[n] = store.getTime(i);
+				vy[n++] = cpm;
+			}
+		}
+		return new Points(overlay.getSmoothing().getLabel(), vx, vy, n);
+	}
+
+	/**
+	 * Copy the dataset for an export, showing a snapshot of the store.
+	 * 
+	 * @see #copy(ReadingStore)
+	 * @see org.jfree.data.general.AbstractDataset#clone()
+	 */
+	@Override
+	public Object clone() throws CloneNotSupportedException
+	{
+		synchronized (this)
+		{
+			return copy(store.copy());
+		}
+	}
+
+	/**
+	 * Copy the dataset for an export, showing a snapshot of the store, e.g.
+	 * one made by {@link ReadingStore#copy()} for the other files of the
+	 * export. The copy shows the readings of the snapshot whatever happens
+	 * to the store, so it can recompute its points for another width while
+	 * the store is cleared or a download goes on. It draws the same overlays,
+	 * computed from the snapshot.
+	 * 
+	 * @param snapshot
+	 *            a copy of the store that is not changed.
+	 * @return
+	 * @throws CloneNotSupportedException
+	 */
+	public synchronized DownsampledXYDataset copy(ReadingStore snapshot) throws CloneNotSupportedException
+	{
+		DownsampledXYDataset copy = (DownsampledXYDataset) super.clone();
+		copy.store = snapshot;
+		copy.overlays = new ArrayList<>();
+		for (SmoothedSeries series : overlays)
+		{
+			copy.overlays.add(snapshot.addSmoothedSeries(series.getSmoothing()));
+		}
+		return copy;
+	}
+
+	/**
+	 * Get the value of a reading in counts per minute.
+	 */
+	private double value(int index)
+	{
+		return store.getCountsPerMinute(index);
+	}
+
+	private int column(double x, double from, double columnWidth)
+	{
+		return Math.max(0, Math.min(columns - 1, (int) ((x - from) / columnWidth)));
+	}
+
+	@Override
+	public int getSeriesCount()
+	{
+		return view.length;
+	}
+
+	@Override
+	@SuppressWarnings("rawtypes")
+	public Comparable getSeriesKey(int series)
+	{
+		return view[series].key;
+	}
+
+	@Override
+	public int getItemCount(int series)
+	{
+		return view[series].count;
+	}
+
+	@Override
+	public Number getX(int series, int item)
+	{
+		return getXValue(series, item);
+	}
+
+	@Override
+	public Number getY(int series, int item)
+	{
+		return getYValue(series, item);
+	}
+
+	@Override
+	public double getXValue(int series, int item)
+	{
+		return view[series].x[item];
+	}
+
+	@Override
+	public double getYValue(int series, int item)
+	{
+		double cpm = view[series].y[item];
+		return countsPerMinute ? cpm : Reading.toMicroSievertsPerHour(cpm);
+	}
+
+	/**
+	 * The bounds of all readings in the time range of the filter, not only
+	 * the visible points, so that the chart can zoom out to show everything.
+	 * 
+	 * @see org.jfree.data.DomainInfo#getDomainBounds(boolean)
+	 */
+	@Override
+	public Range getDomainBounds(boolean includeInterval)
+	{
+		ReadingFilter f = getFilter();
+		synchronized (store)
+		{
+			int first = store.findIndex(f.getFrom());
+			int last = store.findIndexAfter(f.getTo()) - 1;
+			if (first > last)
+			{
+				return null;
+			}
+			return new Range(store.getTime(first), store.getTime(last));
+		}
+	}
+
+	/**
+	 * The chart asks for the bounds of the visible series this way. The
+	 * overlays have the bounds of the readings.
+	 * 
+	 * @see org.jfree.data.xy.XYDomainInfo#getDomainBounds(java.util.List,
+	 *      boolean)
+	 */
+	@Override
+	@SuppressWarnings("rawtypes")
+	public Range getDomainBounds(List visibleSeriesKeys, boolean includeInterval)
+	{
+		return getDomainBounds(includeInterval);
+	}
+
+	@Override
+	public double getDomainLowerBound(boolean includeInterval)
+	{
+		Range bounds = getDomainBounds(includeInterval);
+		return bounds == null ? Double.NaN : bounds.getLowerBound();
+	}
+
+	@Override
+	public double getDomainUpperBound(boolean includeInterval)
+	{
+		Range bounds = getDomainBounds(includeInterval);
+		return bounds == null ? Double.NaN : bounds.getUpperBound();
+	}
+}
@@ -0,0 +1,147 @@
+/*******************************************************************************
+ *  
+ * Copyright (c) 2009, 2019 Erik Berglund.
+ *    
+ *       This file is part of Conserve.
+ *   
+ *       Conserve is free software: you can redistribute it and/or modify
+ *       it under the terms of the GNU Affero General Public License as published by
+ *       the Free Software Foundation, either version 3 of the License, or
+ *       (at your option) any later version.
+ *   
+ *       Conserve is distributed in the hope that it will be useful,
+ *       but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *       MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *       GNU Affero General Public License for more details.
+ *   
+ *       You should have received a copy of the GNU Affero General Public License
+ *       along with Conserve.  If not, see <https://www.gnu.org/licenses/agpl.html>.
+ *       
+ *******************************************************************************/
+package com.gammascout.chart;
+
+import java.awt.event.MouseEvent;
+import java.awt.geom.Rectangle2D;
+
+import org.jfree.chart.ChartPanel;
+import org.jfree.chart.JFreeChart;
+import org.jfree.chart.axis.ValueAxis;
+import org.jfree.chart.labels.XYToolTipGenerator;
+import org.jfree.chart.plot.XYPlot;
+import org.jfree.chart.renderer.xy.XYItemRenderer;
+import org.jfree.data.xy.XYDataset;
+
+/**
+ * A chart panel for time series charts with many points. It does not collect
+ * an entity for each drawn point; tooltips instead find the point nearest to
+ * the mouse by binary search over the time values of the dataset, and format
+ * the tooltip only for that point.
+ * <p>
+ * The chart must be an XYPlot with vertical orientation whose first series
+ * is sorted by x, as for charts made by {@link Charts}.
+ * 
+ * @author Erik Berglund
+ * 
+ */
+public class FastChartPanel extends ChartPanel
+{
+	private static final long serialVersionUID = 5209183526474151703L;
+	/**
+	 * The furthest a point may be from the mouse to get a tooltip, in pixels.
+	 */
+	private static final int MAX_DISTANCE = 8;
+
+	/**
+	 * Create a panel without entity collection.
+	 * 
+	 * @param chart
+	 */
+	public FastChartPanel(JFreeChart chart)
+	{
+		super(chart);
+		getChartRenderingInfo().setEntityCollection(null);
+	}
+
+	/**
+	 * Use the tooltip generator of the renderer for the nearest point.
+	 * 
+	 * @see org.jfree.chart.ChartPanel#getToolTipText(java.awt.event.MouseEvent)
+	 */
+	@Override
+	public String getToolTipText(MouseEvent e)
+	{
+		int item = findNearestItem(e.getX(), e.getY());
+		if (item < 0)
+		{
+			return null;
+		}
+		XYPlot plot = getChart().getXYPlot();
+		XYItemRenderer renderer = plot.getRenderer();
+		XYToolTipGenerator generator = renderer == null ? null : renderer.getToolTipGenerator(0, item);
+		if (generator == null)
+		{
+			return null;
+		}
+		return generator.generateToolTip(plot.getDataset(), 0, item);
+	}
+
+	/**
+	 * Find the item of the first series that is drawn nearest to a point on
+	 * the panel.
+	 * 
+	 * @param screenX
+	 * @param screenY
+	 * @return the item, or -1 if no item is drawn near the point.
+	 */
+	public int findNearestItem(int screenX, int screenY)
+	{
+		Rectangle2D dataArea = getScreenDataArea();
+		XYPlot plot = getChart().getXYPlot();
+		XYDataset dataset = plot.getDataset();
+		if (!dataArea.contains(screenX, screenY) || dataset == null || dataset.getSeriesCount() == 0)
+		{
+			return -1;
+		}
+		ValueAxis domainAxis = plot.getDomainAxis();
+		ValueAxis rangeAxis = plot.getRangeAxis();
+		int count = dataset.getItemCount(0);
+		double time = domainAxis.java2DToValue(screenX, dataArea, plot.getDomainAxisEdge());
+		// find the first item at or after the time
+		int low = 0;
+		int high = count;
+		while (low < high)
+		{
+			int middle = (low + high) >>> 1;
+			if (dataset.getXValue(0, middle) < time)
+			{
+				low = middle + 1;
+			}
+			else
+			{
+				high = middle;
+			}
+		}
+		// check the items within reach on both sides
+		int result = -1;
+		double best = MAX_DISTANCE * MAX_DISTANCE;
+		for (int step = -1; step <= 1; step += 2)
+		{
+			for (int i = step > 0 ? low : low - 1; i >= 0 && i < count; i += step)
+			{
+				double dx = domainAxis.valueToJava2D(dataset.getXValue(0, i), dataArea, plot.getDomainAxisEdge()) - screenX;
+				if (Math.abs(dx) > MAX_DISTANCE)
+				{
+					break;
+				}
+				double dy = rangeAxis.valueToJava2D(dataset.getYValue(0, i), dataArea, plot.getRangeAxisEdge()) - screenY;
+				double distance = dx * dx + dy * dy;
+				if (distance <= best)
+				{
+					best = distance;
+					result = i;
+				}
+			}
+		}
+		return result;
+	}
+}
@@ -0,0 +1,260 @@
+/*******************************************************************************
+ *  
+ * Copyright (c) 2009, 2019 Erik Berglund.
+ *    
+ *       This file is part of Conserve.
+ *   
+ *       Conserve is free software: you can redistribute it and/or modify
+ *       it under the terms of the GNU Affero General Public License as published by
+ *       the Free Software Foundation, either version 3 of the License, or
+ *       (at your option) any later version.
+ *   
+ *       Conserve is distributed in the hope that it will be useful,
+ *       but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *       MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *       GNU Affero General Public License for more details.
+ *   
+ *       You should have received a copy of the GNU Affero General Public License
+ *       along with Conserve.  If not, see <https://www.gnu.org/licenses/agpl.html>.
+ *       
+ *******************************************************************************/
+package com.gammascout.chart;
+
+import java.awt.Graphics2D;
+import java.awt.geom.AffineTransform;
+import java.awt.geom.GeneralPath;
+import java.awt.geom.Rectangle2D;
+
+import org.jfree.chart.axis.ValueAxis;
+import org.jfree.chart.entity.EntityCollection;
+import org.jfree.chart.plot.CrosshairState;
+import org.jfree.chart.plot.PlotOrientation;
+import org.jfree.chart.plot.PlotRenderingInfo;
+import org.jfree.chart.plot.XYPlot;
+import org.jfree.chart.renderer.xy.AbstractXYItemRenderer;
+import org.jfree.chart.renderer.xy.XYItemRendererState;
+import org.jfree.data.xy.XYDataset;
+import org.jfree.ui.RectangleEdge;
+import org.jfree.util.PublicCloneable;
+
+/**
+ * A line renderer for dense series. Instead of drawing every segment as a
+ * separate line, it draws each series as a few long paths with at most four
+ * points per pixel column: where the line enters the column, its lowest and highest
+ * point in the column, and where it leaves. The result looks the same as
+ * drawing every segment, and no objects are created per item unless the
+ * chart collects entities.
+ * <p>
+ * Works for both on-screen and off-screen rendering, including vector
+ * formats, since it only draws through Graphics2D.
+ * 
+ * @author Erik Berglund
+ * 
+ */
+public class FastXYRenderer extends AbstractXYItemRenderer implements PublicCloneable
+{
+	private static final long serialVersionUID = -6415530867474618104L;
+
+	/**
+	 * Draw the whole series when called for its first visible item, and do
+	 * nothing for the other items.
+	 * 
+	 * @see org.jfree.chart.renderer.xy.XYItemRenderer#drawItem(java.awt.Graphics2D,
+	 *      org.jfree.chart.renderer.xy.XYItemRendererState,
+	 *      java.awt.geom.Rectangle2D, org.jfree.chart.plot.PlotRenderingInfo,
+	 *      org.jfree.chart.plot.XYPlot, org.jfree.chart.axis.ValueAxis,
+	 *      org.jfree.chart.axis.ValueAxis, org.jfree.data.xy.XYDataset, int,
+	 *      int, org.jfree.chart.plot.CrosshairState, int)
+	 */
+	@Override
+	public void drawItem(Graphics2D g2, XYItemRendererState state, Rectangle2D dataArea, PlotRenderingInfo info, XYPlot plot,
+			ValueAxis domainAxis, ValueAxis rangeAxis, XYDataset dataset, int series, int item, CrosshairState crosshairState, int pass)
+	{
+		if (item != state.getFirstItemIndex() || !isSeriesVisible(series))
+		{
+			return;
+		}
+		int last = state.getLastItemIndex();
+		RectangleEdge xEdge = plot.getDomainAxisEdge();
+		RectangleEdge yEdge = plot.getRangeAxisEdge();
+		PlotOrientation orientation = plot.getOrientation();
+		boolean horizontal = orientation == PlotOrientation.HORIZONTAL;
+		EntityCollection entities = null;
+		if (info != null && info.getOwner() != null)
+		{
+			entities = info.getOwner().getEntityCollection();
+		}
+		int domainAxisIndex = plot.getDomainAxisIndex(domainAxis);
+		int rangeAxisIndex = plot.getRangeAxisIndex(rangeAxis);
+		// device pixels per unit, more than one when drawing a scaled up,
+		// high resolution image
+		AffineTransform transform = g2.getTransform();
+		double pixelsPerUnit = Math.max(1, Math.abs(horizontal ? transform.getScaleY() : transform.getScaleX()));
+
+		// at most four points per pixel column: where the line enters the
+		// column, its lowest and highest point, and where it leaves
+		g2.setPaint(getItemPaint(series, item));
+		g2.setStroke(getItemStroke(series, item));
+		Polyline path = new Polyline(g2, horizontal);
+		boolean penUp = true;
+		int column = Integer.MIN_VALUE;
+		int columnPoints = 0;
+		double columnX = 0;
+		double columnMin = 0;
+		double columnMax = 0;
+		double columnLast = 0;
+		for (int i = item; i <= last; i++)
+		{
+			double x = dataset.getXValue(series, i);
+			double y = dataset.getYValue(series, i);
+			if (Double.isNaN(x) || Double.isNaN(y))
+			{
+				// gap in the data
+				if (!penUp)
+				{
+					flushColumn(path, columnPoints, columnX, columnMin, columnMax, columnLast);
+				}
+				penUp = true;
+				continue;
+			}
+			double transX = domainAxis.valueToJava2D(x, dataArea, xEdge);
+			double transY = rangeAxis.valueToJava2D(y, dataArea, yEdge);
+			int pixel = (int) Math.floor(transX * pixelsPerUnit);
+			if (!penUp && pixel == column)
+			{
+				columnPoints++;
+				columnMin = Math.min(columnMin, transY);
+				columnMax = Math.max(columnMax, transY);
+				columnLast = transY;
+			}
+			else
+			{
+				if (penUp)
+				{
+					path.moveTo(transX, transY);
+					penUp = false;
+				}
+				else
+				{
+					flushColumn(path, columnPoints, columnX, columnMin, columnMax, columnLast);
+					path.lineTo(transX, transY);
+				}
+				column = pixel;
+				columnPoints = 1;
+				// the middle of the pixel, so that neighbouring columns never
+				// end up on the same pixel
+				columnX = (pixel + 0.5) / pixelsPerUnit;
+				columnMin = transY;
+				columnMax = transY;
+				columnLast = transY;
+			}
+			if (entities != null)
+			{
+				addEntity(entities, null, dataset, series, i, horizontal ? transY : transX, horizontal ? transX : transY);
+			}
+			if (crosshairState != null)
+			{
+				updateCrosshairValues(crosshairState, x, y, domainAxisIndex, rangeAxisIndex, transX, transY, orientation);
+			}
+		}
+		if (!penUp)
+		{
+			flushColumn(path, columnPoints, columnX, columnMin, columnMax, columnLast);
+		}
+		path.draw();
+	}
+
+	/**
+	 * Draw the rest of a pixel column that more than one point fell in.
+	 */
+	private static void flushColumn(Polyline path, int points, double x, double min, double max, double last)
+	{
+		if (points > 1)
+		{
+			path.lineTo(x, min);
+			path.lineTo(x, max);
+			path.lineTo(x, last);
+		}
+	}
+
+	/**
+	 * Draws a line through points given in series coordinates, as paths of
+	 * at most {@link #MAX_SEGMENTS} segments. Vector graphics back ends may
+	 * compute the intersection of each path with the clip, which takes time
+	 * that grows much faster than the number of segments for a line that
+	 * crosses itself as often as an envelope of noisy readings does.
+	 */
+	private static class Polyline
+	{
+		private static final int MAX_SEGMENTS = 256;
+
+		private final Graphics2D g2;
+		private final boolean horizontal;
+		private GeneralPath path = new GeneralPath(GeneralPath.WIND_NON_ZERO, MAX_SEGMENTS + 1);
+		private int segments;
+		private double lastX;
+		private double lastY;
+
+		Polyline(Graphics2D g2, boolean horizontal)
+		{
+			this.g2 = g2;
+			this.horizontal = horizontal;
+		}
+
+		void moveTo(double transX, double transY)
+		{
+			if (horizontal)
+			{
+				path.moveTo(transY, transX);
+			}
+			else
+			{
+				path.moveTo(transX, transY);
+			}
+			lastX = transX;
+			lastY = transY;
+		}
+
+		void lineTo(double transX, double transY)
+		{
+			if (horizontal)
+			{
+				path.lineTo(transY, transX);
+			}
+			else
+			{
+				path.lineTo(transX, transY);
+			}
+			lastX = transX;
+			lastY = transY;
+			if (++segments == MAX_SEGMENTS)
+			{
+				// continue in a new path from the same point
+				draw();
+				moveTo(lastX, lastY);
+			}
+		}
+
+		/**
+		 * Draw the points added since the last draw.
+		 */
+		void draw()
+		{
+			if (segments > 0)
+			{
+				g2.draw(path);
+			}
+			path = new GeneralPath(GeneralPath.WIND_NON_ZERO, MAX_SEGMENTS + 1);
+			segments = 0;
+		}
+	}
+
+	/**
+	 * @see org.jfree.chart.renderer.AbstractRenderer#clone()
+	 */
+	@Override
+	public Object clone() throws CloneNotSupportedException
+	{
+		return super.clone();
+	}
+}
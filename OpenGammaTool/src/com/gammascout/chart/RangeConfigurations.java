@@ -0,0 +1,103 @@
+/*******************************************************************************
+ *  
+ * Copyright (c) 2009, 2019 Erik Berglund.
+ *    
+ *       This file is part of Conserve.
+ *   
+ *       Conserve is free software: you can redistribute it and/or modify
+ *       it under the terms of the GNU Affero General Public License as published by
+ *       the Free Software Foundation, either version 3 of the License, or
+ *       (at your option) any later version.
+ *   
+ *       Conserve is distributed in the hope that it will be useful,
+ *       but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *       MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *       GNU Affero General Public License for more details.
+ *   
+ *       You should have received a copy of the GNU Affero General Public License
+ *       along with Conserve.  If not, see <https://www.gnu.org/licenses/agpl.html>.
+ *       
+ *******************************************************************************/
+package com.gammascout.chart;
+
+import java.text.DateFormat;
+import java.text.NumberFormat;
+
+import org.jfree.chart.axis.ValueAxis;
+import org.jfree.chart.labels.StandardXYToolTipGenerator;
+import org.jfree.chart.labels.XYToolTipGenerator;
+import org.jfree.chart.plot.XYPlot;
+import org.jfree.chart.renderer.xy.XYItemRenderer;
+
+/**
+ * The range axes and tool tip generators for every combination of unit and
+ * scale, built once so that switching between them only swaps references.
+ * <p>
+ * Use together with {@link DownsampledXYDataset#setUnit(boolean, boolean)},
+ * which changes the unit without recomputing any points.
+ * 
+ * @author Erik Berglund
+ * 
+ */
+public class RangeConfigurations
+{
+	/**
+	 * Indexed by unit and scale, see {@link #index(boolean, boolean)}.
+	 */
+	private final ValueAxis[] axes = new ValueAxis[4];
+	private final XYToolTipGenerator countsPerMinuteToolTips;
+	private final XYToolTipGenerator microSievertsToolTips;
+
+	/**
+	 * Build the axes and tool tip generators.
+	 * 
+	 * @param dateFormat
+	 *            the format of the time in tool tips.
+	 */
+	public RangeConfigurations(DateFormat dateFormat)
+	{
+		for (int unit = 0; unit < 2; unit++)
+		{
+			for (int scale = 0; scale < 2; scale++)
+			{
+				axes[index(unit == 1, scale == 1)] = Charts.createRangeAxis(unit == 1, scale == 1);
+			}
+		}
+		countsPerMinuteToolTips = new StandardXYToolTipGenerator("<html><body>{1}:<br>{2} c/m</body></html>", dateFormat,
+				NumberFormat.getInstance());
+		microSievertsToolTips = new StandardXYToolTipGenerator("<html><body>{1}:<br>{2} &micro;Sv/h</body></html>", dateFormat,
+				NumberFormat.getInstance());
+	}
+
+	/**
+	 * Show the plot in the given unit and scale. The axis is set to fit the
+	 * data, as a new axis would.
+	 * 
+	 * @param p
+	 * @param countsPerMinute
+	 *            true for counts per minute, false for micro Sieverts per
+	 *            hour.
+	 * @param linear
+	 *            true for a linear axis, false for a logarithmic axis.
+	 */
+	public void apply(XYPlot p, boolean countsPerMinute, boolean linear)
+	{
+		ValueAxis axis = axes[index(countsPerMinute, linear)];
+		if (p.getRangeAxis() != axis)
+		{
+			axis.setAutoRange(true);
+			p.setRangeAxis(axis);
+		}
+		XYItemRenderer renderer = p.getRenderer();
+		XYToolTipGenerator toolTips = countsPerMinute ? countsPerMinuteToolTips : microSievertsToolTips;
+		if (renderer.getBaseToolTipGenerator() != toolTips)
+		{
+			renderer.setBaseToolTipGenerator(toolTips);
+		}
+	}
+
+	private static int index(boolean countsPerMinute, boolean linear)
+	{
+		return (countsPerMinute ? 2 : 0) + (linear ? 1 : 0);
+	}
+}
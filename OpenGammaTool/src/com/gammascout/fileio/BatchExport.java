@@ -0,0 +1,486 @@
+/*******************************************************************************
+ *  
+ * Copyright (c) 2009, 2019 Erik Berglund.
+ *    
+ *       This file is part of Conserve.
+ *   
+ *       Conserve is free software: you can redistribute it and/or modify
+ *       it under the terms of the GNU Affero General Public License as published by
+ *       the Free Software Foundation, either version 3 of the License, or
+ *       (at your option) any later version.
+ *   
+ *       Conserve is distributed in the hope that it will be useful,
+ *       but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *       MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *       GNU Affero General Public License for more details.
+ *   
+ *       You should have received a copy of the GNU Affero General Public License
+ *       along with Conserve.  If not, see <https://www.gnu.org/licenses/agpl.html>.
+ *       
+ *******************************************************************************/
+package com.gammascout.fileio;
+
+import java.awt.Component;
+import java.awt.GridLayout;
+import java.io.File;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CancellationException;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.FutureTask;
+
+import javax.swing.JCheckBox;
+import javax.swing.JOptionPane;
+import javax.swing.JPanel;
+
+import org.jfree.chart.JFreeChart;
+
+import com.gammascout.chart.Charts;
+import com.gammascout.usb.Reading;
+
+/**
+ * Writes the same chart and readings to several files at once, on the worker
+ * threads of an {@link ExportService}. The thread that waits for the files
+ * writes any file that no worker has started, so a batch run by a worker of
+ * the same service never waits for a free worker.
+ * <p>
+ * The downsampled points of the chart are computed once, for the common
+ * width of the images, and shared by all images; each image is drawn by its
+ * own copy of the chart. Each file is written to a temporary file that
+ * replaces the target when it is complete, and a file that fails does not
+ * stop the others.
+ * 
+ * @author Erik Berglund
+ * 
+ */
+public class BatchExport
+{
+	/**
+	 * The extensions of the supported file types, in the order they are
+	 * offered to the user.
+	 */
+	public static final String[] EXTENSIONS = { "pdf", "svg", "eps", "png", "jpg", "csv", "ogt" };
+
+	/**
+	 * The outcome of writing one file.
+	 */
+	public static class Result
+	{
+		private final File file;
+		private final long millis;
+		private final Throwable error;
+
+		Result(File file, long millis, Throwable error)
+		{
+			this.file = file;
+			this.millis = millis;
+			this.error = error;
+		}
+
+		/**
+		 * Get the file written.
+		 * 
+		 * @return
+		 */
+		public File getFile()
+		{
+			return file;
+		}
+
+		/**
+		 * Get the time it took to write the file, in milliseconds.
+		 * 
+		 * @return
+		 */
+		public long getMillis()
+		{
+			return millis;
+		}
+
+		/**
+		 * Get the error that made writing the file fail, or null.
+		 * 
+		 * @return
+		 */
+		public Throwable getError()
+		{
+			return error;
+		}
+
+		/**
+		 * Describe the result as "name: time" or "name: failed, reason".
+		 * 
+		 * @see java.lang.Object#toString()
+		 */
+		@Override
+		public String toString()
+		{
+			if (error != null)
+			{
+				return file.getName() + ": failed, " + error.getMessage();
+			}
+			return file.getName() + ": " + millis + " ms";
+		}
+	}
+
+	private final JFreeChart chart;
+	private final int width;
+	private final int height;
+	private final double scale;
+	private final List<Reading> readings;
+	private final BinaryTool.Header header;
+	private final List<Output> outputs = new ArrayList<>();
+	private long resamplePeriod;
+
+	/**
+	 * Prepare a batch.
+	 * 
+	 * @param chart
+	 *            the chart to draw, which is not changed, or null if no
+	 *            images are written.
+	 * @param width
+	 *            the width of images, in pixels or points.
+	 * @param height
+	 *            the height of images.
+	 * @param scale
+	 *            pixels per unit of the chart layout for PNG and JPG images,
+	 *            see {@link ImageTool.Resolution#getScale()}.
+	 * @param readings
+	 *            the readings for CSV and OGT files.
+	 * @param header
+	 *            the header of OGT files, may be null.
+	 */
+	public BatchExport(JFreeChart chart, int width, int height, double scale, List<Reading> readings, BinaryTool.Header header)
+	{
+		this.chart = chart;
+		this.width = width;
+		this.height = height;
+		this.scale = scale;
+		this.readings = readings;
+		this.header = header;
+		if (chart != null)
+		{
+			// the images share the dataset, so its points are computed once
+			Charts.setOutputWidth(chart, width);
+		}
+	}
+
+	/**
+	 * Get the normalised extension of a supported file type.
+	 * 
+	 * @param f
+	 * @return the extension, or null if the type is not supported.
+	 */
+	public static String getExtension(File f)
+	{
+		String name = f.getName().toLowerCase();
+		int dot = name.lastIndexOf('.');
+		String extension = dot < 0 ? "" : name.substring(dot + 1);
+		if (extension.equals("jpeg"))
+		{
+			return "jpg";
+		}
+		for (String supported : EXTENSIONS)
+		{
+			if (supported.equals(extension))
+			{
+				return extension;
+			}
+		}
+		return null;
+	}
+
+	/**
+	 * Check if the file is an image, which needs a chart.
+	 * 
+	 * @param f
+	 * @return
+	 */
+	public static boolean isImage(File f)
+	{
+		String extension = getExtension(f);
+		return extension != null && !extension.equals("csv") && !extension.equals("ogt");
+	}
+
+	/**
+	 * Write CSV files resampled onto a regular grid, see
+	 * {@link TextTool#writeResampledCSV(File, List, long, Progress)}.
+	 * 
+	 * @param periodMillis
+	 *            the length of the buckets, or 0 to write the readings.
+	 */
+	public void setResamplePeriod(long periodMillis)
+	{
+		resamplePeriod = periodMillis;
+	}
+
+	/**
+	 * Add a file to the batch, with the type chosen by the extension.
+	 * 
+	 * @param f
+	 * @throws IllegalArgumentException
+	 *             if the type is not supported.
+	 * @throws IOException
+	 *             if the chart could not be copied.
+	 */
+	public void add(File f) throws IOException
+	{
+		String extension = getExtension(f);
+		if (extension == null)
+		{
+			throw new IllegalArgumentException("Unsupported file type: " + f.getName());
+		}
+		switch (extension)
+		{
+			case "csv":
+				outputs.add(new Output(f, null, new ExportService.Task()
+				{
+					@Override
+					public void run(File target, Progress progress) throws Exception
+					{
+						if (resamplePeriod > 0)
+						{
+							TextTool.writeResampledCSV(target, readings, resamplePeriod, progress);
+						}
+						else
+						{
+							TextTool.writeCSV(target, readings, progress);
+						}
+					}
+				}));
+				break;
+			case "ogt":
+				outputs.add(new Output(f, null, new ExportService.Task()
+				{
+					@Override
+					public void run(File target, Progress progress) throws Exception
+					{
+						BinaryTool.writeOGT(target, readings, header, progress);
+					}
+				}));
+				break;
+			default:
+				if (chart == null)
+				{
+					throw new IllegalStateException("No chart to write " + f.getName());
+				}
+				// copied here, since the chart may not be copied while another
+				// copy is drawn
+				final JFreeChart copy = TiledRenderer.copy(chart);
+				final ImageTool.Format format = ImageTool.Format.valueOf(extension.toUpperCase());
+				outputs.add(new Output(f, copy, new ExportService.Task()
+				{
+					@Override
+					public void run(File target, Progress progress) throws Exception
+					{
+						if (format == ImageTool.Format.PNG || format == ImageTool.Format.JPG)
+						{
+							ImageTool.writeTiled(target, format, copy, width, height, scale, progress);
+						}
+						else
+						{
+							ImageTool.write(target, format, copy, width, height);
+						}
+					}
+				}));
+				break;
+		}
+	}
+
+	/**
+	 * Write all files on the worker threads of the service, and wait until
+	 * they are written.
+	 * 
+	 * @param service
+	 * @param progress
+	 *            counts files, may be null.
+	 * @return the results in the order the files were added.
+	 * @throws CancellationException
+	 *             if the progress is cancelled. Files not yet complete are
+	 *             not written.
+	 */
+	public List<Result> run(ExportService service, final Progress progress)
+	{
+		List<Result> results = new ArrayList<>();
+		// the files only check for cancellation, progress counts files
+		final Progress cancellation = progress == null ? null : new Progress()
+		{
+			@Override
+			public void setProgress(long done, long total)
+			{
+			}
+
+			@Override
+			public boolean isCancelled()
+			{
+				return progress.isCancelled();
+			}
+		};
+		List<FutureTask<Result>> tasks = new ArrayList<>();
+		for (final Output output : outputs)
+		{
+			FutureTask<Result> task = new FutureTask<>(new Callable<Result>()
+			{
+				@Override
+				public Result call()
+				{
+					return output.write(cancellation);
+				}
+			});
+			tasks.add(task);
+			service.execute(task);
+		}
+		try
+		{
+			for (int done = 1; done <= tasks.size(); done++)
+			{
+				FutureTask<Result> task = tasks.get(done - 1);
+				// does nothing if a worker has started it
+				task.run();
+				results.add(task.get());
+				if (progress != null)
+				{
+					ExportService.checkCancelled(progress);
+					progress.setProgress(done, tasks.size());
+				}
+			}
+			return results;
+		}
+		catch (InterruptedException e)
+		{
+			Thread.currentThread().interrupt();
+			throw new CancellationException();
+		}
+		catch (ExecutionException e)
+		{
+			// Output.write catches everything
+			throw new IllegalStateException(e.getCause());
+		}
+		finally
+		{
+			// stops the files still being written if the batch was cancelled
+			for (FutureTask<Result> task : tasks)
+			{
+				task.cancel(true);
+			}
+		}
+	}
+
+	/**
+	 * Ask the user which file types to write and for a directory and a base
+	 * name, and if any of the files exist, whether they may be overwritten.
+	 * 
+	 * @param frame
+	 * @return the files to write, or null if the user cancelled.
+	 */
+	public static List<File> chooseFiles(Component frame)
+	{
+		JPanel panel = new JPanel(new GridLayout(0, 1, 4, 4));
+		List<JCheckBox> boxes = new ArrayList<>();
+		for (String extension : EXTENSIONS)
+		{
+			JCheckBox box = new JCheckBox(extension.toUpperCase(), !extension.equals("eps") && !extension.equals("jpg")
+					&& !extension.equals("ogt"));
+			boxes.add(box);
+			panel.add(box);
+		}
+		int option = JOptionPane.showConfirmDialog(frame, panel, "Export formats", JOptionPane.OK_CANCEL_OPTION,
+				JOptionPane.PLAIN_MESSAGE);
+		if (option != JOptionPane.OK_OPTION)
+		{
+			return null;
+		}
+		File base = FileDialogs.chooseSaveFile(frame, "Export to directory and base name", null);
+		if (base == null)
+		{
+			return null;
+		}
+		String name = base.getName();
+		if (getExtension(base) != null)
+		{
+			name = name.substring(0, name.lastIndexOf('.'));
+		}
+		List<File> files = new ArrayList<>();
+		StringBuilder existing = new StringBuilder();
+		for (int x = 0; x < EXTENSIONS.length; x++)
+		{
+			if (boxes.get(x).isSelected())
+			{
+				File f = new File(base.getParentFile(), name + "." + EXTENSIONS[x]);
+				files.add(f);
+				if (f.exists())
+				{
+					existing.append("\n").append(f.getName());
+				}
+			}
+		}
+		if (files.isEmpty())
+		{
+			return null;
+		}
+		if (existing.length() > 0)
+		{
+			int result = JOptionPane.showConfirmDialog(frame, "These files already exist. Overwrite?" + existing, "Files exist",
+					JOptionPane.YES_NO_OPTION);
+			if (result != JOptionPane.YES_OPTION)
+			{
+				return null;
+			}
+		}
+		return files;
+	}
+
+	/**
+	 * A file of the batch.
+	 */
+	private static class Output
+	{
+		private final File target;
+		private final JFreeChart copy;
+		private final ExportService.Task task;
+
+		Output(File target, JFreeChart copy, ExportService.Task task)
+		{
+			this.target = target;
+			this.copy = copy;
+			this.task = task;
+		}
+
+		/**
+		 * Write to a temporary file and move it to the target. Never throws.
+		 */
+		Result write(Progress progress)
+		{
+			long start = System.nanoTime();
+			Throwable error = null;
+			File temp = null;
+			try
+			{
+				File directory = target.getAbsoluteFile().getParentFile();
+				temp = File.createTempFile("." + target.getName() + ".", ".tmp", directory);
+				task.run(temp, progress);
+				ExportService.checkCancelled(progress);
+				ExportService.move(temp, target);
+				temp = null;
+			}
+			catch (Throwable e)
+			{
+				error = e;
+			}
+			finally
+			{
+				if (temp != null && temp.exists() && !temp.delete())
+				{
+					System.out.println("Could not delete temporary file " + temp);
+				}
+				if (copy != null)
+				{
+					TiledRenderer.release(copy);
+				}
+			}
+			return new Result(target, (System.nanoTime() - start) / 1000000, error);
+		}
+	}
+}
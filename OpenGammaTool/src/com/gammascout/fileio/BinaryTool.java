@@ -0,0 +1,884 @@
+/*******************************************************************************
+ *  
+ * Copyright (c) 2009, 2019 Erik Berglund.
+ *    
+ *       This file is part of Conserve.
+ *   
+ *       Conserve is free software: you can redistribute it and/or modify
+ *       it under the terms of the GNU Affero General Public License as published by
+ *       the Free Software Foundation, either version 3 of the License, or
+ *       (at your option) any later version.
+ *   
+ *       Conserve is distributed in the hope that it will be useful,
+ *       but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *       MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *       GNU Affero General Public License for more details.
+ *   
+ *       You should have received a copy of the GNU Affero General Public License
+ *       along with Conserve.  If not, see <https://www.gnu.org/licenses/agpl.html>.
+ *       
+ *******************************************************************************/
+package com.gammascout.fileio;
+
+import java.awt.Component;
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.zip.CRC32;
+
+import javax.swing.filechooser.FileNameExtensionFilter;
+
+import com.gammascout.usb.DailySketches;
+import com.gammascout.usb.ProtocolVersionDetector.ProtocolVersion;
+import com.gammascout.usb.Reading;
+
+/**
+ * Tools for reading and writing GammaScout logs in the compact binary OGT
+ * format.
+ * <p>
+ * An OGT file starts with a fixed size header holding the device serial
+ * number, the protocol version and the time range of the log. The readings
+ * follow in blocks of at most {@link #BLOCK_SIZE} readings, and the file ends
+ * with an index of the blocks. Within a block the time stamps are stored as the
+ * difference between consecutive readings minus the reading interval (zero for
+ * a regular log), the intervals are run-length encoded, the counts are stored
+ * as variable length integers and the saturation flags as a bitmap. Each block
+ * carries a CRC32 checksum of its payload.
+ * <p>
+ * Next to each OGT file an OGQ file keeps the daily quantile sketches of its
+ * dose rates, so that percentiles of an archive of logs are found without
+ * decoding the readings. It is made when it is first needed, and made again
+ * when the OGT file it was made for changes.
+ * 
+ * @author Erik Berglund
+ * 
+ */
+public class BinaryTool extends FileTool
+{
+	/**
+	 * "OGT" followed by a zero byte.
+	 */
+	private static final int MAGIC = 0x4F475400;
+	private static final short FORMAT_VERSION = 1;
+	private static final int HEADER_SIZE = 64;
+	private static final int INDEX_ENTRY_SIZE = 28;
+	/**
+	 * "OGQ" followed by the format version.
+	 */
+	private static final int SKETCH_MAGIC = 0x4F475101;
+	private static final int SKETCH_HEADER_SIZE = 52;
+	/**
+	 * The maximum number of readings in each block.
+	 */
+	public static final int BLOCK_SIZE = 4096;
+
+	/**
+	 * Information about the device that produced the log, and about the log
+	 * itself.
+	 */
+	public static class Header
+	{
+		private Integer serialNumber;
+		private ProtocolVersion protocolVersion;
+		private long fromTime;
+		private long toTime;
+		private long readingCount;
+
+		public Header()
+		{
+		}
+
+		/**
+		 * @param serialNumber
+		 *            the device serial number, or null if unknown.
+		 * @param protocolVersion
+		 *            the device protocol version, or null if unknown.
+		 */
+		public Header(Integer serialNumber, ProtocolVersion protocolVersion)
+		{
+			this.serialNumber = serialNumber;
+			this.protocolVersion = protocolVersion;
+		}
+
+		/**
+		 * Get the device serial number, or null if it is not known.
+		 * 
+		 * @return
+		 */
+		public Integer getSerialNumber()
+		{
+			return serialNumber;
+		}
+
+		/**
+		 * Get the protocol version of the device, or null if it is not known.
+		 * 
+		 * @return
+		 */
+		public ProtocolVersion getProtocolVersion()
+		{
+			return protocolVersion;
+		}
+
+		/**
+		 * Get the start of the first measuring interval in the log, in
+		 * milliseconds since the epoch, UTC.
+		 * 
+		 * @return
+		 */
+		public long getFromTime()
+		{
+			return fromTime;
+		}
+
+		/**
+		 * Get the end of the last measuring interval in the log, in
+		 * milliseconds since the epoch, UTC.
+		 * 
+		 * @return
+		 */
+		public long getToTime()
+		{
+			return toTime;
+		}
+
+		/**
+		 * Get the number of readings in the log.
+		 * 
+		 * @return
+		 */
+		public long getReadingCount()
+		{
+			return readingCount;
+		}
+	}
+
+	/**
+	 * Open a "save as" dialog and ask the user for an OGT file name.
+	 * 
+	 * @param frame
+	 * @return the chosen file, or null if the user cancelled.
+	 */
+	public static File chooseSaveFile(Component frame)
+	{
+		return FileDialogs.chooseSaveFile(frame, "Save as Open Gamma Tool binary log", new FileNameExtensionFilter("OGT files", "ogt"));
+	}
+
+	/**
+	 * Open a "load" dialog and ask the user for an OGT file.
+	 * 
+	 * @param frame
+	 * @return the chosen file, or null if the user cancelled.
+	 */
+	public static File chooseOpenFile(Component frame)
+	{
+		return FileDialogs.chooseOpenFile(frame, "Load Open Gamma Tool binary log", new FileNameExtensionFilter("OGT files", "ogt"));
+	}
+
+	/**
+	 * Write the readings to the given file in the OGT format. The readings
+	 * should be in time order, but are stored correctly even if they are not.
+	 * 
+	 * @param f
+	 * @param data
+	 * @param header
+	 *            device information to store with the data, may be null.
+	 * @throws IOException
+	 */
+	public static void writeOGT(File f, List<Reading> data, Header header) throws IOException
+	{
+		writeOGT(f, data, header, null);
+	}
+
+	/**
+	 * Write the readings to the given file in the OGT format, reporting the
+	 * number of readings written after each block.
+	 * 
+	 * @param f
+	 * @param data
+	 * @param header
+	 *            device information to store with the data, may be null.
+	 * @param progress
+	 *            may be null.
+	 * @throws IOException
+	 * @throws java.util.concurrent.CancellationException
+	 *             if the progress is cancelled.
+	 */
+	public static void writeOGT(File f, List<Reading> data, Header header, Progress progress) throws IOException
+	{
+		if (header == null)
+		{
+			header = new Header();
+		}
+		int blockCount = (data.size() + BLOCK_SIZE - 1) / BLOCK_SIZE;
+		ByteBuffer index = ByteBuffer.allocate(blockCount * INDEX_ENTRY_SIZE);
+		long fromTime = Long.MAX_VALUE;
+		long toTime = Long.MIN_VALUE;
+		RandomAccessFile raf = new RandomAccessFile(f, "rw");
+		try
+		{
+			raf.setLength(0);
+			FileChannel channel = raf.getChannel();
+			// the header is written last, when the time range and index position
+			// are known
+			channel.position(HEADER_SIZE);
+			BlockEncoder encoder = new BlockEncoder();
+			for (int start = 0; start < data.size(); start += BLOCK_SIZE)
+			{
+				int end = Math.min(start + BLOCK_SIZE, data.size());
+				List<Reading> block = data.subList(start, end);
+				for (Reading r : block)
+				{
+					fromTime = Math.min(fromTime, r.getTime() - r.getInterval() * 1000);
+					toTime = Math.max(toTime, r.getTime());
+				}
+				index.putLong(channel.position());
+				index.putInt(block.size());
+				index.putLong(block.get(0).getTime());
+				index.putLong(block.get(block.size() - 1).getTime());
+				writeFully(channel, encoder.encode(block));
+				if (progress != null)
+				{
+					ExportService.checkCancelled(progress);
+					progress.setProgress(end, data.size());
+				}
+			}
+			long indexOffset = channel.position();
+			index.flip();
+			writeFully(channel, index);
+
+			if (data.isEmpty())
+			{
+				fromTime = 0;
+				toTime = 0;
+			}
+			ByteBuffer head = ByteBuffer.allocate(HEADER_SIZE);
+			head.putInt(MAGIC);
+			head.putShort(FORMAT_VERSION);
+			head.put(encodeProtocolVersion(header.getProtocolVersion()));
+			head.put((byte) 0);
+			head.putInt(header.getSerialNumber() == null ? -1 : header.getSerialNumber());
+			head.putLong(fromTime);
+			head.putLong(toTime);
+			head.putLong(data.size());
+			head.putInt(blockCount);
+			head.putLong(indexOffset);
+			head.position(0);
+			channel.position(0);
+			writeFully(channel, head);
+			channel.force(false);
+		}
+		finally
+		{
+			raf.close();
+		}
+	}
+
+	/**
+	 * Read an OGT file and append its readings to data.
+	 * 
+	 * @param f
+	 * @param data
+	 * @return the header of the file.
+	 * @throws IOException
+	 *             if the file is not an OGT file or is corrupt.
+	 */
+	public static Header readOGT(File f, List<Reading> data) throws IOException
+	{
+		return readOGT(f, data, null);
+	}
+
+	/**
+	 * Read an OGT file and append its readings to data, reporting the number
+	 * of readings read after each block.
+	 * 
+	 * @param f
+	 * @param data
+	 * @param progress
+	 *            may be null.
+	 * @return the header of the file.
+	 * @throws IOException
+	 *             if the file is not an OGT file or is corrupt.
+	 * @throws java.util.concurrent.CancellationException
+	 *             if the progress is cancelled.
+	 */
+	public static Header readOGT(File f, List<Reading> data, Progress progress) throws IOException
+	{
+		OGTInput input = new OGTInput(f);
+		if (data instanceof ArrayList)
+		{
+			((ArrayList<Reading>) data).ensureCapacity((int) (data.size() + input.header.getReadingCount()));
+		}
+		int start = data.size();
+		while (input.decodeNextBlock(data))
+		{
+			if (progress != null)
+			{
+				ExportService.checkCancelled(progress);
+				progress.setProgress(data.size() - start, input.header.getReadingCount());
+			}
+		}
+		return input.header;
+	}
+
+	/**
+	 * Open an OGT file for reading one reading at a time. Only one block of
+	 * the file is decoded at a time.
+	 * 
+	 * @param f
+	 * @return
+	 * @throws IOException
+	 *             if the file is not an OGT file.
+	 */
+	public static ReadingInput openOGT(File f) throws IOException
+	{
+		return new OGTInput(f);
+	}
+
+	/**
+	 * Read only the header of an OGT file.
+	 * 
+	 * @param f
+	 * @return
+	 * @throws IOException
+	 *             if the file is not an OGT file.
+	 */
+	public static Header readOGTHeader(File f) throws IOException
+	{
+		RandomAccessFile raf = new RandomAccessFile(f, "r");
+		try
+		{
+			ByteBuffer head = ByteBuffer.allocate(HEADER_SIZE);
+			FileChannel channel = raf.getChannel();
+			while (head.hasRemaining() && channel.read(head) >= 0)
+			{
+				// keep reading
+			}
+			if (head.hasRemaining())
+			{
+				throw new IOException(f.getName() + " is not an OGT file.");
+			}
+			return readHeader(head, f);
+		}
+		finally
+		{
+			raf.close();
+		}
+	}
+
+	/**
+	 * Get the file that keeps the quantile sketches of an OGT file, with the
+	 * extension ogq instead of ogt.
+	 * 
+	 * @param f
+	 * @return
+	 */
+	public static File getSketchFile(File f)
+	{
+		String name = f.getName();
+		int dot = name.lastIndexOf('.');
+		return new File(f.getParentFile(), (dot > 0 ? name.substring(0, dot) : name) + ".ogq");
+	}
+
+	/**
+	 * Read the daily quantile sketches of the dose rates of an OGT file from
+	 * the OGQ file next to it. If there is none, or it does not match the OGT
+	 * file, the sketches are made from the readings and written for next time.
+	 * 
+	 * @param f
+	 *            the OGT file.
+	 * @param problems
+	 *            the list to add failures to read or write the OGQ file to,
+	 *            which do not keep the sketches from being made, for the
+	 *            caller to report.
+	 * @return
+	 * @throws IOException
+	 *             if the OGT file cannot be read.
+	 */
+	public static DailySketches readSketches(File f, List<IOException> problems) throws IOException
+	{
+		Header header = readOGTHeader(f);
+		File sketchFile = getSketchFile(f);
+		if (sketchFile.isFile())
+		{
+			try
+			{
+				DailySketches sketches = readSketchFile(sketchFile, f, header);
+				if (sketches != null)
+				{
+					return sketches;
+				}
+			}
+			catch (IOException e)
+			{
+				problems.add(new IOException("Ignoring " + sketchFile + ": " + e.getMessage(), e));
+			}
+		}
+		DailySketches sketches = new DailySketches();
+		ReadingInput input = openOGT(f);
+		try
+		{
+			for (Reading r = input.next(); r != null; r = input.next())
+			{
+				sketches.add(r);
+			}
+		}
+		finally
+		{
+			input.close();
+		}
+		try
+		{
+			writeSketches(f, header, sketches);
+		}
+		catch (IOException e)
+		{
+			problems.add(new IOException("Could not write " + sketchFile + ": " + e.getMessage(), e));
+		}
+		return sketches;
+	}
+
+	/**
+	 * Read an OGQ file.
+	 * 
+	 * @return the sketches, or null if they were made for another version of
+	 *         the OGT file.
+	 */
+	private static DailySketches readSketchFile(File f, File ogt, Header header) throws IOException
+	{
+		RandomAccessFile raf = new RandomAccessFile(f, "r");
+		try
+		{
+			if (raf.length() < SKETCH_HEADER_SIZE || raf.length() > Integer.MAX_VALUE)
+			{
+				throw new IOException(f.getName() + " is not an OGQ file.");
+			}
+			byte[] bytes = new byte[(int) raf.length()];
+			raf.readFully(bytes);
+			ByteBuffer head = ByteBuffer.wrap(bytes);
+			if (head.getInt(0) != SKETCH_MAGIC)
+			{
+				throw new IOException(f.getName() + " is not an OGQ file.");
+			}
+			if (!Arrays.equals(describeOGT(ogt, header), Arrays.copyOfRange(bytes, 4, 44)))
+			{
+				return null;
+			}
+			int length = head.getInt(44);
+			if (length != bytes.length - SKETCH_HEADER_SIZE)
+			{
+				throw new IOException("Corrupt OGQ file " + f.getName());
+			}
+			CRC32 crc = new CRC32();
+			crc.update(bytes, SKETCH_HEADER_SIZE, length);
+			if ((int) crc.getValue() != head.getInt(48))
+			{
+				throw new IOException("Checksum error in " + f.getName());
+			}
+			return DailySketches.readFrom(new DataInputStream(new ByteArrayInputStream(bytes, SKETCH_HEADER_SIZE, length)));
+		}
+		finally
+		{
+			raf.close();
+		}
+	}
+
+	/**
+	 * Write the OGQ file of an OGT file.
+	 */
+	private static void writeSketches(File f, Header header, DailySketches sketches) throws IOException
+	{
+		ByteArrayOutputStream body = new ByteArrayOutputStream();
+		sketches.writeTo(new DataOutputStream(body));
+		byte[] bytes = body.toByteArray();
+		CRC32 crc = new CRC32();
+		crc.update(bytes, 0, bytes.length);
+		ByteBuffer head = ByteBuffer.allocate(SKETCH_HEADER_SIZE);
+		head.putInt(SKETCH_MAGIC);
+		head.put(describeOGT(f, header));
+		head.putInt(bytes.length);
+		head.putInt((int) crc.getValue());
+		head.flip();
+		RandomAccessFile raf = new RandomAccessFile(getSketchFile(f), "rw");
+		try
+		{
+			raf.setLength(0);
+			FileChannel channel = raf.getChannel();
+			writeFully(channel, head);
+			writeFully(channel, ByteBuffer.wrap(bytes));
+		}
+		finally
+		{
+			raf.close();
+		}
+	}
+
+	/**
+	 * Describe an OGT file well enough to tell when it has changed: its
+	 * length, modification time, reading count and time range.
+	 */
+	private static byte[] describeOGT(File f, Header header)
+	{
+		ByteBuffer description = ByteBuffer.allocate(40);
+		description.putLong(f.length());
+		description.putLong(f.lastModified());
+		description.putLong(header.getReadingCount());
+		description.putLong(header.getFromTime());
+		description.putLong(header.getToTime());
+		return description.array();
+	}
+
+	private static Header readHeader(ByteBuffer buffer, File f) throws IOException
+	{
+		if (buffer.getInt(0) != MAGIC)
+		{
+			throw new IOException(f.getName() + " is not an OGT file.");
+		}
+		if (buffer.getShort(4) != FORMAT_VERSION)
+		{
+			throw new IOException("Unsupported OGT format version " + buffer.getShort(4) + " in " + f.getName());
+		}
+		Header header = new Header();
+		header.protocolVersion = decodeProtocolVersion(buffer.get(6));
+		int serial = buffer.getInt(8);
+		header.serialNumber = serial < 0 ? null : serial;
+		header.fromTime = buffer.getLong(12);
+		header.toTime = buffer.getLong(20);
+		header.readingCount = buffer.getLong(28);
+		return header;
+	}
+
+	private static byte encodeProtocolVersion(ProtocolVersion version)
+	{
+		if (version == null)
+		{
+			return 0;
+		}
+		switch (version)
+		{
+			case VERSION1:
+				return 1;
+			case VERSION2:
+				return 2;
+			default:
+				return 0;
+		}
+	}
+
+	private static ProtocolVersion decodeProtocolVersion(byte b)
+	{
+		switch (b)
+		{
+			case 1:
+				return ProtocolVersion.VERSION1;
+			case 2:
+				return ProtocolVersion.VERSION2;
+			default:
+				return null;
+		}
+	}
+
+	private static void writeFully(FileChannel channel, ByteBuffer buffer) throws IOException
+	{
+		while (buffer.hasRemaining())
+		{
+			channel.write(buffer);
+		}
+	}
+
+	/**
+	 * Read an unsigned LEB128 variable length integer.
+	 */
+	static long readVarLong(ByteBuffer buffer)
+	{
+		long result = 0;
+		int shift = 0;
+		byte b;
+		do
+		{
+			b = buffer.get();
+			result |= (long) (b & 0x7f) << shift;
+			shift += 7;
+		}
+		while ((b & 0x80) != 0);
+		return result;
+	}
+
+	/**
+	 * Read a zig-zag encoded signed variable length integer.
+	 */
+	static long readZigZag(ByteBuffer buffer)
+	{
+		long v = readVarLong(buffer);
+		return (v >>> 1) ^ -(v & 1);
+	}
+
+	/**
+	 * Write an unsigned LEB128 variable length integer.
+	 */
+	static void writeVarLong(ByteArrayOutputStream out, long value)
+	{
+		while ((value & ~0x7fL) != 0)
+		{
+			out.write((int) ((value & 0x7f) | 0x80));
+			value >>>= 7;
+		}
+		out.write((int) value);
+	}
+
+	/**
+	 * Write a zig-zag encoded signed variable length integer.
+	 */
+	static void writeZigZag(ByteArrayOutputStream out, long value)
+	{
+		writeVarLong(out, (value << 1) ^ (value >> 63));
+	}
+
+	/**
+	 * Reads an OGT file block by block through a memory mapped buffer.
+	 */
+	private static class OGTInput implements ReadingInput
+	{
+		private final File file;
+		private final MappedByteBuffer buffer;
+		private final Header header;
+		private final int blockCount;
+		private final long indexOffset;
+		private final CRC32 crc = new CRC32();
+		private int nextBlock;
+		private List<Reading> block = new ArrayList<>();
+		private int position;
+
+		OGTInput(File f) throws IOException
+		{
+			file = f;
+			RandomAccessFile raf = new RandomAccessFile(f, "r");
+			try
+			{
+				FileChannel channel = raf.getChannel();
+				if (channel.size() < HEADER_SIZE)
+				{
+					throw new IOException(f.getName() + " is not an OGT file.");
+				}
+				// the mapping stays valid after the file is closed
+				buffer = channel.map(FileChannel.MapMode.READ_ONLY, 0, channel.size());
+			}
+			finally
+			{
+				raf.close();
+			}
+			header = readHeader(buffer, f);
+			blockCount = buffer.getInt(36);
+			indexOffset = buffer.getLong(40);
+			if (blockCount < 0 || indexOffset < HEADER_SIZE || indexOffset + (long) blockCount * INDEX_ENTRY_SIZE > buffer.limit())
+			{
+				throw new IOException("Corrupt block index in " + f.getName());
+			}
+		}
+
+		/**
+		 * Decode the next block into data.
+		 * 
+		 * @return false if there are no more blocks.
+		 */
+		boolean decodeNextBlock(List<Reading> data) throws IOException
+		{
+			if (nextBlock >= blockCount)
+			{
+				return false;
+			}
+			int entry = (int) indexOffset + nextBlock * INDEX_ENTRY_SIZE;
+			decodeBlock(buffer.getLong(entry), buffer.getInt(entry + 8), data);
+			nextBlock++;
+			return true;
+		}
+
+		@Override
+		public Reading next() throws IOException
+		{
+			while (position >= block.size())
+			{
+				block.clear();
+				position = 0;
+				if (!decodeNextBlock(block))
+				{
+					return null;
+				}
+			}
+			return block.get(position++);
+		}
+
+		@Override
+		public void close()
+		{
+			block.clear();
+			nextBlock = blockCount;
+		}
+
+		/**
+		 * Decode a single block, verifying the checksum.
+		 */
+		private void decodeBlock(long offset, int count, List<Reading> data) throws IOException
+		{
+			if (offset < HEADER_SIZE || offset + 8 > buffer.limit())
+			{
+				throw new IOException("Corrupt block index entry " + nextBlock + " in " + file.getName());
+			}
+			int length = buffer.getInt((int) offset);
+			int checksum = buffer.getInt((int) offset + 4);
+			if (length < 0 || offset + 8 + length > buffer.limit())
+			{
+				throw new IOException("Corrupt block " + nextBlock + " in " + file.getName());
+			}
+			byte[] bytes = new byte[length];
+			ByteBuffer payload = buffer.duplicate();
+			payload.position((int) offset + 8);
+			payload.get(bytes);
+			ByteBuffer slice = ByteBuffer.wrap(bytes);
+			crc.reset();
+			crc.update(bytes, 0, bytes.length);
+			if ((int) crc.getValue() != checksum)
+			{
+				throw new IOException("Checksum error in block " + nextBlock + " in " + file.getName());
+			}
+			try
+			{
+				int n = (int) readVarLong(slice);
+				if (n != count)
+				{
+					throw new IOException("Corrupt block " + nextBlock + " in " + file.getName() + ": expected " + count + " readings, found " + n);
+				}
+				long[] times = new long[n];
+				long[] intervals = new long[n];
+				// intervals are stored after the times, so read the times first
+				times[0] = slice.getLong();
+				for (int x = 1; x < n; x++)
+				{
+					times[x] = readZigZag(slice);
+				}
+				int runs = (int) readVarLong(slice);
+				int pos = 0;
+				for (int run = 0; run < runs; run++)
+				{
+					int runLength = (int) readVarLong(slice);
+					long interval = readVarLong(slice);
+					for (int x = 0; x < runLength; x++)
+					{
+						intervals[pos++] = interval;
+					}
+				}
+				if (pos != n)
+				{
+					throw new IOException("Corrupt block " + nextBlock + " in " + file.getName() + ": interval runs do not match reading count");
+				}
+				// resolve the time deltas now that the intervals are known
+				for (int x = 1; x < n; x++)
+				{
+					times[x] += times[x - 1] + intervals[x] * 1000;
+				}
+				int bitmapStart = slice.limit() - (n + 7) / 8;
+				for (int x = 0; x < n; x++)
+				{
+					Reading r = new Reading();
+					r.setTime(times[x]);
+					r.setInterval(intervals[x]);
+					r.setCount(readVarLong(slice));
+					r.setSaturated((slice.get(bitmapStart + x / 8) & (1 << (x % 8))) != 0);
+					data.add(r);
+				}
+			}
+			catch (RuntimeException e)
+			{
+				throw new IOException("Corrupt block " + nextBlock + " in " + file.getName(), e);
+			}
+		}
+	}
+
+	/**
+	 * Encodes blocks of readings, re-using its buffers between blocks.
+	 */
+	private static class BlockEncoder
+	{
+		private ByteArrayOutputStream payload = new ByteArrayOutputStream(BLOCK_SIZE * 3);
+		private CRC32 crc = new CRC32();
+
+		/**
+		 * Encode the readings, return a buffer holding the length, checksum
+		 * and payload of the block.
+		 */
+		ByteBuffer encode(List<Reading> block)
+		{
+			payload.reset();
+			int n = block.size();
+			writeVarLong(payload, n);
+			// time stamps: the first one in full, then the deviation from the
+			// expected time stamp given the interval
+			long first = block.get(0).getTime();
+			for (int shift = 56; shift >= 0; shift -= 8)
+			{
+				payload.write((int) (first >>> shift));
+			}
+			long previous = first;
+			for (int x = 1; x < n; x++)
+			{
+				Reading r = block.get(x);
+				writeZigZag(payload, r.getTime() - previous - r.getInterval() * 1000);
+				previous = r.getTime();
+			}
+			// run-length encoded intervals
+			ByteArrayOutputStream runs = new ByteArrayOutputStream();
+			int runCount = 0;
+			int x = 0;
+			while (x < n)
+			{
+				long interval = block.get(x).getInterval();
+				int runLength = 1;
+				while (x + runLength < n && block.get(x + runLength).getInterval() == interval)
+				{
+					runLength++;
+				}
+				writeVarLong(runs, runLength);
+				writeVarLong(runs, interval);
+				runCount++;
+				x += runLength;
+			}
+			writeVarLong(payload, runCount);
+			payload.write(runs.toByteArray(), 0, runs.size());
+			// counts
+			for (Reading r : block)
+			{
+				writeVarLong(payload, r.getCount());
+			}
+			// saturation bitmap
+			byte[] bitmap = new byte[(n + 7) / 8];
+			for (x = 0; x < n; x++)
+			{
+				if (block.get(x).isSaturated())
+				{
+					bitmap[x / 8] |= 1 << (x % 8);
+				}
+			}
+			payload.write(bitmap, 0, bitmap.length);
+
+			byte[] bytes = payload.toByteArray();
+			crc.reset();
+			crc.update(bytes, 0, bytes.length);
+			ByteBuffer result = ByteBuffer.allocate(8 + bytes.length);
+			result.putInt(bytes.length);
+			result.putInt((int) crc.getValue());
+			result.put(bytes);
+			result.flip();
+			return result;
+		}
+	}
+}
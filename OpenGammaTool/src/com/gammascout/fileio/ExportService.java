@@ -0,0 +1,394 @@
+/*******************************************************************************
+ *  
+ * Copyright (c) 2009, 2019 Erik Berglund.
+ *    
+ *       This file is part of Conserve.
+ *   
+ *       Conserve is free software: you can redistribute it and/or modify
+ *       it under the terms of the GNU Affero General Public License as published by
+ *       the Free Software Foundation, either version 3 of the License, or
+ *       (at your option) any later version.
+ *   
+ *       Conserve is distributed in the hope that it will be useful,
+ *       but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *       MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *       GNU Affero General Public License for more details.
+ *   
+ *       You should have received a copy of the GNU Affero General Public License
+ *       along with Conserve.  If not, see <https://www.gnu.org/licenses/agpl.html>.
+ *       
+ *******************************************************************************/
+package com.gammascout.fileio;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.AtomicMoveNotSupportedException;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.util.List;
+import java.util.concurrent.CancellationException;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Runs exports and imports on background threads, so that the user interface
+ * stays responsive while large files are written or read.
+ * <p>
+ * An export never writes to its target directly. It writes to a temporary
+ * file in the same directory, which is renamed to the target when, and only
+ * when, the export completes. A cancelled or failed export deletes the
+ * temporary file, so an existing file is never left half overwritten.
+ * <p>
+ * Listeners are called on the worker threads; progress notifications are
+ * limited to a few per second for each job.
+ * 
+ * @author Erik Berglund
+ * 
+ */
+public class ExportService
+{
+	/**
+	 * The shortest time between two progress notifications for a job.
+	 */
+	private static final long NOTIFY_INTERVAL_MILLIS = 100;
+
+	/**
+	 * The work of an export or import.
+	 */
+	public interface Task
+	{
+		/**
+		 * Do the work, reporting progress and checking for cancellation as
+		 * often as practical.
+		 * 
+		 * @param target
+		 *            the file to write, or null for imports.
+		 * @param progress
+		 * @throws Exception
+		 */
+		public void run(File target, Progress progress) throws Exception;
+	}
+
+	/**
+	 * Implement this interface to follow the jobs of the service.
+	 */
+	public interface Listener
+	{
+		/**
+		 * A job has started, made progress or finished.
+		 * 
+		 * @param job
+		 */
+		public void jobChanged(Job job);
+	}
+
+	/**
+	 * A submitted export or import.
+	 */
+	public class Job implements Progress, Runnable
+	{
+		private final String description;
+		private final File target;
+		private final Task task;
+		private final AtomicBoolean started = new AtomicBoolean();
+		private volatile File temporary;
+		private volatile long done;
+		private volatile long total = -1;
+		private volatile boolean cancelled;
+		private volatile boolean finished;
+		private volatile Throwable error;
+		private long lastNotified;
+
+		Job(String description, File target, Task task)
+		{
+			this.description = description;
+			this.target = target;
+			this.task = task;
+		}
+
+		/**
+		 * Get the description given when the job was submitted.
+		 * 
+		 * @return
+		 */
+		public String getDescription()
+		{
+			return description;
+		}
+
+		/**
+		 * Get the file being written, or null for imports.
+		 * 
+		 * @return
+		 */
+		public File getTarget()
+		{
+			return target;
+		}
+
+		/**
+		 * Get the number of units processed so far.
+		 * 
+		 * @return
+		 */
+		public long getDone()
+		{
+			return done;
+		}
+
+		/**
+		 * Get the total number of units, or -1 if not known.
+		 * 
+		 * @return
+		 */
+		public long getTotal()
+		{
+			return total;
+		}
+
+		/**
+		 * Get the number of bytes written so far by a running export.
+		 * 
+		 * @return
+		 */
+		public long getBytesWritten()
+		{
+			File f = temporary;
+			return f == null ? 0 : f.length();
+		}
+
+		/**
+		 * Check if the job has finished, successfully or not.
+		 * 
+		 * @return
+		 */
+		public boolean isFinished()
+		{
+			return finished;
+		}
+
+		/**
+		 * Get the error that made the job fail, or null.
+		 * 
+		 * @return
+		 */
+		public Throwable getError()
+		{
+			return error;
+		}
+
+		/**
+		 * Ask the job to stop. A job that has not started yet never runs.
+		 */
+		public void cancel()
+		{
+			cancelled = true;
+			if (started.compareAndSet(false, true))
+			{
+				finished = true;
+				fireJobChanged(this);
+			}
+		}
+
+		@Override
+		public boolean isCancelled()
+		{
+			return cancelled;
+		}
+
+		@Override
+		public void setProgress(long done, long total)
+		{
+			this.done = done;
+			this.total = total;
+			long now = System.currentTimeMillis();
+			if (now - lastNotified >= NOTIFY_INTERVAL_MILLIS)
+			{
+				lastNotified = now;
+				fireJobChanged(this);
+			}
+		}
+
+		@Override
+		public void run()
+		{
+			if (!started.compareAndSet(false, true))
+			{
+				// cancelled before it started
+				return;
+			}
+			fireJobChanged(this);
+			File temp = null;
+			try
+			{
+				if (target != null)
+				{
+					File directory = target.getAbsoluteFile().getParentFile();
+					temp = File.createTempFile("." + target.getName() + ".", ".tmp", directory);
+					temporary = temp;
+					task.run(temp, this);
+					if (cancelled)
+					{
+						throw new CancellationException();
+					}
+					move(temp, target);
+					temp = null;
+				}
+				else
+				{
+					task.run(null, this);
+				}
+			}
+			catch (CancellationException e)
+			{
+				cancelled = true;
+			}
+			catch (Throwable e)
+			{
+				// a cancelled task may fail because it was interrupted
+				if (!cancelled)
+				{
+					error = e;
+					e.printStackTrace();
+				}
+			}
+			finally
+			{
+				if (temp != null && temp.exists() && !temp.delete())
+				{
+					System.out.println("Could not delete temporary file " + temp);
+				}
+				temporary = null;
+				finished = true;
+				fireJobChanged(this);
+			}
+		}
+	}
+
+	private final ExecutorService executor;
+	private final List<Listener> listeners = new CopyOnWriteArrayList<>();
+
+	/**
+	 * Create a service with one worker thread per processor. The worker
+	 * threads are daemon threads.
+	 */
+	public ExportService()
+	{
+		executor = Executors.newFixedThreadPool(Runtime.getRuntime().availableProcessors(), new ThreadFactory()
+		{
+			private final AtomicInteger number = new AtomicInteger();
+
+			@Override
+			public Thread newThread(Runnable r)
+			{
+				Thread t = new Thread(r, "Export " + number.incrementAndGet());
+				t.setDaemon(true);
+				t.setPriority(Thread.NORM_PRIORITY - 1);
+				return t;
+			}
+		});
+	}
+
+	/**
+	 * Add a listener that is told when jobs start, progress and finish.
+	 * 
+	 * @param l
+	 */
+	public void addListener(Listener l)
+	{
+		listeners.add(l);
+	}
+
+	/**
+	 * Remove a listener.
+	 * 
+	 * @param l
+	 */
+	public void removeListener(Listener l)
+	{
+		listeners.remove(l);
+	}
+
+	/**
+	 * Run an export in the background. The task writes to a temporary file
+	 * that replaces the target when the task completes.
+	 * 
+	 * @param description
+	 * @param target
+	 * @param task
+	 * @return
+	 */
+	public Job export(String description, File target, Task task)
+	{
+		Job job = new Job(description, target, task);
+		executor.execute(job);
+		return job;
+	}
+
+	/**
+	 * Run an import, or any other task that does not write a file, in the
+	 * background.
+	 * 
+	 * @param description
+	 * @param task
+	 * @return
+	 */
+	public Job submit(String description, Task task)
+	{
+		Job job = new Job(description, null, task);
+		executor.execute(job);
+		return job;
+	}
+
+	/**
+	 * Run a part of a job on the worker threads, e.g. one file of a batch.
+	 * 
+	 * @param task
+	 */
+	void execute(Runnable task)
+	{
+		executor.execute(task);
+	}
+
+	private void fireJobChanged(Job job)
+	{
+		for (Listener l : listeners)
+		{
+			l.jobChanged(job);
+		}
+	}
+
+	/**
+	 * Replace target with source, atomically if the file system allows it.
+	 */
+	static void move(File source, File target) throws IOException
+	{
+		try
+		{
+			Files.move(source.toPath(), target.toPath(), StandardCopyOption.ATOMIC_MOVE, StandardCopyOption.REPLACE_EXISTING);
+		}
+		catch (AtomicMoveNotSupportedException e)
+		{
+			Files.move(source.toPath(), target.toPath(), StandardCopyOption.REPLACE_EXISTING);
+		}
+	}
+
+	/**
+	 * Throw a {@link CancellationException} if the operation has been
+	 * cancelled.
+	 * 
+	 * @param progress
+	 *            may be null.
+	 */
+	public static void checkCancelled(Progress progress)
+	{
+		if (progress != null && progress.isCancelled())
+		{
+			throw new CancellationException();
+		}
+	}
+}
@@ -0,0 +1,134 @@
+/*******************************************************************************
+ *  
+ * Copyright (c) 2009, 2019 Erik Berglund.
+ *    
+ *       This file is part of Conserve.
+ *   
+ *       Conserve is free software: you can redistribute it and/or modify
+ *       it under the terms of the GNU Affero General Public License as published by
+ *       the Free Software Foundation, either version 3 of the License, or
+ *       (at your option) any later version.
+ *   
+ *       Conserve is distributed in the hope that it will be useful,
+ *       but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *       MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *       GNU Affero General Public License for more details.
+ *   
+ *       You should have received a copy of the GNU Affero General Public License
+ *       along with Conserve.  If not, see <https://www.gnu.org/licenses/agpl.html>.
+ *       
+ *******************************************************************************/
+package com.gammascout.fileio;
+
+import java.awt.Component;
+import java.io.File;
+
+import javax.swing.JFileChooser;
+import javax.swing.JOptionPane;
+import javax.swing.filechooser.FileNameExtensionFilter;
+
+/**
+ * The file dialogs shared by the file tools. All dialogs start in the
+ * directory of the last file chosen.
+ * 
+ * @author Erik Berglund
+ * 
+ */
+public class FileDialogs extends FileTool
+{
+	/**
+	 * Open a "save as" dialog and ask the user for a file name. If the file
+	 * exists the user is asked to confirm that it may be overwritten.
+	 * 
+	 * @param frame
+	 * @param title
+	 * @param filter
+	 * @return the chosen file, or null if the user cancelled.
+	 */
+	public static File chooseSaveFile(Component frame, String title, FileNameExtensionFilter filter)
+	{
+		JFileChooser fileChooser = new JFileChooser();
+		fileChooser.setDialogTitle(title);
+		fileChooser.setFileFilter(filter);
+		if (lastDirectory != null)
+		{
+			fileChooser.setCurrentDirectory(lastDirectory);
+		}
+		int option = fileChooser.showSaveDialog(frame);
+		if (option == JFileChooser.APPROVE_OPTION && fileChooser.getSelectedFile() != null && !fileChooser.getSelectedFile().isDirectory())
+		{
+			File f = fileChooser.getSelectedFile();
+			lastDirectory = f.getParentFile();
+			if (f.exists())
+			{
+				// confirm over-write
+				int result = JOptionPane.showConfirmDialog(frame, f.getName() + " already exists. Overwrite?", "File exists",
+						JOptionPane.YES_NO_OPTION);
+				if (result != JOptionPane.YES_OPTION)
+				{
+					return null;
+				}
+			}
+			return f;
+		}
+		return null;
+	}
+
+	/**
+	 * Open a "load" dialog and ask the user for an existing file.
+	 * 
+	 * @param frame
+	 * @param title
+	 * @param filter
+	 * @return the chosen file, or null if the user cancelled.
+	 */
+	public static File chooseOpenFile(Component frame, String title, FileNameExtensionFilter filter)
+	{
+		JFileChooser fileChooser = new JFileChooser();
+		fileChooser.setDialogTitle(title);
+		fileChooser.setFileFilter(filter);
+		if (lastDirectory != null)
+		{
+			fileChooser.setCurrentDirectory(lastDirectory);
+		}
+		int option = fileChooser.showOpenDialog(frame);
+		if (option == JFileChooser.APPROVE_OPTION && fileChooser.getSelectedFile() != null && !fileChooser.getSelectedFile().isDirectory())
+		{
+			File f = fileChooser.getSelectedFile();
+			if (f.exists())
+			{
+				lastDirectory = f.getParentFile();
+				return f;
+			}
+		}
+		return null;
+	}
+
+	/**
+	 * Open a "load" dialog and ask the user for any number of existing files.
+	 * 
+	 * @param frame
+	 * @param title
+	 * @param filter
+	 * @return the chosen files, empty if the user cancelled.
+	 */
+	public static File[] chooseOpenFiles(Component frame, String title, FileNameExtensionFilter filter)
+	{
+		JFileChooser fileChooser = new JFileChooser();
+		fileChooser.setDialogTitle(title);
+		fileChooser.setMultiSelectionEnabled(true);
+		fileChooser.setFileFilter(filter);
+		if (lastDirectory != null)
+		{
+			fileChooser.setCurrentDirectory(lastDirectory);
+		}
+		int option = fileChooser.showOpenDialog(frame);
+		if (option == JFileChooser.APPROVE_OPTION && fileChooser.getSelectedFiles().length > 0)
+		{
+			File[] result = fileChooser.getSelectedFiles();
+			lastDirectory = result[0].getParentFile();
+			return result;
+		}
+		return new File[0];
+	}
+}
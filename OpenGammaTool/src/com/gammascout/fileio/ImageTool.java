@@ -20,28 +20,40 @@
  *******************************************************************************/
 package com.gammascout.fileio;
 
+import java.awt.Component;
 import java.awt.Graphics2D;
+import java.awt.GridLayout;
 import java.awt.geom.Rectangle2D;
+import java.awt.image.BufferedImage;
+import java.io.BufferedOutputStream;
+import java.io.BufferedWriter;
 import java.io.File;
 import java.io.FileOutputStream;
 import java.io.IOException;
+import java.io.OutputStream;
 import java.io.OutputStreamWriter;
 import java.io.Writer;
+import java.nio.charset.StandardCharsets;
 
-import javax.swing.JFileChooser;
-import javax.swing.JFrame;
+import javax.imageio.ImageIO;
+import javax.swing.JLabel;
 import javax.swing.JOptionPane;
+import javax.swing.JPanel;
+import javax.swing.JSpinner;
+import javax.swing.SpinnerNumberModel;
+import javax.swing.event.ChangeEvent;
+import javax.swing.event.ChangeListener;
 import javax.swing.filechooser.FileNameExtensionFilter;
 
-import org.apache.batik.dom.GenericDOMImplementation;
-import org.apache.batik.svggen.SVGGraphics2D;
 import org.apache.xmlgraphics.java2d.ps.EPSDocumentGraphics2D;
 import org.jfree.chart.ChartUtilities;
 import org.jfree.chart.JFreeChart;
-import org.w3c.dom.DOMImplementation;
 
+import com.gammascout.chart.Charts;
+import com.gammascout.chart.DownsampledXYDataset;
 import com.itextpdf.awt.DefaultFontMapper;
 import com.itextpdf.awt.PdfGraphics2D;
+import com.itextpdf.text.DocumentException;
 import com.itextpdf.text.Rectangle;
 import com.itextpdf.text.pdf.PdfContentByte;
 import com.itextpdf.text.pdf.PdfTemplate;
@@ -56,303 +68,417 @@ import com.itextpdf.text.pdf.PdfWriter;
 public class ImageTool extends FileTool
 {
 	/**
-	 * @param frame
-	 * @param chart
-	 * @param width
-	 * @param height
+	 * The supported image formats.
 	 */
-	public static void savePdf(JFrame frame, JFreeChart chart, int width,
-			int height) throws IOException
+	public enum Format
 	{
-		boolean write = false;
-		JFileChooser fileChooser = new JFileChooser();
-		fileChooser.setDialogTitle("Save as Portable Document Format");
-		FileNameExtensionFilter filter = new FileNameExtensionFilter(
-				"PDF Images", "pdf");
-		fileChooser.setFileFilter(filter);
-		if(lastDirectory!=null)
+		PDF("Save as Portable Document Format", "PDF Images", "pdf"),
+		SVG("Save as Scalable Vector Graphics", "SVG Images", "svg"),
+		EPS("Save as Encapsulated PostScript", "EPS Images", "eps"),
+		PNG("Save as Portable Network Graphics", "PNG Images", "png"),
+		JPG("Save as JPEG", "JPG Images", "jpg", "jpeg");
+
+		private final String title;
+		private final FileNameExtensionFilter filter;
+
+		private Format(String title, String description, String... extensions)
 		{
-			fileChooser.setCurrentDirectory(lastDirectory);
+			this.title = title;
+			this.filter = new FileNameExtensionFilter(description, extensions);
 		}
-		int option = fileChooser.showSaveDialog(frame);
-		if (option == JFileChooser.APPROVE_OPTION
-				&& fileChooser.getSelectedFile() != null
-				&& !fileChooser.getSelectedFile().isDirectory())
+	}
+
+	/**
+	 * The size and resolution of a high resolution image.
+	 */
+	public static class Resolution
+	{
+		private final int width;
+		private final int height;
+		private final int dpi;
+
+		/**
+		 * @param width
+		 *            in pixels.
+		 * @param height
+		 *            in pixels.
+		 * @param dpi
+		 *            pixels per inch, where the chart on screen is 72 DPI.
+		 */
+		public Resolution(int width, int height, int dpi)
 		{
-			File f = fileChooser.getSelectedFile();
-			lastDirectory = f.getParentFile();
-			if (f.exists())
-			{
-				// confirm over-write
-				int result = JOptionPane.showConfirmDialog(frame, f.getName()
-						+ " already exists. Overwrite?", "File exists",
-						JOptionPane.YES_NO_OPTION);
-				if (result == JOptionPane.YES_OPTION)
-				{
-					write = true;
-				}
-			}
-			else
-			{
-				// file does not exists
-				write = true;
-			}
-			if (write)
-			{
-				PdfWriter writer = null;
+			this.width = width;
+			this.height = height;
+			this.dpi = dpi;
+		}
 
-				com.itextpdf.text.Document document = new com.itextpdf.text.Document();
-				document.setPageSize(new Rectangle(width, height));
-				try
-				{
-					writer = PdfWriter.getInstance(document,
-							new FileOutputStream(f));
-					document.open();
-					PdfContentByte contentByte = writer.getDirectContent();
-					PdfTemplate template = contentByte.createTemplate(width,
-							height);
-					Graphics2D graphics2d = new PdfGraphics2D(template, width,
-							height, new DefaultFontMapper());
-					Rectangle2D rectangle2d = new Rectangle2D.Double(0, 0,
-							width, height);
+		/**
+		 * Get the width in pixels.
+		 * 
+		 * @return
+		 */
+		public int getWidth()
+		{
+			return width;
+		}
 
-					chart.draw(graphics2d, rectangle2d);
+		/**
+		 * Get the height in pixels.
+		 * 
+		 * @return
+		 */
+		public int getHeight()
+		{
+			return height;
+		}
 
-					graphics2d.dispose();
-					contentByte.addTemplate(template, 0, 0);
-				}
-				catch (Exception e)
-				{
-					e.printStackTrace();
-				}
-				document.close();
+		/**
+		 * Get the resolution in pixels per inch.
+		 * 
+		 * @return
+		 */
+		public int getDpi()
+		{
+			return dpi;
+		}
+
+		/**
+		 * Get the number of pixels per unit of the chart layout.
+		 * 
+		 * @return
+		 */
+		public double getScale()
+		{
+			return dpi / SCREEN_DPI;
+		}
+	}
+
+	/**
+	 * The resolution that charts are laid out at.
+	 */
+	public static final double SCREEN_DPI = 72;
+	private static final int DEFAULT_DPI = 300;
+
+	/**
+	 * Ask the user for the size and resolution of a high resolution image.
+	 * The size follows the resolution, so that changing the resolution keeps
+	 * the printed size.
+	 * 
+	 * @param frame
+	 * @param width
+	 *            the width of the chart on screen.
+	 * @param height
+	 *            the height of the chart on screen.
+	 * @return the chosen resolution, or null if the user cancelled.
+	 */
+	public static Resolution chooseResolution(Component frame, int width, int height)
+	{
+		final JSpinner widthSpinner = new JSpinner(new SpinnerNumberModel((int) Math.round(width * DEFAULT_DPI / SCREEN_DPI), 1, 100000, 100));
+		final JSpinner heightSpinner = new JSpinner(new SpinnerNumberModel((int) Math.round(height * DEFAULT_DPI / SCREEN_DPI), 1, 100000, 100));
+		final JSpinner dpiSpinner = new JSpinner(new SpinnerNumberModel(DEFAULT_DPI, 18, 2400, 1));
+		dpiSpinner.addChangeListener(new ChangeListener()
+		{
+			private int previous = DEFAULT_DPI;
+
+			@Override
+			public void stateChanged(ChangeEvent e)
+			{
+				int dpi = (Integer) dpiSpinner.getValue();
+				widthSpinner.setValue(Math.max(1, (int) Math.round((Integer) widthSpinner.getValue() * (double) dpi / previous)));
+				heightSpinner.setValue(Math.max(1, (int) Math.round((Integer) heightSpinner.getValue() * (double) dpi / previous)));
+				previous = dpi;
 			}
+		});
+		JPanel panel = new JPanel(new GridLayout(3, 2, 6, 6));
+		panel.add(new JLabel("Width (pixels):"));
+		panel.add(widthSpinner);
+		panel.add(new JLabel("Height (pixels):"));
+		panel.add(heightSpinner);
+		panel.add(new JLabel("Resolution (DPI):"));
+		panel.add(dpiSpinner);
+		int option = JOptionPane.showConfirmDialog(frame, panel, "Image size", JOptionPane.OK_CANCEL_OPTION, JOptionPane.PLAIN_MESSAGE);
+		if (option != JOptionPane.OK_OPTION)
+		{
+			return null;
 		}
+		return new Resolution((Integer) widthSpinner.getValue(), (Integer) heightSpinner.getValue(), (Integer) dpiSpinner.getValue());
 	}
 
 	/**
+	 * Open a "save as" dialog and ask the user for an image file name.
+	 * 
 	 * @param frame
+	 * @param format
+	 * @return the chosen file, or null if the user cancelled.
+	 */
+	public static File chooseSaveFile(Component frame, Format format)
+	{
+		return FileDialogs.chooseSaveFile(frame, format.title, format.filter);
+	}
+
+	/**
+	 * Write the chart to the given file in the given format. If the chart
+	 * shows a {@link DownsampledXYDataset}, it is set to one column per pixel
+	 * or point of the output first, so the size of the file and the time it
+	 * takes to write depend on the width rather than on the number of
+	 * readings.
+	 * 
+	 * @param f
+	 * @param format
 	 * @param chart
 	 * @param width
 	 * @param height
+	 * @throws IOException
 	 */
-	public static void saveSvg(JFrame frame, JFreeChart chart, int width,
+	public static void write(File f, Format format, JFreeChart chart, int width,
 			int height) throws IOException
 	{
-		boolean write = false;
-		JFileChooser fileChooser = new JFileChooser();
-		fileChooser.setDialogTitle("Save as Scalable Vector Graphics");
-		FileNameExtensionFilter filter = new FileNameExtensionFilter(
-				"SVG Images", "svg");
-		fileChooser.setFileFilter(filter);
-		if(lastDirectory!=null)
+		Charts.setOutputWidth(chart, width);
+		switch (format)
 		{
-			fileChooser.setCurrentDirectory(lastDirectory);
+			case PDF:
+				writePdf(f, chart, width, height);
+				break;
+			case SVG:
+				writeSvg(f, chart, width, height);
+				break;
+			case EPS:
+				writeEps(f, chart, width, height);
+				break;
+			case PNG:
+				writePng(f, chart, width, height);
+				break;
+			case JPG:
+				writeJpg(f, chart, width, height);
+				break;
 		}
-		int option = fileChooser.showSaveDialog(frame);
-		if (option == JFileChooser.APPROVE_OPTION
-				&& fileChooser.getSelectedFile() != null
-				&& !fileChooser.getSelectedFile().isDirectory())
+	}
+
+	/**
+	 * Write the chart to a PNG file of any size, or a JPEG file that fits in
+	 * memory. The chart is rendered in tiles on all processors; PNG files are
+	 * written as the tiles are rendered, so only a few tiles are held in
+	 * memory. JPEG files are the exception: they are assembled in memory
+	 * before they are written, as the JPEG encoder needs the whole image, so
+	 * they take 3 bytes per pixel and are refused if that is more than half
+	 * of the heap. A {@link DownsampledXYDataset} is set to the width of the
+	 * image first.
+	 * 
+	 * @param f
+	 * @param format
+	 *            PNG or JPG.
+	 * @param chart
+	 * @param width
+	 *            in pixels.
+	 * @param height
+	 *            in pixels.
+	 * @param scale
+	 *            pixels per unit of the chart layout, see
+	 *            {@link Resolution#getScale()}.
+	 * @param progress
+	 *            may be null.
+	 * @throws IOException
+	 */
+	public static void writeTiled(File f, Format format, JFreeChart chart, final int width, int height, double scale,
+			Progress progress) throws IOException
+	{
+		Charts.setOutputWidth(chart, width);
+		switch (format)
 		{
-			File f = fileChooser.getSelectedFile();
-			lastDirectory = f.getParentFile();
-			if (f.exists())
-			{
-				// confirm over-write
-				int result = JOptionPane.showConfirmDialog(frame, f.getName()
-						+ " already exists. Overwrite?", "File exists",
-						JOptionPane.YES_NO_OPTION);
-				if (result == JOptionPane.YES_OPTION)
+			case PNG:
+				final PngWriter png = new PngWriter(f, width, height);
+				try
 				{
-					write = true;
+					TiledRenderer.render(chart, width, height, scale, new TiledRenderer.TileSink()
+					{
+						@Override
+						public void writeTile(BufferedImage tile, int y, int rows) throws IOException
+						{
+							png.writeRows(tile, rows);
+						}
+					}, progress);
 				}
-			}
-			else
-			{
-				// file does not exists
-				write = true;
-			}
-			if (write)
-			{
-			    // Get a DOMImplementation.
-			    DOMImplementation domImpl =
-			      GenericDOMImplementation.getDOMImplementation();
+				catch (Throwable e)
+				{
+					// close without checking the rows, which would hide the failure
+					try
+					{
+						png.abort();
+					}
+					catch (IOException closeFailed)
+					{
+						e.addSuppressed(closeFailed);
+					}
+					throw e;
+				}
+				png.close();
+				break;
+			case JPG:
+				long bytes = 3L * width * height;
+				if (bytes > Runtime.getRuntime().maxMemory() / 2)
+				{
+					throw new IOException("A JPEG image of " + width + " by " + height + " pixels needs " + (bytes >> 20)
+							+ " MB of memory, save it as PNG instead");
+				}
+				final BufferedImage image = new BufferedImage(width, height, BufferedImage.TYPE_3BYTE_BGR);
+				TiledRenderer.render(chart, width, height, scale, new TiledRenderer.TileSink()
+				{
+					@Override
+					public void writeTile(BufferedImage tile, int y, int rows) throws IOException
+					{
+						image.getRaster().setRect(0, y, tile.getRaster().createChild(0, 0, width, rows, 0, 0, null));
+					}
+				}, progress);
+				if (!ImageIO.write(image, "jpg", f))
+				{
+					throw new IOException("No JPEG encoder available");
+				}
+				break;
+			default:
+				throw new IllegalArgumentException(format + " is not a raster format");
+		}
+	}
 
-			    // Create an instance of org.w3c.dom.Document.
-			    String svgNS = "http://www.w3.org/2000/svg";
-			    org.w3c.dom.Document document = domImpl.createDocument(svgNS, "svg", null);
+	/**
+	 * Write the chart to the given file in PDF format.
+	 * 
+	 * @param f
+	 * @param chart
+	 * @param width
+	 * @param height
+	 * @throws IOException
+	 */
+	public static void writePdf(File f, JFreeChart chart, int width,
+			int height) throws IOException
+	{
+		PdfWriter writer = null;
 
-			    // Create an instance of the SVG Generator.
-			    SVGGraphics2D svgGenerator = new SVGGraphics2D(document);
+		com.itextpdf.text.Document document = new com.itextpdf.text.Document();
+		document.setPageSize(new Rectangle(width, height));
+		try
+		{
+			writer = PdfWriter.getInstance(document,
+					new FileOutputStream(f));
+			document.open();
+			PdfContentByte contentByte = writer.getDirectContent();
+			PdfTemplate template = contentByte.createTemplate(width,
+					height);
+			Graphics2D graphics2d = new PdfGraphics2D(template, width,
+					height, new DefaultFontMapper());
+			Rectangle2D rectangle2d = new Rectangle2D.Double(0, 0,
+					width, height);
 
-			    // render the chart to the generator
-			    chart.draw(svgGenerator, new Rectangle2D.Double(0,0,width,height));
+			chart.draw(graphics2d, rectangle2d);
 
-			    // Finally, stream out SVG to the standard output using
-			    // UTF-8 encoding.
-			    boolean useCSS = true; // we want to use CSS style attributes
-			    Writer out = new OutputStreamWriter(new FileOutputStream(f), "UTF-8");
-			    svgGenerator.stream(out, useCSS);
-			}
+			graphics2d.dispose();
+			contentByte.addTemplate(template, 0, 0);
+		}
+		catch (DocumentException e)
+		{
+			throw new IOException("Could not create PDF document", e);
+		}
+		finally
+		{
+			// also closes the file
+			document.close();
 		}
 	}
 
 	/**
-	 * @param frame
+	 * Write the chart to the given file in SVG format.
+	 * 
+	 * @param f
 	 * @param chart
 	 * @param width
 	 * @param height
+	 * @throws IOException
 	 */
-	public static void saveEps(JFrame frame, JFreeChart chart, int width,
+	public static void writeSvg(File f, JFreeChart chart, int width,
 			int height) throws IOException
 	{
-		boolean write = false;
-		JFileChooser fileChooser = new JFileChooser();
-		fileChooser.setDialogTitle("Save as Encapsulated PostScript");
-		FileNameExtensionFilter filter = new FileNameExtensionFilter(
-				"EPS Images", "eps");
-		fileChooser.setFileFilter(filter);
-		if(lastDirectory!=null)
+		// the elements are written as they are drawn, so no document is
+		// held in memory
+		Writer out = new BufferedWriter(new OutputStreamWriter(new FileOutputStream(f), StandardCharsets.UTF_8));
+		try
 		{
-			fileChooser.setCurrentDirectory(lastDirectory);
+			SvgGraphics2D g2 = new SvgGraphics2D(out, width, height);
+			chart.draw(g2, new Rectangle2D.Double(0, 0, width, height));
+			g2.finish();
 		}
-		int option = fileChooser.showSaveDialog(frame);
-		if (option == JFileChooser.APPROVE_OPTION
-				&& fileChooser.getSelectedFile() != null
-				&& !fileChooser.getSelectedFile().isDirectory())
+		finally
 		{
-			File f = fileChooser.getSelectedFile();
-			lastDirectory = f.getParentFile();
-			if (f.exists())
-			{
-				// confirm over-write
-				int result = JOptionPane.showConfirmDialog(frame, f.getName()
-						+ " already exists. Overwrite?", "File exists",
-						JOptionPane.YES_NO_OPTION);
-				if (result == JOptionPane.YES_OPTION)
-				{
-					write = true;
-				}
-			}
-			else
-			{
-				// file does not exists
-				write = true;
-			}
-			if (write)
-			{
-				EPSDocumentGraphics2D g2d = new EPSDocumentGraphics2D(false);
-				g2d.setGraphicContext(new org.apache.xmlgraphics.java2d.GraphicContext());
-
-				// Set up the document size
-				g2d.setupDocument(new FileOutputStream(f), width, height);
-				Rectangle2D rectangle2d = new Rectangle2D.Double(0, 0, width,
-						height);
-				chart.draw(g2d, rectangle2d);
-				g2d.finish(); // Wrap up and finalize the EPS file
-			}
+			out.close();
 		}
 	}
 
 	/**
-	 * @param frame
+	 * Write the chart to the given file in EPS format.
+	 * 
+	 * @param f
 	 * @param chart
 	 * @param width
 	 * @param height
+	 * @throws IOException
 	 */
-	public static void savePng(JFrame frame, JFreeChart chart, int width,
+	public static void writeEps(File f, JFreeChart chart, int width,
 			int height) throws IOException
 	{
-		boolean write = false;
-		JFileChooser fileChooser = new JFileChooser();
-		fileChooser.setDialogTitle("Save as Portable Network Graphics");
-		FileNameExtensionFilter filter = new FileNameExtensionFilter(
-				"PNG Images", "png");
-		fileChooser.setFileFilter(filter);
-		if(lastDirectory!=null)
+		EPSDocumentGraphics2D g2d = new EPSDocumentGraphics2D(false);
+		g2d.setGraphicContext(new org.apache.xmlgraphics.java2d.GraphicContext());
+
+		OutputStream out = new BufferedOutputStream(new FileOutputStream(f));
+		try
 		{
-			fileChooser.setCurrentDirectory(lastDirectory);
+			// Set up the document size
+			g2d.setupDocument(out, width, height);
+			Rectangle2D rectangle2d = new Rectangle2D.Double(0, 0, width,
+					height);
+			chart.draw(g2d, rectangle2d);
+			g2d.finish(); // Wrap up and finalize the EPS file
 		}
-		int option = fileChooser.showSaveDialog(frame);
-		if (option == JFileChooser.APPROVE_OPTION
-				&& fileChooser.getSelectedFile() != null
-				&& !fileChooser.getSelectedFile().isDirectory())
+		finally
 		{
-			File f = fileChooser.getSelectedFile();
-			lastDirectory = f.getParentFile();
-			if (f.exists())
-			{
-				// confirm over-write
-				int result = JOptionPane.showConfirmDialog(frame, f.getName()
-						+ " already exists. Overwrite?", "File exists",
-						JOptionPane.YES_NO_OPTION);
-				if (result == JOptionPane.YES_OPTION)
-				{
-					write = true;
-				}
-			}
-			else
-			{
-				// file does not exists
-				write = true;
-			}
-			if (write)
-			{
-				// write the image
-				ChartUtilities.saveChartAsPNG(f, chart, width, height);
-			}
+			out.close();
 		}
 	}
 
 	/**
-	 * @param frame
+	 * Write the chart to the given file in PNG format.
+	 * 
+	 * @param f
 	 * @param chart
 	 * @param width
 	 * @param height
 	 * @throws IOException
 	 */
-	public static void saveJpg(JFrame frame, JFreeChart chart, int width,
+	public static void writePng(File f, JFreeChart chart, int width,
 			int height) throws IOException
 	{
-		boolean write = false;
-		JFileChooser fileChooser = new JFileChooser();
-		fileChooser.setDialogTitle("Save as Portable Network Graphics");
-		FileNameExtensionFilter filter = new FileNameExtensionFilter(
-				"JPG Images", "jpg", "jpeg");
-		fileChooser.setFileFilter(filter);
-		if(lastDirectory!=null)
+		BufferedImage image = chart.createBufferedImage(width, height, BufferedImage.TYPE_INT_RGB, null);
+		PngWriter png = new PngWriter(f, width, height);
+		try
 		{
-			fileChooser.setCurrentDirectory(lastDirectory);
+			png.writeRows(image, height);
 		}
-		int option = fileChooser.showSaveDialog(frame);
-		if (option == JFileChooser.APPROVE_OPTION
-				&& fileChooser.getSelectedFile() != null
-				&& !fileChooser.getSelectedFile().isDirectory())
+		finally
 		{
-			File f = fileChooser.getSelectedFile();
-			lastDirectory = f.getParentFile();
-			if (f.exists())
-			{
-				// confirm over-write
-				int result = JOptionPane.showConfirmDialog(frame, f.getName()
-						+ " already exists. Overwrite?", "File exists",
-						JOptionPane.YES_NO_OPTION);
-				if (result == JOptionPane.YES_OPTION)
-				{
-					write = true;
-				}
-			}
-			else
-			{
-				// file does not exists
-				write = true;
-			}
-			if (write)
-			{
-				// write the image
-				ChartUtilities.saveChartAsJPEG(f, chart, width, height);
-			}
+			png.close();
 		}
 	}
 
+	/**
+	 * Write the chart to the given file in JPEG format.
+	 * 
+	 * @param f
+	 * @param chart
+	 * @param width
+	 * @param height
+	 * @throws IOException
+	 */
+	public static void writeJpg(File f, JFreeChart chart, int width,
+			int height) throws IOException
+	{
+		// write the image
+		ChartUtilities.saveChartAsJPEG(f, chart, width, height);
+	}
 }
@@ -0,0 +1,602 @@
+/*******************************************************************************
+ *  
+ * Copyright (c) 2009, 2019 Erik Berglund.
+ *    
+ *       This file is part of Conserve.
+ *   
+ *       Conserve is free software: you can redistribute it and/or modify
+ *       it under the terms of the GNU Affero General Public License as published by
+ *       the Free Software Foundation, either version 3 of the License, or
+ *       (at your option) any later version.
+ *   
+ *       Conserve is distributed in the hope that it will be useful,
+ *       but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *       MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *       GNU Affero General Public License for more details.
+ *   
+ *       You should have received a copy of the GNU Affero General Public License
+ *       along with Conserve.  If not, see <https://www.gnu.org/licenses/agpl.html>.
+ *       
+ *******************************************************************************/
+package com.gammascout.fileio;
+
+import java.io.File;
+import java.io.FilenameFilter;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.zip.CRC32;
+
+import com.gammascout.usb.GammaScoutListener;
+import com.gammascout.usb.Reading;
+
+/**
+ * Append-only journal of downloaded readings.
+ * <p>
+ * Readings received from a connector are queued and written to disk by a
+ * background thread, so the thread decoding the log never waits for the disk.
+ * The writer thread takes everything that has been queued since its last
+ * write, appends it as one checksummed frame and forces it to disk once per
+ * frame (group commit).
+ * <p>
+ * The journal is split into segments. Each download starts a new segment,
+ * which is a checkpoint: the readings of earlier segments were replaced on
+ * screen. If a write fails, the partial frame is cut off so the frames after
+ * it can still be read, and if that fails too, writing continues in a new
+ * segment that continues the download rather than starting one. On startup
+ * the segments from the latest checkpoint on are read back to restore the
+ * data that was on screen; a torn frame at the end of a segment, left by a
+ * crash, is discarded. Once the segment of a new download is on disk, the
+ * segments before it are deleted, so the journal holds one download. Files
+ * that do not start with a known header, e.g. from a newer version, are
+ * reported and left alone.
+ * 
+ * @author Erik Berglund
+ * 
+ */
+public class Journal implements GammaScoutListener, Runnable
+{
+	/**
+	 * The system property that overrides the default data directory.
+	 */
+	public static final String DATA_DIRECTORY_PROPERTY = "opengammatool.datadir";
+	private static final String SEGMENT_PREFIX = "journal-";
+	private static final String SEGMENT_SUFFIX = ".ogj";
+	/**
+	 * "OGJ" followed by the format version, starting a segment that starts a
+	 * download.
+	 */
+	private static final int MAGIC = 0x4F474A01;
+	/**
+	 * "OGC" followed by the format version, starting a segment that continues
+	 * the download of the previous segment.
+	 */
+	private static final int CONTINUED_MAGIC = 0x4F474301;
+	private static final int FRAME_HEADER_SIZE = 8;
+	private static final int RECORD_SIZE = 21;
+	/**
+	 * Queued in place of a reading to make the writer thread start a new
+	 * segment.
+	 */
+	private static final Reading NEW_SEGMENT = new Reading();
+	/**
+	 * Queued in place of a reading to make the writer thread stop.
+	 */
+	private static final Reading STOP = new Reading();
+
+	private final File directory;
+	private final LinkedBlockingQueue<Reading> queue = new LinkedBlockingQueue<>();
+	private RandomAccessFile segment;
+	private volatile Thread writer;
+	private final CRC32 crc = new CRC32();
+
+	/**
+	 * Get the data directory, either from the {@value #DATA_DIRECTORY_PROPERTY}
+	 * system property or ".opengammatool" in the user's home directory.
+	 * 
+	 * @return
+	 */
+	public static File getDefaultDirectory()
+	{
+		String dir = System.getProperty(DATA_DIRECTORY_PROPERTY);
+		if (dir != null)
+		{
+			return new File(dir);
+		}
+		return new File(System.getProperty("user.home"), ".opengammatool");
+	}
+
+	/**
+	 * Create a journal in the given directory. The directory is created if it
+	 * does not exist. Call {@link #open(List)} before use.
+	 * 
+	 * @param directory
+	 */
+	public Journal(File directory)
+	{
+		this.directory = directory;
+	}
+
+	/**
+	 * Read back the segments from the latest checkpoint on into data, and
+	 * start the writer thread appending to the last segment.
+	 * 
+	 * @param data
+	 *            the list to add the journalled readings to.
+	 * @throws IOException
+	 */
+	public synchronized void open(List<Reading> data) throws IOException
+	{
+		if (!directory.isDirectory() && !directory.mkdirs())
+		{
+			throw new IOException("Could not create data directory " + directory);
+		}
+		prune();
+		List<File> segments = new ArrayList<>();
+		int checkpoint = 0;
+		for (File f : listSegments())
+		{
+			int magic = readMagic(f);
+			if (magic == MAGIC || magic == CONTINUED_MAGIC)
+			{
+				if (magic == MAGIC)
+				{
+					checkpoint = segments.size();
+				}
+				segments.add(f);
+			}
+			else if (f.length() < 4)
+			{
+				// a crash while the segment was created, so it holds no readings
+				if (f.delete())
+				{
+					System.out.println("Discarded journal segment without a header " + f);
+				}
+			}
+			else
+			{
+				System.err.println("Skipping journal segment of an unknown format " + f);
+			}
+		}
+		for (int x = checkpoint; x < segments.size(); x++)
+		{
+			File f = segments.get(x);
+			RandomAccessFile file = new RandomAccessFile(f, "rw");
+			try
+			{
+				long validLength = replay(file, data);
+				if (validLength < file.length())
+				{
+					System.out.println("Discarding " + (file.length() - validLength) + " bytes of incomplete journal data in " + f);
+					file.setLength(validLength);
+				}
+				file.seek(validLength);
+			}
+			catch (IOException e)
+			{
+				file.close();
+				throw e;
+			}
+			if (x == segments.size() - 1)
+			{
+				segment = file;
+			}
+			else
+			{
+				file.close();
+			}
+		}
+		if (segment == null)
+		{
+			segment = createSegment(MAGIC);
+		}
+		writer = new Thread(this, "Journal writer");
+		writer.setDaemon(true);
+		writer.start();
+	}
+
+	/**
+	 * Start a new segment. Readings received after this call go to the new
+	 * segment, and the new segment is what will be restored on the next
+	 * start.
+	 */
+	public void startSegment()
+	{
+		if (writer != null)
+		{
+			queue.add(NEW_SEGMENT);
+		}
+	}
+
+	/**
+	 * Write any queued readings and stop the writer thread.
+	 */
+	public void close()
+	{
+		Thread t;
+		synchronized (this)
+		{
+			t = writer;
+			writer = null;
+		}
+		if (t != null)
+		{
+			queue.add(STOP);
+			try
+			{
+				t.join();
+			}
+			catch (InterruptedException e)
+			{
+				// do nothing
+			}
+		}
+	}
+
+	/**
+	 * Queue the reading for writing. Never blocks. Readings received while the
+	 * journal is not open are ignored.
+	 * 
+	 * @see com.gammascout.usb.GammaScoutListener#receiveReading(com.gammascout.usb.Reading)
+	 */
+	@Override
+	public void receiveReading(Reading r)
+	{
+		if (writer != null)
+		{
+			queue.add(r);
+		}
+	}
+
+	/**
+	 * The writer thread.
+	 * 
+	 * @see java.lang.Runnable#run()
+	 */
+	@Override
+	public void run()
+	{
+		List<Reading> batch = new ArrayList<>();
+		ByteBuffer frame = ByteBuffer.allocate(FRAME_HEADER_SIZE + 1024 * RECORD_SIZE);
+		boolean running = true;
+		while (running)
+		{
+			try
+			{
+				batch.add(queue.take());
+				queue.drainTo(batch);
+				int start = 0;
+				for (int x = 0; x < batch.size(); x++)
+				{
+					Reading r = batch.get(x);
+					if (r == NEW_SEGMENT || r == STOP)
+					{
+						frame = writeFrame(batch.subList(start, x), frame);
+						start = x + 1;
+						if (r == NEW_SEGMENT)
+						{
+							newSegment();
+						}
+						else
+						{
+							running = false;
+							break;
+						}
+					}
+				}
+				if (running)
+				{
+					frame = writeFrame(batch.subList(start, batch.size()), frame);
+				}
+			}
+			catch (InterruptedException e)
+			{
+				// do nothing
+			}
+			batch.clear();
+		}
+		try
+		{
+			segment.close();
+		}
+		catch (IOException e)
+		{
+			e.printStackTrace();
+		}
+	}
+
+	/**
+	 * Close the current segment, create one that starts a download and
+	 * delete the segments before it.
+	 */
+	private void newSegment()
+	{
+		try
+		{
+			segment.close();
+			segment = createSegment(MAGIC);
+			prune();
+		}
+		catch (IOException e)
+		{
+			e.printStackTrace();
+		}
+	}
+
+	/**
+	 * Write the readings as one frame and force it to disk. A failure is
+	 * reported and the frame dropped, leaving the segment at the end of the
+	 * previous frame or continued in a new segment, so later frames are
+	 * still read back.
+	 * 
+	 * @return the frame buffer, grown if necessary.
+	 */
+	private ByteBuffer writeFrame(List<Reading> readings, ByteBuffer frame)
+	{
+		if (readings.isEmpty())
+		{
+			return frame;
+		}
+		int size = FRAME_HEADER_SIZE + readings.size() * RECORD_SIZE;
+		if (frame.capacity() < size)
+		{
+			frame = ByteBuffer.allocate(size);
+		}
+		frame.clear();
+		frame.position(FRAME_HEADER_SIZE);
+		for (Reading r : readings)
+		{
+			frame.putLong(r.getTime());
+			frame.putLong(r.getCount());
+			frame.putInt((int) r.getInterval());
+			frame.put((byte) (r.isSaturated() ? 1 : 0));
+		}
+		crc.reset();
+		crc.update(frame.array(), FRAME_HEADER_SIZE, size - FRAME_HEADER_SIZE);
+		frame.putInt(0, readings.size());
+		frame.putInt(4, (int) crc.getValue());
+		frame.flip();
+		FileChannel channel = segment.getChannel();
+		long end = -1;
+		try
+		{
+			end = channel.position();
+			while (frame.hasRemaining())
+			{
+				channel.write(frame);
+			}
+			channel.force(false);
+		}
+		catch (IOException e)
+		{
+			// a partial frame would end the replay of the segment, and every
+			// frame written after it would be lost
+			try
+			{
+				if (end < 0)
+				{
+					throw new IOException("Journal segment is unusable");
+				}
+				channel.truncate(end);
+				channel.position(end);
+			}
+			catch (IOException truncateFailed)
+			{
+				e.addSuppressed(truncateFailed);
+				continueInNewSegment(e);
+			}
+			System.err.println("Could not journal " + readings.size() + " readings");
+			e.printStackTrace();
+		}
+		return frame;
+	}
+
+	/**
+	 * Leave the current segment, which may end in a partial frame, and write
+	 * the rest of the download to a new segment.
+	 * 
+	 * @param cause
+	 *            the failure that made the segment unusable, which any
+	 *            further failure is added to.
+	 */
+	private void continueInNewSegment(IOException cause)
+	{
+		try
+		{
+			segment.close();
+		}
+		catch (IOException e)
+		{
+			cause.addSuppressed(e);
+		}
+		try
+		{
+			segment = createSegment(CONTINUED_MAGIC);
+		}
+		catch (IOException e)
+		{
+			// the closed segment makes the next write fail and try again
+			cause.addSuppressed(e);
+		}
+	}
+
+	/**
+	 * Delete the segments before the latest segment that starts a download,
+	 * whose readings are not restored any more. Segments of an unknown format
+	 * are kept.
+	 */
+	private void prune()
+	{
+		File[] segments = listSegments();
+		List<File> known = new ArrayList<>();
+		for (File f : segments)
+		{
+			try
+			{
+				int magic = readMagic(f);
+				if (magic == MAGIC)
+				{
+					for (File old : known)
+					{
+						if (!old.delete())
+						{
+							System.err.println("Could not delete old journal segment " + old);
+						}
+					}
+					known.clear();
+				}
+				if (magic == MAGIC || magic == CONTINUED_MAGIC)
+				{
+					known.add(f);
+				}
+			}
+			catch (IOException e)
+			{
+				e.printStackTrace();
+			}
+		}
+	}
+
+	/**
+	 * Read the header of a segment.
+	 * 
+	 * @return the header, or 0 if the segment is shorter than one.
+	 */
+	private static int readMagic(File f) throws IOException
+	{
+		RandomAccessFile file = new RandomAccessFile(f, "r");
+		try
+		{
+			return file.length() < 4 ? 0 : file.readInt();
+		}
+		finally
+		{
+			file.close();
+		}
+	}
+
+	/**
+	 * Read all complete frames of a segment with a valid header into data.
+	 * 
+	 * @return the length of the valid part of the segment.
+	 */
+	private long replay(RandomAccessFile file, List<Reading> data) throws IOException
+	{
+		FileChannel channel = file.getChannel();
+		long length = channel.size();
+		long position = 4;
+		ByteBuffer header = ByteBuffer.allocate(FRAME_HEADER_SIZE);
+		while (position + FRAME_HEADER_SIZE <= length)
+		{
+			header.clear();
+			readFully(channel, header, position);
+			int count = header.getInt(0);
+			int checksum = header.getInt(4);
+			long payloadSize = (long) count * RECORD_SIZE;
+			if (count <= 0 || position + FRAME_HEADER_SIZE + payloadSize > length)
+			{
+				break;
+			}
+			ByteBuffer payload = ByteBuffer.allocate((int) payloadSize);
+			readFully(channel, payload, position + FRAME_HEADER_SIZE);
+			crc.reset();
+			crc.update(payload.array(), 0, payload.capacity());
+			if ((int) crc.getValue() != checksum)
+			{
+				break;
+			}
+			payload.flip();
+			for (int x = 0; x < count; x++)
+			{
+				Reading r = new Reading();
+				r.setTime(payload.getLong());
+				r.setCount(payload.getLong());
+				r.setInterval(payload.getInt());
+				r.setSaturated(payload.get() != 0);
+				data.add(r);
+			}
+			position += FRAME_HEADER_SIZE + payloadSize;
+		}
+		return position;
+	}
+
+	private static boolean readFully(FileChannel channel, ByteBuffer buffer, long position) throws IOException
+	{
+		while (buffer.hasRemaining())
+		{
+			int read = channel.read(buffer, position);
+			if (read < 0)
+			{
+				return false;
+			}
+			position += read;
+		}
+		return true;
+	}
+
+	/**
+	 * Create an empty segment named after the current time, or after the
+	 * latest segment if the clock is behind it, so that segments sort in the
+	 * order they were created.
+	 * 
+	 * @param magic
+	 *            {@link #MAGIC} or {@link #CONTINUED_MAGIC}.
+	 */
+	private RandomAccessFile createSegment(int magic) throws IOException
+	{
+		long name = System.currentTimeMillis();
+		File[] segments = listSegments();
+		if (segments.length > 0)
+		{
+			String latest = segments[segments.length - 1].getName();
+			try
+			{
+				name = Math.max(name, Long.parseLong(latest.substring(SEGMENT_PREFIX.length(), latest.length()
+						- SEGMENT_SUFFIX.length())) + 1);
+			}
+			catch (NumberFormatException e)
+			{
+				// not named by this class, keep the time
+			}
+		}
+		File f;
+		// segments created in the same millisecond must not overwrite each other
+		while ((f = new File(directory, SEGMENT_PREFIX + String.format("%013d", name) + SEGMENT_SUFFIX)).exists())
+		{
+			name++;
+		}
+		RandomAccessFile result = new RandomAccessFile(f, "rw");
+		result.setLength(0);
+		result.writeInt(magic);
+		result.getChannel().force(true);
+		return result;
+	}
+
+	/**
+	 * Get all segments in the data directory, oldest first.
+	 * 
+	 * @return
+	 */
+	public File[] listSegments()
+	{
+		File[] result = directory.listFiles(new FilenameFilter()
+		{
+			@Override
+			public boolean accept(File dir, String name)
+			{
+				return name.startsWith(SEGMENT_PREFIX) && name.endsWith(SEGMENT_SUFFIX);
+			}
+		});
+		if (result == null)
+		{
+			result = new File[0];
+		}
+		Arrays.sort(result);
+		return result;
+	}
+}
@@ -0,0 +1,494 @@
+/*******************************************************************************
+ *  
+ * Copyright (c) 2009, 2019 Erik Berglund.
+ *    
+ *       This file is part of Conserve.
+ *   
+ *       Conserve is free software: you can redistribute it and/or modify
+ *       it under the terms of the GNU Affero General Public License as published by
+ *       the Free Software Foundation, either version 3 of the License, or
+ *       (at your option) any later version.
+ *   
+ *       Conserve is distributed in the hope that it will be useful,
+ *       but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *       MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *       GNU Affero General Public License for more details.
+ *   
+ *       You should have received a copy of the GNU Affero General Public License
+ *       along with Conserve.  If not, see <https://www.gnu.org/licenses/agpl.html>.
+ *       
+ *******************************************************************************/
+package com.gammascout.fileio;
+
+import java.awt.Component;
+import java.io.File;
+import java.io.IOException;
+import java.text.DateFormat;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.List;
+import java.util.PriorityQueue;
+
+import javax.swing.JOptionPane;
+import javax.swing.filechooser.FileNameExtensionFilter;
+
+import com.gammascout.usb.GammaScoutListener;
+import com.gammascout.usb.Reading;
+import com.gammascout.usb.ReadingStore;
+import com.gammascout.usb.Tools;
+
+/**
+ * Merges several logs, typically overlapping downloads from the same device,
+ * into one time ordered log.
+ * <p>
+ * The inputs are merged by (time, interval) with a k-way merge that reads each
+ * input one reading at a time, so only one reading per input (one block for
+ * OGT files) is held in memory. Readings that are identical in all inputs are
+ * written once. Readings with the same time and interval but a different count
+ * or saturation flag are conflicts: the reading from the earliest input is
+ * kept and the conflict is reported.
+ * 
+ * @author Erik Berglund
+ * 
+ */
+public class MergeTool extends FileTool
+{
+	/**
+	 * The maximum number of conflicts to list in the result.
+	 */
+	private static final int MAX_REPORTED_CONFLICTS = 100;
+	/**
+	 * The number of readings between progress reports.
+	 */
+	private static final int PROGRESS_INTERVAL = 10000;
+
+	/**
+	 * Orders readings by time, then interval.
+	 */
+	public static final Comparator<Reading> TIME_ORDER = new Comparator<Reading>()
+	{
+		@Override
+		public int compare(Reading a, Reading b)
+		{
+			int result = Long.compare(a.getTime(), b.getTime());
+			if (result == 0)
+			{
+				result = Long.compare(a.getInterval(), b.getInterval());
+			}
+			return result;
+		}
+	};
+
+	/**
+	 * The outcome of a merge.
+	 */
+	public static class Result
+	{
+		private long readingsRead;
+		private long readingsWritten;
+		private long duplicates;
+		private long conflicts;
+		private List<String> conflictDescriptions = new ArrayList<>();
+
+		/**
+		 * Get the total number of readings in all inputs.
+		 * 
+		 * @return
+		 */
+		public long getReadingsRead()
+		{
+			return readingsRead;
+		}
+
+		/**
+		 * Get the number of readings in the merged log.
+		 * 
+		 * @return
+		 */
+		public long getReadingsWritten()
+		{
+			return readingsWritten;
+		}
+
+		/**
+		 * Get the number of identical readings that were dropped.
+		 * 
+		 * @return
+		 */
+		public long getDuplicates()
+		{
+			return duplicates;
+		}
+
+		/**
+		 * Get the number of readings that were dropped because they disagreed
+		 * with an earlier input.
+		 * 
+		 * @return
+		 */
+		public long getConflicts()
+		{
+			return conflicts;
+		}
+
+		/**
+		 * Get a description of the first conflicts.
+		 * 
+		 * @return
+		 */
+		public List<String> getConflictDescriptions()
+		{
+			return conflictDescriptions;
+		}
+	}
+
+	/**
+	 * Open a dialog and ask the user for files to merge.
+	 * 
+	 * @param frame
+	 * @return the chosen files, empty if the user cancelled.
+	 */
+	public static File[] chooseOpenFiles(Component frame)
+	{
+		return FileDialogs.chooseOpenFiles(frame, "Merge logs", new FileNameExtensionFilter("CSV and OGT files", "csv", "ogt"));
+	}
+
+	/**
+	 * Merge the files with the readings in data, and replace data with the
+	 * result. Data is only locked while it is copied and replaced. Readings
+	 * added to data meanwhile, e.g. by a download, are merged into the result
+	 * before it replaces data, and win any conflicts as data does.
+	 * 
+	 * @param files
+	 * @param data
+	 * @param progress
+	 *            may be null.
+	 * @return the result of the merge.
+	 * @throws IOException
+	 * @throws java.util.concurrent.CancellationException
+	 *             if the progress is cancelled, in which case data is left
+	 *             unchanged.
+	 */
+	public static Result mergeFiles(File[] files, ReadingStore data, Progress progress) throws IOException
+	{
+		Result result;
+		List<ReadingInput> inputs = new ArrayList<>();
+		final List<Reading> merged = new ArrayList<>();
+		int modificationCount;
+		try
+		{
+			// the current data goes first, so it wins any conflicts
+			synchronized (data)
+			{
+				inputs.add(sortedInput(new ArrayList<>(data)));
+				modificationCount = data.getModificationCount();
+			}
+			for (File f : files)
+			{
+				inputs.add(openSorted(f));
+			}
+			result = merge(inputs, new GammaScoutListener()
+			{
+				@Override
+				public void receiveReading(Reading r)
+				{
+					merged.add(r);
+				}
+			}, progress);
+		}
+		finally
+		{
+			for (ReadingInput input : inputs)
+			{
+				input.close();
+			}
+		}
+		synchronized (data)
+		{
+			List<Reading> replacement = merged;
+			if (data.getModificationCount() != modificationCount)
+			{
+				replacement = mergeAdded(data, merged, result);
+			}
+			data.clear();
+			data.addAll(replacement);
+		}
+		return result;
+	}
+
+	/**
+	 * Merge the readings that are in data now with the result of a merge of
+	 * an earlier copy of data, and count the conflicts of readings added to
+	 * data since then.
+	 */
+	private static List<Reading> mergeAdded(List<Reading> data, List<Reading> merged, Result result) throws IOException
+	{
+		final List<Reading> replacement = new ArrayList<>();
+		Result added = merge(Arrays.asList(sortedInput(new ArrayList<>(data)), sortedInput(merged)), new GammaScoutListener()
+		{
+			@Override
+			public void receiveReading(Reading r)
+			{
+				replacement.add(r);
+			}
+		});
+		result.readingsWritten = added.readingsWritten;
+		if (added.conflicts > 0)
+		{
+			result.conflicts += added.conflicts;
+			result.conflictDescriptions.add(added.conflicts + " merged readings were replaced by readings added during the merge");
+		}
+		return replacement;
+	}
+
+	/**
+	 * Show a summary of the merge in a dialog, and list any conflicts on
+	 * standard out.
+	 * 
+	 * @param frame
+	 * @param result
+	 */
+	public static void showResult(Component frame, Result result)
+	{
+		StringBuilder message = new StringBuilder();
+		message.append("Merged ").append(result.getReadingsRead()).append(" readings into ").append(result.getReadingsWritten())
+				.append(".\n").append(result.getDuplicates()).append(" duplicate readings were dropped.");
+		if (result.getConflicts() > 0)
+		{
+			message.append("\n").append(result.getConflicts()).append(" readings disagreed with an earlier file and were dropped.");
+			for (String conflict : result.getConflictDescriptions())
+			{
+				System.out.println("Merge conflict: " + conflict);
+			}
+		}
+		JOptionPane.showMessageDialog(frame, message.toString(), "Merge complete",
+				result.getConflicts() > 0 ? JOptionPane.WARNING_MESSAGE : JOptionPane.INFORMATION_MESSAGE);
+	}
+
+	/**
+	 * Open a CSV or OGT file, chosen by the file extension, as a time ordered
+	 * input. Files that are already in time order, like all files written by
+	 * this tool from a single download, are read one reading at a time; other
+	 * files are read into memory and sorted.
+	 * 
+	 * @param f
+	 * @return
+	 * @throws IOException
+	 */
+	public static ReadingInput openSorted(File f) throws IOException
+	{
+		if (isSorted(f))
+		{
+			return open(f);
+		}
+		System.out.println(f.getName() + " is not in time order, sorting it in memory.");
+		List<Reading> readings = new ArrayList<>();
+		ReadingInput input = open(f);
+		try
+		{
+			Reading r = input.next();
+			while (r != null)
+			{
+				readings.add(r);
+				r = input.next();
+			}
+		}
+		finally
+		{
+			input.close();
+		}
+		return sortedInput(readings);
+	}
+
+	/**
+	 * Open a CSV or OGT file, chosen by the file extension.
+	 * 
+	 * @param f
+	 * @return
+	 * @throws IOException
+	 */
+	public static ReadingInput open(File f) throws IOException
+	{
+		if (f.getName().toLowerCase().endsWith(".ogt"))
+		{
+			return BinaryTool.openOGT(f);
+		}
+		return TextTool.openCSV(f);
+	}
+
+	/**
+	 * Merge the inputs, each of which must be in time order, and send the
+	 * merged readings to the sink in time order.
+	 * 
+	 * @param inputs
+	 * @param sink
+	 * @return
+	 * @throws IOException
+	 */
+	public static Result merge(List<ReadingInput> inputs, GammaScoutListener sink) throws IOException
+	{
+		return merge(inputs, sink, null);
+	}
+
+	/**
+	 * Merge the inputs, each of which must be in time order, and send the
+	 * merged readings to the sink in time order, reporting the number of
+	 * readings read.
+	 * 
+	 * @param inputs
+	 * @param sink
+	 * @param progress
+	 *            may be null.
+	 * @return
+	 * @throws IOException
+	 * @throws java.util.concurrent.CancellationException
+	 *             if the progress is cancelled.
+	 */
+	public static Result merge(List<ReadingInput> inputs, GammaScoutListener sink, Progress progress) throws IOException
+	{
+		Result result = new Result();
+		// not the shared format, since merges run on worker threads
+		DateFormat dateFormat = Tools.createDateFormat();
+		PriorityQueue<Cursor> queue = new PriorityQueue<>(Math.max(1, inputs.size()));
+		for (int x = 0; x < inputs.size(); x++)
+		{
+			Cursor c = new Cursor(inputs.get(x), x);
+			if (c.advance())
+			{
+				queue.add(c);
+			}
+		}
+		Reading last = null;
+		while (!queue.isEmpty())
+		{
+			Cursor c = queue.poll();
+			Reading r = c.current;
+			result.readingsRead++;
+			if (progress != null && result.readingsRead % PROGRESS_INTERVAL == 0)
+			{
+				ExportService.checkCancelled(progress);
+				progress.setProgress(result.readingsRead, -1);
+			}
+			if (last != null && TIME_ORDER.compare(last, r) == 0)
+			{
+				if (last.getCount() == r.getCount() && last.isSaturated() == r.isSaturated())
+				{
+					result.duplicates++;
+				}
+				else
+				{
+					result.conflicts++;
+					if (result.conflictDescriptions.size() < MAX_REPORTED_CONFLICTS)
+					{
+						result.conflictDescriptions.add(dateFormat.format(r.getToDate()) + ": kept count " + last.getCount()
+								+ (last.isSaturated() ? " (saturated)" : "") + ", dropped count " + r.getCount()
+								+ (r.isSaturated() ? " (saturated)" : "") + " from input " + (c.inputNumber + 1));
+					}
+				}
+			}
+			else
+			{
+				sink.receiveReading(r);
+				result.readingsWritten++;
+				last = r;
+			}
+			if (c.advance())
+			{
+				queue.add(c);
+			}
+		}
+		return result;
+	}
+
+	/**
+	 * Check if the file is in time order without keeping its readings.
+	 */
+	private static boolean isSorted(File f) throws IOException
+	{
+		ReadingInput input = open(f);
+		try
+		{
+			Reading previous = input.next();
+			Reading r = previous == null ? null : input.next();
+			while (r != null)
+			{
+				if (TIME_ORDER.compare(previous, r) > 0)
+				{
+					return false;
+				}
+				previous = r;
+				r = input.next();
+			}
+			return true;
+		}
+		finally
+		{
+			input.close();
+		}
+	}
+
+	/**
+	 * Sort the readings and return them as an input.
+	 */
+	private static ReadingInput sortedInput(final List<Reading> readings)
+	{
+		Collections.sort(readings, TIME_ORDER);
+		return new ReadingInput()
+		{
+			private int position;
+
+			@Override
+			public Reading next()
+			{
+				return position < readings.size() ? readings.get(position++) : null;
+			}
+
+			@Override
+			public void close()
+			{
+				// nothing to close
+			}
+		};
+	}
+
+	/**
+	 * The current reading of one input. Orders by the current reading, then
+	 * by input number so that earlier inputs win conflicts.
+	 */
+	private static class Cursor implements Comparable<Cursor>
+	{
+		private final ReadingInput input;
+		private final int inputNumber;
+		private Reading current;
+
+		Cursor(ReadingInput input, int inputNumber)
+		{
+			this.input = input;
+			this.inputNumber = inputNumber;
+		}
+
+		/**
+		 * Move to the next reading of the input.
+		 * 
+		 * @return false if the input is exhausted.
+		 */
+		boolean advance() throws IOException
+		{
+			current = input.next();
+			return current != null;
+		}
+
+		@Override
+		public int compareTo(Cursor o)
+		{
+			int result = TIME_ORDER.compare(current, o.current);
+			if (result == 0)
+			{
+				result = Integer.compare(inputNumber, o.inputNumber);
+			}
+			return result;
+		}
+	}
+}
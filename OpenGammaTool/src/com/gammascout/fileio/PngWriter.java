@@ -0,0 +1,629 @@
+/*******************************************************************************
+ *  
+ * Copyright (c) 2009, 2019 Erik Berglund.
+ *    
+ *       This file is part of Conserve.
+ *   
+ *       Conserve is free software: you can redistribute it and/or modify
+ *       it under the terms of the GNU Affero General Public License as published by
+ *       the Free Software Foundation, either version 3 of the License, or
+ *       (at your option) any later version.
+ *   
+ *       Conserve is distributed in the hope that it will be useful,
+ *       but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *       MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *       GNU Affero General Public License for more details.
+ *   
+ *       You should have received a copy of the GNU Affero General Public License
+ *       along with Conserve.  If not, see <https://www.gnu.org/licenses/agpl.html>.
+ *       
+ *******************************************************************************/
+package com.gammascout.fileio;
+
+import java.awt.image.BufferedImage;
+import java.awt.image.DataBufferInt;
+import java.io.ByteArrayOutputStream;
+import java.io.Closeable;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayDeque;
+import java.util.Deque;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Future;
+import java.util.zip.Adler32;
+import java.util.zip.CRC32;
+import java.util.zip.Deflater;
+
+/**
+ * Writes an 8 bit RGB PNG image one row at a time, so that images far larger
+ * than the heap can be written as they are rendered.
+ * <p>
+ * The rows are collected in blocks of about 256 kB that are filtered and
+ * compressed in parallel on the {@link WorkerPool}. Each block is compressed
+ * by its own Deflater, primed with the last 32 kB of the previous block so
+ * the compression is nearly as good as with a single Deflater, and ends on a
+ * byte boundary. The blocks are joined into one zlib stream, with the
+ * checksum combined from the checksums of the blocks, and written to the
+ * file in order.
+ * <p>
+ * Each row is filtered with the PNG filter that gives the smallest sum of
+ * absolute differences, the usual heuristic for images with both flat areas
+ * and lines.
+ * 
+ * @author Erik Berglund
+ * 
+ */
+public class PngWriter implements Closeable
+{
+	private static final byte[] SIGNATURE = { (byte) 137, 80, 78, 71, 13, 10, 26, 10 };
+	/**
+	 * The zlib header for deflate with a 32 kB window and default compression.
+	 */
+	private static final byte[] ZLIB_HEADER = { 0x78, (byte) 0x9c };
+	/**
+	 * The approximate number of uncompressed bytes in a block.
+	 */
+	private static final int BLOCK_SIZE = 1 << 18;
+	/**
+	 * The size of the deflate window, and so of the dictionary of a block.
+	 */
+	private static final int WINDOW_SIZE = 1 << 15;
+	private static final int ADLER_BASE = 65521;
+
+	private final FileChannel channel;
+	private final int width;
+	private final int height;
+	private final int rowBytes;
+	private final int blockRows;
+	private final int contextRows;
+	private final int[] rowPixels;
+	private final Deque<Future<Block>> pending = new ArrayDeque<>();
+	private final int maxPending;
+	private byte[] block;
+	private int rowsInBlock;
+	private byte[] previousBlock;
+	private int previousBlockRows;
+	private int rowsWritten;
+	private boolean headerWritten;
+	private long adler = 1;
+
+	/**
+	 * Create the file and start a PNG image of the given size in it.
+	 * 
+	 * @param f
+	 * @param width
+	 * @param height
+	 * @throws IOException
+	 */
+	public PngWriter(File f, int width, int height) throws IOException
+	{
+		this.width = width;
+		this.height = height;
+		rowBytes = width * 3;
+		// the rows of the previous block that fill the dictionary of a block
+		contextRows = (WINDOW_SIZE + rowBytes) / (rowBytes + 1);
+		// a block must hold the context of the next block, plus the row
+		// before it; a larger block keeps the cost of filtering the context
+		// again small for wide images
+		blockRows = Math.max(8 * contextRows + 1, BLOCK_SIZE / (rowBytes + 1));
+		rowPixels = new int[width];
+		maxPending = 2 * WorkerPool.getThreadCount();
+		block = new byte[blockRows * rowBytes];
+
+		channel = FileChannel.open(f.toPath(), StandardOpenOption.CREATE, StandardOpenOption.WRITE,
+				StandardOpenOption.TRUNCATE_EXISTING);
+		ByteArrayOutputStream header = new ByteArrayOutputStream();
+		DataOutputStream data = new DataOutputStream(header);
+		data.writeInt(width);
+		data.writeInt(height);
+		// 8 bits per sample, RGB, deflate, adaptive filtering, no interlace
+		data.writeByte(8);
+		data.writeByte(2);
+		data.writeByte(0);
+		data.writeByte(0);
+		data.writeByte(0);
+		writeFully(ByteBuffer.wrap(SIGNATURE));
+		writeChunk("IHDR", ByteBuffer.wrap(header.toByteArray()));
+	}
+
+	/**
+	 * Write the first rows of the image, which must be the next rows of the
+	 * PNG image.
+	 * 
+	 * @param image
+	 * @param rows
+	 * @throws IOException
+	 */
+	public void writeRows(BufferedImage image, int rows) throws IOException
+	{
+		if (image.getType() == BufferedImage.TYPE_INT_RGB && image.getRaster().getDataBuffer() instanceof DataBufferInt)
+		{
+			// read the pixels directly from a freshly created image
+			int[] pixels = ((DataBufferInt) image.getRaster().getDataBuffer()).getData();
+			for (int y = 0; y < rows; y++)
+			{
+				writeRow(pixels, y * image.getWidth());
+			}
+		}
+		else
+		{
+			for (int y = 0; y < rows; y++)
+			{
+				image.getRGB(0, y, width, 1, rowPixels, 0, width);
+				writeRow(rowPixels, 0);
+			}
+		}
+	}
+
+	/**
+	 * Write the next row of the image.
+	 * 
+	 * @param rgb
+	 *            the pixels as packed RGB integers, the alpha is ignored.
+	 * @param offset
+	 *            the index of the first pixel of the row.
+	 * @throws IOException
+	 */
+	public void writeRow(int[] rgb, int offset) throws IOException
+	{
+		if (rowsWritten >= height)
+		{
+			throw new IOException("All " + height + " rows have already been written.");
+		}
+		int position = rowsInBlock * rowBytes;
+		for (int x = 0; x < width; x++)
+		{
+			int pixel = rgb[offset + x];
+			block[position++] = (byte) (pixel >> 16);
+			block[position++] = (byte) (pixel >> 8);
+			block[position++] = (byte) pixel;
+		}
+		rowsInBlock++;
+		rowsWritten++;
+		if (rowsInBlock == blockRows || rowsWritten == height)
+		{
+			submitBlock();
+		}
+	}
+
+	/**
+	 * Finish the image and close the file.
+	 * 
+	 * @throws IOException
+	 *             if not all rows have been written.
+	 */
+	@Override
+	public void close() throws IOException
+	{
+		try
+		{
+			if (rowsWritten != height)
+			{
+				throw new IOException("Only " + rowsWritten + " of " + height + " rows were written.");
+			}
+			while (!pending.isEmpty())
+			{
+				writeBlock();
+			}
+			writeChunk("IEND");
+		}
+		finally
+		{
+			for (Future<Block> f : pending)
+			{
+				f.cancel(true);
+			}
+			channel.close();
+		}
+	}
+
+	/**
+	 * Close the file without finishing the image, e.g. when rendering it
+	 * failed, so that the failure is not hidden by a complaint about missing
+	 * rows. The file is left incomplete.
+	 * 
+	 * @throws IOException
+	 */
+	public void abort() throws IOException
+	{
+		for (Future<Block> f : pending)
+		{
+			f.cancel(true);
+		}
+		pending.clear();
+		channel.close();
+	}
+
+	/**
+	 * Hand the current block to the worker pool, and write finished blocks
+	 * until few enough are pending.
+	 */
+	private void submitBlock() throws IOException
+	{
+		pending.add(WorkerPool.get().submit(
+				new BlockTask(block, rowsInBlock, previousBlock, previousBlockRows, rowBytes, contextRows, rowsWritten == height)));
+		previousBlock = block;
+		previousBlockRows = rowsInBlock;
+		block = new byte[blockRows * rowBytes];
+		rowsInBlock = 0;
+		while (pending.size() > maxPending || (!pending.isEmpty() && pending.peek().isDone()))
+		{
+			writeBlock();
+		}
+	}
+
+	/**
+	 * Wait for the first pending block and write it as an IDAT chunk, with
+	 * the zlib header before the first block and the checksum after the
+	 * last.
+	 */
+	private void writeBlock() throws IOException
+	{
+		Block b;
+		try
+		{
+			b = pending.poll().get();
+		}
+		catch (InterruptedException e)
+		{
+			Thread.currentThread().interrupt();
+			throw new InterruptedIOException();
+		}
+		catch (ExecutionException e)
+		{
+			throw new IOException("Could not compress image", e.getCause());
+		}
+		adler = combineAdler(adler, b.adler, b.length);
+		ByteBuffer prefix = ByteBuffer.allocate(headerWritten ? 0 : ZLIB_HEADER.length);
+		if (!headerWritten)
+		{
+			prefix.put(ZLIB_HEADER).flip();
+			headerWritten = true;
+		}
+		ByteBuffer suffix = ByteBuffer.allocate(b.last ? 4 : 0);
+		if (b.last)
+		{
+			suffix.putInt((int) adler).flip();
+		}
+		writeChunk("IDAT", prefix, ByteBuffer.wrap(b.data), suffix);
+	}
+
+	/**
+	 * Write a chunk, made of the given parts, with its length and CRC.
+	 */
+	private void writeChunk(String type, ByteBuffer... parts) throws IOException
+	{
+		byte[] typeBytes = type.getBytes(StandardCharsets.US_ASCII);
+		CRC32 crc = new CRC32();
+		crc.update(typeBytes);
+		int length = 0;
+		for (ByteBuffer part : parts)
+		{
+			length += part.remaining();
+			crc.update(part.array(), part.arrayOffset() + part.position(), part.remaining());
+		}
+		ByteBuffer header = ByteBuffer.allocate(8);
+		header.putInt(length).put(typeBytes).flip();
+		ByteBuffer trailer = ByteBuffer.allocate(4);
+		trailer.putInt((int) crc.getValue()).flip();
+		writeFully(header);
+		for (ByteBuffer part : parts)
+		{
+			writeFully(part);
+		}
+		writeFully(trailer);
+	}
+
+	private void writeFully(ByteBuffer buffer) throws IOException
+	{
+		while (buffer.hasRemaining())
+		{
+			channel.write(buffer);
+		}
+	}
+
+	/**
+	 * Get the Adler-32 checksum of two pieces of data from their checksums,
+	 * as zlib's adler32_combine does.
+	 * 
+	 * @param adler1
+	 *            the checksum of the first piece.
+	 * @param adler2
+	 *            the checksum of the second piece.
+	 * @param length2
+	 *            the length of the second piece.
+	 * @return
+	 */
+	static long combineAdler(long adler1, long adler2, long length2)
+	{
+		long remainder = length2 % ADLER_BASE;
+		long sum1 = adler1 & 0xffff;
+		long sum2 = (remainder * sum1) % ADLER_BASE;
+		sum1 += (adler2 & 0xffff) + ADLER_BASE - 1;
+		sum2 += ((adler1 >> 16) & 0xffff) + ((adler2 >> 16) & 0xffff) + ADLER_BASE - remainder;
+		if (sum1 >= ADLER_BASE)
+		{
+			sum1 -= ADLER_BASE;
+		}
+		if (sum1 >= ADLER_BASE)
+		{
+			sum1 -= ADLER_BASE;
+		}
+		if (sum2 >= 2 * ADLER_BASE)
+		{
+			sum2 -= 2 * ADLER_BASE;
+		}
+		if (sum2 >= ADLER_BASE)
+		{
+			sum2 -= ADLER_BASE;
+		}
+		return sum1 | (sum2 << 16);
+	}
+
+	/**
+	 * Filter a row with all five PNG filters and return the one that is
+	 * likely to compress best, with the filter type as its first byte.
+	 * 
+	 * @param data
+	 * @param offset
+	 *            the start of the row in data.
+	 * @param previousData
+	 *            the unfiltered previous row, or null for the first row.
+	 * @param previousOffset
+	 *            the start of the previous row in previousData.
+	 * @param length
+	 *            the length of a row.
+	 * @param buffers
+	 *            five buffers one byte longer than the row.
+	 * @return
+	 */
+	static byte[] filter(byte[] data, int offset, byte[] previousData, int previousOffset, int length, byte[][] buffers)
+	{
+		// None and Sub
+		byte[] none = buffers[0];
+		byte[] sub = buffers[1];
+		none[0] = 0;
+		sub[0] = 1;
+		long noneSum = 0;
+		long subSum = 0;
+		for (int i = 0; i < length; i++)
+		{
+			byte x = data[offset + i];
+			none[i + 1] = x;
+			noneSum += Math.abs(x);
+		}
+		// the first pixel has no left neighbour
+		for (int i = 0; i < 3; i++)
+		{
+			sub[i + 1] = data[offset + i];
+		}
+		subSum += Math.abs(data[offset]) + Math.abs(data[offset + 1]) + Math.abs(data[offset + 2]);
+		for (int i = 3; i < length; i++)
+		{
+			byte value = (byte) (data[offset + i] - data[offset + i - 3]);
+			sub[i + 1] = value;
+			subSum += Math.abs(value);
+		}
+		byte[] best = subSum < noneSum ? sub : none;
+		long bestSum = Math.min(subSum, noneSum);
+		if (previousData == null || bestSum == 0)
+		{
+			// Up, Average and Paeth need a previous row; without one, they
+			// are no better than None and Sub
+			return best;
+		}
+
+		// Up, Average and Paeth
+		byte[] up = buffers[2];
+		byte[] average = buffers[3];
+		byte[] paeth = buffers[4];
+		up[0] = 2;
+		average[0] = 3;
+		paeth[0] = 4;
+		long upSum = 0;
+		long averageSum = 0;
+		long paethSum = 0;
+		for (int i = 0; i < length; i++)
+		{
+			int x = data[offset + i] & 0xff;
+			int b = previousData[previousOffset + i] & 0xff;
+			byte u = (byte) (x - b);
+			up[i + 1] = u;
+			upSum += Math.abs(u);
+		}
+		if (upSum == 0)
+		{
+			// the row is the same as the previous row, nothing can beat Up
+			return up;
+		}
+		// the first pixel has no left neighbours, so Average uses half the
+		// pixel above and Paeth the pixel above
+		for (int i = 0; i < 3; i++)
+		{
+			int x = data[offset + i] & 0xff;
+			int b = previousData[previousOffset + i] & 0xff;
+			byte v = (byte) (x - (b >> 1));
+			byte w = (byte) (x - b);
+			average[i + 1] = v;
+			paeth[i + 1] = w;
+			averageSum += Math.abs(v);
+			paethSum += Math.abs(w);
+		}
+		for (int i = 3; i < length; i++)
+		{
+			int x = data[offset + i] & 0xff;
+			int a = data[offset + i - 3] & 0xff;
+			int b = previousData[previousOffset + i] & 0xff;
+			int c = previousData[previousOffset + i - 3] & 0xff;
+			byte v = (byte) (x - ((a + b) >> 1));
+			byte w = (byte) (x - paeth(a, b, c));
+			average[i + 1] = v;
+			paeth[i + 1] = w;
+			averageSum += Math.abs(v);
+			paethSum += Math.abs(w);
+		}
+		if (upSum < bestSum)
+		{
+			best = up;
+			bestSum = upSum;
+		}
+		if (averageSum < bestSum)
+		{
+			best = average;
+			bestSum = averageSum;
+		}
+		if (paethSum < bestSum)
+		{
+			best = paeth;
+		}
+		return best;
+	}
+
+	private static int paeth(int a, int b, int c)
+	{
+		// the distances from a + b - c to a, b and c
+		int pa = Math.abs(b - c);
+		int pb = Math.abs(a - c);
+		int pc = Math.abs(a + b - c - c);
+		if (pa <= pb && pa <= pc)
+		{
+			return a;
+		}
+		return pb <= pc ? b : c;
+	}
+
+	/**
+	 * A compressed block.
+	 */
+	private static class Block
+	{
+		private final byte[] data;
+		private final long adler;
+		private final long length;
+		private final boolean last;
+
+		Block(byte[] data, long adler, long length, boolean last)
+		{
+			this.data = data;
+			this.adler = adler;
+			this.length = length;
+			this.last = last;
+		}
+	}
+
+	/**
+	 * Filters and compresses one block of rows.
+	 */
+	private static class BlockTask implements Callable<Block>
+	{
+		private final byte[] rows;
+		private final int rowCount;
+		private final byte[] previousRows;
+		private final int previousRowCount;
+		private final int rowBytes;
+		private final int contextRows;
+		private final boolean last;
+
+		BlockTask(byte[] rows, int rowCount, byte[] previousRows, int previousRowCount, int rowBytes, int contextRows, boolean last)
+		{
+			this.rows = rows;
+			this.rowCount = rowCount;
+			this.previousRows = previousRows;
+			this.previousRowCount = previousRowCount;
+			this.rowBytes = rowBytes;
+			this.contextRows = contextRows;
+			this.last = last;
+		}
+
+		@Override
+		public Block call()
+		{
+			byte[][] buffers = new byte[5][rowBytes + 1];
+			Deflater deflater = new Deflater(Deflater.DEFAULT_COMPRESSION, true);
+			try
+			{
+				if (previousRows != null)
+				{
+					deflater.setDictionary(dictionary(buffers));
+				}
+				ByteArrayOutputStream out = new ByteArrayOutputStream(rowCount * rowBytes / 4 + 64);
+				byte[] buffer = new byte[1 << 16];
+				Adler32 adler = new Adler32();
+				for (int r = 0; r < rowCount; r++)
+				{
+					byte[] filtered;
+					if (r > 0)
+					{
+						filtered = filter(rows, r * rowBytes, rows, (r - 1) * rowBytes, rowBytes, buffers);
+					}
+					else if (previousRows != null)
+					{
+						filtered = filter(rows, 0, previousRows, (previousRowCount - 1) * rowBytes, rowBytes, buffers);
+					}
+					else
+					{
+						filtered = filter(rows, 0, null, 0, rowBytes, buffers);
+					}
+					adler.update(filtered);
+					deflater.setInput(filtered);
+					while (!deflater.needsInput())
+					{
+						out.write(buffer, 0, deflater.deflate(buffer));
+					}
+				}
+				if (last)
+				{
+					deflater.finish();
+					while (!deflater.finished())
+					{
+						out.write(buffer, 0, deflater.deflate(buffer));
+					}
+				}
+				else
+				{
+					// end on a byte boundary so the next block can follow
+					int n;
+					do
+					{
+						n = deflater.deflate(buffer, 0, buffer.length, Deflater.SYNC_FLUSH);
+						out.write(buffer, 0, n);
+					}
+					while (n == buffer.length);
+				}
+				return new Block(out.toByteArray(), adler.getValue(), (long) rowCount * (rowBytes + 1), last);
+			}
+			finally
+			{
+				deflater.end();
+			}
+		}
+
+		/**
+		 * Filter the last rows of the previous block again, exactly as its
+		 * task did, to get the data the previous block ended with. A
+		 * previous block is always full, so it holds the row before its
+		 * last context rows.
+		 */
+		private byte[] dictionary(byte[][] buffers)
+		{
+			ByteArrayOutputStream context = new ByteArrayOutputStream(contextRows * (rowBytes + 1));
+			for (int r = previousRowCount - contextRows; r < previousRowCount; r++)
+			{
+				byte[] filtered = filter(previousRows, r * rowBytes, previousRows, (r - 1) * rowBytes, rowBytes, buffers);
+				context.write(filtered, 0, filtered.length);
+			}
+			byte[] bytes = context.toByteArray();
+			int length = Math.min(bytes.length, WINDOW_SIZE);
+			byte[] dictionary = new byte[length];
+			System.arraycopy(bytes, bytes.length - length, dictionary, 0, length);
+			return dictionary;
+		}
+	}
+}
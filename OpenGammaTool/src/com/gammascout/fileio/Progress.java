@@ -0,0 +1,49 @@
+/*******************************************************************************
+ *  
+ * Copyright (c) 2009, 2019 Erik Berglund.
+ *    
+ *       This file is part of Conserve.
+ *   
+ *       Conserve is free software: you can redistribute it and/or modify
+ *       it under the terms of the GNU Affero General Public License as published by
+ *       the Free Software Foundation, either version 3 of the License, or
+ *       (at your option) any later version.
+ *   
+ *       Conserve is distributed in the hope that it will be useful,
+ *       but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *       MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *       GNU Affero General Public License for more details.
+ *   
+ *       You should have received a copy of the GNU Affero General Public License
+ *       along with Conserve.  If not, see <https://www.gnu.org/licenses/agpl.html>.
+ *       
+ *******************************************************************************/
+package com.gammascout.fileio;
+
+/**
+ * Receives progress reports from a long running read or write, and tells it
+ * when to stop.
+ * 
+ * @author Erik Berglund
+ * 
+ */
+public interface Progress
+{
+	/**
+	 * Report how far the operation has come.
+	 * 
+	 * @param done
+	 *            the number of units, usually readings, processed so far.
+	 * @param total
+	 *            the total number of units, or -1 if not known.
+	 */
+	public void setProgress(long done, long total);
+
+	/**
+	 * Check if the operation should stop. An operation that finds it has been
+	 * cancelled throws a {@link java.util.concurrent.CancellationException}.
+	 * 
+	 * @return
+	 */
+	public boolean isCancelled();
+}
@@ -0,0 +1,43 @@
+/*******************************************************************************
+ *  
+ * Copyright (c) 2009, 2019 Erik Berglund.
+ *    
+ *       This file is part of Conserve.
+ *   
+ *       Conserve is free software: you can redistribute it and/or modify
+ *       it under the terms of the GNU Affero General Public License as published by
+ *       the Free Software Foundation, either version 3 of the License, or
+ *       (at your option) any later version.
+ *   
+ *       Conserve is distributed in the hope that it will be useful,
+ *       but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *       MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *       GNU Affero General Public License for more details.
+ *   
+ *       You should have received a copy of the GNU Affero General Public License
+ *       along with Conserve.  If not, see <https://www.gnu.org/licenses/agpl.html>.
+ *       
+ *******************************************************************************/
+package com.gammascout.fileio;
+
+import java.io.Closeable;
+import java.io.IOException;
+
+import com.gammascout.usb.Reading;
+
+/**
+ * A source of readings that are read one at a time, in file order.
+ * 
+ * @author Erik Berglund
+ * 
+ */
+public interface ReadingInput extends Closeable
+{
+	/**
+	 * Read the next reading.
+	 * 
+	 * @return the next reading, or null if there are no more readings.
+	 * @throws IOException
+	 */
+	public Reading next() throws IOException;
+}
@@ -0,0 +1,965 @@
+/*******************************************************************************
+ *  
+ * Copyright (c) 2009, 2019 Erik Berglund.
+ *    
+ *       This file is part of Conserve.
+ *   
+ *       Conserve is free software: you can redistribute it and/or modify
+ *       it under the terms of the GNU Affero General Public License as published by
+ *       the Free Software Foundation, either version 3 of the License, or
+ *       (at your option) any later version.
+ *   
+ *       Conserve is distributed in the hope that it will be useful,
+ *       but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *       MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *       GNU Affero General Public License for more details.
+ *   
+ *       You should have received a copy of the GNU Affero General Public License
+ *       along with Conserve.  If not, see <https://www.gnu.org/licenses/agpl.html>.
+ *       
+ *******************************************************************************/
+package com.gammascout.fileio;
+
+import java.awt.AlphaComposite;
+import java.awt.BasicStroke;
+import java.awt.Color;
+import java.awt.Composite;
+import java.awt.Font;
+import java.awt.FontMetrics;
+import java.awt.GradientPaint;
+import java.awt.Graphics;
+import java.awt.Graphics2D;
+import java.awt.GraphicsConfiguration;
+import java.awt.Image;
+import java.awt.Paint;
+import java.awt.Shape;
+import java.awt.Stroke;
+import java.awt.geom.AffineTransform;
+import java.awt.geom.PathIterator;
+import java.awt.geom.Rectangle2D;
+import java.awt.image.BufferedImage;
+import java.awt.image.ImageObserver;
+import java.awt.image.RenderedImage;
+import java.awt.image.renderable.RenderableImage;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.io.Writer;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+import javax.imageio.ImageIO;
+
+import org.apache.xmlgraphics.java2d.AbstractGraphics2D;
+import org.apache.xmlgraphics.java2d.GraphicContext;
+import org.apache.xmlgraphics.util.io.Base64EncodeStream;
+
+/**
+ * A Graphics2D that writes SVG elements to a stream as they are drawn,
+ * instead of building a document in memory first, so the memory used does
+ * not depend on the size of the drawing.
+ * <p>
+ * Lines drawn one after another with the same stroke, paint and clip are
+ * joined into one path element, and a segment that starts where the
+ * previous one ended continues the path instead of starting a new one. Clip
+ * areas are written once and shared by the elements that use them.
+ * <p>
+ * Call {@link #finish()} when the drawing is done; it throws any error met
+ * while writing, since the drawing methods cannot. The stream is not closed.
+ * 
+ * @author Erik Berglund
+ * 
+ */
+public class SvgGraphics2D extends AbstractGraphics2D
+{
+	/**
+	 * The largest number of segments joined into one path element.
+	 */
+	private static final int MAX_PATH_SEGMENTS = 1000;
+	/**
+	 * The number of clip areas remembered for reuse.
+	 */
+	private static final int CLIP_CACHE_SIZE = 32;
+	private static final long[] POWERS = { 1, 10, 100, 1000, 10000, 100000, 1000000 };
+
+	private final Output output;
+	/**
+	 * The id of the current clip path, null if not clipped. Only valid while
+	 * clipChanged is false.
+	 */
+	private String clipId;
+	private boolean clipChanged;
+	// the attributes of the last style, kept until the paint, stroke,
+	// composite or transform changes
+	private Paint stylePaint;
+	private Stroke styleStroke;
+	private Composite styleComposite;
+	private AffineTransform styleTransform;
+	private String strokeStyle;
+	private String fillStyle;
+	private boolean opaque;
+
+	/**
+	 * Start a drawing of the given size and write the start of the document.
+	 * 
+	 * @param out
+	 *            the stream to write to, preferably buffered.
+	 * @param width
+	 * @param height
+	 * @throws IOException
+	 */
+	public SvgGraphics2D(Writer out, int width, int height) throws IOException
+	{
+		super(false);
+		gc = new GraphicContext();
+		output = new Output(out);
+		clipChanged = true;
+		out.write("<?xml version=\"1.0\" encoding=\"UTF-8\"?>\n");
+		out.write("<svg xmlns=\"http://www.w3.org/2000/svg\" xmlns:xlink=\"http://www.w3.org/1999/xlink\" version=\"1.1\" width=\""
+				+ width + "\" height=\"" + height + "\" viewBox=\"0 0 " + width + " " + height + "\">\n");
+	}
+
+	/**
+	 * Copy another graphics that draws to the same document.
+	 * 
+	 * @param g
+	 */
+	private SvgGraphics2D(SvgGraphics2D g)
+	{
+		super(g);
+		output = g.output;
+		clipId = g.clipId;
+		clipChanged = g.clipChanged;
+		stylePaint = g.stylePaint;
+		styleStroke = g.styleStroke;
+		styleComposite = g.styleComposite;
+		styleTransform = g.styleTransform;
+		strokeStyle = g.strokeStyle;
+		fillStyle = g.fillStyle;
+		opaque = g.opaque;
+	}
+
+	/**
+	 * Write the end of the document and flush the stream.
+	 * 
+	 * @throws IOException
+	 *             if this or any earlier write failed.
+	 */
+	public void finish() throws IOException
+	{
+		if (output.error != null)
+		{
+			throw output.error;
+		}
+		output.flushPath();
+		output.setGroup(null);
+		output.out.write("</svg>\n");
+		output.out.flush();
+	}
+
+	/**
+	 * @see java.awt.Graphics#create()
+	 */
+	@Override
+	public Graphics create()
+	{
+		return new SvgGraphics2D(this);
+	}
+
+	/**
+	 * @see java.awt.Graphics#dispose()
+	 */
+	@Override
+	public void dispose()
+	{
+		// the document is ended by finish()
+	}
+
+	/**
+	 * @see java.awt.Graphics2D#getDeviceConfiguration()
+	 */
+	@Override
+	public GraphicsConfiguration getDeviceConfiguration()
+	{
+		return output.metrics.getDeviceConfiguration();
+	}
+
+	/**
+	 * @see java.awt.Graphics#getFontMetrics(java.awt.Font)
+	 */
+	@Override
+	public FontMetrics getFontMetrics(Font f)
+	{
+		return output.metrics.getFontMetrics(f);
+	}
+
+	/**
+	 * Not supported, drawing continues in paint mode.
+	 * 
+	 * @see java.awt.Graphics#setXORMode(java.awt.Color)
+	 */
+	@Override
+	public void setXORMode(Color c)
+	{
+	}
+
+	/**
+	 * Not supported, a document cannot be read back.
+	 * 
+	 * @see java.awt.Graphics#copyArea(int, int, int, int, int, int)
+	 */
+	@Override
+	public void copyArea(int x, int y, int width, int height, int dx, int dy)
+	{
+	}
+
+	@Override
+	public void setClip(Shape clip)
+	{
+		super.setClip(clip);
+		clipChanged = true;
+	}
+
+	@Override
+	public void setClip(int x, int y, int width, int height)
+	{
+		super.setClip(x, y, width, height);
+		clipChanged = true;
+	}
+
+	@Override
+	public void clip(Shape s)
+	{
+		super.clip(s);
+		clipChanged = true;
+	}
+
+	@Override
+	public void clipRect(int x, int y, int width, int height)
+	{
+		super.clipRect(x, y, width, height);
+		clipChanged = true;
+	}
+
+	/**
+	 * @see java.awt.Graphics2D#draw(java.awt.Shape)
+	 */
+	@Override
+	public void draw(Shape s)
+	{
+		if (!(gc.getStroke() instanceof BasicStroke))
+		{
+			fill(gc.getStroke().createStrokedShape(s));
+			return;
+		}
+		try
+		{
+			updateStyle();
+			output.stroke(clip(), strokeStyle, opaque, s);
+		}
+		catch (IOException e)
+		{
+			output.fail(e);
+		}
+	}
+
+	/**
+	 * @see java.awt.Graphics2D#fill(java.awt.Shape)
+	 */
+	@Override
+	public void fill(Shape s)
+	{
+		try
+		{
+			updateStyle();
+			StringBuilder element = new StringBuilder();
+			if (s instanceof Rectangle2D)
+			{
+				Rectangle2D r = (Rectangle2D) s;
+				element.append("<rect x=\"");
+				appendNumber(element, r.getX(), 3);
+				element.append("\" y=\"");
+				appendNumber(element, r.getY(), 3);
+				element.append("\" width=\"");
+				appendNumber(element, r.getWidth(), 3);
+				element.append("\" height=\"");
+				appendNumber(element, r.getHeight(), 3);
+				element.append('"');
+			}
+			else
+			{
+				element.append("<path d=\"");
+				appendPath(element, s.getPathIterator(null), null, false);
+				element.append('"');
+				if (s.getPathIterator(null).getWindingRule() == PathIterator.WIND_EVEN_ODD)
+				{
+					element.append(" fill-rule=\"evenodd\"");
+				}
+			}
+			element.append(fillStyle).append("/>\n");
+			output.element(clip(), element);
+		}
+		catch (IOException e)
+		{
+			output.fail(e);
+		}
+	}
+
+	/**
+	 * @see java.awt.Graphics2D#drawString(java.lang.String, float, float)
+	 */
+	@Override
+	public void drawString(String s, float x, float y)
+	{
+		Font font = gc.getFont();
+		if (font.isTransformed())
+		{
+			fill(font.createGlyphVector(getFontRenderContext(), s).getOutline(x, y));
+			return;
+		}
+		try
+		{
+			updateStyle();
+			StringBuilder element = new StringBuilder("<text x=\"");
+			appendNumber(element, x, 3);
+			element.append("\" y=\"");
+			appendNumber(element, y, 3);
+			element.append("\" font-family=\"");
+			appendEscaped(element, fontFamily(font));
+			element.append("\" font-size=\"");
+			appendNumber(element, font.getSize2D(), 3);
+			element.append('"');
+			if (font.isBold())
+			{
+				element.append(" font-weight=\"bold\"");
+			}
+			if (font.isItalic())
+			{
+				element.append(" font-style=\"italic\"");
+			}
+			element.append(" xml:space=\"preserve\"").append(fillStyle).append('>');
+			appendEscaped(element, s);
+			element.append("</text>\n");
+			output.element(clip(), element);
+		}
+		catch (IOException e)
+		{
+			output.fail(e);
+		}
+	}
+
+	/**
+	 * @see java.awt.Graphics#drawImage(java.awt.Image, int, int,
+	 *      java.awt.image.ImageObserver)
+	 */
+	@Override
+	public boolean drawImage(Image img, int x, int y, ImageObserver observer)
+	{
+		return drawImage(img, x, y, img.getWidth(observer), img.getHeight(observer), observer);
+	}
+
+	/**
+	 * @see java.awt.Graphics#drawImage(java.awt.Image, int, int, int, int,
+	 *      java.awt.image.ImageObserver)
+	 */
+	@Override
+	public boolean drawImage(Image img, int x, int y, int width, int height, ImageObserver observer)
+	{
+		RenderedImage image;
+		if (img instanceof RenderedImage)
+		{
+			image = (RenderedImage) img;
+		}
+		else
+		{
+			int w = img.getWidth(observer);
+			int h = img.getHeight(observer);
+			if (w <= 0 || h <= 0)
+			{
+				return false;
+			}
+			BufferedImage copy = new BufferedImage(w, h, BufferedImage.TYPE_INT_ARGB);
+			Graphics2D g = copy.createGraphics();
+			boolean complete = g.drawImage(img, 0, 0, observer);
+			g.dispose();
+			if (!complete)
+			{
+				return false;
+			}
+			image = copy;
+		}
+		writeImage(image, x, y, width, height, gc.getTransform());
+		return true;
+	}
+
+	/**
+	 * @see java.awt.Graphics2D#drawRenderedImage(java.awt.image.RenderedImage,
+	 *      java.awt.geom.AffineTransform)
+	 */
+	@Override
+	public void drawRenderedImage(RenderedImage img, AffineTransform xform)
+	{
+		AffineTransform transform = gc.getTransform();
+		if (xform != null)
+		{
+			transform.concatenate(xform);
+		}
+		writeImage(img, 0, 0, img.getWidth(), img.getHeight(), transform);
+	}
+
+	/**
+	 * @see java.awt.Graphics2D#drawRenderableImage(java.awt.image.renderable.RenderableImage,
+	 *      java.awt.geom.AffineTransform)
+	 */
+	@Override
+	public void drawRenderableImage(RenderableImage img, AffineTransform xform)
+	{
+		drawRenderedImage(img.createDefaultRendering(), xform);
+	}
+
+	/**
+	 * Write an image element with the image embedded as PNG.
+	 */
+	private void writeImage(RenderedImage image, int x, int y, int width, int height, AffineTransform transform)
+	{
+		try
+		{
+			StringBuilder element = new StringBuilder("<image x=\"");
+			element.append(x).append("\" y=\"").append(y).append("\" width=\"").append(width).append("\" height=\"")
+					.append(height).append("\" preserveAspectRatio=\"none\"");
+			appendTransform(element, transform);
+			element.append(" xlink:href=\"data:image/png;base64,");
+			output.element(clip(), element);
+			final Writer out = output.out;
+			OutputStream base64 = new Base64EncodeStream(new OutputStream()
+			{
+				@Override
+				public void write(int b) throws IOException
+				{
+					// base 64 is plain ASCII
+					out.write(b);
+				}
+			}, false);
+			ImageIO.write(image, "png", base64);
+			base64.close();
+			out.write("\"/>\n");
+		}
+		catch (IOException e)
+		{
+			output.fail(e);
+		}
+	}
+
+	/**
+	 * Get the id of the current clip path, writing it first if it is new.
+	 */
+	private String clip() throws IOException
+	{
+		if (clipChanged)
+		{
+			Shape clip = gc.getClip();
+			if (clip == null)
+			{
+				clipId = null;
+			}
+			else
+			{
+				StringBuilder path = new StringBuilder();
+				appendPath(path, clip.getPathIterator(gc.getTransform()), null, false);
+				clipId = output.clipId(path.toString());
+			}
+			clipChanged = false;
+		}
+		return clipId;
+	}
+
+	/**
+	 * Update the stroke and fill attributes if the paint, stroke, composite
+	 * or transform has changed since they were last made.
+	 */
+	private void updateStyle() throws IOException
+	{
+		AffineTransform transform = gc.getTransform();
+		if (gc.getPaint() == stylePaint && gc.getStroke() == styleStroke && gc.getComposite() == styleComposite
+				&& transform.equals(styleTransform))
+		{
+			return;
+		}
+		stylePaint = gc.getPaint();
+		styleStroke = gc.getStroke();
+		styleComposite = gc.getComposite();
+		styleTransform = transform;
+
+		float alpha = 1;
+		if (styleComposite instanceof AlphaComposite)
+		{
+			alpha = ((AlphaComposite) styleComposite).getAlpha();
+		}
+		String paint;
+		if (stylePaint instanceof GradientPaint)
+		{
+			paint = "url(#" + output.gradientId((GradientPaint) stylePaint) + ")";
+			alpha *= Math.min(((GradientPaint) stylePaint).getColor1().getAlpha(),
+					((GradientPaint) stylePaint).getColor2().getAlpha()) / 255f;
+		}
+		else
+		{
+			// other paints are drawn in their average color
+			Color color = stylePaint instanceof Color ? (Color) stylePaint : Color.GRAY;
+			paint = color(color);
+			alpha *= color.getAlpha() / 255f;
+		}
+		opaque = alpha >= 1;
+
+		StringBuilder fill = new StringBuilder(" fill=\"").append(paint).append('"');
+		if (!opaque)
+		{
+			fill.append(" fill-opacity=\"");
+			appendNumber(fill, alpha, 3);
+			fill.append('"');
+		}
+		appendTransform(fill, transform);
+		fillStyle = fill.toString();
+
+		StringBuilder stroke = new StringBuilder(" fill=\"none\" stroke=\"").append(paint).append('"');
+		if (!opaque)
+		{
+			stroke.append(" stroke-opacity=\"");
+			appendNumber(stroke, alpha, 3);
+			stroke.append('"');
+		}
+		if (styleStroke instanceof BasicStroke)
+		{
+			BasicStroke basic = (BasicStroke) styleStroke;
+			if (basic.getLineWidth() != 1)
+			{
+				stroke.append(" stroke-width=\"");
+				appendNumber(stroke, basic.getLineWidth(), 3);
+				stroke.append('"');
+			}
+			if (basic.getEndCap() == BasicStroke.CAP_ROUND)
+			{
+				stroke.append(" stroke-linecap=\"round\"");
+			}
+			else if (basic.getEndCap() == BasicStroke.CAP_SQUARE)
+			{
+				stroke.append(" stroke-linecap=\"square\"");
+			}
+			if (basic.getLineJoin() == BasicStroke.JOIN_ROUND)
+			{
+				stroke.append(" stroke-linejoin=\"round\"");
+			}
+			else if (basic.getLineJoin() == BasicStroke.JOIN_BEVEL)
+			{
+				stroke.append(" stroke-linejoin=\"bevel\"");
+			}
+			else
+			{
+				stroke.append(" stroke-miterlimit=\"");
+				appendNumber(stroke, Math.max(1, basic.getMiterLimit()), 3);
+				stroke.append('"');
+			}
+			float[] dashes = basic.getDashArray();
+			if (dashes != null && dashes.length > 0)
+			{
+				stroke.append(" stroke-dasharray=\"");
+				for (int i = 0; i < dashes.length; i++)
+				{
+					if (i > 0)
+					{
+						stroke.append(',');
+					}
+					appendNumber(stroke, dashes[i], 3);
+				}
+				stroke.append('"');
+				if (basic.getDashPhase() != 0)
+				{
+					stroke.append(" stroke-dashoffset=\"");
+					appendNumber(stroke, basic.getDashPhase(), 3);
+					stroke.append('"');
+				}
+			}
+		}
+		appendTransform(stroke, transform);
+		strokeStyle = stroke.toString();
+	}
+
+	/**
+	 * Get the SVG font family for a font, with the logical Java fonts mapped
+	 * to the generic SVG families.
+	 */
+	private static String fontFamily(Font font)
+	{
+		switch (font.getFamily())
+		{
+			case Font.DIALOG:
+			case Font.SANS_SERIF:
+				return "sans-serif";
+			case Font.SERIF:
+				return "serif";
+			case Font.DIALOG_INPUT:
+			case Font.MONOSPACED:
+				return "monospace";
+			default:
+				return font.getFamily();
+		}
+	}
+
+	/**
+	 * Format a color as #rrggbb.
+	 */
+	private static String color(Color color)
+	{
+		String hex = Integer.toHexString(color.getRGB() & 0xffffff);
+		return "#000000".substring(0, 7 - hex.length()) + hex;
+	}
+
+	/**
+	 * Append a transform attribute, unless the transform is the identity.
+	 */
+	private static void appendTransform(StringBuilder sb, AffineTransform t)
+	{
+		if (t.isIdentity())
+		{
+			return;
+		}
+		sb.append(" transform=\"matrix(");
+		appendNumber(sb, t.getScaleX(), 6);
+		sb.append(' ');
+		appendNumber(sb, t.getShearY(), 6);
+		sb.append(' ');
+		appendNumber(sb, t.getShearX(), 6);
+		sb.append(' ');
+		appendNumber(sb, t.getScaleY(), 6);
+		sb.append(' ');
+		appendNumber(sb, t.getTranslateX(), 3);
+		sb.append(' ');
+		appendNumber(sb, t.getTranslateY(), 3);
+		sb.append(")\"");
+	}
+
+	/**
+	 * Append the path data of a path.
+	 * 
+	 * @param sb
+	 * @param i
+	 * @param current
+	 *            set to the current point at the end of the path, may be
+	 *            null.
+	 * @param join
+	 *            if true, the path continues a path that ends at current and
+	 *            its first move is left out if it moves there.
+	 * @return the number of segments.
+	 */
+	private static int appendPath(StringBuilder sb, PathIterator i, double[] current, boolean join)
+	{
+		double[] coords = new double[6];
+		int segments = 0;
+		double moveX = 0;
+		double moveY = 0;
+		while (!i.isDone())
+		{
+			int type = i.currentSegment(coords);
+			int end = 0;
+			switch (type)
+			{
+				case PathIterator.SEG_MOVETO:
+					moveX = coords[0];
+					moveY = coords[1];
+					if (!join || segments > 0 || current[0] != moveX || current[1] != moveY)
+					{
+						sb.append('M');
+						appendPoints(sb, coords, 1);
+					}
+					break;
+				case PathIterator.SEG_LINETO:
+					sb.append('L');
+					appendPoints(sb, coords, 1);
+					break;
+				case PathIterator.SEG_QUADTO:
+					sb.append('Q');
+					appendPoints(sb, coords, 2);
+					end = 2;
+					break;
+				case PathIterator.SEG_CUBICTO:
+					sb.append('C');
+					appendPoints(sb, coords, 3);
+					end = 4;
+					break;
+				case PathIterator.SEG_CLOSE:
+					sb.append('Z');
+					coords[0] = moveX;
+					coords[1] = moveY;
+					break;
+			}
+			if (type != PathIterator.SEG_MOVETO)
+			{
+				segments++;
+			}
+			if (current != null)
+			{
+				current[0] = coords[end];
+				current[1] = coords[end + 1];
+			}
+			join = false;
+			i.next();
+		}
+		return segments;
+	}
+
+	private static void appendPoints(StringBuilder sb, double[] coords, int points)
+	{
+		for (int x = 0; x < points * 2; x++)
+		{
+			if (x > 0)
+			{
+				sb.append(' ');
+			}
+			appendNumber(sb, coords[x], 3);
+		}
+	}
+
+	/**
+	 * Append a number with at most the given number of decimals and no
+	 * trailing zeros. Much faster than formatting with a pattern, which
+	 * matters for paths with many points.
+	 */
+	private static void appendNumber(StringBuilder sb, double value, int decimals)
+	{
+		if (Double.isNaN(value) || Double.isInfinite(value))
+		{
+			value = 0;
+		}
+		long factor = POWERS[decimals];
+		long scaled = Math.round(value * factor);
+		if (scaled < 0)
+		{
+			sb.append('-');
+			scaled = -scaled;
+		}
+		sb.append(scaled / factor);
+		long fraction = scaled % factor;
+		if (fraction != 0)
+		{
+			sb.append('.');
+			int digits = decimals;
+			while (fraction % 10 == 0)
+			{
+				fraction /= 10;
+				digits--;
+			}
+			String s = Long.toString(fraction);
+			for (int x = s.length(); x < digits; x++)
+			{
+				sb.append('0');
+			}
+			sb.append(s);
+		}
+	}
+
+	/**
+	 * Append text with the XML special characters escaped and characters
+	 * that XML does not allow left out.
+	 */
+	private static void appendEscaped(StringBuilder sb, String s)
+	{
+		for (int x = 0; x < s.length(); x++)
+		{
+			char c = s.charAt(x);
+			switch (c)
+			{
+				case '&':
+					sb.append("&amp;");
+					break;
+				case '<':
+					sb.append("&lt;");
+					break;
+				case '>':
+					sb.append("&gt;");
+					break;
+				case '"':
+					sb.append("&quot;");
+					break;
+				default:
+					if (c >= 0x20 || c == '\t' || c == '\n' || c == '\r')
+					{
+						sb.append(c);
+					}
+			}
+		}
+	}
+
+	/**
+	 * The document shared by a graphics and the copies made from it: the
+	 * stream, the path being joined, the open clip group and the ids in use.
+	 */
+	private static class Output
+	{
+		private final Writer out;
+		private final Graphics2D metrics = new BufferedImage(1, 1, BufferedImage.TYPE_INT_ARGB).createGraphics();
+		private final Map<String, String> clipIds = new LinkedHashMap<String, String>(16, 0.75f, true)
+		{
+			private static final long serialVersionUID = 1L;
+
+			@Override
+			protected boolean removeEldestEntry(Map.Entry<String, String> eldest)
+			{
+				return size() > CLIP_CACHE_SIZE;
+			}
+		};
+		private int nextId;
+		private IOException error;
+		/**
+		 * The clip path id of the open group, null if none is open.
+		 */
+		private String group;
+		private final StringBuilder path = new StringBuilder();
+		private String pathStyle;
+		private String pathGroup;
+		private int pathSegments;
+		private final double[] pathEnd = new double[2];
+
+		Output(Writer out)
+		{
+			this.out = out;
+		}
+
+		/**
+		 * Remember the first error, to be thrown by finish().
+		 */
+		void fail(IOException e)
+		{
+			if (error == null)
+			{
+				error = e;
+			}
+		}
+
+		/**
+		 * Stroke a shape, joining it to the path being written if it has the
+		 * same style and clip. Only opaque lines are joined, since where
+		 * translucent lines cross, one path would look different from
+		 * separate ones.
+		 */
+		void stroke(String clip, String style, boolean opaque, Shape s) throws IOException
+		{
+			if (pathStyle != null && (!opaque || !style.equals(pathStyle) || !equal(clip, pathGroup)
+					|| pathSegments >= MAX_PATH_SEGMENTS))
+			{
+				flushPath();
+			}
+			boolean join = pathStyle != null;
+			int segments = appendPath(path, s.getPathIterator(null), pathEnd, join);
+			if (segments > 0)
+			{
+				pathStyle = style;
+				pathGroup = clip;
+				pathSegments += segments;
+			}
+			else if (!join)
+			{
+				path.setLength(0);
+			}
+		}
+
+		/**
+		 * Write the path being joined, if any.
+		 */
+		void flushPath() throws IOException
+		{
+			if (pathStyle == null)
+			{
+				return;
+			}
+			setGroup(pathGroup);
+			out.write("<path d=\"");
+			out.write(path.toString());
+			out.write('"');
+			out.write(pathStyle);
+			out.write("/>\n");
+			path.setLength(0);
+			pathStyle = null;
+			pathGroup = null;
+			pathSegments = 0;
+		}
+
+		/**
+		 * Write an element, or the start of one, in the given clip group.
+		 */
+		void element(String clip, CharSequence element) throws IOException
+		{
+			flushPath();
+			setGroup(clip);
+			out.write(element.toString());
+		}
+
+		/**
+		 * Close the open group and open one with the given clip path, unless
+		 * it is already open.
+		 */
+		void setGroup(String clip) throws IOException
+		{
+			if (equal(clip, group))
+			{
+				return;
+			}
+			if (group != null)
+			{
+				out.write("</g>\n");
+			}
+			if (clip != null)
+			{
+				out.write("<g clip-path=\"url(#" + clip + ")\">\n");
+			}
+			group = clip;
+		}
+
+		/**
+		 * Get the id of a clip path given in device space, writing its
+		 * definition if it has not been used recently.
+		 */
+		String clipId(String pathData) throws IOException
+		{
+			String id = clipIds.get(pathData);
+			if (id == null)
+			{
+				id = "clip" + nextId++;
+				flushPath();
+				out.write("<clipPath id=\"" + id + "\"><path d=\"" + pathData + "\"/></clipPath>\n");
+				clipIds.put(pathData, id);
+			}
+			return id;
+		}
+
+		/**
+		 * Write the definition of a gradient and get its id.
+		 */
+		String gradientId(GradientPaint paint) throws IOException
+		{
+			String id = "gradient" + nextId++;
+			StringBuilder sb = new StringBuilder("<linearGradient id=\"").append(id)
+					.append("\" gradientUnits=\"userSpaceOnUse\" x1=\"");
+			appendNumber(sb, paint.getPoint1().getX(), 3);
+			sb.append("\" y1=\"");
+			appendNumber(sb, paint.getPoint1().getY(), 3);
+			sb.append("\" x2=\"");
+			appendNumber(sb, paint.getPoint2().getX(), 3);
+			sb.append("\" y2=\"");
+			appendNumber(sb, paint.getPoint2().getY(), 3);
+			sb.append('"');
+			if (paint.isCyclic())
+			{
+				sb.append(" spreadMethod=\"reflect\"");
+			}
+			sb.append("><stop offset=\"0\" stop-color=\"").append(color(paint.getColor1()))
+					.append("\"/><stop offset=\"1\" stop-color=\"").append(color(paint.getColor2()))
+					.append("\"/></linearGradient>\n");
+			out.write(sb.toString());
+			return id;
+		}
+
+		private static boolean equal(String a, String b)
+		{
+			return a == null ? b == null : a.equals(b);
+		}
+	}
+}
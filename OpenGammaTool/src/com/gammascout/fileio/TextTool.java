@@ -20,23 +20,23 @@
  *******************************************************************************/
 package com.gammascout.fileio;
 
+import java.awt.Component;
 import java.io.BufferedReader;
 import java.io.BufferedWriter;
 import java.io.File;
 import java.io.FileReader;
 import java.io.FileWriter;
 import java.io.IOException;
+import java.io.Writer;
 import java.text.DateFormat;
 import java.text.ParseException;
-import java.text.SimpleDateFormat;
+import java.util.Date;
 import java.util.List;
 
-import javax.swing.JFileChooser;
-import javax.swing.JFrame;
-import javax.swing.JOptionPane;
 import javax.swing.filechooser.FileNameExtensionFilter;
 
 import com.gammascout.usb.Reading;
+import com.gammascout.usb.Resampler;
 import com.gammascout.usb.Tools;
 
 /**
@@ -47,119 +47,307 @@ import com.gammascout.usb.Tools;
  */
 public class TextTool extends FileTool
 {
-	private static final DateFormat DATE_FORMAT = new SimpleDateFormat("yyyy-MM-dd HH:mm:ss");
-	static
+	private static final String HEADER = "From,To,Counts,Seconds,CPM,CPS,microSievertsPerHour,saturated\n";
+	private static final String RESAMPLED_HEADER = "From,To,Counts,CoveredSeconds,Coverage,CPM,microSievertsPerHour,saturated,gap\n";
+	/**
+	 * The number of lines between progress reports.
+	 */
+	private static final int PROGRESS_INTERVAL = 10000;
+	
+	/**
+	 * Open a "save as" dialog and ask the user for a CSV file name.
+	 * 
+	 * @param frame
+	 * @return the chosen file, or null if the user cancelled.
+	 */
+	public static File chooseSaveFile(Component frame)
 	{
-		DATE_FORMAT.setTimeZone(Tools.UTC_TIMEZONE);
+		return FileDialogs.chooseSaveFile(frame, "Save as Comma Separated Values", new FileNameExtensionFilter("CSV files", "csv"));
 	}
 	
 	/**
-	 * Open a "save as" dialog and ask the user for a file name.
-	 * Write the data as Comma Separated Values (CSV) to the desired file.
+	 * Open a "load" dialog and ask the user for a CSV file.
 	 * 
 	 * @param frame
+	 * @return the chosen file, or null if the user cancelled.
+	 */
+	public static File chooseOpenFile(Component frame)
+	{
+		return FileDialogs.chooseOpenFile(frame, "Load Comma Separated Values", new FileNameExtensionFilter("CSV files", "csv"));
+	}
+	
+	/**
+	 * Write the data as Comma Separated Values (CSV) to the given file.
+	 * 
+	 * @param f
+	 * @param data
+	 * @throws IOException
+	 */
+	public static void writeCSV(File f, List<Reading> data) throws IOException
+	{
+		writeCSV(f, data, null);
+	}
+	
+	/**
+	 * Write the data as Comma Separated Values (CSV) to the given file,
+	 * reporting the number of lines written.
+	 * 
+	 * @param f
 	 * @param data
-	 * @throws IOException 
+	 * @param progress
+	 *            may be null.
+	 * @throws IOException
+	 * @throws java.util.concurrent.CancellationException
+	 *             if the progress is cancelled.
 	 */
-	public static void saveCSV(JFrame frame, List<Reading>data) throws IOException
+	public static void writeCSV(File f, List<Reading> data, Progress progress) throws IOException
 	{
-		boolean write = false;
-		JFileChooser fileChooser = new JFileChooser();
-		fileChooser.setDialogTitle("Save as Comma Separated Values");
-		FileNameExtensionFilter filter = new FileNameExtensionFilter(
-		        "CSV files", "csv");
-		fileChooser.setFileFilter(filter);
-		if(lastDirectory!=null)
+		DateFormat dateFormat = createDateFormat();
+		BufferedWriter bw = new BufferedWriter(new FileWriter(f));
+		try
+		{
+			//write header
+			bw.write(HEADER);
+			//write data
+			int lines = 0;
+			for(Reading r:data)
+			{
+				writeLine(bw, r, dateFormat);
+				if(progress != null && ++lines % PROGRESS_INTERVAL == 0)
+				{
+					ExportService.checkCancelled(progress);
+					progress.setProgress(lines, data.size());
+				}
+			}
+		}
+		finally
 		{
-			fileChooser.setCurrentDirectory(lastDirectory);
+			bw.close();
 		}
-		int option = fileChooser.showSaveDialog(frame);
-		if(option == JFileChooser.APPROVE_OPTION && fileChooser.getSelectedFile() != null && !fileChooser.getSelectedFile().isDirectory())
+	}
+	
+	/**
+	 * Write the data resampled onto a regular grid of buckets, see
+	 * {@link Resampler}, as Comma Separated Values (CSV) to the given file,
+	 * one line per bucket. Gaps have empty rates.
+	 * 
+	 * @param f
+	 * @param data
+	 *            the readings in time order.
+	 * @param periodMillis
+	 *            the length of the buckets.
+	 * @param progress
+	 *            may be null.
+	 * @throws IOException
+	 * @throws java.util.concurrent.CancellationException
+	 *             if the progress is cancelled.
+	 */
+	public static void writeResampledCSV(File f, List<Reading> data, long periodMillis, Progress progress) throws IOException
+	{
+		final DateFormat dateFormat = createDateFormat();
+		final BufferedWriter bw = new BufferedWriter(new FileWriter(f));
+		try
 		{
-			File f = fileChooser.getSelectedFile();
-			lastDirectory = f.getParentFile();
-			if(f.exists())
+			bw.write(RESAMPLED_HEADER);
+			Resampler resampler = new Resampler(periodMillis, new Resampler.BucketSink()
 			{
-				//confirm over-write
-				int result = JOptionPane.showConfirmDialog(frame, f.getName()+" already exists. Overwrite?", "File exists", JOptionPane.YES_NO_OPTION);
-				if(result == JOptionPane.YES_OPTION)
+				@Override
+				public void bucket(Resampler.Bucket b) throws IOException
 				{
-					write = true;
+					writeLine(bw, b, dateFormat);
 				}
-			}
-			else
+			});
+			int lines = 0;
+			for(Reading r:data)
 			{
-				//file does not exists
-				write = true;
+				resampler.add(r);
+				if(progress != null && ++lines % PROGRESS_INTERVAL == 0)
+				{
+					ExportService.checkCancelled(progress);
+					progress.setProgress(lines, data.size());
+				}
 			}
-			if(write)
+			resampler.finish();
+		}
+		finally
+		{
+			bw.close();
+		}
+	}
+	
+	/**
+	 * Read the readings in a CSV file and add them to data.
+	 * 
+	 * @param f
+	 * @param data
+	 * @throws IOException
+	 * @throws ParseException
+	 */
+	public static void readCSV(File f, List<Reading> data) throws IOException, ParseException
+	{
+		readCSV(f, data, null);
+	}
+	
+	/**
+	 * Read the readings in a CSV file and add them to data, reporting the
+	 * number of lines read.
+	 * 
+	 * @param f
+	 * @param data
+	 * @param progress
+	 *            may be null.
+	 * @throws IOException
+	 * @throws ParseException
+	 * @throws java.util.concurrent.CancellationException
+	 *             if the progress is cancelled.
+	 */
+	public static void readCSV(File f, List<Reading> data, Progress progress) throws IOException, ParseException
+	{
+		CSVInput input = new CSVInput(f);
+		try
+		{
+			int lines = 0;
+			Reading r = input.nextReading();
+			while(r != null)
 			{
-				//write the data
-				BufferedWriter bw = new BufferedWriter(new FileWriter(f));
-				//write header
-				bw.write("From,To,Counts,Seconds,CPM,CPS,microSievertsPerHour,saturated\n");
-				//write data
-				for(Reading r:data)
+				data.add(r);
+				if(progress != null && ++lines % PROGRESS_INTERVAL == 0)
 				{
-					bw.write(DATE_FORMAT.format(r.getFromDate()));
-					bw.write(",");
-					bw.write(DATE_FORMAT.format(r.getToDate()));
-					bw.write(","+r.getCount());
-					bw.write(","+r.getInterval());
-					bw.write(","+r.getCountsPerMinute());
-					bw.write(","+r.getCountsPerMinute()/60.0);
-					bw.write(","+r.getMicroSievertsPerHour());
-					bw.write(","+r.isSaturated());
-					bw.write("\n");
+					ExportService.checkCancelled(progress);
+					progress.setProgress(lines, -1);
 				}
-				bw.close();				
+				r = input.nextReading();
 			}
 		}
+		finally
+		{
+			input.close();
+		}
+	}
+	
+	/**
+	 * Open a CSV file for reading one line at a time.
+	 * 
+	 * @param f
+	 * @return
+	 * @throws IOException
+	 */
+	public static ReadingInput openCSV(File f) throws IOException
+	{
+		return new CSVInput(f);
+	}
+	
+	/**
+	 * Create the format of the time columns. SimpleDateFormat is not thread
+	 * safe, so every reader and writer has its own.
+	 */
+	private static DateFormat createDateFormat()
+	{
+		return Tools.createDateFormat();
+	}
+	
+	/**
+	 * Write a single reading as one line of CSV.
+	 */
+	private static void writeLine(Writer w, Reading r, DateFormat dateFormat) throws IOException
+	{
+		w.write(dateFormat.format(r.getFromDate()));
+		w.write(",");
+		w.write(dateFormat.format(r.getToDate()));
+		w.write(","+r.getCount());
+		w.write(","+r.getInterval());
+		w.write(","+r.getCountsPerMinute());
+		w.write(","+r.getCountsPerMinute()/60.0);
+		w.write(","+r.getMicroSievertsPerHour());
+		w.write(","+r.isSaturated());
+		w.write("\n");
 	}
 	
-	public static void loadCSV(JFrame frame, List<Reading>data) throws IOException, ParseException
+	/**
+	 * Write a single bucket as one line of CSV.
+	 */
+	private static void writeLine(Writer w, Resampler.Bucket b, DateFormat dateFormat) throws IOException
+	{
+		w.write(dateFormat.format(new Date(b.getStart())));
+		w.write(",");
+		w.write(dateFormat.format(new Date(b.getEnd())));
+		w.write(","+b.getCounts());
+		w.write(","+b.getCoveredMillis()/1000.0);
+		w.write(","+b.getCoverage());
+		w.write(","+(b.isGap() ? "" : b.getCountsPerMinute()));
+		w.write(","+(b.isGap() ? "" : b.getMicroSievertsPerHour()));
+		w.write(","+b.isSaturated());
+		w.write(","+b.isGap());
+		w.write("\n");
+	}
+	
+	/**
+	 * Parse a single line of CSV.
+	 */
+	private static Reading parseLine(String line, DateFormat dateFormat) throws ParseException
+	{
+		Reading r = new Reading();
+		//parse the line
+		String [] parts = line.split(",");
+		long time = dateFormat.parse(parts[1]).getTime();
+		r.setTime(time);
+		long gap = Long.parseLong(parts[3]);
+		r.setInterval(gap);
+		long count = Long.parseLong(parts[2]);
+		r.setCount(count);
+		boolean saturated = Boolean.parseBoolean(parts[7]);
+		r.setSaturated(saturated);
+		return r;
+	}
+	
+	/**
+	 * Reads a CSV file line by line.
+	 */
+	private static class CSVInput implements ReadingInput
 	{
-		JFileChooser fileChooser = new JFileChooser();
-		fileChooser.setDialogTitle("Load Comma Separated Values");
-		FileNameExtensionFilter filter = new FileNameExtensionFilter(
-		        "CSV files", "csv");
-		fileChooser.setFileFilter(filter);
-		if(lastDirectory!=null)
+		private final BufferedReader br;
+		private final File file;
+		private final DateFormat dateFormat = createDateFormat();
+		
+		CSVInput(File f) throws IOException
 		{
-			fileChooser.setCurrentDirectory(lastDirectory);
+			file = f;
+			br = new BufferedReader(new FileReader(f));
+			//discard first line
+			br.readLine();
 		}
-		int option = fileChooser.showOpenDialog(frame);
-		if(option == JFileChooser.APPROVE_OPTION && fileChooser.getSelectedFile() != null && !fileChooser.getSelectedFile().isDirectory())
+		
+		Reading nextReading() throws IOException, ParseException
 		{
-			File f = fileChooser.getSelectedFile();
-			if(f.exists() )
+			String line = br.readLine();
+			while(line != null && line.trim().isEmpty())
 			{
-				lastDirectory = f.getParentFile();
-				//clear old values
-				data.clear();
-				//read line-by-line
-				BufferedReader br = new BufferedReader(new FileReader(f));
-				String line = br.readLine();
-				//discard first line
 				line = br.readLine();
-				while(line != null)
-				{
-					Reading r = new Reading();
-					//parse the line
-					String [] parts = line.split(",");
-					long time = DATE_FORMAT.parse(parts[1]).getTime();
-					r.setTime(time);
-					long gap = Long.parseLong(parts[3]);
-					r.setInterval(gap);
-					long count = Long.parseLong(parts[2]);
-					r.setCount(count);
-					boolean saturated = Boolean.parseBoolean(parts[7]);
-					r.setSaturated(saturated);
-					data.add(r);
-					line = br.readLine();
-				}
-				br.close();
 			}
+			if(line == null)
+			{
+				return null;
+			}
+			return parseLine(line, dateFormat);
+		}
+		
+		@Override
+		public Reading next() throws IOException
+		{
+			try
+			{
+				return nextReading();
+			}
+			catch (ParseException e)
+			{
+				throw new IOException("Could not parse "+file.getName(), e);
+			}
+		}
+		
+		@Override
+		public void close() throws IOException
+		{
+			br.close();
 		}
 	}
 }
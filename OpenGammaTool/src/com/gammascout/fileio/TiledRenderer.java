@@ -0,0 +1,261 @@
+/*******************************************************************************
+ *  
+ * Copyright (c) 2009, 2019 Erik Berglund.
+ *    
+ *       This file is part of Conserve.
+ *   
+ *       Conserve is free software: you can redistribute it and/or modify
+ *       it under the terms of the GNU Affero General Public License as published by
+ *       the Free Software Foundation, either version 3 of the License, or
+ *       (at your option) any later version.
+ *   
+ *       Conserve is distributed in the hope that it will be useful,
+ *       but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *       MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *       GNU Affero General Public License for more details.
+ *   
+ *       You should have received a copy of the GNU Affero General Public License
+ *       along with Conserve.  If not, see <https://www.gnu.org/licenses/agpl.html>.
+ *       
+ *******************************************************************************/
+package com.gammascout.fileio;
+
+import java.awt.Graphics2D;
+import java.awt.Rectangle;
+import java.awt.geom.Rectangle2D;
+import java.awt.image.BufferedImage;
+import java.io.IOException;
+import java.util.ArrayDeque;
+import java.util.Deque;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CancellationException;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Future;
+
+import org.jfree.chart.JFreeChart;
+import org.jfree.chart.plot.XYPlot;
+
+import com.gammascout.chart.Charts;
+
+/**
+ * Renders a chart as a sequence of horizontal tiles on all processors, for
+ * images too large to render in one piece.
+ * <p>
+ * Each tile is rendered by its own copy of the chart, clipped to the tile.
+ * The tiles are handed to a {@link TileSink} in order from the top; only as
+ * many tiles as fit in {@value #DEFAULT_TILE_MEMORY} MB, or the number set
+ * with -Dopengammatool.tilememory=MB, and at most two per processor, are
+ * rendered ahead of the sink. The memory used thus depends neither on the
+ * height of the image nor on the number of processors.
+ * 
+ * @author Erik Berglund
+ * 
+ */
+public class TiledRenderer
+{
+	/**
+	 * The height of a tile in pixels.
+	 */
+	public static final int TILE_HEIGHT = 256;
+	/**
+	 * The memory in MB that the tiles rendered ahead of the sink may take,
+	 * unless set with -Dopengammatool.tilememory=MB.
+	 */
+	public static final int DEFAULT_TILE_MEMORY = 128;
+	private static final long TILE_MEMORY = Integer.getInteger("opengammatool.tilememory", DEFAULT_TILE_MEMORY) * (1L << 20);
+
+	/**
+	 * Receives the rendered tiles.
+	 */
+	public interface TileSink
+	{
+		/**
+		 * Take the next tile. The image is only valid during the call.
+		 * 
+		 * @param tile
+		 *            an image as wide as the whole image.
+		 * @param y
+		 *            the row of the whole image that the tile starts at.
+		 * @param rows
+		 *            the number of rows of the tile that belong to the image.
+		 * @throws IOException
+		 */
+		public void writeTile(BufferedImage tile, int y, int rows) throws IOException;
+	}
+
+	/**
+	 * Render the chart and send the tiles to the sink. The chart is laid out
+	 * at width/scale by height/scale units and scaled up, so a scale above 1
+	 * gives larger text and lines, as when printing at a higher resolution.
+	 * 
+	 * @param chart
+	 *            the chart, which is copied and not changed.
+	 * @param width
+	 *            the width of the image in pixels.
+	 * @param height
+	 *            the height of the image in pixels.
+	 * @param scale
+	 *            the number of pixels per unit.
+	 * @param sink
+	 * @param progress
+	 *            counts tiles, may be null.
+	 * @throws IOException
+	 * @throws CancellationException
+	 *             if the progress is cancelled.
+	 */
+	public static void render(JFreeChart chart, int width, int height, double scale, TileSink sink, Progress progress)
+			throws IOException
+	{
+		ExecutorService service = WorkerPool.get();
+		int tiles = (height + TILE_HEIGHT - 1) / TILE_HEIGHT;
+		int ahead = getTilesAhead(width);
+		Rectangle2D area = new Rectangle2D.Double(0, 0, width / scale, height / scale);
+		Deque<Future<BufferedImage>> pending = new ArrayDeque<>();
+		int submitted = 0;
+		try
+		{
+			for (int tile = 0; tile < tiles; tile++)
+			{
+				while (submitted < tiles && submitted < tile + ahead)
+				{
+					int y = submitted * TILE_HEIGHT;
+					pending.add(service.submit(new Tile(copy(chart), area, width, y, Math.min(TILE_HEIGHT, height - y), scale)));
+					submitted++;
+				}
+				BufferedImage image = get(pending.poll());
+				int y = tile * TILE_HEIGHT;
+				sink.writeTile(image, y, Math.min(TILE_HEIGHT, height - y));
+				if (progress != null)
+				{
+					ExportService.checkCancelled(progress);
+					progress.setProgress(tile + 1, tiles);
+				}
+			}
+		}
+		finally
+		{
+			for (Future<BufferedImage> f : pending)
+			{
+				f.cancel(true);
+			}
+		}
+	}
+
+	/**
+	 * Get the number of tiles of an image that may be rendered ahead of the
+	 * sink: enough to keep all processors busy, if they fit in the tile
+	 * memory, but at least one.
+	 * 
+	 * @param width
+	 *            the width of the image in pixels.
+	 * @return
+	 */
+	static int getTilesAhead(int width)
+	{
+		long tileBytes = 4L * width * TILE_HEIGHT;
+		return (int) Math.max(1, Math.min(2 * WorkerPool.getThreadCount(), TILE_MEMORY / tileBytes));
+	}
+
+	/**
+	 * Wait for a tile and pass on any failure.
+	 */
+	private static BufferedImage get(Future<BufferedImage> future) throws IOException
+	{
+		try
+		{
+			return future.get();
+		}
+		catch (InterruptedException e)
+		{
+			Thread.currentThread().interrupt();
+			throw new CancellationException();
+		}
+		catch (ExecutionException e)
+		{
+			if (e.getCause() instanceof RuntimeException)
+			{
+				throw (RuntimeException) e.getCause();
+			}
+			throw new IOException("Could not render tile", e.getCause());
+		}
+	}
+
+	/**
+	 * Copy the chart, since drawing changes the state of axes, renderers and
+	 * the legend.
+	 */
+	static JFreeChart copy(JFreeChart chart) throws IOException
+	{
+		try
+		{
+			return Charts.copy(chart);
+		}
+		catch (CloneNotSupportedException e)
+		{
+			throw new IOException("Could not copy chart", e);
+		}
+	}
+
+	/**
+	 * Stop a copy from listening to the datasets it shares with the
+	 * original, so it can be garbage collected.
+	 */
+	static void release(JFreeChart copy)
+	{
+		if (copy.getPlot() instanceof XYPlot)
+		{
+			XYPlot plot = copy.getXYPlot();
+			for (int x = 0; x < plot.getDatasetCount(); x++)
+			{
+				if (plot.getDataset(x) != null)
+				{
+					plot.getDataset(x).removeChangeListener(plot);
+				}
+			}
+		}
+	}
+
+	/**
+	 * Renders one tile.
+	 */
+	private static class Tile implements Callable<BufferedImage>
+	{
+		private final JFreeChart chart;
+		private final Rectangle2D area;
+		private final int width;
+		private final int y;
+		private final int rows;
+		private final double scale;
+
+		Tile(JFreeChart chart, Rectangle2D area, int width, int y, int rows, double scale)
+		{
+			this.chart = chart;
+			this.area = area;
+			this.width = width;
+			this.y = y;
+			this.rows = rows;
+			this.scale = scale;
+		}
+
+		@Override
+		public BufferedImage call()
+		{
+			BufferedImage image = new BufferedImage(width, rows, BufferedImage.TYPE_INT_RGB);
+			Graphics2D g2 = image.createGraphics();
+			try
+			{
+				g2.translate(0, -y);
+				g2.clip(new Rectangle(0, y, width, rows));
+				g2.scale(scale, scale);
+				chart.draw(g2, area);
+			}
+			finally
+			{
+				g2.dispose();
+				release(chart);
+			}
+			return image;
+		}
+	}
+}
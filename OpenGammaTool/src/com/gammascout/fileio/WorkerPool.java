@@ -0,0 +1,74 @@
+/*******************************************************************************
+ *  
+ * Copyright (c) 2009, 2019 Erik Berglund.
+ *    
+ *       This file is part of Conserve.
+ *   
+ *       Conserve is free software: you can redistribute it and/or modify
+ *       it under the terms of the GNU Affero General Public License as published by
+ *       the Free Software Foundation, either version 3 of the License, or
+ *       (at your option) any later version.
+ *   
+ *       Conserve is distributed in the hope that it will be useful,
+ *       but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *       MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *       GNU Affero General Public License for more details.
+ *   
+ *       You should have received a copy of the GNU Affero General Public License
+ *       along with Conserve.  If not, see <https://www.gnu.org/licenses/agpl.html>.
+ *       
+ *******************************************************************************/
+package com.gammascout.fileio;
+
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * The threads that exports split their work over, one per processor. Tasks
+ * run here must never wait for other tasks run here.
+ * 
+ * @author Erik Berglund
+ * 
+ */
+public class WorkerPool
+{
+	private static ExecutorService executor;
+
+	/**
+	 * Get the pool, creating it on first use. The threads are daemon threads.
+	 * 
+	 * @return
+	 */
+	public static synchronized ExecutorService get()
+	{
+		if (executor == null)
+		{
+			executor = Executors.newFixedThreadPool(getThreadCount(), new ThreadFactory()
+			{
+				private final AtomicInteger number = new AtomicInteger();
+
+				@Override
+				public Thread newThread(Runnable r)
+				{
+					Thread t = new Thread(r, "Worker " + number.incrementAndGet());
+					t.setDaemon(true);
+					t.setPriority(Thread.NORM_PRIORITY - 1);
+					return t;
+				}
+			});
+		}
+		return executor;
+	}
+
+	/**
+	 * Get the number of threads in the pool.
+	 * 
+	 * @return
+	 */
+	public static int getThreadCount()
+	{
+		return Runtime.getRuntime().availableProcessors();
+	}
+}
@@ -0,0 +1,510 @@
+/*******************************************************************************
+ *  
+ * Copyright (c) 2009, 2019 Erik Berglund.
+ *    
+ *       This file is part of Conserve.
+ *   
+ *       Conserve is free software: you can redistribute it and/or modify
+ *       it under the terms of the GNU Affero General Public License as published by
+ *       the Free Software Foundation, either version 3 of the License, or
+ *       (at your option) any later version.
+ *   
+ *       Conserve is distributed in the hope that it will be useful,
+ *       but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *       MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *       GNU Affero General Public License for more details.
+ *   
+ *       You should have received a copy of the GNU Affero General Public License
+ *       along with Conserve.  If not, see <https://www.gnu.org/licenses/agpl.html>.
+ *       
+ *******************************************************************************/
+package com.gammascout.usb;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.List;
+
+/**
+ * Pre-computed aggregates of the readings per minute, hour, day and week.
+ * <p>
+ * Each bucket holds the total count and measuring time of the readings that
+ * ended within it, the lowest and highest counts per minute, and the number
+ * of saturated readings. Views of long time ranges are drawn from the
+ * coarsest level that still has a bucket for every pixel, so zooming out to
+ * the whole log costs in proportion to the number of pixels instead of the
+ * number of readings.
+ * <p>
+ * The pyramid is updated as readings arrive, in constant time for readings in
+ * time order. Readings older than the last minute bucket are held back until
+ * the pyramid is next read, and then their buckets are merged into every
+ * level in one pass. All methods are synchronized; synchronize on the pyramid to
+ * read several buckets consistently.
+ * 
+ * @author Erik Berglund
+ * 
+ */
+public class AggregatePyramid implements GammaScoutListener
+{
+	/**
+	 * The bucket sizes, finest first.
+	 */
+	public enum Level
+	{
+		MINUTE(60000L), HOUR(3600000L), DAY(86400000L), WEEK(7 * 86400000L);
+
+		private final long millis;
+
+		private Level(long millis)
+		{
+			this.millis = millis;
+		}
+
+		/**
+		 * Get the length of a bucket in milliseconds.
+		 * 
+		 * @return
+		 */
+		public long getMillis()
+		{
+			return millis;
+		}
+
+		/**
+		 * Get the start of the bucket that contains the time. Weeks start on
+		 * Monday, UTC.
+		 * 
+		 * @param time
+		 * @return
+		 */
+		public long getBucketStart(long time)
+		{
+			// 1970-01-01 was a Thursday, so Mondays are 4 days off
+			long offset = this == WEEK ? 4 * DAY.millis : 0;
+			long t = time - offset;
+			long start = t - t % millis;
+			if (t % millis < 0)
+			{
+				start -= millis;
+			}
+			return start + offset;
+		}
+	}
+
+	private static final Level[] LEVELS = Level.values();
+	private static final int INITIAL_CAPACITY = 64;
+	private static final Comparator<Reading> TIME_ORDER = new Comparator<Reading>()
+	{
+		@Override
+		public int compare(Reading r1, Reading r2)
+		{
+			return Long.compare(r1.getTime(), r2.getTime());
+		}
+	};
+
+	/**
+	 * The buckets of one level, one array per field.
+	 */
+	private static class Buckets
+	{
+		private int size;
+		private long[] start = new long[INITIAL_CAPACITY];
+		private long[] counts = new long[INITIAL_CAPACITY];
+		private long[] seconds = new long[INITIAL_CAPACITY];
+		private int[] readings = new int[INITIAL_CAPACITY];
+		private int[] saturated = new int[INITIAL_CAPACITY];
+		// counts per minute of the un-saturated readings
+		private double[] minCpm = new double[INITIAL_CAPACITY];
+		private double[] maxCpm = new double[INITIAL_CAPACITY];
+		// counts per minute of all readings
+		private double[] minCpmAll = new double[INITIAL_CAPACITY];
+		private double[] maxCpmAll = new double[INITIAL_CAPACITY];
+
+		/**
+		 * Find the index of the bucket starting at the given time, or the
+		 * insertion point as -(index + 1).
+		 */
+		int find(long bucketStart)
+		{
+			if (size > 0 && start[size - 1] == bucketStart)
+			{
+				return size - 1;
+			}
+			if (size == 0 || start[size - 1] < bucketStart)
+			{
+				return -(size + 1);
+			}
+			return Arrays.binarySearch(start, 0, size, bucketStart);
+		}
+
+		void ensureCapacity(int capacity)
+		{
+			if (capacity > start.length)
+			{
+				capacity = Math.max(capacity, start.length * 2);
+				start = Arrays.copyOf(start, capacity);
+				counts = Arrays.copyOf(counts, capacity);
+				seconds = Arrays.copyOf(seconds, capacity);
+				readings = Arrays.copyOf(readings, capacity);
+				saturated = Arrays.copyOf(saturated, capacity);
+				minCpm = Arrays.copyOf(minCpm, capacity);
+				maxCpm = Arrays.copyOf(maxCpm, capacity);
+				minCpmAll = Arrays.copyOf(minCpmAll, capacity);
+				maxCpmAll = Arrays.copyOf(maxCpmAll, capacity);
+			}
+		}
+
+		/**
+		 * Make the bucket at the index empty.
+		 */
+		void empty(int index, long bucketStart)
+		{
+			start[index] = bucketStart;
+			counts[index] = 0;
+			seconds[index] = 0;
+			readings[index] = 0;
+			saturated[index] = 0;
+			minCpm[index] = Double.NaN;
+			maxCpm[index] = Double.NaN;
+			minCpmAll[index] = Double.NaN;
+			maxCpmAll[index] = Double.NaN;
+		}
+
+		/**
+		 * Copy a bucket to a higher index.
+		 */
+		void move(int from, int to)
+		{
+			start[to] = start[from];
+			counts[to] = counts[from];
+			seconds[to] = seconds[from];
+			readings[to] = readings[from];
+			saturated[to] = saturated[from];
+			minCpm[to] = minCpm[from];
+			maxCpm[to] = maxCpm[from];
+			minCpmAll[to] = minCpmAll[from];
+			maxCpmAll[to] = maxCpmAll[from];
+		}
+
+		/**
+		 * Add a reading in or after the last bucket.
+		 */
+		void add(Level level, Reading r)
+		{
+			long bucketStart = level.getBucketStart(r.getTime());
+			int index = find(bucketStart);
+			if (index < 0)
+			{
+				ensureCapacity(size + 1);
+				index = size++;
+				empty(index, bucketStart);
+			}
+			accumulate(index, r);
+		}
+
+		/**
+		 * Add readings in time order anywhere in the level, merging their
+		 * buckets from the end so that each bucket moves at most once.
+		 */
+		void addAll(Level level, List<Reading> sorted)
+		{
+			int added = 0;
+			long previous = 0;
+			for (int i = 0; i < sorted.size(); i++)
+			{
+				long bucketStart = level.getBucketStart(sorted.get(i).getTime());
+				if ((i == 0 || bucketStart != previous) && find(bucketStart) < 0)
+				{
+					added++;
+				}
+				previous = bucketStart;
+			}
+			ensureCapacity(size + added);
+			int from = size - 1;
+			int to = size + added - 1;
+			int next = sorted.size() - 1;
+			while (next >= 0)
+			{
+				long bucketStart = level.getBucketStart(sorted.get(next).getTime());
+				while (from >= 0 && start[from] > bucketStart)
+				{
+					move(from--, to--);
+				}
+				if (from >= 0 && start[from] == bucketStart)
+				{
+					move(from--, to);
+				}
+				else
+				{
+					empty(to, bucketStart);
+				}
+				while (next >= 0 && level.getBucketStart(sorted.get(next).getTime()) == bucketStart)
+				{
+					accumulate(to, sorted.get(next--));
+				}
+				to--;
+			}
+			size += added;
+		}
+
+		private void accumulate(int index, Reading r)
+		{
+			double cpm = r.getCountsPerMinute();
+			counts[index] += r.getCount();
+			seconds[index] += r.getInterval();
+			readings[index]++;
+			minCpmAll[index] = min(minCpmAll[index], cpm);
+			maxCpmAll[index] = max(maxCpmAll[index], cpm);
+			if (r.isSaturated())
+			{
+				saturated[index]++;
+			}
+			else
+			{
+				minCpm[index] = min(minCpm[index], cpm);
+				maxCpm[index] = max(maxCpm[index], cpm);
+			}
+		}
+
+		private static double min(double current, double value)
+		{
+			return Double.isNaN(current) || value < current ? value : current;
+		}
+
+		private static double max(double current, double value)
+		{
+			return Double.isNaN(current) || value > current ? value : current;
+		}
+	}
+
+	private final Buckets[] levels = new Buckets[LEVELS.length];
+	/**
+	 * Readings older than the last minute bucket, not yet merged.
+	 */
+	private final List<Reading> pending = new ArrayList<>();
+
+	/**
+	 * Create an empty pyramid.
+	 */
+	public AggregatePyramid()
+	{
+		clear();
+	}
+
+	/**
+	 * Remove all buckets.
+	 */
+	public synchronized void clear()
+	{
+		for (int x = 0; x < levels.length; x++)
+		{
+			levels[x] = new Buckets();
+		}
+		pending.clear();
+	}
+
+	/**
+	 * Add a reading to every level.
+	 * 
+	 * @param r
+	 */
+	public synchronized void add(Reading r)
+	{
+		Buckets minutes = levels[Level.MINUTE.ordinal()];
+		if (minutes.size > 0 && Level.MINUTE.getBucketStart(r.getTime()) < minutes.start[minutes.size - 1])
+		{
+			// every coarser bucket holds whole minutes, so it goes in or after
+			// the last bucket of every level otherwise
+			pending.add(r);
+			return;
+		}
+		for (Level level : LEVELS)
+		{
+			levels[level.ordinal()].add(level, r);
+		}
+	}
+
+	/**
+	 * Add all readings.
+	 * 
+	 * @param readings
+	 */
+	public synchronized void addAll(List<Reading> readings)
+	{
+		for (Reading r : readings)
+		{
+			add(r);
+		}
+	}
+
+	/**
+	 * Merge the readings held back into every level.
+	 */
+	private void merge()
+	{
+		if (pending.isEmpty())
+		{
+			return;
+		}
+		Collections.sort(pending, TIME_ORDER);
+		for (Level level : LEVELS)
+		{
+			levels[level.ordinal()].addAll(level, pending);
+		}
+		pending.clear();
+	}
+
+	/**
+	 * @see com.gammascout.usb.GammaScoutListener#receiveReading(com.gammascout.usb.Reading)
+	 */
+	@Override
+	public void receiveReading(Reading r)
+	{
+		add(r);
+	}
+
+	/**
+	 * Choose the coarsest level with buckets no longer than the given time,
+	 * typically the time covered by one pixel.
+	 * 
+	 * @param millis
+	 * @return the level, or null if even minutes are too coarse.
+	 */
+	public static Level chooseLevel(double millis)
+	{
+		Level result = null;
+		for (Level level : LEVELS)
+		{
+			if (level.getMillis() <= millis)
+			{
+				result = level;
+			}
+		}
+		return result;
+	}
+
+	/**
+	 * Get the number of buckets of a level.
+	 * 
+	 * @param level
+	 * @return
+	 */
+	public synchronized int getBucketCount(Level level)
+	{
+		merge();
+		return levels[level.ordinal()].size;
+	}
+
+	/**
+	 * Find the first bucket of the level that starts at or after the time.
+	 * 
+	 * @param level
+	 * @param time
+	 * @return the index, or the bucket count if there is no such bucket.
+	 */
+	public synchronized int findBucket(Level level, long time)
+	{
+		merge();
+		Buckets b = levels[level.ordinal()];
+		int index = Arrays.binarySearch(b.start, 0, b.size, time);
+		return index < 0 ? -(index + 1) : index;
+	}
+
+	/**
+	 * Get the time a bucket starts, in milliseconds since the epoch, UTC.
+	 * 
+	 * @param level
+	 * @param index
+	 * @return
+	 */
+	public synchronized long getBucketStart(Level level, int index)
+	{
+		merge();
+		return levels[level.ordinal()].start[index];
+	}
+
+	/**
+	 * Get the total count of the readings in a bucket.
+	 * 
+	 * @param level
+	 * @param index
+	 * @return
+	 */
+	public synchronized long getCount(Level level, int index)
+	{
+		merge();
+		return levels[level.ordinal()].counts[index];
+	}
+
+	/**
+	 * Get the total measuring time of the readings in a bucket, in seconds.
+	 * 
+	 * @param level
+	 * @param index
+	 * @return
+	 */
+	public synchronized long getSeconds(Level level, int index)
+	{
+		merge();
+		return levels[level.ordinal()].seconds[index];
+	}
+
+	/**
+	 * Get the number of readings in a bucket.
+	 * 
+	 * @param level
+	 * @param index
+	 * @return
+	 */
+	public synchronized int getReadingCount(Level level, int index)
+	{
+		merge();
+		return levels[level.ordinal()].readings[index];
+	}
+
+	/**
+	 * Get the number of saturated readings in a bucket.
+	 * 
+	 * @param level
+	 * @param index
+	 * @return
+	 */
+	public synchronized int getSaturatedCount(Level level, int index)
+	{
+		merge();
+		return levels[level.ordinal()].saturated[index];
+	}
+
+	/**
+	 * Get the lowest counts per minute of the readings in a bucket.
+	 * 
+	 * @param level
+	 * @param index
+	 * @param includeSaturated
+	 *            false to only consider un-saturated readings.
+	 * @return the counts per minute, or NaN if there are no such readings.
+	 */
+	public synchronized double getMinCpm(Level level, int index, boolean includeSaturated)
+	{
+		merge();
+		Buckets b = levels[level.ordinal()];
+		return includeSaturated ? b.minCpmAll[index] : b.minCpm[index];
+	}
+
+	/**
+	 * Get the highest counts per minute of the readings in a bucket.
+	 * 
+	 * @param level
+	 * @param index
+	 * @param includeSaturated
+	 *            false to only consider un-saturated readings.
+	 * @return the counts per minute, or NaN if there are no such readings.
+	 */
+	public synchronized double getMaxCpm(Level level, int index, boolean includeSaturated)
+	{
+		merge();
+		Buckets b = levels[level.ordinal()];
+		return includeSaturated ? b.maxCpmAll[index] : b.maxCpm[index];
+	}
+}
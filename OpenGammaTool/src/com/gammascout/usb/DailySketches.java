@@ -0,0 +1,244 @@
+/*******************************************************************************
+ *  
+ * Copyright (c) 2009, 2019 Erik Berglund.
+ *    
+ *       This file is part of Conserve.
+ *   
+ *       Conserve is free software: you can redistribute it and/or modify
+ *       it under the terms of the GNU Affero General Public License as published by
+ *       the Free Software Foundation, either version 3 of the License, or
+ *       (at your option) any later version.
+ *   
+ *       Conserve is distributed in the hope that it will be useful,
+ *       but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *       MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *       GNU Affero General Public License for more details.
+ *   
+ *       You should have received a copy of the GNU Affero General Public License
+ *       along with Conserve.  If not, see <https://www.gnu.org/licenses/agpl.html>.
+ *       
+ *******************************************************************************/
+package com.gammascout.usb;
+
+import java.io.DataInput;
+import java.io.DataOutput;
+import java.io.IOException;
+import java.util.Map;
+import java.util.TreeMap;
+
+/**
+ * Quantile sketches of the dose rates of readings, one per day in UTC, by the
+ * time each reading ended. The sketches of any range of days are merged into
+ * one, and the sketches of several logs, e.g. of several devices, are merged
+ * day by day, so percentiles of months of data from many devices take a few
+ * merges instead of sorting the readings.
+ * <p>
+ * Saturated readings are left out, as in {@link RunningStatistics}.
+ * <p>
+ * All methods are synchronized, so that a store can update the sketches while
+ * they are queried.
+ * 
+ * @author Erik Berglund
+ * 
+ */
+public class DailySketches implements GammaScoutListener
+{
+	/**
+	 * The length of a day in milliseconds.
+	 */
+	public static final long DAY_MILLIS = 24 * 60 * 60 * 1000L;
+
+	private final TreeMap<Long, QuantileSketch> days = new TreeMap<>();
+	// the sketch of the day of the last reading, most readings follow it
+	private long lastDay = Long.MIN_VALUE;
+	private QuantileSketch lastSketch;
+
+	/**
+	 * Create sketches of no readings.
+	 */
+	public DailySketches()
+	{
+	}
+
+	/**
+	 * Add a reading to the sketch of its day.
+	 * 
+	 * @param r
+	 */
+	public synchronized void add(Reading r)
+	{
+		if (r.isSaturated() || r.getInterval() <= 0)
+		{
+			return;
+		}
+		long day = getDay(r.getTime());
+		if (day != lastDay)
+		{
+			lastSketch = days.get(day);
+			if (lastSketch == null)
+			{
+				lastSketch = new QuantileSketch();
+				days.put(day, lastSketch);
+			}
+			lastDay = day;
+		}
+		lastSketch.add(r.getMicroSievertsPerHour());
+	}
+
+	/**
+	 * @see com.gammascout.usb.GammaScoutListener#receiveReading(com.gammascout.usb.Reading)
+	 */
+	@Override
+	public void receiveReading(Reading r)
+	{
+		add(r);
+	}
+
+	/**
+	 * Add the sketches of other readings, e.g. of another device, day by day.
+	 * 
+	 * @param other
+	 */
+	public void merge(DailySketches other)
+	{
+		DailySketches copy = other.copy();
+		synchronized (this)
+		{
+			for (Map.Entry<Long, QuantileSketch> e : copy.days.entrySet())
+			{
+				QuantileSketch sketch = days.get(e.getKey());
+				if (sketch == null)
+				{
+					days.put(e.getKey(), e.getValue());
+				}
+				else
+				{
+					sketch.merge(e.getValue());
+				}
+			}
+		}
+	}
+
+	/**
+	 * Forget all readings.
+	 */
+	public synchronized void clear()
+	{
+		days.clear();
+		lastDay = Long.MIN_VALUE;
+		lastSketch = null;
+	}
+
+	/**
+	 * Copy the sketches as they are now.
+	 * 
+	 * @return
+	 */
+	public synchronized DailySketches copy()
+	{
+		DailySketches result = new DailySketches();
+		for (Map.Entry<Long, QuantileSketch> e : days.entrySet())
+		{
+			result.days.put(e.getKey(), e.getValue().copy());
+		}
+		return result;
+	}
+
+	/**
+	 * Get the number of days with readings.
+	 * 
+	 * @return
+	 */
+	public synchronized int getDayCount()
+	{
+		return days.size();
+	}
+
+	/**
+	 * Merge the sketches of the days of a time range, including the whole
+	 * first and last day.
+	 * 
+	 * @param from
+	 *            a time on the first day.
+	 * @param to
+	 *            a time on the last day.
+	 * @return a new sketch.
+	 */
+	public synchronized QuantileSketch get(long from, long to)
+	{
+		QuantileSketch result = new QuantileSketch();
+		if (days.isEmpty() || from > to)
+		{
+			return result;
+		}
+		// clamped, so that open ranges do not overflow
+		long first = from <= days.firstKey() ? days.firstKey() : getDay(from);
+		long last = to >= days.lastKey() ? days.lastKey() : getDay(to);
+		if (first <= last)
+		{
+			for (QuantileSketch sketch : days.subMap(first, true, last, true).values())
+			{
+				result.merge(sketch);
+			}
+		}
+		return result;
+	}
+
+	/**
+	 * Merge the sketches of all days.
+	 * 
+	 * @return a new sketch.
+	 */
+	public QuantileSketch getAll()
+	{
+		return get(Long.MIN_VALUE, Long.MAX_VALUE);
+	}
+
+	/**
+	 * Write the sketches.
+	 * 
+	 * @param out
+	 * @throws IOException
+	 */
+	public synchronized void writeTo(DataOutput out) throws IOException
+	{
+		out.writeInt(days.size());
+		for (Map.Entry<Long, QuantileSketch> e : days.entrySet())
+		{
+			out.writeLong(e.getKey());
+			e.getValue().writeTo(out);
+		}
+	}
+
+	/**
+	 * Read sketches written by {@link #writeTo(DataOutput)}.
+	 * 
+	 * @param in
+	 * @return
+	 * @throws IOException
+	 *             if the sketches cannot be read or are inconsistent.
+	 */
+	public static DailySketches readFrom(DataInput in) throws IOException
+	{
+		DailySketches result = new DailySketches();
+		int n = in.readInt();
+		if (n < 0)
+		{
+			throw new IOException("Corrupt daily sketches: " + n + " days");
+		}
+		for (int x = 0; x < n; x++)
+		{
+			result.days.put(in.readLong(), QuantileSketch.readFrom(in));
+		}
+		return result;
+	}
+
+	/**
+	 * Get the start of the day of a time, in UTC.
+	 */
+	private static long getDay(long time)
+	{
+		long remainder = time % DAY_MILLIS;
+		return time - (remainder < 0 ? remainder + DAY_MILLIS : remainder);
+	}
+}
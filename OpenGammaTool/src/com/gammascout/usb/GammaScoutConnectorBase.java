@@ -27,7 +27,7 @@ import java.util.ArrayList;
 import java.util.Date;
 import java.util.List;
 
-import com.gammascout.MainWindow;
+import com.gammascout.usb.ProtocolVersionDetector.ProtocolVersion;
 
 import jssc.SerialPort;
 import jssc.SerialPortException;
@@ -130,7 +130,7 @@ public abstract class GammaScoutConnectorBase implements Runnable
 		else
 		{
 			Date res = new Date(deviceTime.getTime() + System.currentTimeMillis() - deviceTimeUpdatedAt);
-			return MainWindow.DATE_FORMAT.format(res);
+			return Tools.DATE_FORMAT.format(res);
 		}
 	}
 
@@ -172,6 +172,23 @@ public abstract class GammaScoutConnectorBase implements Runnable
 		}
 	}
 
+	/**
+	 * Get the device serial number, or null if it has not been read yet.
+	 * 
+	 * @return
+	 */
+	public Integer getSerialNumberValue()
+	{
+		return serialNumber;
+	}
+
+	/**
+	 * Get the version of the protocol spoken by this connector.
+	 * 
+	 * @return
+	 */
+	public abstract ProtocolVersion getProtocolVersion();
+
 	/**
 	 * Get the device firmware version.
 	 * 
@@ -26,6 +26,8 @@ import java.util.ArrayList;
 import java.util.Date;
 import java.util.List;
 
+import com.gammascout.usb.ProtocolVersionDetector.ProtocolVersion;
+
 import jssc.SerialPort;
 import jssc.SerialPortException;
 
@@ -288,6 +290,12 @@ public class GammaScoutConnectorV1 extends GammaScoutConnectorBase
 		waitForString(" Datum gestellt \r\n");
 	}
 
+	@Override
+	public ProtocolVersion getProtocolVersion()
+	{
+		return ProtocolVersion.VERSION1;
+	}
+
 	@Override
 	public void clearLog() throws SerialPortException
 	{
@@ -26,6 +26,8 @@ import java.util.ArrayList;
 import java.util.Date;
 import java.util.List;
 
+import com.gammascout.usb.ProtocolVersionDetector.ProtocolVersion;
+
 import jssc.SerialPort;
 import jssc.SerialPortException;
 
@@ -74,6 +76,12 @@ public class GammaScoutConnectorV2 extends GammaScoutConnectorBase
 		}
 	}
 
+	@Override
+	public ProtocolVersion getProtocolVersion()
+	{
+		return ProtocolVersion.VERSION2;
+	}
+
 	/**
 	 * Reset the log.
 	 * 
@@ -0,0 +1,312 @@
+/*******************************************************************************
+ *  
+ * Copyright (c) 2009, 2019 Erik Berglund.
+ *    
+ *       This file is part of Conserve.
+ *   
+ *       Conserve is free software: you can redistribute it and/or modify
+ *       it under the terms of the GNU Affero General Public License as published by
+ *       the Free Software Foundation, either version 3 of the License, or
+ *       (at your option) any later version.
+ *   
+ *       Conserve is distributed in the hope that it will be useful,
+ *       but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *       MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *       GNU Affero General Public License for more details.
+ *   
+ *       You should have received a copy of the GNU Affero General Public License
+ *       along with Conserve.  If not, see <https://www.gnu.org/licenses/agpl.html>.
+ *       
+ *******************************************************************************/
+package com.gammascout.usb;
+
+import java.io.DataInput;
+import java.io.DataOutput;
+import java.io.IOException;
+
+/**
+ * A mergeable sketch of the distribution of positive values, e.g. dose rates,
+ * that answers quantile queries with a bounded relative error.
+ * <p>
+ * The values are counted in buckets whose bounds grow geometrically, so that
+ * every value in a bucket is within {@link #RELATIVE_ACCURACY} of the value
+ * the bucket reports. A quantile is found by walking the buckets, which takes
+ * time proportional to the number of buckets rather than of the values, and
+ * two sketches are merged by adding their buckets. Unlike sampling sketches
+ * such as KLL or t-digest, merging loses nothing: the merge of the sketches of
+ * two sets of values is the sketch of their union, whatever the order of the
+ * values and merges.
+ * <p>
+ * Rates from 0.001 to 1000 micro Sieverts per hour take about 350 buckets,
+ * but the rates of a day at one place usually fit in a few dozen. Zero is
+ * counted on its own.
+ * <p>
+ * Not thread safe.
+ * 
+ * @author Erik Berglund
+ * 
+ */
+public class QuantileSketch
+{
+	/**
+	 * The largest relative difference between a quantile and the value
+	 * reported for it.
+	 */
+	public static final double RELATIVE_ACCURACY = 0.01;
+	/**
+	 * The ratio of the upper and lower bound of each bucket.
+	 */
+	private static final double GAMMA = (1 + RELATIVE_ACCURACY) / (1 - RELATIVE_ACCURACY);
+	private static final double LOG_GAMMA = Math.log(GAMMA);
+
+	/**
+	 * The counts of the buckets from the bucket at offset, bucket i holding
+	 * the values from GAMMA^(i-1), exclusive, to GAMMA^i.
+	 */
+	private long[] buckets = new long[0];
+	private int offset;
+	private long zeroCount;
+	private long count;
+	private double min = Double.NaN;
+	private double max = Double.NaN;
+
+	/**
+	 * Create a sketch of no values.
+	 */
+	public QuantileSketch()
+	{
+	}
+
+	/**
+	 * Add a value. Negative values and NaN are ignored.
+	 * 
+	 * @param value
+	 */
+	public void add(double value)
+	{
+		if (!(value >= 0) || Double.isInfinite(value))
+		{
+			return;
+		}
+		if (count == 0 || value < min)
+		{
+			min = value;
+		}
+		if (count == 0 || value > max)
+		{
+			max = value;
+		}
+		count++;
+		if (value == 0)
+		{
+			zeroCount++;
+			return;
+		}
+		int index = (int) Math.ceil(Math.log(value) / LOG_GAMMA);
+		grow(index, index);
+		buckets[index - offset]++;
+	}
+
+	/**
+	 * Add the values of another sketch to this one.
+	 * 
+	 * @param other
+	 */
+	public void merge(QuantileSketch other)
+	{
+		if (other.count == 0)
+		{
+			return;
+		}
+		if (other.buckets.length > 0)
+		{
+			grow(other.offset, other.offset + other.buckets.length - 1);
+			for (int x = 0; x < other.buckets.length; x++)
+			{
+				buckets[other.offset + x - offset] += other.buckets[x];
+			}
+		}
+		min = count == 0 ? other.min : Math.min(min, other.min);
+		max = count == 0 ? other.max : Math.max(max, other.max);
+		zeroCount += other.zeroCount;
+		count += other.count;
+	}
+
+	/**
+	 * Copy the sketch.
+	 * 
+	 * @return
+	 */
+	public QuantileSketch copy()
+	{
+		QuantileSketch result = new QuantileSketch();
+		result.buckets = buckets.clone();
+		result.offset = offset;
+		result.zeroCount = zeroCount;
+		result.count = count;
+		result.min = min;
+		result.max = max;
+		return result;
+	}
+
+	/**
+	 * Get the number of values.
+	 * 
+	 * @return
+	 */
+	public long getCount()
+	{
+		return count;
+	}
+
+	/**
+	 * Get the lowest value, which is exact.
+	 * 
+	 * @return the minimum, or NaN if there are no values.
+	 */
+	public double getMin()
+	{
+		return min;
+	}
+
+	/**
+	 * Get the highest value, which is exact.
+	 * 
+	 * @return the maximum, or NaN if there are no values.
+	 */
+	public double getMax()
+	{
+		return max;
+	}
+
+	/**
+	 * Get a quantile: the value at rank q * (n - 1) of the n values in
+	 * ascending order, within the relative accuracy.
+	 * 
+	 * @param q
+	 *            the quantile from 0 to 1, e.g. 0.95 for the 95th percentile.
+	 * @return the value, or NaN if there are no values.
+	 */
+	public double getQuantile(double q)
+	{
+		if (q < 0 || q > 1)
+		{
+			throw new IllegalArgumentException("Quantile out of range: " + q);
+		}
+		if (count == 0)
+		{
+			return Double.NaN;
+		}
+		long rank = (long) Math.floor(q * (count - 1));
+		if (rank == 0 || rank == count - 1)
+		{
+			return rank == 0 ? min : max;
+		}
+		long seen = zeroCount;
+		if (rank < seen)
+		{
+			return 0;
+		}
+		for (int x = 0; x < buckets.length; x++)
+		{
+			seen += buckets[x];
+			if (rank < seen)
+			{
+				// the value with the same relative distance to both bounds
+				double value = 2 * Math.pow(GAMMA, offset + x) / (GAMMA + 1);
+				return Math.max(min, Math.min(max, value));
+			}
+		}
+		return max;
+	}
+
+	/**
+	 * Write the sketch, leaving out the empty buckets at both ends.
+	 * 
+	 * @param out
+	 * @throws IOException
+	 */
+	public void writeTo(DataOutput out) throws IOException
+	{
+		int first = 0;
+		int end = buckets.length;
+		while (first < end && buckets[first] == 0)
+		{
+			first++;
+		}
+		while (end > first && buckets[end - 1] == 0)
+		{
+			end--;
+		}
+		out.writeLong(count);
+		out.writeLong(zeroCount);
+		out.writeDouble(min);
+		out.writeDouble(max);
+		out.writeInt(offset + first);
+		out.writeInt(end - first);
+		for (int x = first; x < end; x++)
+		{
+			out.writeLong(buckets[x]);
+		}
+	}
+
+	/**
+	 * Read a sketch written by {@link #writeTo(DataOutput)}.
+	 * 
+	 * @param in
+	 * @return
+	 * @throws IOException
+	 *             if the sketch cannot be read or is inconsistent.
+	 */
+	public static QuantileSketch readFrom(DataInput in) throws IOException
+	{
+		QuantileSketch result = new QuantileSketch();
+		result.count = in.readLong();
+		result.zeroCount = in.readLong();
+		result.min = in.readDouble();
+		result.max = in.readDouble();
+		result.offset = in.readInt();
+		int length = in.readInt();
+		if (length < 0 || length > result.count)
+		{
+			throw new IOException("Corrupt quantile sketch: " + length + " buckets");
+		}
+		result.buckets = new long[length];
+		long total = result.zeroCount;
+		for (int x = 0; x < length; x++)
+		{
+			result.buckets[x] = in.readLong();
+			total += result.buckets[x];
+		}
+		if (total != result.count)
+		{
+			throw new IOException("Corrupt quantile sketch: " + total + " values in buckets, expected " + result.count);
+		}
+		return result;
+	}
+
+	/**
+	 * Make room for the buckets from first to last.
+	 */
+	private void grow(int first, int last)
+	{
+		if (buckets.length == 0)
+		{
+			buckets = new long[last - first + 1];
+			offset = first;
+			return;
+		}
+		int end = offset + buckets.length;
+		if (first >= offset && last < end)
+		{
+			return;
+		}
+		// leave some room on the side that grew, rates drift both ways
+		int newOffset = first < offset ? Math.min(first, offset - buckets.length / 2) : offset;
+		int newEnd = last >= end ? Math.max(last + 1, end + buckets.length / 2) : end;
+		long[] grown = new long[newEnd - newOffset];
+		System.arraycopy(buckets, 0, grown, offset - newOffset, buckets.length);
+		buckets = grown;
+		offset = newOffset;
+	}
+}
@@ -0,0 +1,408 @@
+/*******************************************************************************
+ *  
+ * Copyright (c) 2009, 2019 Erik Berglund.
+ *    
+ *       This file is part of Conserve.
+ *   
+ *       Conserve is free software: you can redistribute it and/or modify
+ *       it under the terms of the GNU Affero General Public License as published by
+ *       the Free Software Foundation, either version 3 of the License, or
+ *       (at your option) any later version.
+ *   
+ *       Conserve is distributed in the hope that it will be useful,
+ *       but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *       MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *       GNU Affero General Public License for more details.
+ *   
+ *       You should have received a copy of the GNU Affero General Public License
+ *       along with Conserve.  If not, see <https://www.gnu.org/licenses/agpl.html>.
+ *       
+ *******************************************************************************/
+package com.gammascout.usb;
+
+import java.util.Arrays;
+
+/**
+ * Statistics of any range of the readings of a {@link ReadingStore}, without
+ * reading the readings of the range: mean, variance, total dose and average
+ * rate come from prefix sums in constant time, the lowest and highest rates
+ * from a sparse table of blocks of 64 readings in constant time plus a scan
+ * of at most two partial blocks. The statistics of the visible part of a
+ * chart follow panning and zooming this way, and reports can ask for any
+ * number of ranges.
+ * <p>
+ * The sums and the table take about 56 bytes per reading. They are extended
+ * when they are asked for: appended readings cost nothing until then, and a
+ * reading inserted out of order only invalidates them from its index. A
+ * window extends them ahead of time with {@link #prepare()} on another
+ * thread than the Event Dispatch Thread.
+ * <p>
+ * All methods synchronize on the store.
+ * 
+ * @author Erik Berglund
+ * 
+ */
+public class RangeStatistics
+{
+	/**
+	 * log2 of the number of readings per block of the sparse table.
+	 */
+	private static final int BLOCK_SHIFT = 6;
+	/**
+	 * The number of readings {@link #prepare()} adds to the sums at a time,
+	 * a multiple of the block size.
+	 */
+	private static final int PREPARE_CHUNK = 1 << 16;
+
+	private final ReadingStore store;
+	/**
+	 * The sums and the table are valid for the readings before this index.
+	 */
+	private int valid;
+	// the sums of the readings before each index, one more than the readings
+	private int[] unsaturated = new int[1];
+	private double[] cpm = new double[1];
+	private double[] cpmSquares = new double[1];
+	private long[] counts = new long[1];
+	private long[] seconds = new long[1];
+	// the counts and measuring time of the readings that are not saturated
+	private long[] unsaturatedCounts = new long[1];
+	private long[] unsaturatedSeconds = new long[1];
+	/**
+	 * The lowest and highest counts per minute of the readings that are not
+	 * saturated, of each run of 2^k whole blocks by level k and first block,
+	 * or infinity if the run only has saturated readings.
+	 */
+	private double[][] mins = new double[0][];
+	private double[][] maxes = new double[0][];
+
+	RangeStatistics(ReadingStore store)
+	{
+		this.store = store;
+	}
+
+	/**
+	 * Invalidate the statistics from a reading that was inserted or changed.
+	 * Called by the store, which holds its lock.
+	 * 
+	 * @param index
+	 */
+	void invalidate(int index)
+	{
+		valid = Math.min(valid, index);
+	}
+
+	/**
+	 * Extend the sums and the table to all readings, holding the lock of the
+	 * store only for a chunk of readings at a time, so that the thread that
+	 * builds them does not hold up a download or the chart for long. The
+	 * queries are then quick.
+	 */
+	public void prepare()
+	{
+		while (true)
+		{
+			synchronized (store)
+			{
+				if (valid == store.size())
+				{
+					return;
+				}
+				update(Math.min(store.size(), (valid & -PREPARE_CHUNK) + PREPARE_CHUNK));
+			}
+		}
+	}
+
+	/**
+	 * Get the statistics of a range of readings.
+	 * 
+	 * @param start
+	 *            the index of the first reading.
+	 * @param end
+	 *            the index after the last reading.
+	 * @return
+	 */
+	public RunningStatistics get(int start, int end)
+	{
+		return get(start, end, true);
+	}
+
+	/**
+	 * Get the statistics of a range of readings, leaving out saturated
+	 * readings altogether or only out of the rates.
+	 */
+	private RunningStatistics get(int start, int end, boolean includeSaturated)
+	{
+		synchronized (store)
+		{
+			if (start < 0 || end > store.size() || start > end)
+			{
+				throw new IndexOutOfBoundsException("Range: " + start + " to " + end + ", size: " + store.size());
+			}
+			update();
+			int n = unsaturated[end] - unsaturated[start];
+			double min = Double.NaN;
+			double max = Double.NaN;
+			if (n > 0)
+			{
+				double[] extremes = getExtremes(start, end);
+				min = extremes[0];
+				max = extremes[1];
+			}
+			if (!includeSaturated)
+			{
+				return new RunningStatistics(n, cpm[end] - cpm[start], cpmSquares[end] - cpmSquares[start], min, max, 0,
+						unsaturatedCounts[end] - unsaturatedCounts[start], unsaturatedSeconds[end] - unsaturatedSeconds[start]);
+			}
+			return new RunningStatistics(n, cpm[end] - cpm[start], cpmSquares[end] - cpmSquares[start], min, max, end - start - n,
+					counts[end] - counts[start], seconds[end] - seconds[start]);
+		}
+	}
+
+	/**
+	 * Get the statistics of the readings that ended in a time range.
+	 * 
+	 * @param from
+	 *            the first time included.
+	 * @param to
+	 *            the last time included.
+	 * @return
+	 */
+	public RunningStatistics getByTime(long from, long to)
+	{
+		synchronized (store)
+		{
+			int start = store.findIndex(from);
+			return get(start, Math.max(start, store.findIndexAfter(to)));
+		}
+	}
+
+	/**
+	 * Get the statistics of the readings that ended in a time range and pass
+	 * a filter, e.g. those a chart shows. Filters of saturation and time only
+	 * are answered from the sums; filters of intervals or gaps read the
+	 * readings of the range.
+	 * 
+	 * @param from
+	 *            the first time included.
+	 * @param to
+	 *            the last time included.
+	 * @param filter
+	 * @return
+	 */
+	public RunningStatistics getByTime(long from, long to, ReadingFilter filter)
+	{
+		from = Math.max(from, filter.getFrom());
+		to = Math.min(to, filter.getTo());
+		synchronized (store)
+		{
+			int start = store.findIndex(from);
+			int end = Math.max(start, store.findIndexAfter(to));
+			if (filter.getInterval() == 0 && filter.isIncludeAfterGaps())
+			{
+				return get(start, end, filter.isIncludeSaturated());
+			}
+			RunningStatistics result = new RunningStatistics();
+			for (Reading r : store.filter(filter, start, end))
+			{
+				result.add(r);
+			}
+			return result;
+		}
+	}
+
+	/**
+	 * Find the highest average rate over a window of time, e.g. the peak hour
+	 * of a month. Each window holds the readings that ended in it, and its
+	 * average is their counts divided by their measuring time, leaving out
+	 * saturated readings as the mean does. Only windows that end at a reading
+	 * and lie within both the time range and the readings are considered, so
+	 * a window is never scored on the few readings at the start of the log.
+	 * <p>
+	 * Each window costs constant time from the prefix sums, so this is linear
+	 * in the number of readings of the range rather than of the windows.
+	 * 
+	 * @param from
+	 *            the first time included.
+	 * @param to
+	 *            the last time included.
+	 * @param windowMillis
+	 *            the length of the window.
+	 * @return the peak in counts per minute, or NaN if the range is shorter
+	 *         than the window.
+	 */
+	public double getPeakAverageCountsPerMinute(long from, long to, long windowMillis)
+	{
+		synchronized (store)
+		{
+			update();
+			double peak = Double.NaN;
+			if (store.size() == 0)
+			{
+				return peak;
+			}
+			int end = store.findIndexAfter(to);
+			long start = Math.max(from, store.getTime(0));
+			// the first reading in the window that ends at the last reading
+			int first = store.findIndex(start);
+			for (int last = store.findIndex(start + windowMillis); last < end; last++)
+			{
+				long windowStart = store.getTime(last) - windowMillis;
+				while (store.getTime(first) <= windowStart)
+				{
+					first++;
+				}
+				long time = unsaturatedSeconds[last + 1] - unsaturatedSeconds[first];
+				if (time > 0)
+				{
+					double average = (unsaturatedCounts[last + 1] - unsaturatedCounts[first]) * 60.0 / time;
+					if (!(average <= peak))
+					{
+						peak = average;
+					}
+				}
+			}
+			return peak;
+		}
+	}
+
+	/**
+	 * Find the lowest and highest counts per minute of the readings that are
+	 * not saturated, from the table for the whole blocks and from the
+	 * readings for the rest.
+	 */
+	private double[] getExtremes(int start, int end)
+	{
+		double[] extremes = { Double.POSITIVE_INFINITY, Double.NEGATIVE_INFINITY };
+		int firstBlock = (start + (1 << BLOCK_SHIFT) - 1) >>> BLOCK_SHIFT;
+		int endBlock = end >>> BLOCK_SHIFT;
+		if (firstBlock >= endBlock)
+		{
+			scan(start, end, extremes);
+		}
+		else
+		{
+			scan(start, firstBlock << BLOCK_SHIFT, extremes);
+			scan(endBlock << BLOCK_SHIFT, end, extremes);
+			// two runs of the same length that cover the whole blocks
+			int level = 31 - Integer.numberOfLeadingZeros(endBlock - firstBlock);
+			int second = endBlock - (1 << level);
+			extremes[0] = Math.min(extremes[0], Math.min(mins[level][firstBlock], mins[level][second]));
+			extremes[1] = Math.max(extremes[1], Math.max(maxes[level][firstBlock], maxes[level][second]));
+		}
+		return extremes;
+	}
+
+	/**
+	 * Include the readings from start to end that are not saturated in the
+	 * lowest and highest counts per minute.
+	 */
+	private void scan(int start, int end, double[] extremes)
+	{
+		for (int i = start; i < end; i++)
+		{
+			if (!store.isSaturated(i))
+			{
+				double value = store.getCountsPerMinute(i);
+				extremes[0] = Math.min(extremes[0], value);
+				extremes[1] = Math.max(extremes[1], value);
+			}
+		}
+	}
+
+	/**
+	 * Extend the sums and the table to all readings of the store.
+	 */
+	private void update()
+	{
+		update(store.size());
+	}
+
+	/**
+	 * Extend the sums and the table to the readings before size.
+	 */
+	private void update(int size)
+	{
+		if (valid >= size)
+		{
+			return;
+		}
+		if (counts.length < size + 1)
+		{
+			int capacity = Math.max(size + 1, 2 * counts.length);
+			unsaturated = Arrays.copyOf(unsaturated, capacity);
+			cpm = Arrays.copyOf(cpm, capacity);
+			cpmSquares = Arrays.copyOf(cpmSquares, capacity);
+			counts = Arrays.copyOf(counts, capacity);
+			seconds = Arrays.copyOf(seconds, capacity);
+			unsaturatedCounts = Arrays.copyOf(unsaturatedCounts, capacity);
+			unsaturatedSeconds = Arrays.copyOf(unsaturatedSeconds, capacity);
+		}
+		for (int i = valid; i < size; i++)
+		{
+			counts[i + 1] = counts[i] + store.getCount(i);
+			seconds[i + 1] = seconds[i] + store.getInterval(i);
+			if (store.isSaturated(i))
+			{
+				unsaturated[i + 1] = unsaturated[i];
+				unsaturatedCounts[i + 1] = unsaturatedCounts[i];
+				unsaturatedSeconds[i + 1] = unsaturatedSeconds[i];
+				cpm[i + 1] = cpm[i];
+				cpmSquares[i + 1] = cpmSquares[i];
+			}
+			else
+			{
+				double value = store.getCountsPerMinute(i);
+				unsaturated[i + 1] = unsaturated[i] + 1;
+				unsaturatedCounts[i + 1] = unsaturatedCounts[i] + store.getCount(i);
+				unsaturatedSeconds[i + 1] = unsaturatedSeconds[i] + store.getInterval(i);
+				cpm[i + 1] = cpm[i] + value;
+				cpmSquares[i + 1] = cpmSquares[i] + value * value;
+			}
+		}
+		updateTable(valid >>> BLOCK_SHIFT, size >>> BLOCK_SHIFT);
+		valid = size;
+	}
+
+	/**
+	 * Recompute the runs of the table that include a block from firstBlock
+	 * on.
+	 */
+	private void updateTable(int firstBlock, int blocks)
+	{
+		int levels = 32 - Integer.numberOfLeadingZeros(blocks);
+		if (mins.length < levels)
+		{
+			mins = Arrays.copyOf(mins, levels);
+			maxes = Arrays.copyOf(maxes, levels);
+		}
+		double[] extremes = new double[2];
+		for (int level = 0; level < levels; level++)
+		{
+			int runs = blocks - (1 << level) + 1;
+			if (mins[level] == null || mins[level].length < runs)
+			{
+				int capacity = mins[level] == null ? runs : Math.max(runs, 2 * mins[level].length);
+				mins[level] = mins[level] == null ? new double[capacity] : Arrays.copyOf(mins[level], capacity);
+				maxes[level] = maxes[level] == null ? new double[capacity] : Arrays.copyOf(maxes[level], capacity);
+			}
+			for (int b = Math.max(0, firstBlock - (1 << level) + 1); b < runs; b++)
+			{
+				if (level == 0)
+				{
+					extremes[0] = Double.POSITIVE_INFINITY;
+					extremes[1] = Double.NEGATIVE_INFINITY;
+					scan(b << BLOCK_SHIFT, (b + 1) << BLOCK_SHIFT, extremes);
+					mins[0][b] = extremes[0];
+					maxes[0][b] = extremes[1];
+				}
+				else
+				{
+					int half = 1 << (level - 1);
+					mins[level][b] = Math.min(mins[level - 1][b], mins[level - 1][b + half]);
+					maxes[level][b] = Math.max(maxes[level - 1][b], maxes[level - 1][b + half]);
+				}
+			}
+		}
+	}
+}
@@ -134,7 +134,17 @@ public class Reading
 	 */
 	public double getMicroSievertsPerHour()
 	{
-		return getCountsPerMinute()/CONVERSION_FACTOR;
+		return toMicroSievertsPerHour(getCountsPerMinute());
+	}
+
+	/**
+	 * Convert counts per minute to microsieverts per hour.
+	 * @param countsPerMinute
+	 * @return
+	 */
+	public static double toMicroSievertsPerHour(double countsPerMinute)
+	{
+		return countsPerMinute/CONVERSION_FACTOR;
 	}
 
 	/**
@@ -0,0 +1,179 @@
+/*******************************************************************************
+ *  
+ * Copyright (c) 2009, 2019 Erik Berglund.
+ *    
+ *       This file is part of Conserve.
+ *   
+ *       Conserve is free software: you can redistribute it and/or modify
+ *       it under the terms of the GNU Affero General Public License as published by
+ *       the Free Software Foundation, either version 3 of the License, or
+ *       (at your option) any later version.
+ *   
+ *       Conserve is distributed in the hope that it will be useful,
+ *       but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *       MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *       GNU Affero General Public License for more details.
+ *   
+ *       You should have received a copy of the GNU Affero General Public License
+ *       along with Conserve.  If not, see <https://www.gnu.org/licenses/agpl.html>.
+ *       
+ *******************************************************************************/
+package com.gammascout.usb;
+
+/**
+ * Which readings of a {@link ReadingStore} to show, export or count: with or
+ * without saturated readings, only one measuring interval, without the
+ * readings that follow a gap in the log, and only a range of time.
+ * <p>
+ * Filters are immutable; the with methods return a changed copy. Apply a
+ * filter with {@link ReadingStore#filter(ReadingFilter)}.
+ * 
+ * @author Erik Berglund
+ * 
+ */
+public class ReadingFilter
+{
+	/**
+	 * The filter that lets all readings through.
+	 */
+	public static final ReadingFilter ALL = new ReadingFilter(true, 0, true, Long.MIN_VALUE, Long.MAX_VALUE);
+
+	private final boolean includeSaturated;
+	private final int interval;
+	private final boolean includeAfterGaps;
+	private final long from;
+	private final long to;
+
+	private ReadingFilter(boolean includeSaturated, int interval, boolean includeAfterGaps, long from, long to)
+	{
+		this.includeSaturated = includeSaturated;
+		this.interval = interval;
+		this.includeAfterGaps = includeAfterGaps;
+		this.from = from;
+		this.to = to;
+	}
+
+	/**
+	 * Get a filter that includes or excludes saturated readings.
+	 * 
+	 * @param includeSaturated
+	 * @return
+	 */
+	public ReadingFilter withSaturated(boolean includeSaturated)
+	{
+		return new ReadingFilter(includeSaturated, interval, includeAfterGaps, from, to);
+	}
+
+	/**
+	 * Get a filter that only includes readings with the given measuring
+	 * interval.
+	 * 
+	 * @param interval
+	 *            in seconds, or 0 for any interval.
+	 * @return
+	 */
+	public ReadingFilter withInterval(int interval)
+	{
+		return new ReadingFilter(includeSaturated, interval, includeAfterGaps, from, to);
+	}
+
+	/**
+	 * Get a filter that includes or excludes the first reading after a gap
+	 * in the log, which may have been measured while the device was not
+	 * working normally.
+	 * 
+	 * @param includeAfterGaps
+	 * @return
+	 */
+	public ReadingFilter withAfterGaps(boolean includeAfterGaps)
+	{
+		return new ReadingFilter(includeSaturated, interval, includeAfterGaps, from, to);
+	}
+
+	/**
+	 * Get a filter that only includes readings that ended in the given time
+	 * range.
+	 * 
+	 * @param from
+	 *            the first time included, in milliseconds since the epoch,
+	 *            or Long.MIN_VALUE.
+	 * @param to
+	 *            the last time included, or Long.MAX_VALUE.
+	 * @return
+	 */
+	public ReadingFilter withTimeRange(long from, long to)
+	{
+		return new ReadingFilter(includeSaturated, interval, includeAfterGaps, from, to);
+	}
+
+	/**
+	 * @return true if saturated readings are included.
+	 */
+	public boolean isIncludeSaturated()
+	{
+		return includeSaturated;
+	}
+
+	/**
+	 * @return the measuring interval in seconds, or 0 for any interval.
+	 */
+	public int getInterval()
+	{
+		return interval;
+	}
+
+	/**
+	 * @return true if readings that follow a gap are included.
+	 */
+	public boolean isIncludeAfterGaps()
+	{
+		return includeAfterGaps;
+	}
+
+	/**
+	 * @return the first time included.
+	 */
+	public long getFrom()
+	{
+		return from;
+	}
+
+	/**
+	 * @return the last time included.
+	 */
+	public long getTo()
+	{
+		return to;
+	}
+
+	/**
+	 * Check if the filter at most excludes saturated readings, so that
+	 * aggregates that count saturated readings separately can be used.
+	 * 
+	 * @return
+	 */
+	public boolean isSaturationOnly()
+	{
+		return interval == 0 && includeAfterGaps && from == Long.MIN_VALUE && to == Long.MAX_VALUE;
+	}
+
+	@Override
+	public boolean equals(Object o)
+	{
+		if (!(o instanceof ReadingFilter))
+		{
+			return false;
+		}
+		ReadingFilter f = (ReadingFilter) o;
+		return includeSaturated == f.includeSaturated && interval == f.interval && includeAfterGaps == f.includeAfterGaps
+				&& from == f.from && to == f.to;
+	}
+
+	@Override
+	public int hashCode()
+	{
+		int hash = (includeSaturated ? 1 : 0) + (includeAfterGaps ? 2 : 0) + 4 * interval;
+		hash = 31 * hash + (int) (from ^ (from >>> 32));
+		return 31 * hash + (int) (to ^ (to >>> 32));
+	}
+}
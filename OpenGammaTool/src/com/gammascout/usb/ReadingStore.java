@@ -0,0 +1,842 @@
+/*******************************************************************************
+ *  
+ * Copyright (c) 2009, 2019 Erik Berglund.
+ *    
+ *       This file is part of Conserve.
+ *   
+ *       Conserve is free software: you can redistribute it and/or modify
+ *       it under the terms of the GNU Affero General Public License as published by
+ *       the Free Software Foundation, either version 3 of the License, or
+ *       (at your option) any later version.
+ *   
+ *       Conserve is distributed in the hope that it will be useful,
+ *       but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *       MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *       GNU Affero General Public License for more details.
+ *   
+ *       You should have received a copy of the GNU Affero General Public License
+ *       along with Conserve.  If not, see <https://www.gnu.org/licenses/agpl.html>.
+ *       
+ *******************************************************************************/
+package com.gammascout.usb;
+
+import java.util.AbstractList;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.List;
+
+/**
+ * A time ordered list of readings stored column by column in primitive
+ * arrays, using 20 bytes and a few bits per reading instead of a Reading
+ * object each.
+ * <p>
+ * Readings are kept in time order. A reading older than the last one, e.g.
+ * after the clock of the device was reset, is held back with the other such
+ * readings until the store is next read, and then all of them are sorted and
+ * merged into the columns in one pass from the oldest of them, so loading a
+ * log that went back in time costs O(n log n) rather than O(n) per reading.
+ * Where the readings went back in time in the order they were added, e.g.
+ * because the clock of the device was reset, is recorded as a
+ * {@link ClockReset}.
+ * <p>
+ * Readings are found by time with a binary search that starts in a sparse
+ * index of every 256th time, small enough to stay in the processor cache,
+ * and ends in a single block of the time column. Lookups and ranges by time
+ * cost O(log n).
+ * <p>
+ * Readings cannot be replaced or removed individually, only all at once with
+ * {@link #clear()}. {@link #get(int)} creates a new Reading for each call;
+ * the column getters read the store without creating objects.
+ * <p>
+ * The store keeps {@link RunningStatistics}, {@link DailySketches} and an
+ * {@link AggregatePyramid} of its readings up to date, and bitmaps of the
+ * saturated readings, the readings that follow a gap and the readings of each
+ * measuring interval, so that {@link #filter(ReadingFilter)} can select
+ * readings a word of 64 readings at a time. Statistics of ranges of readings
+ * come from the prefix sums of {@link #getRangeStatistics()}, and moving
+ * averages from the running sums of {@link #addSmoothedSeries(Smoothing)}.
+ * <p>
+ * All methods are synchronized; synchronize on the store to read several
+ * readings consistently, as for a synchronized list.
+ * 
+ * @author Erik Berglund
+ * 
+ */
+public class ReadingStore extends AbstractList<Reading>
+{
+	private static final int INITIAL_CAPACITY = 1024;
+	/**
+	 * A reading that starts more than this after the previous one ended
+	 * follows a gap.
+	 */
+	private static final long GAP_TOLERANCE_MILLIS = 1000;
+	/**
+	 * log2 of the number of readings per entry of the sparse time index.
+	 */
+	private static final int SKIP_SHIFT = 8;
+	private static final Comparator<Reading> TIME_ORDER = new Comparator<Reading>()
+	{
+		@Override
+		public int compare(Reading r1, Reading r2)
+		{
+			return Long.compare(r1.getTime(), r2.getTime());
+		}
+	};
+
+	private int size;
+	private long[] times;
+	/**
+	 * The time of every 256th reading.
+	 */
+	private long[] skipTimes;
+	private long[] counts;
+	private int[] intervals;
+	// one bit per reading
+	private long[] saturated;
+	private long[] afterGap;
+	/**
+	 * The distinct measuring intervals, and a bitmap of the readings of each.
+	 */
+	private int[] intervalClasses = new int[0];
+	private long[][] intervalBits = new long[0][];
+	private final AggregatePyramid pyramid;
+	private ReadingFilter lastFilter;
+	private int lastViewStart;
+	private int lastViewEnd;
+	private ReadingView lastView;
+	private int lastViewModCount;
+	private final List<ClockReset> clockResets = new ArrayList<>();
+	private RunningStatistics statistics = new RunningStatistics();
+	private DailySketches sketches = new DailySketches();
+	private RangeStatistics rangeStatistics;
+	private final List<SmoothedSeries> smoothedSeries = new ArrayList<>();
+	private long lastAddedTime;
+	/**
+	 * Readings older than the last stored one, in the order they were added,
+	 * not yet merged into the columns.
+	 */
+	private final List<Reading> pending = new ArrayList<>();
+
+	/**
+	 * A place where a reading was older than the reading added before it.
+	 */
+	public static class ClockReset
+	{
+		private final long before;
+		private final long after;
+
+		ClockReset(long before, long after)
+		{
+			this.before = before;
+			this.after = after;
+		}
+
+		/**
+		 * Get the time of the reading added before the jump.
+		 * 
+		 * @return
+		 */
+		public long getBefore()
+		{
+			return before;
+		}
+
+		/**
+		 * Get the time of the first reading after the jump, which is earlier.
+		 * 
+		 * @return
+		 */
+		public long getAfter()
+		{
+			return after;
+		}
+	}
+
+	/**
+	 * Create an empty store that keeps aggregates of its readings.
+	 */
+	public ReadingStore()
+	{
+		this(INITIAL_CAPACITY, new AggregatePyramid());
+	}
+
+	private ReadingStore(int capacity, AggregatePyramid pyramid)
+	{
+		times = new long[capacity];
+		skipTimes = new long[skips(capacity)];
+		counts = new long[capacity];
+		intervals = new int[capacity];
+		saturated = new long[words(capacity)];
+		afterGap = new long[words(capacity)];
+		this.pyramid = pyramid;
+	}
+
+	/**
+	 * Copy the readings to a new store, e.g. for writing them on another
+	 * thread. The copy does not keep aggregates.
+	 * 
+	 * @return
+	 */
+	public synchronized ReadingStore copy()
+	{
+		merge();
+		ReadingStore result = new ReadingStore(Math.max(1, size), null);
+		System.arraycopy(times, 0, result.times, 0, size);
+		System.arraycopy(skipTimes, 0, result.skipTimes, 0, skips(size));
+		System.arraycopy(counts, 0, result.counts, 0, size);
+		System.arraycopy(intervals, 0, result.intervals, 0, size);
+		System.arraycopy(saturated, 0, result.saturated, 0, words(size));
+		System.arraycopy(afterGap, 0, result.afterGap, 0, words(size));
+		result.intervalClasses = intervalClasses.clone();
+		result.intervalBits = new long[intervalBits.length][];
+		for (int x = 0; x < intervalBits.length; x++)
+		{
+			result.intervalBits[x] = Arrays.copyOf(intervalBits[x], result.saturated.length);
+		}
+		result.clockResets.addAll(clockResets);
+		result.statistics = statistics.copy();
+		result.sketches = sketches.copy();
+		result.lastAddedTime = lastAddedTime;
+		result.size = size;
+		return result;
+	}
+
+	/**
+	 * Get the statistics of all readings, as they are now.
+	 * 
+	 * @return a copy that does not change.
+	 */
+	public synchronized RunningStatistics getStatistics()
+	{
+		return statistics.copy();
+	}
+
+	/**
+	 * Get the daily quantile sketches of the dose rates of all readings, as
+	 * they are now.
+	 * 
+	 * @return a copy that does not change.
+	 */
+	public synchronized DailySketches getSketches()
+	{
+		return sketches.copy();
+	}
+
+	/**
+	 * Get the statistics of ranges of the readings, created when first asked
+	 * for.
+	 * 
+	 * @return
+	 */
+	public synchronized RangeStatistics getRangeStatistics()
+	{
+		if (rangeStatistics == null)
+		{
+			rangeStatistics = new RangeStatistics(this);
+		}
+		return rangeStatistics;
+	}
+
+	/**
+	 * Get the readings smoothed by a smoothing, kept up to date as readings
+	 * are added until it is removed with
+	 * {@link #removeSmoothedSeries(SmoothedSeries)}.
+	 * 
+	 * @param smoothing
+	 * @return
+	 */
+	public synchronized SmoothedSeries addSmoothedSeries(Smoothing smoothing)
+	{
+		SmoothedSeries series = new SmoothedSeries(this, smoothing);
+		smoothedSeries.add(series);
+		return series;
+	}
+
+	/**
+	 * Stop keeping a smoothed series up to date.
+	 * 
+	 * @param series
+	 */
+	public synchronized void removeSmoothedSeries(SmoothedSeries series)
+	{
+		smoothedSeries.remove(series);
+	}
+
+	/**
+	 * Get the aggregates of the readings.
+	 * 
+	 * @return the aggregates, or null for a copy.
+	 */
+	public AggregatePyramid getPyramid()
+	{
+		return pyramid;
+	}
+
+	/**
+	 * Add the reading at its place in time order, after any readings with the
+	 * same time.
+	 * 
+	 * @see java.util.AbstractList#add(java.lang.Object)
+	 */
+	@Override
+	public synchronized boolean add(Reading r)
+	{
+		if (size > 0 && r.getTime() < lastAddedTime)
+		{
+			clockResets.add(new ClockReset(lastAddedTime, r.getTime()));
+		}
+		lastAddedTime = r.getTime();
+		if (size > 0 && r.getTime() < times[size - 1])
+		{
+			// merged with the others when the store is next read
+			pending.add(r);
+		}
+		else
+		{
+			ensureCapacity(size + 1);
+			int index = size++;
+			intervalBits((int) r.getInterval());
+			put(index, r);
+			if (index % (1 << SKIP_SHIFT) == 0)
+			{
+				skipTimes[index >>> SKIP_SHIFT] = times[index];
+			}
+			setBit(afterGap, index, followsGap(index));
+		}
+		modCount++;
+		statistics.add(r);
+		sketches.add(r);
+		if (pyramid != null)
+		{
+			pyramid.add(r);
+		}
+		return true;
+	}
+
+	/**
+	 * Get a number that changes whenever readings are added or removed, to
+	 * tell whether the store changed since it was last read.
+	 * 
+	 * @return
+	 */
+	public synchronized int getModificationCount()
+	{
+		return modCount;
+	}
+
+	/**
+	 * Remove all readings.
+	 * 
+	 * @see java.util.AbstractList#clear()
+	 */
+	@Override
+	public synchronized void clear()
+	{
+		size = 0;
+		pending.clear();
+		clockResets.clear();
+		intervalClasses = new int[0];
+		intervalBits = new long[0][];
+		modCount++;
+		statistics.clear();
+		sketches.clear();
+		if (rangeStatistics != null)
+		{
+			rangeStatistics.invalidate(0);
+		}
+		for (SmoothedSeries series : smoothedSeries)
+		{
+			series.invalidate(0);
+		}
+		if (pyramid != null)
+		{
+			pyramid.clear();
+		}
+	}
+
+	/**
+	 * Create a reading from the stored values.
+	 * 
+	 * @see java.util.AbstractList#get(int)
+	 */
+	@Override
+	public synchronized Reading get(int index)
+	{
+		merge();
+		checkIndex(index);
+		Reading r = new Reading(intervals[index], counts[index], times[index]);
+		r.setSaturated(getBit(saturated, index));
+		return r;
+	}
+
+	@Override
+	public synchronized int size()
+	{
+		merge();
+		return size;
+	}
+
+	/**
+	 * Get the time a reading ended, in milliseconds since the epoch, UTC.
+	 * 
+	 * @param index
+	 * @return
+	 */
+	public synchronized long getTime(int index)
+	{
+		merge();
+		checkIndex(index);
+		return times[index];
+	}
+
+	/**
+	 * Get the count of a reading.
+	 * 
+	 * @param index
+	 * @return
+	 */
+	public synchronized long getCount(int index)
+	{
+		merge();
+		checkIndex(index);
+		return counts[index];
+	}
+
+	/**
+	 * Get the measuring interval of a reading, in seconds.
+	 * 
+	 * @param index
+	 * @return
+	 */
+	public synchronized int getInterval(int index)
+	{
+		merge();
+		checkIndex(index);
+		return intervals[index];
+	}
+
+	/**
+	 * Check if a reading is saturated.
+	 * 
+	 * @param index
+	 * @return
+	 */
+	public synchronized boolean isSaturated(int index)
+	{
+		merge();
+		checkIndex(index);
+		return getBit(saturated, index);
+	}
+
+	/**
+	 * Get the counts per minute of a reading.
+	 * 
+	 * @param index
+	 * @return
+	 */
+	public synchronized double getCountsPerMinute(int index)
+	{
+		merge();
+		checkIndex(index);
+		return counts[index] * 60.0 / intervals[index];
+	}
+
+	/**
+	 * Find the first reading that ended at or after the time, by binary
+	 * search.
+	 * 
+	 * @param time
+	 * @return the index, or the size if there is no such reading.
+	 */
+	public synchronized int findIndex(long time)
+	{
+		merge();
+		return search(time);
+	}
+
+	/**
+	 * Find the first stored reading that ended at or after the time, not
+	 * counting the pending readings.
+	 */
+	private int search(long time)
+	{
+		// the first block that starts at or after the time
+		int low = 0;
+		int high = skips(size);
+		while (low < high)
+		{
+			int middle = (low + high) >>> 1;
+			if (skipTimes[middle] < time)
+			{
+				low = middle + 1;
+			}
+			else
+			{
+				high = middle;
+			}
+		}
+		if (low == 0)
+		{
+			return 0;
+		}
+		// the reading is in the block before it
+		high = Math.min(size, low << SKIP_SHIFT);
+		low = (low - 1) << SKIP_SHIFT;
+		while (low < high)
+		{
+			int middle = (low + high) >>> 1;
+			if (times[middle] < time)
+			{
+				low = middle + 1;
+			}
+			else
+			{
+				high = middle;
+			}
+		}
+		return low;
+	}
+
+	/**
+	 * Find the first reading that ended after the time, by binary search.
+	 * 
+	 * @param time
+	 * @return the index, or the size if there is no such reading.
+	 */
+	public synchronized int findIndexAfter(long time)
+	{
+		merge();
+		return time == Long.MAX_VALUE ? size : findIndex(time + 1);
+	}
+
+	/**
+	 * Find the last reading that ended at or before the time, by binary
+	 * search.
+	 * 
+	 * @param time
+	 * @return the index, or -1 if there is no such reading.
+	 */
+	public synchronized int findLastIndex(long time)
+	{
+		return findIndexAfter(time) - 1;
+	}
+
+	/**
+	 * Find the reading that ended closest to the time.
+	 * 
+	 * @param time
+	 * @return the index, or -1 if the store is empty.
+	 */
+	public synchronized int findNearestIndex(long time)
+	{
+		merge();
+		int after = findIndex(time);
+		if (after == 0 || after < size && times[after] - time < time - times[after - 1])
+		{
+			return after < size ? after : -1;
+		}
+		return after - 1;
+	}
+
+	/**
+	 * Get the places where a reading was older than the reading added before
+	 * it, since the store was created or cleared.
+	 * 
+	 * @return
+	 */
+	public synchronized List<ClockReset> getClockResets()
+	{
+		return new ArrayList<>(clockResets);
+	}
+
+	/**
+	 * Check if a reading started more than a second after the previous one
+	 * ended, e.g. because the device was switched off or its log was
+	 * cleared. The first reading does not follow a gap.
+	 * 
+	 * @param index
+	 * @return
+	 */
+	public synchronized boolean isAfterGap(int index)
+	{
+		merge();
+		checkIndex(index);
+		return getBit(afterGap, index);
+	}
+
+	/**
+	 * Get the distinct measuring intervals of the readings.
+	 * 
+	 * @return the intervals in seconds, in increasing order.
+	 */
+	public synchronized int[] getIntervals()
+	{
+		merge();
+		int[] result = intervalClasses.clone();
+		Arrays.sort(result);
+		return result;
+	}
+
+	/**
+	 * Get the readings that pass the filter, as a view of the store. Only
+	 * the bitmaps are read, one word of 64 readings at a time, and the time
+	 * range is found by binary search. The last view is kept until the store
+	 * changes, so asking again for the same filter costs nothing.
+	 * 
+	 * @param filter
+	 * @return
+	 */
+	public synchronized ReadingView filter(ReadingFilter filter)
+	{
+		merge();
+		return filter(filter, 0, size);
+	}
+
+	/**
+	 * Get the readings between two indexes that pass the filter, as a view of
+	 * that range of the store. This costs only the size of the range, e.g.
+	 * of the part of a large store that a chart shows.
+	 * 
+	 * @param filter
+	 * @param from
+	 *            the first store index, inclusive.
+	 * @param to
+	 *            the last store index, exclusive.
+	 * @return
+	 */
+	public synchronized ReadingView filter(ReadingFilter filter, int from, int to)
+	{
+		merge();
+		if (from < 0 || to > size || from > to)
+		{
+			throw new IndexOutOfBoundsException("Range: " + from + " to " + to + ", size: " + size);
+		}
+		if (lastView != null && lastViewModCount == modCount && filter.equals(lastFilter) && from == lastViewStart
+				&& to == lastViewEnd)
+		{
+			return lastView;
+		}
+		int base = from & ~63;
+		long[] words = new long[words(to - base)];
+		int start = Math.max(from, filter.getFrom() == Long.MIN_VALUE ? 0 : findIndex(filter.getFrom()));
+		int end = Math.min(to, findIndexAfter(filter.getTo()));
+		long[] interval = null;
+		if (filter.getInterval() != 0)
+		{
+			for (int x = 0; x < intervalClasses.length; x++)
+			{
+				if (intervalClasses[x] == filter.getInterval())
+				{
+					interval = intervalBits[x];
+				}
+			}
+			if (interval == null)
+			{
+				// no readings with that interval
+				end = start;
+			}
+		}
+		if (start < end)
+		{
+			int first = start >>> 6;
+			int last = (end - 1) >>> 6;
+			for (int w = first; w <= last; w++)
+			{
+				long word = -1L;
+				if (!filter.isIncludeSaturated())
+				{
+					word &= ~saturated[w];
+				}
+				if (!filter.isIncludeAfterGaps())
+				{
+					word &= ~afterGap[w];
+				}
+				if (interval != null)
+				{
+					word &= interval[w];
+				}
+				words[w - (base >>> 6)] = word;
+			}
+			// shifts only use the low six bits of the distance
+			words[first - (base >>> 6)] &= -1L << start;
+			words[last - (base >>> 6)] &= -1L >>> (63 - ((end - 1) & 63));
+		}
+		lastFilter = filter;
+		lastViewStart = from;
+		lastViewEnd = to;
+		lastView = new ReadingView(this, words, base, to);
+		lastViewModCount = modCount;
+		return lastView;
+	}
+
+	/**
+	 * Get the bitmaps of all interval classes, adding a class for the given
+	 * interval if it is new.
+	 */
+	private long[][] intervalBits(int interval)
+	{
+		for (int x = 0; x < intervalClasses.length; x++)
+		{
+			if (intervalClasses[x] == interval)
+			{
+				return intervalBits;
+			}
+		}
+		intervalClasses = Arrays.copyOf(intervalClasses, intervalClasses.length + 1);
+		intervalClasses[intervalClasses.length - 1] = interval;
+		intervalBits = Arrays.copyOf(intervalBits, intervalBits.length + 1);
+		intervalBits[intervalBits.length - 1] = new long[words(times.length)];
+		return intervalBits;
+	}
+
+	/**
+	 * Sort the pending readings and merge them into the columns from the end,
+	 * moving each stored reading at most once, then bring the sparse index,
+	 * the gap bits and the range aggregates up to date from the oldest of
+	 * them.
+	 */
+	private void merge()
+	{
+		if (pending.isEmpty())
+		{
+			return;
+		}
+		// stable, so readings with the same time keep the order they were added
+		Collections.sort(pending, TIME_ORDER);
+		int added = pending.size();
+		ensureCapacity(size + added);
+		for (Reading r : pending)
+		{
+			intervalBits((int) r.getInterval());
+		}
+		// the first stored reading that ended after the oldest pending one
+		int first = search(pending.get(0).getTime() + 1);
+		int from = size - 1;
+		int next = added - 1;
+		for (int to = size + added - 1; next >= 0; to--)
+		{
+			Reading r = pending.get(next);
+			if (from >= first && times[from] > r.getTime())
+			{
+				move(from--, to);
+			}
+			else
+			{
+				put(to, r);
+				next--;
+			}
+		}
+		pending.clear();
+		size += added;
+		for (int k = skips(first); k < skips(size); k++)
+		{
+			skipTimes[k] = times[k << SKIP_SHIFT];
+		}
+		for (int index = first; index < size; index++)
+		{
+			setBit(afterGap, index, followsGap(index));
+		}
+		if (rangeStatistics != null)
+		{
+			rangeStatistics.invalidate(first);
+		}
+		for (SmoothedSeries series : smoothedSeries)
+		{
+			series.invalidate(first);
+		}
+	}
+
+	private void ensureCapacity(int capacity)
+	{
+		if (capacity > times.length)
+		{
+			capacity = Math.max(capacity, times.length * 2);
+			times = Arrays.copyOf(times, capacity);
+			skipTimes = Arrays.copyOf(skipTimes, skips(capacity));
+			counts = Arrays.copyOf(counts, capacity);
+			intervals = Arrays.copyOf(intervals, capacity);
+			saturated = Arrays.copyOf(saturated, words(capacity));
+			afterGap = Arrays.copyOf(afterGap, words(capacity));
+			for (int x = 0; x < intervalBits.length; x++)
+			{
+				intervalBits[x] = Arrays.copyOf(intervalBits[x], words(capacity));
+			}
+		}
+	}
+
+	/**
+	 * Store the values of a reading at an index, except the gap bit.
+	 */
+	private void put(int index, Reading r)
+	{
+		times[index] = r.getTime();
+		counts[index] = r.getCount();
+		intervals[index] = (int) r.getInterval();
+		setBit(saturated, index, r.isSaturated());
+		for (int x = 0; x < intervalClasses.length; x++)
+		{
+			setBit(intervalBits[x], index, intervalClasses[x] == intervals[index]);
+		}
+	}
+
+	/**
+	 * Copy the values of a stored reading to a higher index, except the gap
+	 * bit.
+	 */
+	private void move(int from, int to)
+	{
+		times[to] = times[from];
+		counts[to] = counts[from];
+		intervals[to] = intervals[from];
+		setBit(saturated, to, getBit(saturated, from));
+		for (int x = 0; x < intervalClasses.length; x++)
+		{
+			setBit(intervalBits[x], to, getBit(intervalBits[x], from));
+		}
+	}
+
+	private boolean followsGap(int index)
+	{
+		return index > 0 && times[index] - intervals[index] * 1000L - times[index - 1] > GAP_TOLERANCE_MILLIS;
+	}
+
+	/**
+	 * The number of entries of the sparse index for the number of readings.
+	 */
+	private static int skips(int readings)
+	{
+		return (readings + (1 << SKIP_SHIFT) - 1) >>> SKIP_SHIFT;
+	}
+
+	private static int words(int bits)
+	{
+		return (bits + 63) >>> 6;
+	}
+
+	private static boolean getBit(long[] bits, int index)
+	{
+		return (bits[index >>> 6] & (1L << index)) != 0;
+	}
+
+	private static void setBit(long[] bits, int index, boolean value)
+	{
+		if (value)
+		{
+			bits[index >>> 6] |= 1L << index;
+		}
+		else
+		{
+			bits[index >>> 6] &= ~(1L << index);
+		}
+	}
+
+	private void checkIndex(int index)
+	{
+		if (index < 0 || index >= size)
+		{
+			throw new IndexOutOfBoundsException("Index: " + index + ", size: " + size);
+		}
+	}
+}
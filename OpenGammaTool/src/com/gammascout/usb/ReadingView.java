@@ -0,0 +1,274 @@
+/*******************************************************************************
+ *  
+ * Copyright (c) 2009, 2019 Erik Berglund.
+ *    
+ *       This file is part of Conserve.
+ *   
+ *       Conserve is free software: you can redistribute it and/or modify
+ *       it under the terms of the GNU Affero General Public License as published by
+ *       the Free Software Foundation, either version 3 of the License, or
+ *       (at your option) any later version.
+ *   
+ *       Conserve is distributed in the hope that it will be useful,
+ *       but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *       MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *       GNU Affero General Public License for more details.
+ *   
+ *       You should have received a copy of the GNU Affero General Public License
+ *       along with Conserve.  If not, see <https://www.gnu.org/licenses/agpl.html>.
+ *       
+ *******************************************************************************/
+package com.gammascout.usb;
+
+import java.util.AbstractList;
+import java.util.Iterator;
+import java.util.NoSuchElementException;
+
+/**
+ * The readings of a {@link ReadingStore} that pass a {@link ReadingFilter},
+ * as a read only list that refers to the store instead of copying it.
+ * <p>
+ * The view is a bitmap with one bit per reading of the store, with the
+ * number of readings before each word of the bitmap, so that the n:th
+ * reading of the view is found by binary search. Exporters can use the view
+ * as any list of readings; charts and statistics can use the store indexes
+ * directly with {@link #getIndex(int)} and {@link #nextIndex(int)}.
+ * <p>
+ * A view may cover only a range of the store, so that a chart showing a few
+ * readings of a large store only pays for a bitmap of those.
+ * <p>
+ * The view covers the readings the store had when it was made. Readings
+ * appended later are not included; a view made before readings were
+ * inserted out of order or the store was cleared must not be used.
+ * 
+ * @author Erik Berglund
+ * 
+ */
+public class ReadingView extends AbstractList<Reading>
+{
+	private final ReadingStore store;
+	/**
+	 * One bit per reading from base on.
+	 */
+	private final long[] words;
+	/**
+	 * The number of readings in the view before each word.
+	 */
+	private final int[] ranks;
+	/**
+	 * The store index of the first bit, a multiple of 64.
+	 */
+	private final int base;
+	private final int length;
+	private final int count;
+
+	/**
+	 * @param store
+	 * @param words
+	 *            the bitmap, covering the readings from base to length.
+	 * @param base
+	 *            the store index of the first bit, a multiple of 64.
+	 * @param length
+	 *            the store index after the last reading covered.
+	 */
+	ReadingView(ReadingStore store, long[] words, int base, int length)
+	{
+		this.store = store;
+		this.words = words;
+		this.base = base;
+		this.length = length;
+		int wordCount = (length - base + 63) >>> 6;
+		ranks = new int[wordCount + 1];
+		int total = 0;
+		for (int w = 0; w < wordCount; w++)
+		{
+			ranks[w] = total;
+			total += Long.bitCount(words[w]);
+		}
+		ranks[wordCount] = total;
+		count = total;
+	}
+
+	/**
+	 * Get the store the view refers to.
+	 * 
+	 * @return
+	 */
+	public ReadingStore getStore()
+	{
+		return store;
+	}
+
+	/**
+	 * Get the number of readings in the view.
+	 * 
+	 * @see java.util.AbstractCollection#size()
+	 */
+	@Override
+	public int size()
+	{
+		return count;
+	}
+
+	/**
+	 * Create the reading at the given position of the view.
+	 * 
+	 * @see java.util.AbstractList#get(int)
+	 */
+	@Override
+	public Reading get(int index)
+	{
+		return store.get(getIndex(index));
+	}
+
+	/**
+	 * Get the store index of the reading at the given position of the view.
+	 * 
+	 * @param index
+	 *            the position in the view.
+	 * @return
+	 */
+	public int getIndex(int index)
+	{
+		if (index < 0 || index >= count)
+		{
+			throw new IndexOutOfBoundsException("Index: " + index + ", size: " + count);
+		}
+		// the last word with fewer readings before it than index + 1
+		int low = 0;
+		int high = ranks.length - 2;
+		while (low < high)
+		{
+			int middle = (low + high + 1) >>> 1;
+			if (ranks[middle] <= index)
+			{
+				low = middle;
+			}
+			else
+			{
+				high = middle - 1;
+			}
+		}
+		long word = words[low];
+		for (int skip = index - ranks[low]; skip > 0; skip--)
+		{
+			// clear the lowest bit
+			word &= word - 1;
+		}
+		return base + (low << 6) + Long.numberOfTrailingZeros(word);
+	}
+
+	/**
+	 * Find the first reading in the view at or after a store index.
+	 * 
+	 * @param from
+	 *            a store index.
+	 * @return the store index of the reading, or -1 if there is none.
+	 */
+	public int nextIndex(int from)
+	{
+		if (from >= length)
+		{
+			return -1;
+		}
+		if (ranks.length == 1)
+		{
+			return -1;
+		}
+		from = Math.max(from, base) - base;
+		int w = from >>> 6;
+		long word = words[w] & (-1L << from);
+		while (true)
+		{
+			if (word != 0)
+			{
+				int index = base + (w << 6) + Long.numberOfTrailingZeros(word);
+				return index < length ? index : -1;
+			}
+			if (++w >= ranks.length - 1)
+			{
+				return -1;
+			}
+			word = words[w];
+		}
+	}
+
+	/**
+	 * Check if a reading of the store is in the view.
+	 * 
+	 * @param index
+	 *            a store index.
+	 * @return
+	 */
+	public boolean contains(int index)
+	{
+		return index >= base && index < length && (words[(index - base) >>> 6] & (1L << index)) != 0;
+	}
+
+	/**
+	 * Count the readings of the view between two store indexes.
+	 * 
+	 * @param from
+	 *            the first store index, inclusive.
+	 * @param to
+	 *            the last store index, exclusive.
+	 * @return
+	 */
+	public int count(int from, int to)
+	{
+		return Math.max(0, rank(Math.min(to, length)) - rank(Math.min(Math.max(0, from), length)));
+	}
+
+	/**
+	 * The number of readings in the view before a store index.
+	 */
+	private int rank(int index)
+	{
+		if (index <= base)
+		{
+			return 0;
+		}
+		index -= base;
+		int w = index >>> 6;
+		int bits = index & 63;
+		return ranks[w] + (bits == 0 ? 0 : Long.bitCount(words[w] & ((1L << bits) - 1)));
+	}
+
+	/**
+	 * Iterate in store order without searching for each reading.
+	 * 
+	 * @see java.util.AbstractList#iterator()
+	 */
+	@Override
+	public Iterator<Reading> iterator()
+	{
+		return new Iterator<Reading>()
+		{
+			private int next = nextIndex(0);
+
+			@Override
+			public boolean hasNext()
+			{
+				return next >= 0;
+			}
+
+			@Override
+			public Reading next()
+			{
+				if (next < 0)
+				{
+					throw new NoSuchElementException();
+				}
+				Reading r = store.get(next);
+				next = nextIndex(next + 1);
+				return r;
+			}
+
+			@Override
+			public void remove()
+			{
+				throw new UnsupportedOperationException();
+			}
+		};
+	}
+}
@@ -0,0 +1,322 @@
+/*******************************************************************************
+ *  
+ * Copyright (c) 2009, 2019 Erik Berglund.
+ *    
+ *       This file is part of Conserve.
+ *   
+ *       Conserve is free software: you can redistribute it and/or modify
+ *       it under the terms of the GNU Affero General Public License as published by
+ *       the Free Software Foundation, either version 3 of the License, or
+ *       (at your option) any later version.
+ *   
+ *       Conserve is distributed in the hope that it will be useful,
+ *       but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *       MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *       GNU Affero General Public License for more details.
+ *   
+ *       You should have received a copy of the GNU Affero General Public License
+ *       along with Conserve.  If not, see <https://www.gnu.org/licenses/agpl.html>.
+ *       
+ *******************************************************************************/
+package com.gammascout.usb;
+
+import java.io.IOException;
+
+/**
+ * Resamples readings of any measuring interval onto a regular grid of
+ * buckets of one period, aligned to multiples of the period since the epoch
+ * in UTC, e.g. to midnight for a period of a day.
+ * <p>
+ * Each reading covers its measuring interval before its time. Its counts are
+ * split between the buckets it overlaps in proportion to the overlap, so a
+ * bucket gets the counts measured in it, and its rate is those counts divided
+ * by the time its readings covered: readings of all intervals weigh by how
+ * long they measured. Time covered by an earlier reading, e.g. when the
+ * clock of the device was reset, is not counted twice; that part of the later
+ * reading is left out.
+ * <p>
+ * Every bucket from the first reading to the last is sent to the sink in time
+ * order, including those without readings, which are marked as gaps, so the
+ * output is a regular series. How much of each bucket was measured is given
+ * by its coverage, and a bucket with a saturated reading is marked, since its
+ * rate is then only a lower bound.
+ * <p>
+ * Readings are taken one at a time in the order of their times, and a bucket
+ * is sent as soon as a reading starts after it, so the resampler runs in one
+ * pass and keeps only the open bucket, whatever the number of readings.
+ * 
+ * @author Erik Berglund
+ * 
+ */
+public class Resampler
+{
+	/**
+	 * Receives the buckets of a resampler.
+	 */
+	public interface BucketSink
+	{
+		/**
+		 * Take the next bucket.
+		 * 
+		 * @param bucket
+		 * @throws IOException
+		 */
+		public void bucket(Bucket bucket) throws IOException;
+	}
+
+	/**
+	 * One period of the grid and what was measured in it.
+	 */
+	public static class Bucket
+	{
+		private final long start;
+		private final long period;
+		private final double counts;
+		private final long coveredMillis;
+		private final boolean saturated;
+
+		Bucket(long start, long period, double counts, long coveredMillis, boolean saturated)
+		{
+			this.start = start;
+			this.period = period;
+			this.counts = counts;
+			this.coveredMillis = coveredMillis;
+			this.saturated = saturated;
+		}
+
+		/**
+		 * Get the start of the bucket, in milliseconds since the epoch.
+		 * 
+		 * @return
+		 */
+		public long getStart()
+		{
+			return start;
+		}
+
+		/**
+		 * Get the end of the bucket, which is the start of the next.
+		 * 
+		 * @return
+		 */
+		public long getEnd()
+		{
+			return start + period;
+		}
+
+		/**
+		 * Get the counts measured in the bucket, which need not be whole
+		 * where readings were split.
+		 * 
+		 * @return
+		 */
+		public double getCounts()
+		{
+			return counts;
+		}
+
+		/**
+		 * Get the time readings covered in the bucket, in milliseconds.
+		 * 
+		 * @return
+		 */
+		public long getCoveredMillis()
+		{
+			return coveredMillis;
+		}
+
+		/**
+		 * Get the part of the bucket covered by readings, from 0 to 1.
+		 * 
+		 * @return
+		 */
+		public double getCoverage()
+		{
+			return coveredMillis / (double) period;
+		}
+
+		/**
+		 * Check if no reading covered any part of the bucket.
+		 * 
+		 * @return
+		 */
+		public boolean isGap()
+		{
+			return coveredMillis == 0;
+		}
+
+		/**
+		 * Check if a saturated reading covered part of the bucket.
+		 * 
+		 * @return
+		 */
+		public boolean isSaturated()
+		{
+			return saturated;
+		}
+
+		/**
+		 * Get the rate of the bucket: its counts per minute of covered time.
+		 * 
+		 * @return the rate, or NaN for a gap.
+		 */
+		public double getCountsPerMinute()
+		{
+			return isGap() ? Double.NaN : counts * 60000.0 / coveredMillis;
+		}
+
+		/**
+		 * Get the dose rate of the bucket.
+		 * 
+		 * @return the dose rate, or NaN for a gap.
+		 */
+		public double getMicroSievertsPerHour()
+		{
+			return Reading.toMicroSievertsPerHour(getCountsPerMinute());
+		}
+	}
+
+	private final long period;
+	private final BucketSink sink;
+	private boolean started;
+	private long bucketStart;
+	/**
+	 * The end of the time covered by the readings so far.
+	 */
+	private long coveredTo;
+	private double counts;
+	private long coveredMillis;
+	private boolean saturated;
+
+	/**
+	 * Create a resampler that sends its buckets to a sink.
+	 * 
+	 * @param periodMillis
+	 *            the length of the buckets in milliseconds.
+	 * @param sink
+	 */
+	public Resampler(long periodMillis, BucketSink sink)
+	{
+		if (periodMillis <= 0)
+		{
+			throw new IllegalArgumentException("Period must be positive: " + periodMillis);
+		}
+		this.period = periodMillis;
+		this.sink = sink;
+	}
+
+	/**
+	 * Resample all readings of a store.
+	 * 
+	 * @param store
+	 * @param periodMillis
+	 * @param sink
+	 * @throws IOException
+	 *             if the sink fails.
+	 */
+	public static void resample(ReadingStore store, long periodMillis, BucketSink sink) throws IOException
+	{
+		Resampler resampler = new Resampler(periodMillis, sink);
+		synchronized (store)
+		{
+			for (int i = 0; i < store.size(); i++)
+			{
+				resampler.add(store.getTime(i), store.getCount(i), store.getInterval(i), store.isSaturated(i));
+			}
+		}
+		resampler.finish();
+	}
+
+	/**
+	 * Get the length of the buckets.
+	 * 
+	 * @return
+	 */
+	public long getPeriodMillis()
+	{
+		return period;
+	}
+
+	/**
+	 * Add the next reading in time order.
+	 * 
+	 * @param r
+	 * @throws IOException
+	 *             if the sink fails.
+	 */
+	public void add(Reading r) throws IOException
+	{
+		add(r.getTime(), r.getCount(), (int) r.getInterval(), r.isSaturated());
+	}
+
+	/**
+	 * Add the next reading in time order, given by its columns.
+	 * 
+	 * @param time
+	 *            the end of the reading, in milliseconds since the epoch.
+	 * @param count
+	 * @param interval
+	 *            the measuring interval in seconds; readings without one
+	 *            are left out.
+	 * @param saturated
+	 * @throws IOException
+	 *             if the sink fails.
+	 */
+	public void add(long time, long count, int interval, boolean saturated) throws IOException
+	{
+		if (interval <= 0)
+		{
+			return;
+		}
+		long start = time - interval * 1000L;
+		if (!started)
+		{
+			long offset = start % period;
+			bucketStart = start - (offset < 0 ? offset + period : offset);
+			coveredTo = bucketStart;
+			started = true;
+		}
+		long from = Math.max(start, coveredTo);
+		double countsPerMilli = count / (double) (time - start);
+		while (from < time)
+		{
+			long bucketEnd = bucketStart + period;
+			if (from >= bucketEnd)
+			{
+				// the reading starts after the bucket, which is complete
+				sendBucket();
+				continue;
+			}
+			long to = Math.min(time, bucketEnd);
+			counts += countsPerMilli * (to - from);
+			coveredMillis += to - from;
+			this.saturated |= saturated;
+			from = to;
+		}
+		coveredTo = Math.max(coveredTo, time);
+	}
+
+	/**
+	 * Send the last bucket, which is left open by {@link #add(Reading)} in
+	 * case the next reading ends in it too.
+	 * 
+	 * @throws IOException
+	 *             if the sink fails.
+	 */
+	public void finish() throws IOException
+	{
+		if (started && coveredTo > bucketStart)
+		{
+			sendBucket();
+		}
+	}
+
+	private void sendBucket() throws IOException
+	{
+		sink.bucket(new Bucket(bucketStart, period, counts, coveredMillis, saturated));
+		bucketStart += period;
+		counts = 0;
+		coveredMillis = 0;
+		saturated = false;
+	}
+}
@@ -0,0 +1,321 @@
+/*******************************************************************************
+ *  
+ * Copyright (c) 2009, 2019 Erik Berglund.
+ *    
+ *       This file is part of Conserve.
+ *   
+ *       Conserve is free software: you can redistribute it and/or modify
+ *       it under the terms of the GNU Affero General Public License as published by
+ *       the Free Software Foundation, either version 3 of the License, or
+ *       (at your option) any later version.
+ *   
+ *       Conserve is distributed in the hope that it will be useful,
+ *       but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *       MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *       GNU Affero General Public License for more details.
+ *   
+ *       You should have received a copy of the GNU Affero General Public License
+ *       along with Conserve.  If not, see <https://www.gnu.org/licenses/agpl.html>.
+ *       
+ *******************************************************************************/
+package com.gammascout.usb;
+
+/**
+ * Summary statistics of readings, updated in constant time per reading: the
+ * number of readings, the mean and variance of the counts per minute by
+ * Welford's method, the lowest and highest counts per minute, the number of
+ * saturated readings, the total dose and the average rate over the measuring
+ * time.
+ * <p>
+ * Saturated readings only give a lower bound of the rate, so they are counted
+ * separately and left out of the mean, variance and extremes. Their counts
+ * are included in the dose, which is therefore a lower bound as well.
+ * <p>
+ * All methods are synchronized, so that a listener can be updated by a
+ * connector while the statistics are shown.
+ * 
+ * @author Erik Berglund
+ * 
+ */
+public class RunningStatistics implements GammaScoutListener
+{
+	private long count;
+	private double mean;
+	/**
+	 * The sum of squared differences from the mean.
+	 */
+	private double squares;
+	private double min = Double.NaN;
+	private double max = Double.NaN;
+	private long saturatedCount;
+	private long totalCounts;
+	private long totalSeconds;
+
+	/**
+	 * Create statistics of no readings.
+	 */
+	public RunningStatistics()
+	{
+	}
+
+	/**
+	 * Create statistics from sums of readings.
+	 * 
+	 * @param count
+	 *            the number of readings that are not saturated.
+	 * @param sum
+	 *            the sum of their counts per minute.
+	 * @param sumOfSquares
+	 *            the sum of the squares of their counts per minute.
+	 * @param min
+	 * @param max
+	 * @param saturatedCount
+	 * @param totalCounts
+	 *            the counts of all readings.
+	 * @param totalSeconds
+	 *            the measuring time of all readings.
+	 */
+	RunningStatistics(long count, double sum, double sumOfSquares, double min, double max, long saturatedCount, long totalCounts,
+			long totalSeconds)
+	{
+		this.count = count;
+		if (count > 0)
+		{
+			mean = sum / count;
+			// rounding can make a tiny variance negative
+			squares = Math.max(0, sumOfSquares - sum * mean);
+		}
+		this.min = min;
+		this.max = max;
+		this.saturatedCount = saturatedCount;
+		this.totalCounts = totalCounts;
+		this.totalSeconds = totalSeconds;
+	}
+
+	/**
+	 * Add a reading.
+	 * 
+	 * @param r
+	 */
+	public synchronized void add(Reading r)
+	{
+		totalCounts += r.getCount();
+		totalSeconds += r.getInterval();
+		if (r.isSaturated())
+		{
+			saturatedCount++;
+			return;
+		}
+		double cpm = r.getCountsPerMinute();
+		count++;
+		double delta = cpm - mean;
+		mean += delta / count;
+		squares += delta * (cpm - mean);
+		if (count == 1 || cpm < min)
+		{
+			min = cpm;
+		}
+		if (count == 1 || cpm > max)
+		{
+			max = cpm;
+		}
+	}
+
+	/**
+	 * @see com.gammascout.usb.GammaScoutListener#receiveReading(com.gammascout.usb.Reading)
+	 */
+	@Override
+	public void receiveReading(Reading r)
+	{
+		add(r);
+	}
+
+	/**
+	 * Forget all readings.
+	 */
+	public synchronized void clear()
+	{
+		count = 0;
+		mean = 0;
+		squares = 0;
+		min = Double.NaN;
+		max = Double.NaN;
+		saturatedCount = 0;
+		totalCounts = 0;
+		totalSeconds = 0;
+	}
+
+	/**
+	 * Copy the statistics as they are now.
+	 * 
+	 * @return
+	 */
+	public synchronized RunningStatistics copy()
+	{
+		RunningStatistics result = new RunningStatistics();
+		result.count = count;
+		result.mean = mean;
+		result.squares = squares;
+		result.min = min;
+		result.max = max;
+		result.saturatedCount = saturatedCount;
+		result.totalCounts = totalCounts;
+		result.totalSeconds = totalSeconds;
+		return result;
+	}
+
+	/**
+	 * Get the number of readings that are not saturated.
+	 * 
+	 * @return
+	 */
+	public synchronized long getCount()
+	{
+		return count;
+	}
+
+	/**
+	 * Get the number of saturated readings.
+	 * 
+	 * @return
+	 */
+	public synchronized long getSaturatedCount()
+	{
+		return saturatedCount;
+	}
+
+	/**
+	 * Get the mean counts per minute.
+	 * 
+	 * @return the mean, or NaN if there are no readings.
+	 */
+	public synchronized double getMeanCountsPerMinute()
+	{
+		return count == 0 ? Double.NaN : mean;
+	}
+
+	/**
+	 * Get the sample variance of the counts per minute.
+	 * 
+	 * @return the variance, or NaN if there are fewer than two readings.
+	 */
+	public synchronized double getVarianceCountsPerMinute()
+	{
+		return count < 2 ? Double.NaN : squares / (count - 1);
+	}
+
+	/**
+	 * Get the sample standard deviation of the counts per minute.
+	 * 
+	 * @return
+	 */
+	public double getStandardDeviationCountsPerMinute()
+	{
+		return Math.sqrt(getVarianceCountsPerMinute());
+	}
+
+	/**
+	 * Get the lowest counts per minute.
+	 * 
+	 * @return the minimum, or NaN if there are no readings.
+	 */
+	public synchronized double getMinCountsPerMinute()
+	{
+		return min;
+	}
+
+	/**
+	 * Get the highest counts per minute.
+	 * 
+	 * @return the maximum, or NaN if there are no readings.
+	 */
+	public synchronized double getMaxCountsPerMinute()
+	{
+		return max;
+	}
+
+	/**
+	 * Get the mean dose rate in micro Sieverts per hour.
+	 * 
+	 * @return
+	 */
+	public double getMeanMicroSievertsPerHour()
+	{
+		return Reading.toMicroSievertsPerHour(getMeanCountsPerMinute());
+	}
+
+	/**
+	 * Get the sample standard deviation of the dose rate in micro Sieverts
+	 * per hour.
+	 * 
+	 * @return
+	 */
+	public double getStandardDeviationMicroSievertsPerHour()
+	{
+		return Reading.toMicroSievertsPerHour(getStandardDeviationCountsPerMinute());
+	}
+
+	/**
+	 * Get the sample variance of the dose rate in micro Sieverts per hour.
+	 * 
+	 * @return
+	 */
+	public double getVarianceMicroSievertsPerHour()
+	{
+		double deviation = getStandardDeviationMicroSievertsPerHour();
+		return deviation * deviation;
+	}
+
+	/**
+	 * Get the lowest dose rate in micro Sieverts per hour.
+	 * 
+	 * @return
+	 */
+	public double getMinMicroSievertsPerHour()
+	{
+		return Reading.toMicroSievertsPerHour(getMinCountsPerMinute());
+	}
+
+	/**
+	 * Get the highest dose rate in micro Sieverts per hour.
+	 * 
+	 * @return
+	 */
+	public double getMaxMicroSievertsPerHour()
+	{
+		return Reading.toMicroSievertsPerHour(getMaxCountsPerMinute());
+	}
+
+	/**
+	 * Get the counts of all readings divided by their measuring time, which
+	 * unlike the mean gives long readings more weight than short ones.
+	 * 
+	 * @return the average, or NaN if there are no readings.
+	 */
+	public synchronized double getAverageCountsPerMinute()
+	{
+		return totalSeconds == 0 ? Double.NaN : totalCounts * 60.0 / totalSeconds;
+	}
+
+	/**
+	 * Get the dose divided by the measuring time in micro Sieverts per hour.
+	 * 
+	 * @return
+	 */
+	public double getAverageMicroSievertsPerHour()
+	{
+		return Reading.toMicroSievertsPerHour(getAverageCountsPerMinute());
+	}
+
+	/**
+	 * Get the total dose of all readings in micro Sieverts, the dose rate of
+	 * each reading integrated over its interval.
+	 * 
+	 * @return
+	 */
+	public synchronized double getDose()
+	{
+		// counts per minute times minutes is the counts
+		return Reading.toMicroSievertsPerHour(totalCounts) / 60;
+	}
+}
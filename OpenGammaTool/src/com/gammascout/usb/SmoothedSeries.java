@@ -0,0 +1,281 @@
+/*******************************************************************************
+ *  
+ * Copyright (c) 2009, 2019 Erik Berglund.
+ *    
+ *       This file is part of Conserve.
+ *   
+ *       Conserve is free software: you can redistribute it and/or modify
+ *       it under the terms of the GNU Affero General Public License as published by
+ *       the Free Software Foundation, either version 3 of the License, or
+ *       (at your option) any later version.
+ *   
+ *       Conserve is distributed in the hope that it will be useful,
+ *       but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *       MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *       GNU Affero General Public License for more details.
+ *   
+ *       You should have received a copy of the GNU Affero General Public License
+ *       along with Conserve.  If not, see <https://www.gnu.org/licenses/agpl.html>.
+ *       
+ *******************************************************************************/
+package com.gammascout.usb;
+
+import java.util.Arrays;
+
+/**
+ * The readings of a {@link ReadingStore} smoothed by a {@link Smoothing}, one
+ * value for each reading, computed from running sums: the sums of the window
+ * of a simple average, kept in a ring buffer of the window, or the decaying
+ * sums of an exponential average.
+ * <p>
+ * The values are extended when they are asked for, from the last computed
+ * value on, so readings that arrive during a download cost O(1) each and
+ * history is never computed again. A reading inserted out of order
+ * invalidates the values from its index; the sums are then rebuilt from the
+ * readings of the window before it, or for an exponential average, from the
+ * readings recent enough to weigh more than e^-40.
+ * <p>
+ * Saturated readings only give a lower bound of the rate, so they are left
+ * out of the averages and have no value. The values take 8 bytes per
+ * reading.
+ * <p>
+ * All methods synchronize on the store.
+ * 
+ * @author Erik Berglund
+ * 
+ */
+public class SmoothedSeries
+{
+	/**
+	 * How many time constants back an exponential average is rebuilt from.
+	 */
+	private static final double WARM_UP = 40;
+
+	private final ReadingStore store;
+	private final Smoothing smoothing;
+	/**
+	 * The values are valid for the readings before this index.
+	 */
+	private int valid;
+	/**
+	 * True if the sums are those after the reading before valid.
+	 */
+	private boolean sumsValid = true;
+	private double[] values = new double[0];
+	// the sums of the numerators and denominators of the averages
+	private double numerator;
+	private double denominator;
+	private long lastTime;
+	// the window of a simple average, from first in ring order
+	private long[] windowTimes = new long[16];
+	private double[] windowNumerators = new double[16];
+	private double[] windowDenominators = new double[16];
+	private int first;
+	private int windowSize;
+
+	SmoothedSeries(ReadingStore store, Smoothing smoothing)
+	{
+		this.store = store;
+		this.smoothing = smoothing;
+	}
+
+	/**
+	 * Get the smoothing of the values.
+	 * 
+	 * @return
+	 */
+	public Smoothing getSmoothing()
+	{
+		return smoothing;
+	}
+
+	/**
+	 * Get the smoothed counts per minute at a reading.
+	 * 
+	 * @param index
+	 * @return the value, or NaN for a saturated reading or one that has no
+	 *         readings to average yet.
+	 */
+	public double getCountsPerMinute(int index)
+	{
+		synchronized (store)
+		{
+			if (index < 0 || index >= store.size())
+			{
+				throw new IndexOutOfBoundsException("Index: " + index + ", size: " + store.size());
+			}
+			update();
+			return values[index];
+		}
+	}
+
+	/**
+	 * Invalidate the values from a reading that was inserted or changed.
+	 * Called by the store, which holds its lock.
+	 * 
+	 * @param index
+	 */
+	void invalidate(int index)
+	{
+		if (index < valid)
+		{
+			valid = index;
+			sumsValid = false;
+		}
+	}
+
+	/**
+	 * Extend the values to all readings of the store.
+	 */
+	private void update()
+	{
+		int size = store.size();
+		if (valid == size)
+		{
+			return;
+		}
+		if (values.length < size)
+		{
+			values = Arrays.copyOf(values, Math.max(size, 2 * values.length));
+		}
+		if (!sumsValid)
+		{
+			numerator = 0;
+			denominator = 0;
+			windowSize = 0;
+			for (int i = warmUpStart(valid); i < valid; i++)
+			{
+				add(i);
+			}
+			sumsValid = true;
+		}
+		for (int i = valid; i < size; i++)
+		{
+			values[i] = add(i);
+		}
+		valid = size;
+	}
+
+	/**
+	 * Find the first reading that the sums after the reading before index
+	 * depend on.
+	 */
+	private int warmUpStart(int index)
+	{
+		if (index == 0)
+		{
+			return 0;
+		}
+		int window = smoothing.getWindow();
+		long last = store.getTime(index - 1);
+		if (smoothing.isSeconds())
+		{
+			double span = smoothing.isExponential() ? WARM_UP * window : window;
+			return store.findIndexAfter(last - (long) Math.ceil(span * 1000));
+		}
+		if (smoothing.isExponential())
+		{
+			// the weight falls by a factor of e for each (N + 1) / 2 readings
+			return (int) Math.max(0, index - Math.ceil(WARM_UP * (window + 1) / 2));
+		}
+		int start = index;
+		for (int readings = 0; start > 0 && readings < window; start--)
+		{
+			if (isUsable(start - 1))
+			{
+				readings++;
+			}
+		}
+		return start;
+	}
+
+	/**
+	 * Add a reading to the sums.
+	 * 
+	 * @return the average with the reading.
+	 */
+	private double add(int index)
+	{
+		if (!isUsable(index))
+		{
+			return Double.NaN;
+		}
+		long time = store.getTime(index);
+		double x;
+		double w;
+		if (smoothing.isCountWeighted())
+		{
+			x = store.getCount(index) * 60.0;
+			w = store.getInterval(index);
+		}
+		else
+		{
+			x = store.getCountsPerMinute(index);
+			w = 1;
+		}
+		if (smoothing.isExponential())
+		{
+			double decay;
+			if (smoothing.isSeconds())
+			{
+				decay = Math.exp((lastTime - time) / (smoothing.getWindow() * 1000.0));
+			}
+			else
+			{
+				decay = 1 - 2.0 / (smoothing.getWindow() + 1);
+			}
+			numerator = numerator * decay + x;
+			denominator = denominator * decay + w;
+		}
+		else
+		{
+			// readings that left the window
+			while (windowSize > 0
+					&& (smoothing.isSeconds() ? windowTimes[first] <= time - smoothing.getWindow() * 1000L : windowSize == smoothing
+							.getWindow()))
+			{
+				numerator -= windowNumerators[first];
+				denominator -= windowDenominators[first];
+				first = (first + 1) % windowTimes.length;
+				windowSize--;
+			}
+			if (windowSize == windowTimes.length)
+			{
+				growWindow();
+			}
+			int last = (first + windowSize) % windowTimes.length;
+			windowTimes[last] = time;
+			windowNumerators[last] = x;
+			windowDenominators[last] = w;
+			windowSize++;
+			numerator += x;
+			denominator += w;
+		}
+		lastTime = time;
+		return denominator > 0 ? numerator / denominator : Double.NaN;
+	}
+
+	private boolean isUsable(int index)
+	{
+		return !store.isSaturated(index) && store.getInterval(index) > 0;
+	}
+
+	private void growWindow()
+	{
+		int capacity = windowTimes.length * 2;
+		int head = windowTimes.length - first;
+		long[] times = new long[capacity];
+		double[] numerators = new double[capacity];
+		double[] denominators = new double[capacity];
+		System.arraycopy(windowTimes, first, times, 0, head);
+		System.arraycopy(windowTimes, 0, times, head, first);
+		System.arraycopy(windowNumerators, first, numerators, 0, head);
+		System.arraycopy(windowNumerators, 0, numerators, head, first);
+		System.arraycopy(windowDenominators, first, denominators, 0, head);
+		System.arraycopy(windowDenominators, 0, denominators, head, first);
+		windowTimes = times;
+		windowNumerators = numerators;
+		windowDenominators = denominators;
+		first = 0;
+	}
+}
@@ -0,0 +1,188 @@
+/*******************************************************************************
+ *  
+ * Copyright (c) 2009, 2019 Erik Berglund.
+ *    
+ *       This file is part of Conserve.
+ *   
+ *       Conserve is free software: you can redistribute it and/or modify
+ *       it under the terms of the GNU Affero General Public License as published by
+ *       the Free Software Foundation, either version 3 of the License, or
+ *       (at your option) any later version.
+ *   
+ *       Conserve is distributed in the hope that it will be useful,
+ *       but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *       MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *       GNU Affero General Public License for more details.
+ *   
+ *       You should have received a copy of the GNU Affero General Public License
+ *       along with Conserve.  If not, see <https://www.gnu.org/licenses/agpl.html>.
+ *       
+ *******************************************************************************/
+package com.gammascout.usb;
+
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+/**
+ * How to smooth the readings of a {@link ReadingStore}: a simple or an
+ * exponential moving average, over a number of readings or a number of
+ * seconds, of the counts per minute of each reading or weighted by counts.
+ * <p>
+ * The simple average of a window is the mean of the counts per minute of its
+ * readings, or for the count-weighted average, their counts divided by their
+ * measuring time, which gives long readings more weight than short ones. The
+ * exponential averages weight each reading by how long ago it was: by
+ * 1 - 2 / (N + 1) for each reading since, as a spreadsheet does, or by
+ * e^(-t / T) for the time t since.
+ * <p>
+ * Smoothings are immutable. They are written as e.g. "sma(30)" for a simple
+ * average of 30 readings, "ema(600s)" for an exponential average with a time
+ * constant of 600 seconds, and with a "w" in front, e.g. "wsma(30)", for the
+ * count-weighted versions. Get the smoothed values from
+ * {@link ReadingStore#addSmoothedSeries(Smoothing)}.
+ * 
+ * @author Erik Berglund
+ * 
+ */
+public class Smoothing
+{
+	private static final Pattern SYNTAX = Pattern.compile("\\s*(w?)(sma|ema)\\s*\\(\\s*(\\d+)\\s*(s?)\\s*\\)\\s*");
+
+	private final boolean exponential;
+	private final int window;
+	private final boolean seconds;
+	private final boolean countWeighted;
+
+	/**
+	 * @param exponential
+	 *            true for an exponential moving average, false for a simple
+	 *            one.
+	 * @param window
+	 *            the number of readings or seconds, at least 1.
+	 * @param seconds
+	 *            true if the window is in seconds, false if it is in
+	 *            readings.
+	 * @param countWeighted
+	 *            true to divide counts by measuring time, false to average the
+	 *            counts per minute of the readings.
+	 */
+	public Smoothing(boolean exponential, int window, boolean seconds, boolean countWeighted)
+	{
+		if (window < 1)
+		{
+			throw new IllegalArgumentException("Window must be at least 1: " + window);
+		}
+		this.exponential = exponential;
+		this.window = window;
+		this.seconds = seconds;
+		this.countWeighted = countWeighted;
+	}
+
+	/**
+	 * Parse a smoothing written as e.g. "sma(30)" or "wema(600s)".
+	 * 
+	 * @param text
+	 * @return
+	 * @throws IllegalArgumentException
+	 *             if the text cannot be parsed.
+	 */
+	public static Smoothing parse(String text)
+	{
+		Matcher m = SYNTAX.matcher(text);
+		if (!m.matches())
+		{
+			throw new IllegalArgumentException("Invalid smoothing: " + text);
+		}
+		try
+		{
+			return new Smoothing(m.group(2).equals("ema"), Integer.parseInt(m.group(3)), !m.group(4).isEmpty(), !m.group(1)
+					.isEmpty());
+		}
+		catch (NumberFormatException e)
+		{
+			throw new IllegalArgumentException("Invalid smoothing: " + text);
+		}
+	}
+
+	/**
+	 * @return true for an exponential moving average, false for a simple one.
+	 */
+	public boolean isExponential()
+	{
+		return exponential;
+	}
+
+	/**
+	 * @return the number of readings or seconds.
+	 */
+	public int getWindow()
+	{
+		return window;
+	}
+
+	/**
+	 * @return true if the window is in seconds, false if it is in readings.
+	 */
+	public boolean isSeconds()
+	{
+		return seconds;
+	}
+
+	/**
+	 * @return true if counts are divided by measuring time.
+	 */
+	public boolean isCountWeighted()
+	{
+		return countWeighted;
+	}
+
+	/**
+	 * Describe the smoothing for a legend, e.g. "moving average of 30
+	 * readings".
+	 * 
+	 * @return
+	 */
+	public String getLabel()
+	{
+		String label = (countWeighted ? "count-weighted " : "") + (exponential ? "exponential " : "") + "moving average of ";
+		if (!seconds)
+		{
+			return label + window + (window == 1 ? " reading" : " readings");
+		}
+		if (window % 3600 == 0)
+		{
+			return label + window / 3600 + " h";
+		}
+		if (window % 60 == 0)
+		{
+			return label + window / 60 + " min";
+		}
+		return label + window + " s";
+	}
+
+	/**
+	 * Get the smoothing as it is written, e.g. "wema(600s)".
+	 */
+	@Override
+	public String toString()
+	{
+		return (countWeighted ? "w" : "") + (exponential ? "ema(" : "sma(") + window + (seconds ? "s)" : ")");
+	}
+
+	@Override
+	public boolean equals(Object o)
+	{
+		if (!(o instanceof Smoothing))
+		{
+			return false;
+		}
+		Smoothing s = (Smoothing) o;
+		return exponential == s.exponential && window == s.window && seconds == s.seconds && countWeighted == s.countWeighted;
+	}
+
+	@Override
+	public int hashCode()
+	{
+		return 16 * window + (exponential ? 1 : 0) + (seconds ? 2 : 0) + (countWeighted ? 4 : 0);
+	}
+}
@@ -20,6 +20,10 @@
  *******************************************************************************/
 package com.gammascout.usb;
 
+import java.text.DateFormat;
+import java.text.ParsePosition;
+import java.text.SimpleDateFormat;
+import java.util.Date;
 import java.util.TimeZone;
 
 /**
@@ -31,6 +35,50 @@ import java.util.TimeZone;
 public class Tools
 {
 	public static final TimeZone UTC_TIMEZONE = TimeZone.getTimeZone("UTC");
+	/**
+	 * The format of times shown in the window. Only for the Event Dispatch
+	 * Thread; other threads use {@link #createDateFormat()}.
+	 */
+	public static final DateFormat DATE_FORMAT = createDateFormat();
+
+	/**
+	 * Create a format like {@link #DATE_FORMAT}. SimpleDateFormat is not
+	 * thread safe, so work on other threads has a format of its own.
+	 * 
+	 * @return
+	 */
+	public static DateFormat createDateFormat()
+	{
+		DateFormat result = new SimpleDateFormat("yyyy-MM-dd HH:mm:ss");
+		result.setTimeZone(UTC_TIMEZONE);
+		return result;
+	}
+
+	/**
+	 * Parse a time in UTC, with or without the time of day, in the format of
+	 * {@link #DATE_FORMAT}.
+	 * 
+	 * @param text
+	 * @return the time in milliseconds since the epoch, or null if the text
+	 *         is not a time.
+	 */
+	public static Long parseTime(String text)
+	{
+		for (String pattern : new String[] { "yyyy-MM-dd HH:mm:ss", "yyyy-MM-dd" })
+		{
+			SimpleDateFormat format = new SimpleDateFormat(pattern);
+			format.setTimeZone(UTC_TIMEZONE);
+			format.setLenient(false);
+			ParsePosition position = new ParsePosition(0);
+			Date date = format.parse(text, position);
+			if (date != null && position.getIndex() == text.length())
+			{
+				return date.getTime();
+			}
+		}
+		return null;
+	}
+
 	public static void sleep(long millis)
 	{
 		try